@@ -0,0 +1,14 @@
+package dev.daedalus.nativeobfuscator;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation that allows the primitive array loops of a method or class to run over pinned arrays
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface ArrayKernel {
+}
@@ -0,0 +1,818 @@
+package dev.daedalus;
+
+import dev.daedalus.utils.LabelPool;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SourceInterpreter;
+import org.objectweb.asm.tree.analysis.SourceValue;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Counted loops over arrays whose element accesses are proven to be in bounds.
+ * A loop qualifies when its header tests {@code i < a.length} (directly or through a local holding it),
+ * {@code i} starts at a non-negative constant and only moves by the {@code i++} before the back-edge,
+ * and neither {@code a} nor the length local is written inside the loop. Every {@code a[i]} in the body
+ * then passes the null and bounds checks the header already made, so they need no exception check.
+ * With pinning enabled, loops that make no other JNI call also get a second, pinned copy: it runs
+ * over pointers taken with GetPrimitiveArrayCritical with plain loads and stores the C compiler can
+ * vectorize, on slots of its own, and releases the arrays every chunk of iterations. The JNI copy stays
+ * for null arrays and failed pins.
+ */
+public class ArrayLoops {
+
+    private static final Pattern SLOT = Pattern.compile("\\b(cstack|clocal)(\\d+)(?:_([zbcsifjdl]))?\\b");
+    private static final Pattern LABEL = Pattern.compile("\\bL\\d+\\b");
+
+    private static class Loop {
+        final int header;
+        final int bound;
+        final int check;
+        final int end;
+        final int exit;
+        final int index;
+        final int array;
+        final int length;
+        int id = -1;
+        boolean nested;
+        final Map<Integer, Integer> pinned = new LinkedHashMap<>();
+        final Set<Integer> guarded = new TreeSet<>();
+        final Set<Integer> locals = new TreeSet<>();
+
+        Loop(int header, int bound, int check, int end, int exit, int index, int array, int length) {
+            this.header = header;
+            this.bound = bound;
+            this.check = check;
+            this.end = end;
+            this.exit = exit;
+            this.index = index;
+            this.array = array;
+            this.length = length;
+        }
+
+        boolean contains(int insn) {
+            return insn >= header && insn <= end;
+        }
+    }
+
+    private final InsnList instructions;
+    private final List<TryCatchBlockNode> tryCatchBlocks;
+    private final Frame<SourceValue>[] frames;
+    private final Set<LabelNode> jumpTargets = new HashSet<>();
+    private final List<Loop> loops = new ArrayList<>();
+    private final Set<AbstractInsnNode> proven = new HashSet<>();
+    private final List<Loop> pinnedLoops = new ArrayList<>();
+    private final Map<AbstractInsnNode, Loop> pinnedAccesses = new HashMap<>();
+    private Frame<BasicValue>[] types;
+    private Loop kernel;
+
+    public ArrayLoops(String owner, MethodNode method, boolean pin) throws AnalyzerException {
+        this.instructions = method.instructions;
+        this.tryCatchBlocks = method.tryCatchBlocks;
+        this.frames = new Analyzer<>(new SourceInterpreter()).analyze(owner, method);
+        for (AbstractInsnNode insn : instructions) {
+            if (insn instanceof JumpInsnNode) {
+                jumpTargets.add(((JumpInsnNode) insn).label);
+            } else if (insn instanceof TableSwitchInsnNode) {
+                jumpTargets.add(((TableSwitchInsnNode) insn).dflt);
+                jumpTargets.addAll(((TableSwitchInsnNode) insn).labels);
+            } else if (insn instanceof LookupSwitchInsnNode) {
+                jumpTargets.add(((LookupSwitchInsnNode) insn).dflt);
+                jumpTargets.addAll(((LookupSwitchInsnNode) insn).labels);
+            }
+        }
+        for (TryCatchBlockNode tryCatch : method.tryCatchBlocks) {
+            jumpTargets.add(tryCatch.handler);
+        }
+        for (int i = 0; i < instructions.size(); i++) {
+            Loop loop = findLoop(i);
+            if (loop != null) {
+                loops.add(loop);
+            }
+        }
+        for (Loop loop : loops) {
+            for (int i = loop.check + 1; i < loop.end; i++) {
+                AbstractInsnNode insn = instructions.get(i);
+                // AASTORE is left out, the store check can still throw
+                if (isArrayAccess(insn) && insn.getOpcode() != Opcodes.AASTORE && frames[i] != null &&
+                        isLoad(getArrayOperand(i), Opcodes.ALOAD, loop.array) &&
+                        isLoad(getIndexOperand(i), Opcodes.ILOAD, loop.index)) {
+                    proven.add(insn);
+                }
+            }
+        }
+        if (pin) {
+            this.types = new Analyzer<>(new BasicInterpreter()).analyze(owner, method);
+            findPinnedLoops();
+        }
+    }
+
+    public boolean isEmpty() {
+        return proven.isEmpty();
+    }
+
+    public int getLoopCount() {
+        int count = 0;
+        for (Loop loop : loops) {
+            for (int i = loop.check + 1; i < loop.end; i++) {
+                if (proven.contains(instructions.get(i))) {
+                    count++;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    public int getPinnedCount() {
+        return pinnedLoops.size();
+    }
+
+    /**
+     * Whether the instruction is an array access the enclosing loop header has already checked.
+     */
+    public boolean isProven(AbstractInsnNode node) {
+        return proven.contains(node);
+    }
+
+    public String getDeclarations(int maxStack) {
+        if (pinnedLoops.isEmpty()) {
+            return "";
+        }
+        StringBuilder code = new StringBuilder();
+        Set<Integer> locals = new TreeSet<>();
+        for (Loop loop : pinnedLoops) {
+            for (int slot : loop.pinned.values()) {
+                code.append("\tvoid *").append(getPointer(loop, slot)).append(" = NULL; jsize ")
+                        .append(getLength(loop, slot)).append(" = 0;\n");
+            }
+            code.append("\tjint daedalus_klimit_").append(loop.id).append(" = 0;\n");
+            locals.addAll(loop.locals);
+        }
+        // The kernels run on their own slots: the method slots have their address taken by the JNI snippets,
+        // which would keep the compiler from holding them in registers next to the pinned pointers
+        for (int i = 0; i < Math.max(maxStack, 1); i++) {
+            code.append("\tjvalue daedalus_kcstack").append(i).append(";\n");
+        }
+        for (int local : locals) {
+            code.append("\tjvalue daedalus_kclocal").append(local).append(";\n");
+        }
+        return code.toString();
+    }
+
+    private static String getPointer(Loop loop, int slot) {
+        return "daedalus_pin_" + loop.id + "_" + slot;
+    }
+
+    private static String getLength(Loop loop, int slot) {
+        return "daedalus_pinlen_" + loop.id + "_" + slot;
+    }
+
+    private String getBound(Loop loop, String locals) {
+        return loop.length >= 0 ? locals + loop.length + ".i" : getLength(loop, loop.pinned.get(loop.array));
+    }
+
+    /**
+     * Code placed before the header label of a pinned loop: with every array non-null and long enough
+     * for the indices the loop will use, it takes the lengths and moves to the pinned copy of the loop.
+     * Otherwise the loop runs on the JNI accesses, which throw where the loop would.
+     */
+    public String getHeaderCode(AbstractInsnNode node) {
+        int index = instructions.indexOf(node);
+        for (Loop loop : pinnedLoops) {
+            if (loop.header != index) {
+                continue;
+            }
+            StringBuilder code = new StringBuilder();
+            StringBuilder nonNull = new StringBuilder();
+            for (int array : loop.pinned.keySet()) {
+                nonNull.append(nonNull.length() == 0 ? "" : " && ").append("clocal").append(array).append(".l != NULL");
+            }
+            code.append("if (").append(nonNull).append(") {\n");
+            for (Map.Entry<Integer, Integer> array : loop.pinned.entrySet()) {
+                code.append("    ").append(getLength(loop, array.getValue())).append(" = (*env)->GetArrayLength(env, clocal")
+                        .append(array.getKey()).append(".l);\n");
+            }
+            String indent = "    ";
+            if (!loop.guarded.isEmpty()) {
+                StringBuilder longEnough = new StringBuilder();
+                for (int array : loop.guarded) {
+                    longEnough.append(longEnough.length() == 0 ? "" : " && ").append(getLength(loop, loop.pinned.get(array)))
+                            .append(" >= ").append(getBound(loop, "clocal"));
+                }
+                code.append("    if (").append(longEnough).append(") {\n");
+                indent = "        ";
+            }
+            code.append(copyLocals(loop, loop.header, true, indent));
+            code.append(indent).append("goto daedalus_kpin_").append(loop.id).append(";\n");
+            if (!loop.guarded.isEmpty()) {
+                code.append("    }\n");
+            }
+            code.append("}\n");
+            return code.toString();
+        }
+        return "";
+    }
+
+    /**
+     * Starts the pinned copy of a loop. Its instructions are translated a second time, with the array
+     * accesses as plain loads and stores and the header testing against the end of the current chunk.
+     */
+    public List<AbstractInsnNode> beginKernel(int id) {
+        kernel = pinnedLoops.get(id);
+        List<AbstractInsnNode> body = new ArrayList<>();
+        for (int i = kernel.header; i <= kernel.end; i++) {
+            body.add(instructions.get(i));
+        }
+        return body;
+    }
+
+    /**
+     * The try-catch blocks active at the header of a loop, before its own label is visited.
+     */
+    public Set<TryCatchBlockNode> getTryCatches(int id) {
+        Loop loop = pinnedLoops.get(id);
+        Set<TryCatchBlockNode> active = new HashSet<>();
+        for (TryCatchBlockNode tryCatch : tryCatchBlocks) {
+            if (instructions.indexOf(tryCatch.start) < loop.header && instructions.indexOf(tryCatch.end) > loop.header) {
+                active.add(tryCatch);
+            }
+        }
+        return active;
+    }
+
+    /**
+     * Wraps the translated copy of a loop into its kernel. The arrays are pinned for at most one chunk
+     * of iterations (fewer when the loop nests another one), then released so a pending GC can run and
+     * pinned again. The copy makes no JNI call between the critical calls. When pinning fails the
+     * locals are written back and the loop continues on the JNI accesses from its header.
+     */
+    public String endKernel(LabelPool labelPool, String body) {
+        Loop loop = kernel;
+        kernel = null;
+        Map<String, String> labels = new HashMap<>();
+        for (int i = loop.header; i <= loop.end; i++) {
+            AbstractInsnNode insn = instructions.get(i);
+            if (insn instanceof LabelNode) {
+                String name = labelPool.getName(((LabelNode) insn).getLabel());
+                labels.put(name, "daedalus_k" + loop.id + "_" + name);
+            }
+        }
+        String header = labelPool.getName(((LabelNode) instructions.get(loop.header)).getLabel());
+        String exit = labelPool.getName(((LabelNode) instructions.get(loop.exit)).getLabel());
+        labels.put(exit, "daedalus_kexit_" + loop.id);
+
+        Matcher slots = SLOT.matcher(body);
+        StringBuffer renamed = new StringBuffer();
+        while (slots.find()) {
+            slots.appendReplacement(renamed, "daedalus_k" + slots.group(1) + slots.group(2) +
+                    (slots.group(3) != null ? "." + slots.group(3) : ""));
+        }
+        slots.appendTail(renamed);
+        Matcher names = LABEL.matcher(renamed);
+        StringBuffer relabeled = new StringBuffer();
+        while (names.find()) {
+            names.appendReplacement(relabeled, labels.getOrDefault(names.group(), names.group()));
+        }
+        names.appendTail(relabeled);
+
+        List<Map.Entry<Integer, Integer>> arrays = new ArrayList<>(loop.pinned.entrySet());
+        String index = "daedalus_kclocal" + loop.index + ".i";
+        String bound = getBound(loop, "daedalus_kclocal");
+        String chunk = loop.nested ? "DAEDALUS_PIN_CHUNK_NESTED" : "DAEDALUS_PIN_CHUNK";
+        StringBuilder code = new StringBuilder();
+        code.append("daedalus_kpin_").append(loop.id).append(":;\n");
+        String previous = null;
+        for (Map.Entry<Integer, Integer> array : arrays) {
+            code.append(getPointer(loop, array.getValue())).append(" = ");
+            if (previous != null) {
+                code.append(previous).append(" ? ");
+            }
+            code.append("(*env)->GetPrimitiveArrayCritical(env, clocal").append(array.getKey()).append(".l, NULL)");
+            if (previous != null) {
+                code.append(" : NULL");
+            }
+            code.append(";\n");
+            previous = getPointer(loop, array.getValue());
+        }
+        code.append("if (!").append(previous).append(") {\n");
+        for (int i = arrays.size() - 2; i >= 0; i--) {
+            String pointer = getPointer(loop, arrays.get(i).getValue());
+            code.append("    if (").append(pointer).append(") (*env)->ReleasePrimitiveArrayCritical(env, clocal")
+                    .append(arrays.get(i).getKey()).append(".l, ").append(pointer).append(", 0);\n");
+        }
+        code.append("    (*env)->ExceptionClear(env);\n");
+        code.append(copyLocals(loop, loop.header, false, "    "));
+        code.append("    goto ").append(header).append(";\n");
+        code.append("}\n");
+        code.append("daedalus_klimit_").append(loop.id).append(" = ").append(bound).append(" - ").append(index).append(" > ")
+                .append(chunk).append(" ? ").append(index).append(" + ").append(chunk).append(" : ").append(bound).append(";\n");
+        code.append(relabeled.toString().trim()).append("\n");
+        code.append("daedalus_kchunk_").append(loop.id).append(":;\n");
+        code.append("if (").append(index).append(" < ").append(bound).append(") {\n");
+        code.append(release(loop, "    "));
+        code.append("    goto daedalus_kpin_").append(loop.id).append(";\n");
+        code.append("}\n");
+        code.append("daedalus_kexit_").append(loop.id).append(":;\n");
+        code.append(release(loop, ""));
+        code.append(copyLocals(loop, loop.exit, false, ""));
+        code.append("goto ").append(exit).append(";\n");
+        return code.toString();
+    }
+
+    private String release(Loop loop, String indent) {
+        StringBuilder code = new StringBuilder();
+        List<Map.Entry<Integer, Integer>> arrays = new ArrayList<>(loop.pinned.entrySet());
+        for (int i = arrays.size() - 1; i >= 0; i--) {
+            code.append(indent).append("(*env)->ReleasePrimitiveArrayCritical(env, clocal").append(arrays.get(i).getKey()).append(".l, ")
+                    .append(getPointer(loop, arrays.get(i).getValue())).append(", 0);\n");
+        }
+        return code.toString();
+    }
+
+    // Moves the locals the loop touches between the method slots and the kernel slots, typed by the frame at insn
+    private String copyLocals(Loop loop, int insn, boolean toKernel, String indent) {
+        StringBuilder code = new StringBuilder();
+        Frame<BasicValue> frame = types[insn];
+        for (int local : loop.locals) {
+            BasicValue value = frame.getLocal(local);
+            char field;
+            if (value == BasicValue.INT_VALUE) {
+                field = 'i';
+            } else if (value == BasicValue.FLOAT_VALUE) {
+                field = 'f';
+            } else if (value == BasicValue.LONG_VALUE) {
+                field = 'j';
+            } else if (value == BasicValue.DOUBLE_VALUE) {
+                field = 'd';
+            } else if (value.isReference()) {
+                field = 'l';
+            } else {
+                continue;
+            }
+            String slot = "clocal" + local + "." + field;
+            code.append(indent).append(toKernel ? "daedalus_k" + slot + " = " + slot : slot + " = daedalus_k" + slot).append(";\n");
+        }
+        return code.toString();
+    }
+
+    /**
+     * Inside a kernel: the accesses as plain C loads and stores on the pinned pointers, and the header
+     * test against the end of the chunk. Outside of kernels the JNI code is kept.
+     */
+    public String wrap(AbstractInsnNode node, int stackPointer, String jniCode) {
+        Loop loop = kernel;
+        if (loop == null) {
+            return jniCode;
+        }
+        int index = instructions.indexOf(node);
+        int opcode = node.getOpcode();
+        if (index == loop.check) {
+            return "if (cstack" + (stackPointer - 2) + ".i >= cstack" + (stackPointer - 1) + ".i) goto daedalus_kchunk_" + loop.id + ";\n";
+        }
+        if (index == loop.bound) {
+            return "cstack" + (opcode == Opcodes.ARRAYLENGTH ? stackPointer - 1 : stackPointer) + ".i = daedalus_klimit_" + loop.id + ";\n";
+        }
+        if (!pinnedAccesses.containsKey(node)) {
+            return jniCode;
+        }
+        if (opcode == Opcodes.ARRAYLENGTH) {
+            int slot = loop.pinned.get(getLoadedLocal(getOperand(index, 0)));
+            return "cstack" + (stackPointer - 1) + ".i = " + getLength(loop, slot) + ";\n";
+        }
+        String pointer = getPointer(loop, loop.pinned.get(getLoadedLocal(getArrayOperand(index))));
+        boolean wide = opcode == Opcodes.LASTORE || opcode == Opcodes.DASTORE;
+        String type;
+        String field;
+        switch (isStore(node) ? opcode - Opcodes.IASTORE : opcode - Opcodes.IALOAD) {
+            case 0:
+                type = "jint";
+                field = "i";
+                break;
+            case 1:
+                type = "jlong";
+                field = "j";
+                break;
+            case 2:
+                type = "jfloat";
+                field = "f";
+                break;
+            case 3:
+                type = "jdouble";
+                field = "d";
+                break;
+            case 5:
+                type = "jbyte";
+                field = "i";
+                break;
+            case 6:
+                type = "jchar";
+                field = "i";
+                break;
+            case 7:
+                type = "jshort";
+                field = "i";
+                break;
+            default:
+                return jniCode;
+        }
+        if (isStore(node)) {
+            int value = stackPointer - (wide ? 2 : 1);
+            return "((" + type + " *) " + pointer + ")[cstack" + (value - 1) + ".i] = (" + type + ") cstack" + value + "." + field + ";\n";
+        }
+        return "cstack" + (stackPointer - 2) + "." + field + " = ((" + type + " *) " + pointer + ")[cstack" + (stackPointer - 1) + ".i];\n";
+    }
+
+    private Loop findLoop(int gotoIndex) {
+        AbstractInsnNode back = instructions.get(gotoIndex);
+        if (back.getOpcode() != Opcodes.GOTO) {
+            return null;
+        }
+        int header = instructions.indexOf(((JumpInsnNode) back).label);
+        if (header >= gotoIndex) {
+            return null;
+        }
+
+        // header: ILOAD i; (ALOAD a; ARRAYLENGTH | ILOAD n); IF_ICMPGE exit
+        int cursor = nextReal(header);
+        AbstractInsnNode loadIndex = instructions.get(cursor);
+        if (loadIndex.getOpcode() != Opcodes.ILOAD) {
+            return null;
+        }
+        int index = ((VarInsnNode) loadIndex).var;
+        cursor = nextReal(cursor + 1);
+        AbstractInsnNode bound = instructions.get(cursor);
+        int array;
+        int length = -1;
+        if (bound.getOpcode() == Opcodes.ALOAD) {
+            array = ((VarInsnNode) bound).var;
+            cursor = nextReal(cursor + 1);
+            if (instructions.get(cursor).getOpcode() != Opcodes.ARRAYLENGTH) {
+                return null;
+            }
+        } else if (bound.getOpcode() == Opcodes.ILOAD) {
+            length = ((VarInsnNode) bound).var;
+            array = findLengthSource(header, length);
+            if (array < 0) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+        int check = nextReal(cursor + 1);
+        AbstractInsnNode test = instructions.get(check);
+        if (test.getOpcode() != Opcodes.IF_ICMPGE) {
+            return null;
+        }
+        // the exit has to be where the back-edge would fall through, so it can release what the header pinned
+        int exit = instructions.indexOf(((JumpInsnNode) test).label);
+        if (exit <= gotoIndex) {
+            return null;
+        }
+        for (int i = gotoIndex + 1; i < exit; i++) {
+            if (instructions.get(i).getOpcode() >= 0) {
+                return null;
+            }
+        }
+        int increment = previousReal(gotoIndex - 1);
+        AbstractInsnNode iinc = instructions.get(increment);
+        if (!(iinc instanceof IincInsnNode) || ((IincInsnNode) iinc).var != index || ((IincInsnNode) iinc).incr != 1) {
+            return null;
+        }
+        for (int i = header; i <= gotoIndex; i++) {
+            AbstractInsnNode insn = instructions.get(i);
+            if (i != increment && writes(insn, index) || writes(insn, array) || length >= 0 && writes(insn, length)) {
+                return null;
+            }
+        }
+        if (!hasSingleEntry(header, gotoIndex) || !startsNonNegative(header, index, array, length)) {
+            return null;
+        }
+        return new Loop(header, previousReal(check - 1), check, gotoIndex, exit, index, array, length);
+    }
+
+    private int nextReal(int from) {
+        int i = from;
+        while (i < instructions.size() && instructions.get(i).getOpcode() < 0) {
+            i++;
+        }
+        return Math.min(i, instructions.size() - 1);
+    }
+
+    private int previousReal(int from) {
+        int i = from;
+        while (i > 0 && instructions.get(i).getOpcode() < 0) {
+            i--;
+        }
+        return i;
+    }
+
+    private static boolean writes(AbstractInsnNode insn, int var) {
+        if (insn instanceof VarInsnNode) {
+            int opcode = insn.getOpcode();
+            return opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE && ((VarInsnNode) insn).var == var;
+        }
+        return insn instanceof IincInsnNode && ((IincInsnNode) insn).var == var;
+    }
+
+    // Nothing but the fall-through from the preheader and edges from inside the loop may reach it
+    private boolean hasSingleEntry(int header, int end) {
+        for (TryCatchBlockNode tryCatch : tryCatchBlocks) {
+            int handler = instructions.indexOf(tryCatch.handler);
+            if (handler >= header && handler <= end) {
+                return false;
+            }
+        }
+        for (int i = 0; i < instructions.size(); i++) {
+            if (i >= header && i <= end) {
+                continue;
+            }
+            for (LabelNode target : getTargets(instructions.get(i))) {
+                int to = instructions.indexOf(target);
+                if (to >= header && to <= end) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static List<LabelNode> getTargets(AbstractInsnNode insn) {
+        if (insn instanceof JumpInsnNode) {
+            return Collections.singletonList(((JumpInsnNode) insn).label);
+        } else if (insn instanceof TableSwitchInsnNode) {
+            List<LabelNode> targets = new ArrayList<>(((TableSwitchInsnNode) insn).labels);
+            targets.add(((TableSwitchInsnNode) insn).dflt);
+            return targets;
+        } else if (insn instanceof LookupSwitchInsnNode) {
+            List<LabelNode> targets = new ArrayList<>(((LookupSwitchInsnNode) insn).labels);
+            targets.add(((LookupSwitchInsnNode) insn).dflt);
+            return targets;
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Walks the straight-line code in front of the header, which runs every time the loop is entered.
+     */
+    private List<AbstractInsnNode> getPreheader(int header) {
+        List<AbstractInsnNode> preheader = new ArrayList<>();
+        for (int i = header - 1; i >= 0; i--) {
+            AbstractInsnNode insn = instructions.get(i);
+            if (insn instanceof LabelNode && jumpTargets.contains(insn)) {
+                break;
+            }
+            int opcode = insn.getOpcode();
+            if (insn instanceof JumpInsnNode || insn instanceof TableSwitchInsnNode || insn instanceof LookupSwitchInsnNode ||
+                    opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN || opcode == Opcodes.ATHROW) {
+                break;
+            }
+            if (opcode >= 0) {
+                preheader.add(0, insn);
+            }
+        }
+        return preheader;
+    }
+
+    // ALOAD a; ARRAYLENGTH; ISTORE n in the preheader, neither local written again before the header
+    private int findLengthSource(int header, int length) {
+        List<AbstractInsnNode> preheader = getPreheader(header);
+        for (int i = preheader.size() - 1; i >= 2; i--) {
+            AbstractInsnNode insn = preheader.get(i);
+            if (insn.getOpcode() == Opcodes.ISTORE && ((VarInsnNode) insn).var == length &&
+                    preheader.get(i - 1).getOpcode() == Opcodes.ARRAYLENGTH &&
+                    preheader.get(i - 2).getOpcode() == Opcodes.ALOAD) {
+                int array = ((VarInsnNode) preheader.get(i - 2)).var;
+                for (int j = i + 1; j < preheader.size(); j++) {
+                    if (writes(preheader.get(j), array) || writes(preheader.get(j), length)) {
+                        return -1;
+                    }
+                }
+                return array;
+            }
+            if (writes(insn, length)) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsNonNegative(int header, int index, int array, int length) {
+        List<AbstractInsnNode> preheader = getPreheader(header);
+        for (int i = preheader.size() - 1; i >= 1; i--) {
+            AbstractInsnNode insn = preheader.get(i);
+            if (!writes(insn, index)) {
+                continue;
+            }
+            if (insn.getOpcode() != Opcodes.ISTORE) {
+                return false;
+            }
+            AbstractInsnNode value = preheader.get(i - 1);
+            switch (value.getOpcode()) {
+                case Opcodes.ICONST_0:
+                case Opcodes.ICONST_1:
+                case Opcodes.ICONST_2:
+                case Opcodes.ICONST_3:
+                case Opcodes.ICONST_4:
+                case Opcodes.ICONST_5:
+                    return true;
+                case Opcodes.BIPUSH:
+                case Opcodes.SIPUSH:
+                    return ((IntInsnNode) value).operand >= 0;
+            }
+            return false;
+        }
+        return false;
+    }
+
+    private static boolean isArrayAccess(AbstractInsnNode insn) {
+        int opcode = insn.getOpcode();
+        return opcode >= Opcodes.IALOAD && opcode <= Opcodes.SALOAD || opcode >= Opcodes.IASTORE && opcode <= Opcodes.SASTORE;
+    }
+
+    private static boolean isStore(AbstractInsnNode insn) {
+        return insn.getOpcode() >= Opcodes.IASTORE && insn.getOpcode() <= Opcodes.SASTORE;
+    }
+
+    private SourceValue getOperand(int insn, int depth) {
+        Frame<SourceValue> frame = frames[insn];
+        int slot = frame.getStackSize() - 1 - depth;
+        return slot >= 0 ? frame.getStack(slot) : null;
+    }
+
+    private SourceValue getArrayOperand(int insn) {
+        AbstractInsnNode node = instructions.get(insn);
+        return getOperand(insn, isStore(node) ? 2 : 1);
+    }
+
+    private SourceValue getIndexOperand(int insn) {
+        AbstractInsnNode node = instructions.get(insn);
+        return getOperand(insn, isStore(node) ? 1 : 0);
+    }
+
+    private static boolean isLoad(SourceValue value, int opcode, int var) {
+        if (value == null || value.insns.isEmpty()) {
+            return false;
+        }
+        for (AbstractInsnNode source : value.insns) {
+            if (source.getOpcode() != opcode || ((VarInsnNode) source).var != var) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getLoadedLocal(SourceValue value) {
+        if (value == null || value.insns.size() != 1) {
+            return -1;
+        }
+        AbstractInsnNode source = value.insns.iterator().next();
+        return source.getOpcode() == Opcodes.ALOAD ? ((VarInsnNode) source).var : -1;
+    }
+
+    private void findPinnedLoops() {
+        List<Loop> candidates = new ArrayList<>();
+        for (Loop loop : loops) {
+            if (isPinnable(loop)) {
+                candidates.add(loop);
+            }
+        }
+        for (Loop loop : candidates) {
+            boolean nested = false;
+            for (Loop outer : candidates) {
+                if (outer != loop && outer.contains(loop.header) && outer.contains(loop.end)) {
+                    nested = true;
+                    break;
+                }
+            }
+            if (nested) {
+                continue;
+            }
+            for (int i = loop.header; i <= loop.end; i++) {
+                AbstractInsnNode insn = instructions.get(i);
+                if (isArrayAccess(insn) || insn.getOpcode() == Opcodes.ARRAYLENGTH) {
+                    int array = getLoadedLocal(insn.getOpcode() == Opcodes.ARRAYLENGTH ? getOperand(i, 0) : getArrayOperand(i));
+                    loop.pinned.putIfAbsent(array, loop.pinned.size());
+                    pinnedAccesses.put(insn, loop);
+                    if (isArrayAccess(insn) && !proven.contains(insn)) {
+                        loop.guarded.add(array);
+                    }
+                } else if (insn instanceof VarInsnNode) {
+                    loop.locals.add(((VarInsnNode) insn).var);
+                } else if (insn instanceof IincInsnNode) {
+                    loop.locals.add(((IincInsnNode) insn).var);
+                }
+                if (i != loop.end) {
+                    for (LabelNode target : getTargets(insn)) {
+                        loop.nested |= instructions.indexOf(target) <= i;
+                    }
+                }
+            }
+            if (!loop.pinned.isEmpty()) {
+                loop.id = pinnedLoops.size();
+                pinnedLoops.add(loop);
+            }
+        }
+    }
+
+    // No JNI call may happen between GetPrimitiveArrayCritical and its release
+    private boolean isPinnable(Loop loop) {
+        // the kernel is entered at the header and left at the exit, with only locals to carry over
+        if (types[loop.header] == null || types[loop.header].getStackSize() != 0 ||
+                types[loop.exit] == null || types[loop.exit].getStackSize() != 0) {
+            return false;
+        }
+        for (int i = loop.header; i <= loop.end; i++) {
+            AbstractInsnNode insn = instructions.get(i);
+            int opcode = insn.getOpcode();
+            if (opcode < 0) {
+                continue;
+            }
+            if (frames[i] == null) {
+                return false;
+            }
+            for (LabelNode target : getTargets(insn)) {
+                int to = instructions.indexOf(target);
+                if (!loop.contains(to) && to != loop.exit) {
+                    return false;
+                }
+            }
+            if (opcode == Opcodes.AALOAD || opcode == Opcodes.AASTORE) {
+                return false;
+            }
+            if (isArrayAccess(insn)) {
+                // a[i] on another array than the bound one is covered by checking its length once on entry
+                int array = getLoadedLocal(getArrayOperand(i));
+                if (array < 0 || isWrittenIn(loop, array) ||
+                        !proven.contains(insn) && !isLoad(getIndexOperand(i), Opcodes.ILOAD, loop.index)) {
+                    return false;
+                }
+                continue;
+            }
+            if (opcode == Opcodes.ARRAYLENGTH) {
+                int array = getLoadedLocal(getOperand(i, 0));
+                if (array < 0 || isWrittenIn(loop, array) || !isAccessedIn(loop, array)) {
+                    return false;
+                }
+                continue;
+            }
+            if (!isPure(insn)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isWrittenIn(Loop loop, int var) {
+        for (int i = loop.header; i <= loop.end; i++) {
+            if (writes(instructions.get(i), var)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAccessedIn(Loop loop, int var) {
+        for (int i = loop.header; i <= loop.end; i++) {
+            if (isArrayAccess(instructions.get(i)) && getLoadedLocal(getArrayOperand(i)) == var) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPure(AbstractInsnNode insn) {
+        int opcode = insn.getOpcode();
+        switch (opcode) {
+            case Opcodes.IDIV:
+            case Opcodes.LDIV:
+            case Opcodes.IREM:
+            case Opcodes.LREM:
+            // Reference comparisons go through IsSameObject, a JNI call the critical region must not make
+            case Opcodes.IF_ACMPEQ:
+            case Opcodes.IF_ACMPNE:
+                return false;
+            case Opcodes.LDC: {
+                Object cst = ((LdcInsnNode) insn).cst;
+                return cst instanceof Number;
+            }
+            case Opcodes.TABLESWITCH:
+            case Opcodes.LOOKUPSWITCH:
+            case Opcodes.IINC:
+                return true;
+        }
+        return opcode >= Opcodes.NOP && opcode <= Opcodes.SIPUSH ||
+                opcode >= Opcodes.ILOAD && opcode <= Opcodes.ALOAD ||
+                opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE ||
+                opcode >= Opcodes.POP && opcode <= Opcodes.DCMPG ||
+                opcode >= Opcodes.IFEQ && opcode <= Opcodes.GOTO ||
+                opcode == Opcodes.IFNULL || opcode == Opcodes.IFNONNULL;
+    }
+}
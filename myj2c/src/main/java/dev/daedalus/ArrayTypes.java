@@ -0,0 +1,87 @@
+package dev.daedalus;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+/**
+ * Static types of the arrays passed to System.arraycopy, whose parameters are plain Objects.
+ * References keep their type while it is a one-dimensional primitive array and the same on every path,
+ * so a copy between two arrays of one primitive type is known to need no store checks.
+ */
+public class ArrayTypes {
+
+    private static class ArrayInterpreter extends BasicInterpreter {
+
+        ArrayInterpreter() {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public BasicValue newValue(Type type) {
+            if (type != null && type.getSort() == Type.ARRAY && type.getDimensions() == 1 &&
+                    type.getElementType().getSort() <= Type.DOUBLE) {
+                return new BasicValue(type);
+            }
+            return super.newValue(type);
+        }
+
+        @Override
+        public BasicValue merge(BasicValue value1, BasicValue value2) {
+            if (!value1.equals(value2) && value1.isReference() && value2.isReference()) {
+                return BasicValue.REFERENCE_VALUE;
+            }
+            return super.merge(value1, value2);
+        }
+    }
+
+    private final MethodNode method;
+    private final Frame<BasicValue>[] frames;
+
+    public ArrayTypes(String owner, MethodNode method) throws AnalyzerException {
+        this.method = method;
+        this.frames = new Analyzer<>(new ArrayInterpreter()).analyze(owner, method);
+    }
+
+    public static boolean isArrayCopy(AbstractInsnNode insn) {
+        if (insn.getOpcode() != Opcodes.INVOKESTATIC) {
+            return false;
+        }
+        MethodInsnNode call = (MethodInsnNode) insn;
+        return call.owner.equals("java/lang/System") && call.name.equals("arraycopy") &&
+                call.desc.equals("(Ljava/lang/Object;ILjava/lang/Object;II)V");
+    }
+
+    /**
+     * Whether the method copies arrays at all, so the analysis is worth running.
+     */
+    public static boolean isNeeded(MethodNode method) {
+        for (AbstractInsnNode insn : method.instructions) {
+            if (isArrayCopy(insn)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The primitive array type both sides of the arraycopy call have, or null.
+     */
+    public Type getCopyType(MethodInsnNode node) {
+        Frame<BasicValue> frame = frames[method.instructions.indexOf(node)];
+        if (frame == null) {
+            return null;
+        }
+        // src, srcPos, dest, destPos, length
+        Type src = frame.getStack(frame.getStackSize() - 5).getType();
+        Type dest = frame.getStack(frame.getStackSize() - 3).getType();
+        return src != null && src.getSort() == Type.ARRAY && src.equals(dest) ? src : null;
+    }
+}
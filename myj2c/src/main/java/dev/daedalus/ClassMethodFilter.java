@@ -1,5 +1,6 @@
 package dev.daedalus;
 
+import dev.daedalus.nativeobfuscator.ArrayKernel;
 import dev.daedalus.nativeobfuscator.Native;
 import dev.daedalus.nativeobfuscator.NotNative;
 import dev.daedalus.utils.AntPathMatcher;
@@ -13,6 +14,7 @@ import java.util.List;
 public class ClassMethodFilter {
     private static final String NATIVE_ANNOTATION_DESC = Type.getDescriptor(Native.class);
     private static final String NOT_NATIVE_ANNOTATION_DESC = Type.getDescriptor(NotNative.class);
+    private static final String ARRAY_KERNEL_ANNOTATION_DESC = Type.getDescriptor(ArrayKernel.class);
 
     private final List<String> blackList;
     private final List<String> whiteList;
@@ -139,13 +141,22 @@ public class ClassMethodFilter {
 
     }
 
+    public static boolean isArrayKernel(ClassNode classNode, MethodNode methodNode) {
+        return classNode.invisibleAnnotations != null && classNode.invisibleAnnotations.stream()
+                .anyMatch(annotationNode -> annotationNode.desc.equals(ARRAY_KERNEL_ANNOTATION_DESC)) ||
+                methodNode.invisibleAnnotations != null && methodNode.invisibleAnnotations.stream()
+                        .anyMatch(annotationNode -> annotationNode.desc.equals(ARRAY_KERNEL_ANNOTATION_DESC));
+    }
+
     public static void cleanAnnotations(ClassNode classNode) {
         if (classNode.invisibleAnnotations != null) {
-            classNode.invisibleAnnotations.removeIf(annotationNode -> annotationNode.desc.equals(NATIVE_ANNOTATION_DESC));
+            classNode.invisibleAnnotations.removeIf(annotationNode -> annotationNode.desc.equals(NATIVE_ANNOTATION_DESC) ||
+                    annotationNode.desc.equals(ARRAY_KERNEL_ANNOTATION_DESC));
         }
         classNode.methods.stream()
                 .filter(methodNode -> methodNode.invisibleAnnotations != null)
                 .forEach(methodNode -> methodNode.invisibleAnnotations.removeIf(annotationNode ->
-                        annotationNode.desc.equals(NATIVE_ANNOTATION_DESC) || annotationNode.desc.equals(NOT_NATIVE_ANNOTATION_DESC)));
+                        annotationNode.desc.equals(NATIVE_ANNOTATION_DESC) || annotationNode.desc.equals(NOT_NATIVE_ANNOTATION_DESC) ||
+                                annotationNode.desc.equals(ARRAY_KERNEL_ANNOTATION_DESC)));
     }
 }
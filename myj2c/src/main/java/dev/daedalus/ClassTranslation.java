@@ -0,0 +1,147 @@
+package dev.daedalus;
+
+import dev.daedalus.asm.ClassHierarchy;
+import dev.daedalus.cache.CachedMethodInfo;
+import dev.daedalus.cache.ClassNodeCache;
+import dev.daedalus.cache.NodeCache;
+import dev.daedalus.cache.IdRequests;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The shared state as one translation of a class on the pool sees it: overlays of the caches handing out symbolic ids
+ * for the ids of the class, and what the class adds to the shared maps and pools, kept until the class is committed
+ * in jar order. The class then comes out as it would in a serial run.
+ */
+public class ClassTranslation {
+
+    private final IdRequests ids;
+    private final NodeCache<String> cachedStrings;
+    private final ClassNodeCache cachedClasses;
+    private final NodeCache<CachedMethodInfo> cachedDirectCalls;
+    private final NodeCache<String> cachedVirtualCalls;
+    private final InterfaceStaticClassProvider staticClassProvider;
+    private final Map<String, String> classMethodNameMap = new LinkedHashMap<>();
+    private final Map<String, String> noInitClassMap = new LinkedHashMap<>();
+    private final List<MethodNode> bootstrapMethods = new ArrayList<>();
+    private final Map<AtomicInteger, Integer> counts = new LinkedHashMap<>();
+    private final Map<List<String>, String> singleTargets = new LinkedHashMap<>();
+
+    ClassTranslation(MYObfuscator obfuscator, IdRequests ids, InterfaceStaticClassProvider staticClassProvider) {
+        this.ids = ids;
+        cachedStrings = obfuscator.getCachedStrings().overlay(ids);
+        cachedClasses = obfuscator.getCachedClasses().overlay(ids);
+        cachedDirectCalls = obfuscator.getCachedDirectCalls().overlay(ids);
+        cachedVirtualCalls = obfuscator.getCachedVirtualCalls().overlay(ids);
+        this.staticClassProvider = staticClassProvider;
+    }
+
+    public NodeCache<String> getCachedStrings() {
+        return cachedStrings;
+    }
+
+    public ClassNodeCache getCachedClasses() {
+        return cachedClasses;
+    }
+
+    public NodeCache<CachedMethodInfo> getCachedDirectCalls() {
+        return cachedDirectCalls;
+    }
+
+    public NodeCache<String> getCachedVirtualCalls() {
+        return cachedVirtualCalls;
+    }
+
+    /**
+     * The ids the class asked for, resolved once the class is committed.
+     */
+    public IdRequests getIdRequests() {
+        return ids;
+    }
+
+    public InterfaceStaticClassProvider getStaticClassProvider() {
+        return staticClassProvider;
+    }
+
+    public Map<String, String> getClassMethodNameMap() {
+        return classMethodNameMap;
+    }
+
+    public Map<String, String> getNoInitClassMap() {
+        return noInitClassMap;
+    }
+
+    public void addBootstrapMethod(String name, String desc, Consumer<MethodNode> creator) {
+        MethodNode method = new MethodNode(0, name, desc, null, new String[0]);
+        creator.accept(method);
+        bootstrapMethods.add(method);
+    }
+
+    /**
+     * The bootstrap methods the class uses, as their creators made them.
+     */
+    public List<MethodNode> getBootstrapMethods() {
+        return bootstrapMethods;
+    }
+
+    /**
+     * Adds to a statistic of the obfuscator once the class is committed.
+     */
+    public void count(AtomicInteger statistic, int delta) {
+        counts.merge(statistic, delta, Integer::sum);
+    }
+
+    /**
+     * What the class added to each of the statistics.
+     */
+    public int[] getCounts(List<AtomicInteger> statistics) {
+        return statistics.stream().mapToInt(statistic -> counts.getOrDefault(statistic, 0)).toArray();
+    }
+
+    /**
+     * The single target of a virtual call, remembered so a later build can tell whether the code of the class still
+     * holds.
+     */
+    public String getSingleTarget(ClassHierarchy hierarchy, String owner, String name, String desc) {
+        String target = hierarchy.getSingleTarget(owner, name, desc);
+        singleTargets.put(Arrays.asList(owner, name, desc), target == null ? "" : target);
+        return target;
+    }
+
+    /**
+     * The calls the class devirtualized or left virtual, as owner, name and descriptor, with their single target or an
+     * empty one.
+     */
+    public Map<List<String>, String> getSingleTargets() {
+        return singleTargets;
+    }
+
+    /**
+     * Runs in jar order: asks the shared caches for the ids of the class and adds what the class added to the shared
+     * state.
+     */
+    void commit(MYObfuscator obfuscator) {
+        ids.resolve();
+        commit(obfuscator, classMethodNameMap, noInitClassMap, bootstrapMethods);
+        counts.forEach(AtomicInteger::addAndGet);
+    }
+
+    /**
+     * Adds the functions, the classes initialized natively and the bootstrap methods of a class to the shared state.
+     */
+    static void commit(MYObfuscator obfuscator, Map<String, String> classMethodNameMap, Map<String, String> noInitClassMap,
+                       List<MethodNode> bootstrapMethods) {
+        obfuscator.getClassMethodNameMap().putAll(classMethodNameMap);
+        obfuscator.getNoInitClassMap().putAll(noInitClassMap);
+        for (MethodNode bootstrapMethod : bootstrapMethods) {
+            obfuscator.getBootstrapMethodsPool().getMethod(bootstrapMethod.name, bootstrapMethod.desc, method -> bootstrapMethod.accept(method));
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package dev.daedalus;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.Interpreter;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Instructions of a method that cannot leave a pending exception, so the ExceptionCheck after them can go.
+ * A forward dataflow pass tracks which references are non-null (this, fresh objects and arrays, constants),
+ * the exact class of fresh objects, int constants and the length of arrays allocated with a constant size.
+ * With that, field accesses on non-null receivers of the own class, static accesses of own fields,
+ * ARRAYLENGTH, constant-index array accesses inside a known length and trivial CHECKCASTs never throw.
+ */
+public class ExceptionChecks {
+
+    private static class Fact implements org.objectweb.asm.tree.analysis.Value {
+        final int size;
+        final boolean nonNull;
+        final Integer constant;
+        final Integer length;
+        final String exactType;
+
+        Fact(int size, boolean nonNull, Integer constant, Integer length, String exactType) {
+            this.size = size;
+            this.nonNull = nonNull;
+            this.constant = constant;
+            this.length = length;
+            this.exactType = exactType;
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Fact)) {
+                return false;
+            }
+            Fact fact = (Fact) o;
+            return size == fact.size && nonNull == fact.nonNull && Objects.equals(constant, fact.constant) &&
+                    Objects.equals(length, fact.length) && Objects.equals(exactType, fact.exactType);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, nonNull, constant, length, exactType);
+        }
+    }
+
+    private static final Fact UNKNOWN = new Fact(1, false, null, null, null);
+    private static final Fact UNKNOWN_WIDE = new Fact(2, false, null, null, null);
+    private static final Fact NON_NULL = new Fact(1, true, null, null, null);
+
+    private static Fact constant(int value) {
+        return new Fact(1, false, value, null, null);
+    }
+
+    private static Fact object(String exactType) {
+        return new Fact(1, true, null, null, exactType);
+    }
+
+    private static Fact array(Integer length, String exactType) {
+        return new Fact(1, true, null, length != null && length >= 0 ? length : null, exactType);
+    }
+
+    private static class FactInterpreter extends Interpreter<Fact> {
+
+        FactInterpreter() {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public Fact newValue(Type type) {
+            if (type == Type.VOID_TYPE) {
+                return null;
+            }
+            return type != null && type.getSize() == 2 ? UNKNOWN_WIDE : UNKNOWN;
+        }
+
+        @Override
+        public Fact newParameterValue(boolean isInstanceMethod, int local, Type type) {
+            return isInstanceMethod && local == 0 ? NON_NULL : newValue(type);
+        }
+
+        @Override
+        public Fact newOperation(AbstractInsnNode insn) {
+            switch (insn.getOpcode()) {
+                case Opcodes.ICONST_M1:
+                case Opcodes.ICONST_0:
+                case Opcodes.ICONST_1:
+                case Opcodes.ICONST_2:
+                case Opcodes.ICONST_3:
+                case Opcodes.ICONST_4:
+                case Opcodes.ICONST_5:
+                    return constant(insn.getOpcode() - Opcodes.ICONST_0);
+                case Opcodes.BIPUSH:
+                case Opcodes.SIPUSH:
+                    return constant(((IntInsnNode) insn).operand);
+                case Opcodes.LDC: {
+                    Object cst = ((LdcInsnNode) insn).cst;
+                    if (cst instanceof Integer) {
+                        return constant((Integer) cst);
+                    } else if (cst instanceof Long || cst instanceof Double) {
+                        return UNKNOWN_WIDE;
+                    } else if (cst instanceof String) {
+                        return object("java/lang/String");
+                    } else if (cst instanceof Type && ((Type) cst).getSort() != Type.METHOD) {
+                        return object("java/lang/Class");
+                    }
+                    return UNKNOWN;
+                }
+                case Opcodes.NEW:
+                    return object(((TypeInsnNode) insn).desc);
+                case Opcodes.LCONST_0:
+                case Opcodes.LCONST_1:
+                case Opcodes.DCONST_0:
+                case Opcodes.DCONST_1:
+                    return UNKNOWN_WIDE;
+                case Opcodes.GETSTATIC:
+                    return newValue(Type.getType(((FieldInsnNode) insn).desc));
+            }
+            return UNKNOWN;
+        }
+
+        @Override
+        public Fact copyOperation(AbstractInsnNode insn, Fact value) {
+            return value;
+        }
+
+        @Override
+        public Fact unaryOperation(AbstractInsnNode insn, Fact value) {
+            switch (insn.getOpcode()) {
+                case Opcodes.NEWARRAY:
+                    return array(value.constant, null);
+                case Opcodes.ANEWARRAY:
+                    return array(value.constant, "[" + Type.getObjectType(((TypeInsnNode) insn).desc).getDescriptor());
+                case Opcodes.CHECKCAST:
+                    return value;
+                case Opcodes.LNEG:
+                case Opcodes.DNEG:
+                case Opcodes.I2L:
+                case Opcodes.I2D:
+                case Opcodes.L2D:
+                case Opcodes.F2L:
+                case Opcodes.F2D:
+                case Opcodes.D2L:
+                    return UNKNOWN_WIDE;
+                case Opcodes.GETFIELD:
+                    return newValue(Type.getType(((FieldInsnNode) insn).desc));
+                case Opcodes.IFEQ:
+                case Opcodes.IFNE:
+                case Opcodes.IFLT:
+                case Opcodes.IFGE:
+                case Opcodes.IFGT:
+                case Opcodes.IFLE:
+                case Opcodes.TABLESWITCH:
+                case Opcodes.LOOKUPSWITCH:
+                case Opcodes.IRETURN:
+                case Opcodes.LRETURN:
+                case Opcodes.FRETURN:
+                case Opcodes.DRETURN:
+                case Opcodes.ARETURN:
+                case Opcodes.PUTSTATIC:
+                case Opcodes.ATHROW:
+                case Opcodes.MONITORENTER:
+                case Opcodes.MONITOREXIT:
+                case Opcodes.IFNULL:
+                case Opcodes.IFNONNULL:
+                    return null;
+            }
+            return UNKNOWN;
+        }
+
+        @Override
+        public Fact binaryOperation(AbstractInsnNode insn, Fact value1, Fact value2) {
+            switch (insn.getOpcode()) {
+                case Opcodes.LALOAD:
+                case Opcodes.DALOAD:
+                case Opcodes.LADD:
+                case Opcodes.DADD:
+                case Opcodes.LSUB:
+                case Opcodes.DSUB:
+                case Opcodes.LMUL:
+                case Opcodes.DMUL:
+                case Opcodes.LDIV:
+                case Opcodes.DDIV:
+                case Opcodes.LREM:
+                case Opcodes.DREM:
+                case Opcodes.LSHL:
+                case Opcodes.LSHR:
+                case Opcodes.LUSHR:
+                case Opcodes.LAND:
+                case Opcodes.LOR:
+                case Opcodes.LXOR:
+                    return UNKNOWN_WIDE;
+                case Opcodes.IF_ICMPEQ:
+                case Opcodes.IF_ICMPNE:
+                case Opcodes.IF_ICMPLT:
+                case Opcodes.IF_ICMPGE:
+                case Opcodes.IF_ICMPGT:
+                case Opcodes.IF_ICMPLE:
+                case Opcodes.IF_ACMPEQ:
+                case Opcodes.IF_ACMPNE:
+                case Opcodes.PUTFIELD:
+                    return null;
+            }
+            return UNKNOWN;
+        }
+
+        @Override
+        public Fact ternaryOperation(AbstractInsnNode insn, Fact value1, Fact value2, Fact value3) {
+            return null;
+        }
+
+        @Override
+        public Fact naryOperation(AbstractInsnNode insn, List<? extends Fact> values) {
+            switch (insn.getOpcode()) {
+                case Opcodes.MULTIANEWARRAY:
+                    return array(values.get(0).constant, ((MultiANewArrayInsnNode) insn).desc);
+                case Opcodes.INVOKEDYNAMIC:
+                    return newValue(Type.getReturnType(((InvokeDynamicInsnNode) insn).desc));
+            }
+            return newValue(Type.getReturnType(((MethodInsnNode) insn).desc));
+        }
+
+        @Override
+        public void returnOperation(AbstractInsnNode insn, Fact value, Fact expected) {
+        }
+
+        @Override
+        public Fact merge(Fact value1, Fact value2) {
+            if (value1.equals(value2)) {
+                return value1;
+            }
+            return new Fact(Math.min(value1.size, value2.size), value1.nonNull && value2.nonNull,
+                    Objects.equals(value1.constant, value2.constant) ? value1.constant : null,
+                    Objects.equals(value1.length, value2.length) ? value1.length : null,
+                    Objects.equals(value1.exactType, value2.exactType) ? value1.exactType : null);
+        }
+    }
+
+    private final ClassNode clazz;
+    private final MethodNode method;
+    private final Frame<Fact>[] frames;
+    private int elided;
+
+    public ExceptionChecks(ClassNode clazz, MethodNode method) throws AnalyzerException {
+        this.clazz = clazz;
+        this.method = method;
+        this.frames = new Analyzer<>(new FactInterpreter()).analyze(clazz.name, method);
+    }
+
+    /**
+     * Whether the instruction is proven not to throw. Unreachable instructions are left alone.
+     */
+    public boolean cannotThrow(AbstractInsnNode node) {
+        Frame<Fact> frame = frames[method.instructions.indexOf(node)];
+        if (frame == null || !isSafe(frame, node)) {
+            return false;
+        }
+        elided++;
+        return true;
+    }
+
+    public int getElided() {
+        return elided;
+    }
+
+    private static Fact peek(Frame<Fact> frame, int depth) {
+        return frame.getStack(frame.getStackSize() - 1 - depth);
+    }
+
+    private boolean isSafe(Frame<Fact> frame, AbstractInsnNode node) {
+        switch (node.getOpcode()) {
+            case Opcodes.GETSTATIC:
+            case Opcodes.PUTSTATIC:
+                return isOwnField((FieldInsnNode) node);
+            case Opcodes.GETFIELD:
+                return isOwnField((FieldInsnNode) node) && peek(frame, 0).nonNull;
+            case Opcodes.PUTFIELD:
+                return isOwnField((FieldInsnNode) node) && peek(frame, Type.getType(((FieldInsnNode) node).desc).getSize()).nonNull;
+            case Opcodes.ARRAYLENGTH:
+                return peek(frame, 0).nonNull;
+            case Opcodes.IALOAD:
+            case Opcodes.LALOAD:
+            case Opcodes.FALOAD:
+            case Opcodes.DALOAD:
+            case Opcodes.AALOAD:
+            case Opcodes.BALOAD:
+            case Opcodes.CALOAD:
+            case Opcodes.SALOAD:
+                return isInBounds(peek(frame, 1), peek(frame, 0));
+            case Opcodes.IASTORE:
+            case Opcodes.FASTORE:
+            case Opcodes.BASTORE:
+            case Opcodes.CASTORE:
+            case Opcodes.SASTORE:
+                return isInBounds(peek(frame, 2), peek(frame, 1));
+            case Opcodes.LASTORE:
+            case Opcodes.DASTORE:
+                return isInBounds(peek(frame, 3), peek(frame, 2));
+            case Opcodes.CHECKCAST: {
+                // AASTORE is left out: the store check needs the runtime class of both sides
+                String desc = ((TypeInsnNode) node).desc;
+                Fact value = peek(frame, 0);
+                return desc.equals("java/lang/Object") || desc.equals(value.exactType);
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInBounds(Fact array, Fact index) {
+        return array.nonNull && array.length != null && index.constant != null &&
+                index.constant >= 0 && index.constant < array.length;
+    }
+
+    // Own fields resolve without lookup errors and the own class is initialized (or being initialized) here
+    private boolean isOwnField(FieldInsnNode node) {
+        if (!node.owner.equals(clazz.name)) {
+            return false;
+        }
+        boolean isStatic = node.getOpcode() == Opcodes.GETSTATIC || node.getOpcode() == Opcodes.PUTSTATIC;
+        for (FieldNode field : clazz.fields) {
+            if (field.name.equals(node.name) && field.desc.equals(node.desc)) {
+                return Util.getFlag(field.access, Opcodes.ACC_STATIC) == isStatic;
+            }
+        }
+        return false;
+    }
+}
@@ -2,10 +2,10 @@ package dev.daedalus;
 
 import dev.daedalus.utils.ASMUtils;
 import dev.daedalus.utils.InsnBuilder;
+import dev.daedalus.utils.SeededRandom;
 import org.objectweb.asm.tree.*;
 
 import java.util.*;
-import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -21,14 +21,16 @@ public class Flow {
         if (!ASMUtils.isClassEligibleToModify(classNode)) {
             return;
         }
-        flowFieldValue = ThreadLocalRandom.current().nextLong();
-        classNode.fields.add(new FieldNode(accessArr[ThreadLocalRandom.current().nextInt(accessArr.length)] | 8, FLOW_FIELD_NAME, "J", null, flowFieldValue));
+        Random random = SeededRandom.forKey("flow " + classNode.name);
+        flowFieldValue = random.nextLong();
+        classNode.fields.add(new FieldNode(accessArr[random.nextInt(accessArr.length)] | 8, FLOW_FIELD_NAME, "J", null, flowFieldValue));
     }
 
     public static MethodNode transformMethod(ClassNode classNode, MethodNode methodNode) {
         if (!ASMUtils.isMethodEligibleToModify(classNode, methodNode)) {
             return methodNode;
         }
+        Random random = SeededRandom.forKey("flow " + classNode.name + "." + methodNode.name + methodNode.desc);
         Arrays.stream(methodNode.instructions.toArray()).filter(abstractInsnNode -> ASMUtils.isInvokeMethod(abstractInsnNode, true) || abstractInsnNode.getOpcode() == 187 || ASMUtils.isFieldInsn(abstractInsnNode)).forEach(abstractInsnNode -> {
             LabelNode labelNode = new LabelNode();
             LabelNode labelNode2 = new LabelNode();
@@ -39,7 +41,7 @@ public class Flow {
             LabelNode labelNode7 = new LabelNode();
             InsnList insnList = new InsnList();
             InsnList insnList2 = new InsnList();
-            switch (ThreadLocalRandom.current().nextInt(2)) {
+            switch (random.nextInt(2)) {
                 case 0: {
                     long l;
                     insnList.add(new JumpInsnNode(167, labelNode4));
@@ -47,7 +49,7 @@ public class Flow {
                     insnList.add(new InsnNode(87));
                     insnList.add(labelNode4);
                     insnList.add(new FieldInsnNode(178, classNode.name, FLOW_FIELD_NAME, "J"));
-                    while ((l = ThreadLocalRandom.current().nextLong()) == flowFieldValue) {
+                    while ((l = random.nextLong()) == flowFieldValue) {
                     }
                     insnList.add(ASMUtils.pushLong(l));
                     insnList.add(new InsnNode(148));
@@ -57,7 +59,7 @@ public class Flow {
                     insnList.add(new JumpInsnNode(160, labelNode6));
                     insnList2.add(new JumpInsnNode(167, labelNode7));
                     insnList2.add(labelNode6);
-                    insnList2.add(ASMUtils.pushInt(ThreadLocalRandom.current().nextInt()));
+                    insnList2.add(ASMUtils.pushInt(random.nextInt()));
                     insnList2.add(new JumpInsnNode(167, labelNode3));
                     insnList2.add(labelNode7);
                     break;
@@ -66,11 +68,11 @@ public class Flow {
                     insnList.add(new FieldInsnNode(178, classNode.name, FLOW_FIELD_NAME, "J"));
                     insnList.add(new JumpInsnNode(167, labelNode2));
                     insnList.add(labelNode);
-                    insnList.add(ASMUtils.pushLong(ThreadLocalRandom.current().nextLong()));
+                    insnList.add(ASMUtils.pushLong(random.nextLong()));
                     insnList.add(new InsnNode(109));
                     insnList.add(labelNode2);
                     insnList.add(new InsnNode(136));
-                    insnList.add(getRandomLookupSwitch(2 + ThreadLocalRandom.current().nextInt(3), (int) flowFieldValue, new SwitchBlock(InsnBuilder.createEmpty().insn(new JumpInsnNode(167, labelNode5)).getInsnList()), () -> new SwitchBlock(InsnBuilder.createEmpty().insn(ASMUtils.pushLong(ThreadLocalRandom.current().nextLong()), new JumpInsnNode(167, labelNode)).getInsnList()), InsnBuilder.createEmpty().getInsnList()));
+                    insnList.add(getRandomLookupSwitch(random, 2 + random.nextInt(3), (int) flowFieldValue, new SwitchBlock(InsnBuilder.createEmpty().insn(new JumpInsnNode(167, labelNode5)).getInsnList()), () -> new SwitchBlock(InsnBuilder.createEmpty().insn(ASMUtils.pushLong(random.nextLong()), new JumpInsnNode(167, labelNode)).getInsnList()), InsnBuilder.createEmpty().getInsnList()));
                     insnList.add(labelNode5);
                 }
             }
@@ -106,12 +108,12 @@ public class Flow {
     }
 
 
-    protected static InsnList getRandomLookupSwitch(final int switchSize, final int targetKey, final SwitchBlock targetBlock, final Supplier<SwitchBlock> dummyBlock, final InsnList defInstructions) {
+    protected static InsnList getRandomLookupSwitch(final Random random, final int switchSize, final int targetKey, final SwitchBlock targetBlock, final Supplier<SwitchBlock> dummyBlock, final InsnList defInstructions) {
         final InsnList il = new InsnList();
         LabelNode switchDefaultLabel = new LabelNode();
         LabelNode switchEndLabel = new LabelNode();
         List<SwitchBlock> switchBlocks = IntStream.range(0, switchSize).mapToObj(v -> dummyBlock.get()).collect(Collectors.toList());
-        List<Integer> keyList = getUniqueRandomIntArray(switchSize - 1);
+        List<Integer> keyList = getUniqueRandomIntArray(random, switchSize - 1);
 
         {
             keyList.add(targetKey);
@@ -131,12 +133,12 @@ public class Flow {
         return il;
     }
 
-    protected static List<Integer> getUniqueRandomIntArray(int size) {
+    protected static List<Integer> getUniqueRandomIntArray(Random random, int size) {
         List<Integer> baseList = new ArrayList<>();
         for (int i = 0; i < size; i++) {
             int j;
             do {
-                j = ThreadLocalRandom.current().nextInt();
+                j = random.nextInt();
             } while (baseList.contains(j));
             baseList.add(j);
         }
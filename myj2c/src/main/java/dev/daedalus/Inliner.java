@@ -0,0 +1,205 @@
+package dev.daedalus;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bytecode inlining of small same-class callees ahead of translation.
+ * A call site that can only reach one body (static, private or final) is replaced by a copy of that body,
+ * so the translated caller runs it inline instead of calling back into the JVM. Arguments are spilled to
+ * fresh locals, returns become jumps past the copy, and the callee's try-catch blocks are put in front of
+ * the caller's so they keep precedence. The class is re-framed afterwards, so no frames are emitted here.
+ */
+public class Inliner {
+
+    private static final int MAX_CALLEE_SIZE = 35;
+    private static final int MAX_CALLER_GROWTH = 325;
+
+    private final ClassNode classNode;
+    private final Map<String, MethodNode> callees = new HashMap<>();
+
+    public Inliner(ClassNode classNode) {
+        this.classNode = classNode;
+        for (MethodNode method : classNode.methods) {
+            if (isInlineable(method)) {
+                MethodNode copy = new MethodNode(method.access, method.name, method.desc, method.signature, null);
+                method.accept(copy);
+                callees.put(method.name + method.desc, copy);
+            }
+        }
+    }
+
+    private static int getSize(MethodNode method) {
+        int size = 0;
+        for (AbstractInsnNode insn : method.instructions) {
+            if (insn.getOpcode() >= 0) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    private boolean isInlineable(MethodNode method) {
+        if (method.name.startsWith("<") || method.instructions.size() == 0 ||
+                Util.getFlag(method.access, Opcodes.ACC_ABSTRACT) ||
+                Util.getFlag(method.access, Opcodes.ACC_NATIVE) ||
+                Util.getFlag(method.access, Opcodes.ACC_SYNCHRONIZED) ||
+                getSize(method) > MAX_CALLEE_SIZE) {
+            return false;
+        }
+        for (AbstractInsnNode insn : method.instructions) {
+            switch (insn.getOpcode()) {
+                case Opcodes.MONITORENTER:
+                case Opcodes.MONITOREXIT:
+                case Opcodes.JSR:
+                case Opcodes.RET:
+                    return false;
+            }
+        }
+        // A return may only leave its value behind, anything below it would stay on the caller's stack
+        Frame<BasicValue>[] frames;
+        try {
+            frames = new Analyzer<>(new BasicInterpreter()).analyze(classNode.name, method);
+        } catch (AnalyzerException e) {
+            return false;
+        }
+        int returnSize = Type.getReturnType(method.desc).getSize() == 0 ? 0 : 1;
+        for (int i = 0; i < frames.length; i++) {
+            int opcode = method.instructions.get(i).getOpcode();
+            if (frames[i] != null && opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN &&
+                    frames[i].getStackSize() != returnSize) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private MethodNode getCallee(MethodInsnNode call) {
+        if (!call.owner.equals(classNode.name)) {
+            return null;
+        }
+        MethodNode callee = callees.get(call.name + call.desc);
+        if (callee == null) {
+            return null;
+        }
+        boolean isStatic = Util.getFlag(callee.access, Opcodes.ACC_STATIC);
+        switch (call.getOpcode()) {
+            case Opcodes.INVOKESTATIC:
+                return isStatic ? callee : null;
+            case Opcodes.INVOKESPECIAL:
+                return !isStatic ? callee : null;
+            case Opcodes.INVOKEVIRTUAL:
+                return !isStatic && (Util.getFlag(callee.access, Opcodes.ACC_PRIVATE) ||
+                        Util.getFlag(callee.access, Opcodes.ACC_FINAL) ||
+                        Util.getFlag(classNode.access, Opcodes.ACC_FINAL)) ? callee : null;
+        }
+        return null;
+    }
+
+    /**
+     * Inlines the eligible call sites of the caller, returns their count.
+     */
+    public int inline(MethodNode caller) {
+        Frame<BasicValue>[] frames;
+        try {
+            frames = new Analyzer<>(new BasicInterpreter()).analyze(classNode.name, caller);
+        } catch (AnalyzerException e) {
+            return 0;
+        }
+        AbstractInsnNode[] insns = caller.instructions.toArray();
+        List<TryCatchBlockNode> tryCatchBlocks = new ArrayList<>();
+        int budget = MAX_CALLER_GROWTH;
+        int count = 0;
+        for (int i = 0; i < insns.length; i++) {
+            if (!(insns[i] instanceof MethodInsnNode) || frames[i] == null) {
+                continue;
+            }
+            MethodInsnNode call = (MethodInsnNode) insns[i];
+            MethodNode callee = getCallee(call);
+            if (callee == null || getSize(callee) > budget) {
+                continue;
+            }
+            boolean isStatic = Util.getFlag(callee.access, Opcodes.ACC_STATIC);
+            Type[] args = Type.getArgumentTypes(callee.desc);
+            // A handler inside the copy clears the whole operand stack, including the caller's part of it
+            if (!callee.tryCatchBlocks.isEmpty() && frames[i].getStackSize() != args.length + (isStatic ? 0 : 1)) {
+                continue;
+            }
+            budget -= getSize(callee);
+            count++;
+            caller.instructions.insert(call, copyBody(caller, callee, args, isStatic, tryCatchBlocks));
+            caller.instructions.remove(call);
+        }
+        caller.tryCatchBlocks.addAll(0, tryCatchBlocks);
+        return count;
+    }
+
+    private static InsnList copyBody(MethodNode caller, MethodNode callee, Type[] args, boolean isStatic,
+                                     List<TryCatchBlockNode> tryCatchBlocks) {
+        InsnList body = new InsnList();
+        int base = caller.maxLocals;
+        int[] offsets = new int[args.length];
+        int offset = isStatic ? 0 : 1;
+        for (int i = 0; i < args.length; i++) {
+            offsets[i] = offset;
+            offset += args[i].getSize();
+        }
+        for (int i = args.length - 1; i >= 0; i--) {
+            body.add(new VarInsnNode(args[i].getOpcode(Opcodes.ISTORE), base + offsets[i]));
+        }
+        if (!isStatic) {
+            LabelNode nonNull = new LabelNode();
+            body.add(new InsnNode(Opcodes.DUP));
+            body.add(new JumpInsnNode(Opcodes.IFNONNULL, nonNull));
+            body.add(new InsnNode(Opcodes.ACONST_NULL));
+            body.add(new InsnNode(Opcodes.ATHROW));
+            body.add(nonNull);
+            body.add(new VarInsnNode(Opcodes.ASTORE, base));
+        }
+
+        Map<LabelNode, LabelNode> labels = new HashMap<>();
+        for (AbstractInsnNode insn : callee.instructions) {
+            if (insn instanceof LabelNode) {
+                labels.put((LabelNode) insn, new LabelNode());
+            }
+        }
+        LabelNode end = new LabelNode();
+        for (AbstractInsnNode insn : callee.instructions) {
+            int opcode = insn.getOpcode();
+            if (insn instanceof FrameNode || insn instanceof LineNumberNode) {
+                continue;
+            }
+            if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+                body.add(new JumpInsnNode(Opcodes.GOTO, end));
+                continue;
+            }
+            AbstractInsnNode copy = insn.clone(labels);
+            if (copy instanceof VarInsnNode) {
+                ((VarInsnNode) copy).var += base;
+            } else if (copy instanceof IincInsnNode) {
+                ((IincInsnNode) copy).var += base;
+            }
+            body.add(copy);
+        }
+        body.add(end);
+
+        for (TryCatchBlockNode tryCatch : callee.tryCatchBlocks) {
+            tryCatchBlocks.add(new TryCatchBlockNode(labels.get(tryCatch.start), labels.get(tryCatch.end),
+                    labels.get(tryCatch.handler), tryCatch.type));
+        }
+        caller.maxLocals = base + callee.maxLocals;
+        caller.maxStack += callee.maxStack;
+        return body;
+    }
+}
@@ -37,6 +37,20 @@ public class InterfaceStaticClassProvider {
         methods = null;
     }
 
+    /**
+     * A provider for the translation of one class on the pool. The class holding the static methods of an interface
+     * is created here, in jar order, so the classes are numbered as in a serial run.
+     */
+    public InterfaceStaticClassProvider forClass(ClassNode classNode) {
+        newClass();
+        InterfaceStaticClassProvider provider = new InterfaceStaticClassProvider(nativeDir);
+        if ((classNode.access & Opcodes.ACC_INTERFACE) != 0) {
+            provider.currentClass = getCurrentClass();
+            provider.methods = methods;
+        }
+        return provider;
+    }
+
     public List<ClassNode> getReadyClasses() {
         return readyClasses;
     }
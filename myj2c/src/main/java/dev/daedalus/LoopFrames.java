@@ -0,0 +1,360 @@
+package dev.daedalus;
+
+import dev.daedalus.utils.LabelPool;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.*;
+
+import java.util.*;
+
+/**
+ * JNI local reference frames for the loops of a translated method.
+ * Every iteration of a managed loop runs inside its own PushLocalFrame/PopLocalFrame pair, so the
+ * references created by the loop body are released at the back-edge. Object slots that are still
+ * live at the loop header (or at an exit target) are carried into the enclosing frame.
+ * Loops covered by a try-catch block or entered anywhere but their header are left unmanaged.
+ */
+public class LoopFrames {
+
+    private static final int FRAME_CAPACITY = 16;
+
+    private static class Loop {
+        final int header;
+        int end;
+        final int id;
+        final BitSet written = new BitSet();
+        List<String> carried = Collections.emptyList();
+
+        Loop(int header, int end, int id) {
+            this.header = header;
+            this.end = end;
+            this.id = id;
+        }
+
+        boolean contains(int index) {
+            return index >= header && index <= end;
+        }
+    }
+
+    private final MethodNode method;
+    private final InsnList instructions;
+    private final Frame<BasicValue>[] frames;
+    private final BitSet[] successors;
+    private final BitSet[] exceptionSuccessors;
+    private final BitSet[] liveLocals;
+    private final List<Loop> loops = new ArrayList<>();
+    private final Map<Integer, Loop> headers = new HashMap<>();
+    private final Map<String, String> edgeBlocks = new LinkedHashMap<>();
+
+    public LoopFrames(String owner, MethodNode method) throws AnalyzerException {
+        this.method = method;
+        this.instructions = method.instructions;
+        int size = instructions.size();
+        successors = new BitSet[size];
+        exceptionSuccessors = new BitSet[size];
+        for (int i = 0; i < size; i++) {
+            successors[i] = new BitSet();
+            exceptionSuccessors[i] = new BitSet();
+        }
+        frames = new Analyzer<BasicValue>(new BasicInterpreter()) {
+            @Override
+            protected void newControlFlowEdge(int insn, int successor) {
+                successors[insn].set(successor);
+            }
+
+            @Override
+            protected boolean newControlFlowExceptionEdge(int insn, int successor) {
+                exceptionSuccessors[insn].set(successor);
+                return true;
+            }
+        }.analyze(owner, method);
+        liveLocals = computeLiveLocals();
+        findLoops();
+    }
+
+    public boolean isEmpty() {
+        return loops.isEmpty();
+    }
+
+    private BitSet[] computeLiveLocals() {
+        int size = instructions.size();
+        BitSet[] liveIn = new BitSet[size];
+        for (int i = 0; i < size; i++) {
+            liveIn[i] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = size - 1; i >= 0; i--) {
+                if (frames[i] == null) {
+                    continue;
+                }
+                BitSet live = new BitSet();
+                for (int s = successors[i].nextSetBit(0); s >= 0; s = successors[i].nextSetBit(s + 1)) {
+                    live.or(liveIn[s]);
+                }
+                for (int s = exceptionSuccessors[i].nextSetBit(0); s >= 0; s = exceptionSuccessors[i].nextSetBit(s + 1)) {
+                    live.or(liveIn[s]);
+                }
+                AbstractInsnNode insn = instructions.get(i);
+                if (insn instanceof VarInsnNode) {
+                    VarInsnNode var = (VarInsnNode) insn;
+                    if (var.getOpcode() >= Opcodes.ISTORE && var.getOpcode() <= Opcodes.ASTORE) {
+                        live.clear(var.var);
+                    } else {
+                        live.set(var.var);
+                    }
+                } else if (insn instanceof IincInsnNode) {
+                    live.set(((IincInsnNode) insn).var);
+                }
+                if (!live.equals(liveIn[i])) {
+                    liveIn[i] = live;
+                    changed = true;
+                }
+            }
+        }
+        return liveIn;
+    }
+
+    private void findLoops() {
+        int size = instructions.size();
+        for (int i = 0; i < size; i++) {
+            int opcode = instructions.get(i).getOpcode();
+            if (opcode == Opcodes.JSR || opcode == Opcodes.RET) {
+                return;
+            }
+        }
+        TreeMap<Integer, Integer> candidates = new TreeMap<>();
+        for (int i = 0; i < size; i++) {
+            for (int s = successors[i].nextSetBit(0); s >= 0 && s <= i; s = successors[i].nextSetBit(s + 1)) {
+                candidates.merge(s, i, Math::max);
+            }
+        }
+        List<int[]> intervals = new ArrayList<>();
+        candidates.forEach((header, end) -> intervals.add(new int[]{header, end}));
+        Set<int[]> rejected = new HashSet<>();
+        for (int[] a : intervals) {
+            for (int[] b : intervals) {
+                if (a[0] < b[0] && b[0] <= a[1] && a[1] < b[1]) {
+                    rejected.add(a);
+                    rejected.add(b);
+                }
+            }
+        }
+        for (int[] interval : intervals) {
+            if (rejected.contains(interval) || !isManageable(interval[0], interval[1])) {
+                continue;
+            }
+            Loop loop = new Loop(interval[0], interval[1], loops.size());
+            for (int i = loop.header; i <= loop.end; i++) {
+                AbstractInsnNode insn = instructions.get(i);
+                if (insn instanceof VarInsnNode && insn.getOpcode() >= Opcodes.ISTORE && insn.getOpcode() <= Opcodes.ASTORE) {
+                    loop.written.set(((VarInsnNode) insn).var);
+                }
+            }
+            loop.carried = getCarried(loop, loop.header);
+            loops.add(loop);
+            headers.put(loop.header, loop);
+        }
+    }
+
+    private boolean isManageable(int header, int end) {
+        if (!(instructions.get(header) instanceof LabelNode) || frames[header] == null || frames[header].getStackSize() != 0) {
+            return false;
+        }
+        for (TryCatchBlockNode tryCatch : method.tryCatchBlocks) {
+            int start = instructions.indexOf(tryCatch.start);
+            int stop = instructions.indexOf(tryCatch.end);
+            int handler = instructions.indexOf(tryCatch.handler);
+            if ((start <= end && stop > header) || (handler >= header && handler <= end)) {
+                return false;
+            }
+        }
+        for (int i = 0; i < instructions.size(); i++) {
+            if (i >= header && i <= end) {
+                continue;
+            }
+            for (int s = successors[i].nextSetBit(0); s >= 0; s = successors[i].nextSetBit(s + 1)) {
+                if (s > header && s <= end) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Object slots that hold a value created inside the loop and are still needed at the target.
+     */
+    private List<String> getCarried(Loop loop, int target) {
+        Frame<BasicValue> frame = frames[target];
+        if (frame == null) {
+            return Collections.emptyList();
+        }
+        List<String> carried = new ArrayList<>();
+        for (int i = 0; i < frame.getLocals(); i++) {
+            if (isReference(frame.getLocal(i)) && liveLocals[target].get(i) && loop.written.get(i)) {
+                carried.add("clocal" + i);
+            }
+        }
+        int slot = 0;
+        for (int i = 0; i < frame.getStackSize(); i++) {
+            BasicValue value = frame.getStack(i);
+            if (isReference(value)) {
+                carried.add("cstack" + slot);
+            }
+            slot += value.getSize();
+        }
+        return carried;
+    }
+
+    private static boolean isReference(BasicValue value) {
+        return value != null && value.isReference();
+    }
+
+    private List<Loop> getLoops(int index) {
+        List<Loop> result = new ArrayList<>();
+        for (Loop loop : loops) {
+            if (loop.contains(index)) {
+                result.add(loop);
+            }
+        }
+        result.sort((a, b) -> Integer.compare(b.header, a.header));
+        return result;
+    }
+
+    private String getCarryName(Loop loop, String slot) {
+        return "lframe" + loop.id + "_" + slot;
+    }
+
+    private String pop(Loop loop, List<String> carried, boolean cycle) {
+        StringBuilder code = new StringBuilder();
+        if (carried.isEmpty()) {
+            code.append("(*env)->PopLocalFrame(env, NULL); ");
+        } else if (carried.size() == 1) {
+            String slot = carried.get(0);
+            code.append(slot).append(".l = (*env)->PopLocalFrame(env, ").append(slot).append(".l); ");
+        } else {
+            code.append("{ ");
+            for (int i = 0; i < carried.size(); i++) {
+                code.append("jobject g").append(i).append(" = (*env)->NewGlobalRef(env, ").append(carried.get(i)).append(".l); ");
+            }
+            code.append("(*env)->PopLocalFrame(env, NULL); ");
+            for (int i = 0; i < carried.size(); i++) {
+                code.append(carried.get(i)).append(".l = (*env)->NewLocalRef(env, g").append(i).append("); ")
+                        .append("(*env)->DeleteGlobalRef(env, g").append(i).append("); ");
+            }
+            code.append("} ");
+        }
+        if (cycle) {
+            for (String slot : carried) {
+                String name = getCarryName(loop, slot);
+                code.append("if (").append(name).append(" != NULL) (*env)->DeleteLocalRef(env, ").append(name).append("); ")
+                        .append(name).append(" = ").append(slot).append(".l; ");
+            }
+            code.append("(*env)->PushLocalFrame(env, ").append(FRAME_CAPACITY).append(");");
+        }
+        return code.toString();
+    }
+
+    private String getTransferCode(int from, int to) {
+        StringBuilder code = new StringBuilder();
+        for (Loop loop : getLoops(from)) {
+            if (loop.contains(to)) {
+                break;
+            }
+            code.append(pop(loop, getCarried(loop, to), false));
+        }
+        return code.toString();
+    }
+
+    /**
+     * Label a jump from {@code from} to {@code target} has to go to, inserting an edge block when frames must be popped.
+     */
+    public String getJumpLabel(LabelPool labelPool, AbstractInsnNode from, LabelNode target) {
+        int fromIndex = instructions.indexOf(from);
+        int toIndex = instructions.indexOf(target);
+        String label = labelPool.getName(target.getLabel());
+        Loop loop = headers.get(toIndex);
+        if (loop != null) {
+            label += loop.contains(fromIndex) ? "_cycle" : "_enter";
+        }
+        String code = getTransferCode(fromIndex, toIndex);
+        if (code.isEmpty()) {
+            return label;
+        }
+        String block = code + "goto " + label + ";";
+        return edgeBlocks.computeIfAbsent(block, key -> "L_FRAME_" + edgeBlocks.size());
+    }
+
+    /**
+     * Code placed before an instruction: the entry and back-edge blocks of a loop header.
+     */
+    public String getHeaderCode(LabelPool labelPool, AbstractInsnNode node) {
+        Loop loop = headers.get(instructions.indexOf(node));
+        if (loop == null) {
+            return "";
+        }
+        String label = labelPool.getName(((LabelNode) node).getLabel());
+        StringBuilder code = new StringBuilder();
+        code.append(label).append("_enter:; (*env)->PushLocalFrame(env, ").append(FRAME_CAPACITY).append("); ");
+        for (String slot : loop.carried) {
+            code.append(getCarryName(loop, slot)).append(" = NULL; ");
+        }
+        code.append("goto ").append(label).append(";\n");
+        code.append(label).append("_cycle:; ").append(pop(loop, loop.carried, true)).append("\n");
+        return code.toString();
+    }
+
+    /**
+     * Code placed after an instruction whose fall-through successor lies outside one of its loops.
+     */
+    public String getFallThroughCode(AbstractInsnNode node) {
+        int index = instructions.indexOf(node);
+        if (index + 1 >= instructions.size() || !successors[index].get(index + 1)) {
+            return "";
+        }
+        return getTransferCode(index, index + 1);
+    }
+
+    /**
+     * Frames to pop before returning from inside loops, carrying the returned reference if there is one.
+     */
+    public String getReturnCode(AbstractInsnNode node, String result) {
+        StringBuilder code = new StringBuilder();
+        for (Loop ignored : getLoops(instructions.indexOf(node))) {
+            if (result == null) {
+                code.append("(*env)->PopLocalFrame(env, NULL); ");
+            } else {
+                code.append(result).append(" = (*env)->PopLocalFrame(env, ").append(result).append("); ");
+            }
+        }
+        return code.toString();
+    }
+
+    public String getDeclarations() {
+        StringBuilder code = new StringBuilder();
+        for (Loop loop : loops) {
+            for (String slot : loop.carried) {
+                code.append("\tjobject ").append(getCarryName(loop, slot)).append(" = NULL;\n");
+            }
+        }
+        return code.toString();
+    }
+
+    public String getEdgeBlocks() {
+        StringBuilder code = new StringBuilder();
+        edgeBlocks.forEach((block, label) -> code.append("\t").append(label).append(":; ").append(block).append("\n"));
+        return code.toString();
+    }
+
+    public static boolean isReturn(AbstractInsnNode node) {
+        return node.getOpcode() >= Opcodes.IRETURN && node.getOpcode() <= Opcodes.RETURN;
+    }
+
+    public static boolean returnsReference(MethodNode method) {
+        int sort = Type.getReturnType(method.desc).getSort();
+        return sort == Type.OBJECT || sort == Type.ARRAY;
+    }
+}
@@ -1,37 +1,50 @@
 package dev.daedalus;
 
+import dev.daedalus.asm.ClassHierarchy;
 import dev.daedalus.asm.ClassMetadataReader;
 import dev.daedalus.asm.SafeClassWriter;
 import dev.daedalus.cache.*;
 import dev.daedalus.env.SetupManager;
 import dev.daedalus.helpers.ProcessHelper;
+import dev.daedalus.helpers.ZigCache;
 import dev.daedalus.utils.*;
 import dev.daedalus.xml.Config;
 import dev.daedalus.xml.Match;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.ClassRemapper;
 import org.objectweb.asm.commons.Remapper;
 import org.objectweb.asm.tree.*;
+import org.simpleframework.xml.core.Persister;
 
 import java.io.*;
 import java.lang.reflect.Modifier;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
 import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.Deflater;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 public class MYObfuscator {
@@ -39,26 +52,47 @@ public class MYObfuscator {
     public static final Locale locale = Locale.getDefault();
     private final Snippets snippets;
     private InterfaceStaticClassProvider staticClassProvider;
-    private final MethodProcessor methodProcessor;
 
     private final NodeCache<String> cachedStrings;
     private final ClassNodeCache cachedClasses;
     private final MethodNodeCache cachedMethods;
     private final FieldNodeCache cachedFields;
+    private final NodeCache<CachedMethodInfo> cachedDirectCalls;
+    private final NodeCache<String> cachedVirtualCalls;
 
     private final Map<String, String> classMethodNameMap = new HashMap<>();
 
     private final Map<String, String> noInitClassMap = new HashMap<>();
 
-    private StringBuilder nativeMethods;
-
     private BootstrapMethodsPool bootstrapMethodsPool;
 
+    private ClassHierarchy classHierarchy;
+    private final AtomicInteger devirtualizedSites = new AtomicInteger();
+    private final AtomicInteger elidedChecks = new AtomicInteger();
+    private final AtomicInteger arrayLoops = new AtomicInteger();
+    private final AtomicInteger pinnedLoops = new AtomicInteger();
+    private final AtomicInteger fusedAllocations = new AtomicInteger();
+    private final AtomicInteger intrinsicCalls = new AtomicInteger();
+
     private int currentClassId;
+    private BuildManifest manifest;
+    private int changedClasses;
+    private int reusedClasses;
+    private final AtomicInteger reusedObjects = new AtomicInteger();
+    private String translationHash;
+    private Path recordDir;
+    private List<AtomicInteger> statistics;
     private int methodIndex;
     private String nativeDir;
     private static final String separator = File.separator;
     private static boolean stringObf = false;
+    private static boolean typedLocals = false;
+    private static boolean localFrames = false;
+    private static boolean eagerBinding = false;
+    private static boolean inline = false;
+    private static boolean devirtualize = false;
+    private static boolean pinArrays = false;
+    private static boolean incremental = false;
     private static ClassMethodFilter classMethodFilter;
 
     public MYObfuscator() {
@@ -67,7 +101,8 @@ public class MYObfuscator {
         cachedClasses = new ClassNodeCache("(cclasses[%d])");
         cachedMethods = new MethodNodeCache("(cmethods[%d])", cachedClasses);
         cachedFields = new FieldNodeCache("(cfields[%d])", cachedClasses);
-        methodProcessor = new MethodProcessor(this);
+        cachedDirectCalls = new NodeCache<>("direct_%d");
+        cachedVirtualCalls = new NodeCache<>("virtual_%d");
     }
 
     private boolean useLLVM = false;
@@ -76,6 +111,28 @@ public class MYObfuscator {
         if (config.getOptions() != null && "true".equals(config.getOptions().getStringObf())) {
             stringObf = true;
         }
+        if (config.getOptions() != null && "true".equals(config.getOptions().getTypedLocals())) {
+            typedLocals = true;
+        }
+        if (config.getOptions() != null && "true".equals(config.getOptions().getLocalFrames())) {
+            localFrames = true;
+        }
+        if (config.getOptions() != null && "true".equals(config.getOptions().getEagerBinding())) {
+            eagerBinding = true;
+        }
+        if (config.getOptions() != null && "true".equals(config.getOptions().getInline())) {
+            inline = true;
+        }
+        if (config.getOptions() != null && "true".equals(config.getOptions().getDevirtualize())) {
+            devirtualize = true;
+        }
+        if (config.getOptions() != null && "true".equals(config.getOptions().getPinArrays())) {
+            pinArrays = true;
+        }
+        if (config.getOptions() != null && "true".equals(config.getOptions().getIncremental())) {
+            incremental = true;
+        }
+        SeededRandom.setSeed(config.getOptions() != null ? config.getOptions().getSeed() : null);
         if (temp == null) {
             try {
                 temp = Files.createTempDirectory("native-daedalus-");
@@ -135,7 +192,6 @@ public class MYObfuscator {
             jar.stream().forEach(entry -> {
                         try {
                             if (entry.getName().endsWith(".class")) {
-                                Map<String, CachedClassInfo> cache = cachedClasses.getCache();
                                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                                 try (InputStream in = jar.getInputStream(entry)) {
                                     Util.transfer(in, baos);
@@ -166,7 +222,7 @@ public class MYObfuscator {
                                             }
                                         }
                                     }
-                                    cache.put(classNode.name, classInfo);
+                                    cachedClasses.put(classNode.name, classInfo);
                                     if (config.getOptions() != null && "true".equals(config.getOptions().getFlowObf())) {
                                         ClassWriter classWriter = new ClassWriter(classReader, 0);
                                         classNode.accept(classWriter);
@@ -228,6 +284,8 @@ public class MYObfuscator {
         } else {
             System.out.println("Output location:" + outputDir.toFile().getAbsolutePath() + File.separator + outputName);
         }
+        // An incremental build keeps cpp and build between runs and remembers what they were made from
+        manifest = incremental ? new BuildManifest(outputDir.resolve("build").resolve("manifest.properties")) : null;
         Path cppDir = outputDir.resolve("cpp");
         Files.createDirectories(cppDir);
         Path cacheDir = cppDir.resolve(".cache");
@@ -238,7 +296,8 @@ public class MYObfuscator {
 
         Map<String, ClassNode> map = new HashMap<>();
         Map<String, String> classNameMap = new HashMap<>();
-        StringBuilder instructions = new StringBuilder();
+        Map<String, String> classSources = new LinkedHashMap<>();
+        Map<String, int[]> classIds = new HashMap<>();
         File jarFile = outputJarPath.toAbsolutePath().toFile();
         JarFile inputJar = new JarFile(inputJarPath.toFile());
         //Path tempFile = temp.resolve(UUID.randomUUID() + ".data");
@@ -249,131 +308,98 @@ public class MYObfuscator {
             } else {
                 System.out.println("Parsing " + inputJarPath + "...");
             }
-            nativeDir = "daedalus/" + getRandomString(6);
+            nativeDir = manifest != null && manifest.getNativeDir() != null ? manifest.getNativeDir() : "daedalus/" + getRandomString(6);
+            if (manifest != null) {
+                manifest.setNativeDir(nativeDir);
+                // Classes keep their cache ids, so the code of unchanged classes comes out the same
+                manifest.getClassIds().forEach(cachedClasses::presetId);
+                presetIds();
+                translationHash = getTranslationHash(config);
+                recordDir = outputDir.resolve("build").resolve("classes");
+            }
             bootstrapMethodsPool = new BootstrapMethodsPool(nativeDir);
+            if (devirtualize) {
+                classHierarchy = new ClassHierarchy(metadataReader.getCp());
+            }
             staticClassProvider = new InterfaceStaticClassProvider(nativeDir);
             methodIndex = 1;
 
             AtomicInteger classNumber = new AtomicInteger();
             AtomicInteger methodNumber = new AtomicInteger();
-
-            jar.stream().forEach(entry -> {
-                if (entry.getName().equals(JarFile.MANIFEST_NAME)) return;
-                try {
-                    if (!entry.getName().endsWith(".class")) {
-                        Util.writeEntry(jar, out, entry);
-                        return;
-                    }
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    try (InputStream in = jar.getInputStream(entry)) {
-                        Util.transfer(in, baos);
-                    }
-                    byte[] src = baos.toByteArray();
-                    if (Util.byteArrayToInt(Arrays.copyOfRange(src, 0, 4)) != 0xCAFEBABE) {
-                        Util.writeEntry(out, entry.getName(), src);
-                        return;
-                    }
-                    nativeMethods = new StringBuilder();
-                    ClassReader classReader = new ClassReader(src);
-                    ClassNode rawClassNode = new ClassNode();
-                    classReader.accept(rawClassNode, ClassReader.SKIP_DEBUG);
-                    if (!classMethodFilter.shouldProcess(rawClassNode) ||
-                            rawClassNode.methods.stream().noneMatch(method -> MethodProcessor.shouldProcess(method) &&
-                                    classMethodFilter.shouldProcess(rawClassNode, method))) {
-                        //System.out.println("Skipping " + rawClassNode.name);
-                        if (useAnnotations) {
-                            ClassMethodFilter.cleanAnnotations(rawClassNode);
-                            ClassWriter clearedClassWriter = new SafeClassWriter(metadataReader, Opcodes.ASM9);
-                            rawClassNode.accept(clearedClassWriter);
-                            Util.writeEntry(out, entry.getName(), clearedClassWriter.toByteArray());
-                            return;
+            AtomicInteger inlinedNumber = new AtomicInteger();
+            statistics = Arrays.asList(methodNumber, elidedChecks, arrayLoops, pinnedLoops, fusedAllocations, intrinsicCalls, devirtualizedSites);
+
+            // Everything but handing out the ids runs on the pool. Classes are numbered in jar order ahead of their
+            // translation, which sees the shared caches through overlays handing out symbolic ids. The ids a class
+            // asked for are handed out in jar order when it is committed, so the output is the same as that of a
+            // serial run once the shards replace the symbolic ids. A class an incremental build reuses asks for the
+            // ids it asked for last time
+            int threads = Runtime.getRuntime().availableProcessors();
+            ExecutorService translationPool = Executors.newFixedThreadPool(threads);
+            Deque<Future<PreparedEntry>> preparing = new ArrayDeque<>();
+            Deque<Future<PreparedEntry>> translating = new ArrayDeque<>();
+            Deque<Future<PreparedEntry>> finishing = new ArrayDeque<>();
+            try {
+                Iterator<JarEntry> entries = jar.stream().iterator();
+                while (entries.hasNext() || !preparing.isEmpty() || !translating.isEmpty()) {
+                    while (entries.hasNext() && preparing.size() < threads * 4) {
+                        JarEntry entry = entries.next();
+                        if (!entry.getName().equals(JarFile.MANIFEST_NAME)) {
+                            preparing.add(translationPool.submit(() ->
+                                    prepareEntry(jar, entry, metadataReader, useAnnotations, classNumber, inlinedNumber)));
                         }
-                        Util.writeEntry(out, entry.getName(), src);
-                        return;
-                    }
-
-                    classNumber.getAndIncrement();
-                    //System.out.println("<match className=\""+ rawClassNode.name +"\" />");
-
-                   /* rawClassNode.methods.stream().filter(MethodProcessor::shouldProcess)
-                            .filter(methodNode -> classMethodFilter.shouldProcess(rawClassNode, methodNode))
-                    .forEach(methodNode -> Preprocessor.preprocess(rawClassNode, methodNode, platform));*/
-                    //System.out.println("MethodFilter done");
-
-                    ClassWriter preprocessorClassWriter = new SafeClassWriter(metadataReader, Opcodes.ASM9 | ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-                    rawClassNode.accept(preprocessorClassWriter);
-                    classReader = new ClassReader(preprocessorClassWriter.toByteArray());
-                    ClassNode classNode = new ClassNode();
-                    classReader.accept(classNode, 0);
-
-                    if (classNode.methods.stream().noneMatch(x -> x.name.equals("<clinit>"))) {
-                        classNode.methods.add(new MethodNode(Opcodes.ACC_STATIC, "<clinit>", "()V", null, new String[0]));
                     }
-                    staticClassProvider.newClass();
-
-                    map.put(classNode.name, classNode);
-                    classNameMap.put(classNode.name, classReader.getClassName());
-
-                    instructions.append("\n//").append(classNode.name).append("\n");
-
-                    classNode.visitMethod(Opcodes.ACC_NATIVE | Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, "$daedalusLoader", "()V", null, new String[0]);
-                    classNode.version = 52;
-
-                    for (int i = 0; i < classNode.methods.size(); i++) {
-                        MethodNode method = classNode.methods.get(i);
-
-                        if (!MethodProcessor.shouldProcess(method)) {
-                            continue;
-                        }
-
-                        if (!classMethodFilter.shouldProcess(classNode, method) && !"<clinit>".equals(method.name)) {
-                            continue;
-                        }
-                        //解析方法
-                        MethodContext context = new MethodContext(this, method, methodIndex, classNode, currentClassId);
-                        methodProcessor.processMethod(context);
-                        instructions.append(context.output.toString().replace("\t", "    "));
-
-                        nativeMethods.append(context.nativeMethods);
-
-                        if ((classNode.access & Opcodes.ACC_INTERFACE) > 0) {
-                            method.access &= ~Opcodes.ACC_NATIVE;
+                    if (!preparing.isEmpty()) {
+                        PreparedEntry prepared = getResult(preparing.poll());
+                        if (prepared.classNode != null) {
+                            startTranslation(prepared);
                         }
-                        methodIndex++;
-                        if (!"<clinit>".equals(method.name)) {
-                            methodNumber.getAndIncrement();
+                        if (prepared.translation != null) {
+                            translating.add(translationPool.submit(() -> translateClass(prepared, methodNumber)));
+                        } else {
+                            translating.add(CompletableFuture.completedFuture(prepared));
                         }
                     }
-
-                    if (!staticClassProvider.isEmpty()) {
-                        cachedStrings.getPointer(staticClassProvider.getCurrentClassName().replace('/', '.'));
+                    while (!translating.isEmpty() && (translating.peek().isDone() || translating.size() > threads * 4 || preparing.isEmpty())) {
+                        PreparedEntry translated = getResult(translating.poll());
+                        if (translated.record != null) {
+                            commitClass(translated, map, classNameMap, classSources, classIds);
+                            finishing.add(CompletableFuture.completedFuture(translated));
+                        } else if (translated.translation != null) {
+                            commitClass(translated, map, classNameMap, classSources, classIds);
+                            finishing.add(translationPool.submit(() -> finishClass(translated, metadataReader, useAnnotations)));
+                        } else {
+                            finishing.add(CompletableFuture.completedFuture(translated));
+                        }
                     }
-
-                    if (useAnnotations) {
-                        ClassMethodFilter.cleanAnnotations(classNode);
+                    while (!finishing.isEmpty() && (finishing.peek().isDone() || finishing.size() > threads * 4)) {
+                        writePrepared(out, getResult(finishing.poll()));
                     }
-                    ClassWriter classWriter = new SafeClassWriter(metadataReader, Opcodes.ASM9 | ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-                    classNode.accept(classWriter);
-
-                    //保存class文件
-                    Util.writeEntry(out, entry.getName(), classWriter.toByteArray());
-                    currentClassId++;
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                    System.out.println("Error while processing " + entry.getName() + " " + ex.getMessage());
                 }
-            });
+                while (!finishing.isEmpty()) {
+                    writePrepared(out, getResult(finishing.poll()));
+                }
+            } finally {
+                translationPool.shutdown();
+            }
+            if (manifest != null) {
+                deleteStaleRecords(map.keySet());
+            }
 
             Manifest mf = jar.getManifest();
             if (mf != null) {
                 mf.getMainAttributes().put(new Attributes.Name("Built-By"), "un4kn0n");
-                out.putNextEntry(new ZipEntry(JarFile.MANIFEST_NAME));
+                out.putNextEntry(Util.newEntry(JarFile.MANIFEST_NAME));
                 mf.write(out);
             }
             jar.close();
             inputJar.close();
 
             Path lib_path = Paths.get(outputDir + separator + "build" + separator + "lib");
+            if (manifest != null) {
+                // Every library is linked again, so one of a target no longer built must not get packed
+                FileUtils.clearDirectory(lib_path.toString());
+            }
             if (!Files.exists(lib_path)) {
                 Files.createDirectories(lib_path);
             }
@@ -390,13 +416,59 @@ public class MYObfuscator {
             } else {
                 System.out.println("Total " + classNumber.get() + " class files and " + methodNumber.get() + " methods need compilation");
             }
+            if (manifest != null) {
+                if (locale.getLanguage().contains("zh")) {
+                    System.out.println("增量构建: 自上次构建以来 " + classNumber.get() + " 个类中有 " + changedClasses + " 个发生变化");
+                } else {
+                    System.out.println("Incremental build: " + changedClasses + " of " + classNumber.get() + " classes changed since the last build");
+                }
+                if (locale.getLanguage().contains("zh")) {
+                    System.out.println("复用 " + reusedClasses + " 个未变化类的翻译");
+                } else {
+                    System.out.println("Reused the translations of " + reusedClasses + " unchanged classes");
+                }
+            }
+            if (locale.getLanguage().contains("zh")) {
+                System.out.println("共省略 " + elidedChecks.get() + " 处异常检查");
+            } else {
+                System.out.println("Elided " + elidedChecks.get() + " exception checks");
+            }
+            if (locale.getLanguage().contains("zh")) {
+                System.out.println("共证明 " + arrayLoops.get() + " 个数组循环不越界, 固定数组 " + pinnedLoops.get() + " 个");
+            } else {
+                System.out.println("Proved " + arrayLoops.get() + " array loops in bounds, " + pinnedLoops.get() + " pinned");
+            }
+            if (locale.getLanguage().contains("zh")) {
+                System.out.println("共合并 " + fusedAllocations.get() + " 处对象创建为NewObject调用");
+            } else {
+                System.out.println("Fused " + fusedAllocations.get() + " object allocations into NewObject calls");
+            }
+            if (locale.getLanguage().contains("zh")) {
+                System.out.println("共内建 " + intrinsicCalls.get() + " 处库函数调用");
+            } else {
+                System.out.println("Lowered " + intrinsicCalls.get() + " library calls to inline C");
+            }
+            if (devirtualize) {
+                if (locale.getLanguage().contains("zh")) {
+                    System.out.println("共去虚拟化 " + devirtualizedSites.get() + " 个调用点");
+                } else {
+                    System.out.println("Devirtualized " + devirtualizedSites.get() + " call sites");
+                }
+            }
+            if (inline) {
+                if (locale.getLanguage().contains("zh")) {
+                    System.out.println("共内联 " + inlinedNumber.get() + " 个调用点");
+                } else {
+                    System.out.println("Inlined " + inlinedNumber.get() + " call sites");
+                }
+            }
 
             if (locale.getLanguage().contains("zh")) {
                 System.out.println("正在把class文件转换成C语言代码");
             } else {
                 System.out.println("Converting class file to C language code ");
             }
-            genCode(cppDir, config, instructions, map, classNameMap);
+            List<String> sources = genCode(cppDir, config, classSources, classIds, map, classNameMap);
             final long startTime = System.currentTimeMillis();
             List<Future<Long>> allCompileTask = new ArrayList<>();
             if (StringUtils.isEmpty(plainLibName)) {
@@ -405,7 +477,10 @@ public class MYObfuscator {
                 } else {
                     System.out.println("\nStart compiling the dynamic link library file");
                 }
-                List<String> libNames = new ArrayList<>();
+                List<String> libNames = Collections.synchronizedList(new ArrayList<>());
+                // Shards of all targets share one pool, so the cores stay busy while a target waits for its link
+                ExecutorService compilePool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+                ZigCache zigCache = useLLVM ? null : ZigCache.fromOptions(config.getOptions());
                 for (String target : config.getTargets()) {
                     String platformTypeName;
                     String osName;
@@ -455,37 +530,39 @@ public class MYObfuscator {
                     if (!useLLVM) {
                         String compilePath = System.getProperty("user.dir") + separator + "zig" + separator + "zig" + (SetupManager.isWindows() ? ".exe" : "");
                         if (Files.exists(Paths.get(compilePath))) {
-                            Future<Long> future = zigCompile(outputDir, compilePath, platformTypeName, osName, libName, libNames, zigTempDir);
+                            Path zigCacheDir = zigCache != null ? zigCache.getDirectory(platformTypeName + "-" + osName) : null;
+                            Future<Long> future = zigCompile(outputDir, compilePath, platformTypeName, osName, libName, libNames, zigTempDir, zigCacheDir, sources, compilePool);
                             allCompileTask.add(future);
                         } else {
                             throw new RuntimeException("zig compiler not found");
                         }
                     } else {
-                        allCompileTask.add(ollvmCompile(outputDir, platformTypeName, osName, libName, libNames));
+                        allCompileTask.add(ollvmCompile(outputDir, platformTypeName, osName, libName, libNames, sources, compilePool));
                     }
                 }
 
                 //获取异步Future对象
-                Map<String, Long> total = new HashMap<>();
                 Future<Long> future = threadPool.submit(() -> {
-                    for (Future<Long> task : allCompileTask) {
-                        task.get();
+                    try {
+                        for (Future<Long> task : allCompileTask) {
+                            task.get();
+                        }
+                    } finally {
+                        compilePool.shutdown();
                     }
-                    long totalTime = System.currentTimeMillis() - startTime;
-                    total.put("time", totalTime);
-                    return totalTime;
+                    return System.currentTimeMillis() - startTime;
                 });
 
                 int max = methodNumber.get();
                 max = Math.max(max, 50);
                 for (int i = 0; i <= max; i++) {
-                    if (total.get("time") == null) {
+                    if (!future.isDone()) {
                         try {
                             Thread.sleep(50L * config.getTargets().size());
-                            while (i >= (max * 0.97) && total.get("time") == null) {
+                            while (i >= (max * 0.97) && !future.isDone()) {
                                 Thread.sleep(100);
                             }
-                            if (total.get("time") != null) {
+                            if (future.isDone()) {
                                 System.out.printf("\r%s", progressBar(max, max));
                                 break;
                             }
@@ -508,6 +585,21 @@ public class MYObfuscator {
                         throw new RuntimeException(e);
                     }
                 }
+                if (manifest != null) {
+                    manifest.save();
+                    if (locale.getLanguage().contains("zh")) {
+                        System.out.println("复用 " + reusedObjects.get() + " 个未变化的目标文件");
+                    } else {
+                        System.out.println("Reused " + reusedObjects.get() + " unchanged object files");
+                    }
+                }
+                if (zigCache != null) {
+                    try {
+                        zigCache.evict();
+                    } catch (IOException e) {
+                        System.err.println("Failed to evict the compile cache: " + e);
+                    }
+                }
 
                 if (locale.getLanguage().contains("zh")) {
                     System.out.println("正在压缩已编译的动态链接库文件");
@@ -540,9 +632,11 @@ public class MYObfuscator {
                     } else {
                         System.out.println("Clean up temporary files");
                     }
-                    FileUtils.clearDirectory(outputDir + separator + "cpp");
-                    FileUtils.clearDirectory(outputDir + separator + "build");
-                    Files.copy(Paths.get(outputDir + separator + "cpp" + separator + "daedalus.c"), Paths.get(UUID.randomUUID() + ".c"));
+                    if (manifest == null) {
+                        FileUtils.clearDirectory(outputDir + separator + "cpp");
+                        FileUtils.clearDirectory(outputDir + separator + "build");
+                        Files.copy(Paths.get(outputDir + separator + "cpp" + separator + "daedalus.c"), Paths.get(UUID.randomUUID() + ".c"));
+                    }
                     Files.deleteIfExists(data_path);
                 } catch (Exception ignored) {
                 }
@@ -722,6 +816,14 @@ public class MYObfuscator {
         return cachedFields;
     }
 
+    public NodeCache<CachedMethodInfo> getCachedDirectCalls() {
+        return cachedDirectCalls;
+    }
+
+    public NodeCache<String> getCachedVirtualCalls() {
+        return cachedVirtualCalls;
+    }
+
     public String getNativeDir() {
         return nativeDir;
     }
@@ -730,6 +832,34 @@ public class MYObfuscator {
         return bootstrapMethodsPool;
     }
 
+    public ClassHierarchy getClassHierarchy() {
+        return classHierarchy;
+    }
+
+    public AtomicInteger getDevirtualizedSites() {
+        return devirtualizedSites;
+    }
+
+    public AtomicInteger getElidedChecks() {
+        return elidedChecks;
+    }
+
+    public AtomicInteger getArrayLoops() {
+        return arrayLoops;
+    }
+
+    public AtomicInteger getPinnedLoops() {
+        return pinnedLoops;
+    }
+
+    public AtomicInteger getFusedAllocations() {
+        return fusedAllocations;
+    }
+
+    public AtomicInteger getIntrinsicCalls() {
+        return intrinsicCalls;
+    }
+
     public Map<String, String> getClassMethodNameMap() {
         return classMethodNameMap;
     }
@@ -739,11 +869,33 @@ public class MYObfuscator {
         return noInitClassMap;
     }
 
+    // Only targets that cannot be overridden (or are not, per the class hierarchy) and need no method monitor can skip the JNI call
+    private String getDirectFunction(Map<String, ClassNode> map, CachedMethodInfo methodInfo) {
+        String function = classMethodNameMap.get(methodInfo.getClazz() + "." + methodInfo.getName() + methodInfo.getDesc());
+        ClassNode owner = map.get(methodInfo.getClazz());
+        if (function == null || owner == null || Util.getFlag(owner.access, Opcodes.ACC_INTERFACE)) {
+            return null;
+        }
+        for (MethodNode method : owner.methods) {
+            if (!method.name.equals(methodInfo.getName()) || !method.desc.equals(methodInfo.getDesc())) {
+                continue;
+            }
+            if (Util.getFlag(method.access, Opcodes.ACC_SYNCHRONIZED) ||
+                    Util.getFlag(method.access, Opcodes.ACC_STATIC) != methodInfo.isStatic()) {
+                return null;
+            }
+            return methodInfo.isStatic() || Util.getFlag(method.access, Opcodes.ACC_PRIVATE) ||
+                    Util.getFlag(method.access, Opcodes.ACC_FINAL) || Util.getFlag(owner.access, Opcodes.ACC_FINAL) ||
+                    (classHierarchy != null && owner.name.equals(classHierarchy.getSingleTarget(owner.name, method.name, method.desc))) ? function : null;
+        }
+        return null;
+    }
+
     private static String getRandomString(int length) {
         //定义一个字符串（A-Z，a-z，0-9）即62位；
         String str = "zxcvbnmlkjhgfdsaqwertyuiopQWERTYUIOPASDFGHJKLZXCVBNM1234567890";
-        //由Random生成随机数
-        Random random = new Random();
+        //由Random生成随机数, 指定seed时每次构建相同
+        Random random = SeededRandom.forKey("nativeDir");
         StringBuilder sb = new StringBuilder();
         sb.append(str.charAt(random.nextInt(26)));
         //长度为几就循环几次
@@ -877,22 +1029,26 @@ public class MYObfuscator {
         return sb;
     }
 
-    private Future<Long> zigCompile(Path outputDir, String compilePath, String platformTypeName, String osName, String libName, List<String> libNames, Path zigTempDir) {
-        //创建线程池
-        try (ExecutorService threadPool = Executors.newCachedThreadPool()) {
-            //获取异步Future对象
-            return threadPool.submit(() -> {
-                System.out.println("Temp Dir path: " + zigTempDir);
-                ProcessHelper.ProcessResult compileRunresult = ProcessHelper.run(outputDir.toAbsolutePath(), 3000 * 1000,
-                        Arrays.asList(compilePath, "cc", "-O2", "-fno-sanitize=all", "-fno-sanitize-trap=all", "-O2", "-fno-optimize-sibling-calls", "-target", platformTypeName + "-" + osName, "-std=c11", "-fPIC", "-shared", "-s", "-fvisibility=hidden", "-fvisibility-inlines-hidden", "-I." + separator + "cpp", "-o." + separator + "build" + separator + "lib" + separator + libName, "." + separator + "cpp" + separator + "daedalus.c"));
-                compileRunresult.check("zig build");
-                libNames.add(libName);
-                return compileRunresult.execTime;
-            });
-        }
+    private Future<Long> zigCompile(Path outputDir, String compilePath, String platformTypeName, String osName, String libName, List<String> libNames, Path zigTempDir,
+                                    Path zigCacheDir, List<String> sources, ExecutorService compilePool) {
+        System.out.println("Temp Dir path: " + zigTempDir);
+        String target = platformTypeName + "-" + osName;
+        String output = "." + separator + "build" + separator + "lib" + separator + libName;
+        return compileShards(outputDir, sources, target, output, zigCacheDir, compilePool, "zig build",
+                (source, object) -> Arrays.asList(compilePath, "cc", "-c", "-O2", "-fno-sanitize=all", "-fno-sanitize-trap=all", "-O2", "-fno-optimize-sibling-calls", "-target", target, "-std=c11", "-fPIC", "-fvisibility=hidden", "-fvisibility-inlines-hidden", "-I." + separator + "cpp", "-o" + object, source),
+                (objects, library) -> {
+                    List<String> link = new ArrayList<>(Arrays.asList(compilePath, "cc", "-target", target, "-shared", "-s", "-o" + library));
+                    link.addAll(objects);
+                    return link;
+                })
+                .thenApply(time -> {
+                    libNames.add(libName);
+                    return time;
+                });
     }
 
-    private Future<Long> ollvmCompile(Path outputDir, String platformTypeName, String osName, String libName, List<String> libNames) {
+    private Future<Long> ollvmCompile(Path outputDir, String platformTypeName, String osName, String libName, List<String> libNames,
+                                      List<String> sources, ExecutorService compilePool) {
         String target = platformTypeName;
         if (osName.equals("windows")) {
             target += "-w64-mingw";
@@ -901,48 +1057,163 @@ public class MYObfuscator {
                 target += "-pc-linux-gnu";
             else target += "-apple-darwin";
         }
-        try (ExecutorService threadPool = Executors.newCachedThreadPool()) {
-            //获取异步Future对象
-            String finalTarget = target;
-            String output = "." + separator + "build" + separator + "lib" + separator + libName;
-            String output_static = "." + separator + "cpp" + separator + "daedalus.o";
-            String include = "-I." + separator + "cpp";
-            String source = "." + separator + "cpp" + separator + "daedalus.c";
-
-            return threadPool.submit(() -> {
-                if (useLLVM && finalTarget.contains("mingw")) {
-                    List<String> clang_cl = Arrays.asList(
-                            "clang-cl",
-                            "-target", finalTarget, "-c",
-                            "-mllvm", "-bcf",
-                            "-mllvm", "-bcf_prob=80",
-                            "-mllvm", "-bcf_loop=2",
-                            "-mllvm", "-sobf",
-                            include, source,
-                            "-o" + output_static
-                    );
-                    ProcessHelper.ProcessResult compileObjResult = ProcessHelper.run(outputDir.toAbsolutePath(), 3000 * 1000, clang_cl);
-                    compileObjResult.check("clang build");
-                    System.out.println("linking...");
-                    List<String> clang = new ArrayList<>(Collections.singleton("clang"));
-                    clang.addAll(Arrays.asList("-target", finalTarget, "-s", "-shared", output_static, "-o", output));
-                    ProcessHelper.ProcessResult compileDynamicLibResult = ProcessHelper.run(outputDir.toAbsolutePath(), 3000 * 1000, clang);
-                    compileDynamicLibResult.check("link");
-                    libNames.add(libName);
-                    return compileObjResult.execTime + compileDynamicLibResult.execTime;
+        String finalTarget = target;
+        String output = "." + separator + "build" + separator + "lib" + separator + libName;
+        String include = "-I." + separator + "cpp";
+        boolean obfuscate = useLLVM && finalTarget.contains("mingw");
+        return compileShards(outputDir, sources, finalTarget, output, null, compilePool, "clang build",
+                (source, object) -> obfuscate
+                        ? Arrays.asList(
+                        "clang-cl",
+                        "-target", finalTarget, "-c",
+                        "-mllvm", "-bcf",
+                        "-mllvm", "-bcf_prob=80",
+                        "-mllvm", "-bcf_loop=2",
+                        "-mllvm", "-sobf",
+                        include, source,
+                        "-o" + object)
+                        : Arrays.asList("clang", "-target", finalTarget, "-c", "-fPIC", include, source, "-o" + object),
+                (objects, library) -> {
+                    List<String> clang = new ArrayList<>(Arrays.asList("clang", "-target", finalTarget, "-s", "-shared"));
+                    clang.addAll(objects);
+                    clang.addAll(Arrays.asList("-o", library));
+                    return clang;
+                })
+                .thenApply(time -> {
+                    if (obfuscate) {
+                        libNames.add(libName);
+                    }
+                    return time;
+                });
+    }
+
+    // Every source compiles to its own object on the pool; the link runs once all objects of the target are there.
+    // An incremental build keeps an object whose inputs hash the same as last time
+    private CompletableFuture<Long> compileShards(Path outputDir, List<String> sources, String target, String library, Path zigCacheDir, ExecutorService compilePool, String processName,
+                                                  BiFunction<String, String, List<String>> compileCommand, BiFunction<List<String>, String, List<String>> linkCommand) {
+        String objectDir = "." + separator + "build" + separator + "obj" + separator + target;
+        try {
+            Files.createDirectories(outputDir.resolve(objectDir));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        List<String> objects = new ArrayList<>();
+        List<CompletableFuture<Long>> compiles = new ArrayList<>();
+        for (String source : sources) {
+            String unit = "." + separator + "cpp" + separator + source;
+            String object = objectDir + separator + source.substring(0, source.lastIndexOf('.')) + ".o";
+            List<String> command = compileCommand.apply(unit, object);
+            objects.add(object);
+            compiles.add(CompletableFuture.supplyAsync(() -> {
+                if (manifest == null || !manifest.isCurrent(object, outputDir.resolve(object), getInputHash(outputDir, command, unit))) {
+                    return runProcess(outputDir, command, processName, zigCacheDir);
+                }
+                reusedObjects.incrementAndGet();
+                return 0L;
+            }, compilePool));
+        }
+        CompletableFuture<Long> build = CompletableFuture.allOf(compiles.toArray(new CompletableFuture<?>[0])).thenApplyAsync(ignored -> {
+            long time = runProcess(outputDir, linkCommand.apply(objects, library), "link", zigCacheDir);
+            for (CompletableFuture<Long> compile : compiles) {
+                time += compile.join();
+            }
+            return time;
+        }, compilePool);
+        if (manifest == null || !Boolean.getBoolean("verifyIncremental")) {
+            return build;
+        }
+        return build.thenCompose(time -> verifyBuild(outputDir, sources, objects, target, library, zigCacheDir, compilePool, processName, compileCommand, linkCommand)
+                .thenApply(verifyTime -> time + verifyTime));
+    }
+
+    // Builds the target again from scratch in build/verify and checks the incremental library is the same file.
+    // A difference fails the build, as the incremental one reused something it should not have
+    private CompletableFuture<Long> verifyBuild(Path outputDir, List<String> sources, List<String> objects, String target, String library, Path zigCacheDir,
+                                                ExecutorService compilePool, String processName, BiFunction<String, String, List<String>> compileCommand,
+                                                BiFunction<List<String>, String, List<String>> linkCommand) {
+        String verifyDir = "." + separator + "build" + separator + "verify" + separator + target;
+        FileUtils.clearDirectory(outputDir.resolve(verifyDir).toString());
+        try {
+            Files.createDirectories(outputDir.resolve(verifyDir));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        List<String> cleanObjects = new ArrayList<>();
+        List<CompletableFuture<Long>> compiles = new ArrayList<>();
+        for (String source : sources) {
+            String unit = "." + separator + "cpp" + separator + source;
+            String object = verifyDir + separator + source.substring(0, source.lastIndexOf('.')) + ".o";
+            cleanObjects.add(object);
+            compiles.add(CompletableFuture.supplyAsync(() -> runProcess(outputDir, compileCommand.apply(unit, object), processName, zigCacheDir), compilePool));
+        }
+        String cleanLibrary = verifyDir + separator + Paths.get(library).getFileName();
+        return CompletableFuture.allOf(compiles.toArray(new CompletableFuture<?>[0])).thenApplyAsync(ignored -> {
+            long time = runProcess(outputDir, linkCommand.apply(cleanObjects, cleanLibrary), "link", zigCacheDir);
+            for (CompletableFuture<Long> compile : compiles) {
+                time += compile.join();
+            }
+            try {
+                List<String> stale = new ArrayList<>();
+                for (int i = 0; i < objects.size(); i++) {
+                    Path object = outputDir.resolve(objects.get(i));
+                    Path clean = outputDir.resolve(cleanObjects.get(i));
+                    if (!Arrays.equals(Files.readAllBytes(object), Files.readAllBytes(clean))) {
+                        stale.add(objects.get(i));
+                    }
+                }
+                Path linked = outputDir.resolve(library);
+                Path clean = outputDir.resolve(cleanLibrary);
+                if (!stale.isEmpty() || !Arrays.equals(Files.readAllBytes(linked), Files.readAllBytes(clean))) {
+                    throw new IllegalStateException("Incremental build of " + target + " differs from a clean build in " +
+                            (stale.isEmpty() ? "the library" : "the objects " + String.join(", ", stale)) +
+                            ", delete " + outputDir.resolve("build") + " to build from scratch");
+                } else if (locale.getLanguage().contains("zh")) {
+                    System.out.println(target + " 的增量构建与完整构建一致");
                 } else {
-                    List<String> clang_cl = Arrays.asList(
-                            "clang",
-                            "-target", finalTarget,
-                            "-s", "-shared",
-                            include, source,
-                            "-o" + output
-                    );
-                    ProcessHelper.ProcessResult compileObjResult = ProcessHelper.run(outputDir.toAbsolutePath(), 3000 * 1000, clang_cl);
-                    compileObjResult.check("clang build");
-                    return compileObjResult.execTime;
+                    System.out.println("Incremental build of " + target + " matches a clean build");
                 }
-            });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            FileUtils.clearDirectory(outputDir.resolve(verifyDir).toString());
+            try {
+                Files.deleteIfExists(outputDir.resolve(verifyDir).getParent());
+            } catch (DirectoryNotEmptyException e) {
+                // Another target is still verifying
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return time;
+        }, compilePool);
+    }
+
+    // Everything the compilation of a unit reads: the command line, the compiler, the headers and the unit itself. A
+    // shard includes its own header next to it
+    private static String getInputHash(Path outputDir, List<String> command, String unit) {
+        try {
+            StringBuilder inputs = new StringBuilder(String.join("\0", command));
+            Path compiler = Paths.get(command.get(0));
+            if (Files.exists(compiler)) {
+                inputs.append('\0').append(Files.size(compiler)).append('\0').append(Files.getLastModifiedTime(compiler).toMillis());
+            }
+            Path cppDir = outputDir.resolve("cpp");
+            Path source = outputDir.resolve(unit);
+            Path header = source.resolveSibling(source.getFileName().toString().replaceFirst("\\.c$", ".h"));
+            return BuildManifest.hash(inputs.toString().getBytes(StandardCharsets.UTF_8), Files.readAllBytes(cppDir.resolve("jni.h")),
+                    Files.readAllBytes(cppDir.resolve("daedalus.h")), Files.exists(header) ? Files.readAllBytes(header) : new byte[0],
+                    Files.readAllBytes(source));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long runProcess(Path directory, List<String> command, String processName, Path zigCacheDir) {
+        try {
+            ProcessHelper.ProcessResult result = ProcessHelper.run(directory.toAbsolutePath(), 3000 * 1000, command, zigCacheDir);
+            result.check(processName);
+            return result.execTime;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
@@ -950,16 +1221,799 @@ public class MYObfuscator {
         return stringObf;
     }
 
-    private void genCode(Path cppDir, Config config, StringBuilder instructions, Map<String, ClassNode> map, Map<String, String> classNameMap) throws IOException {
+    public static boolean isTypedLocals() {
+        return typedLocals;
+    }
+
+    public static boolean isLocalFrames() {
+        return localFrames;
+    }
+
+    public static boolean isEagerBinding() {
+        return eagerBinding;
+    }
+
+    public static boolean isInline() {
+        return inline;
+    }
+
+    public static boolean isDevirtualize() {
+        return devirtualize;
+    }
+
+    public static boolean isPinArrays() {
+        return pinArrays;
+    }
+
+    public static boolean isIncremental() {
+        return incremental;
+    }
+
+    // A jar entry on its way through translation: the bytes to write, and the class to translate if it has one
+    private static class PreparedEntry {
+        final String name;
+        byte[] data;
+        ClassNode classNode;
+        String className;
+        String hash;
+        final Map<MethodNode, MethodAnalyses> analyses = new HashMap<>();
+        ClassTranslation translation;
+        TranslationRecord record;
+        int classIndex;
+        int methodIndex;
+        int methods;
+        String source;
+        IOException error;
+
+        PreparedEntry(String name) {
+            this.name = name;
+        }
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static boolean isTranslated(ClassNode classNode, MethodNode method) {
+        return MethodProcessor.shouldProcess(method) &&
+                ("<clinit>".equals(method.name) || classMethodFilter.shouldProcess(classNode, method));
+    }
+
+    // Runs on the pool: everything before translation that only needs the class itself
+    private PreparedEntry prepareEntry(JarFile jar, JarEntry entry, ClassMetadataReader metadataReader, boolean useAnnotations,
+                                       AtomicInteger classNumber, AtomicInteger inlinedNumber) {
+        PreparedEntry prepared = new PreparedEntry(entry.getName());
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (InputStream in = jar.getInputStream(entry)) {
+                Util.transfer(in, baos);
+            }
+            byte[] src = baos.toByteArray();
+            prepared.data = src;
+            if (!entry.getName().endsWith(".class") || Util.byteArrayToInt(Arrays.copyOfRange(src, 0, 4)) != 0xCAFEBABE) {
+                return prepared;
+            }
+            ClassReader classReader = new ClassReader(src);
+            ClassNode rawClassNode = new ClassNode();
+            classReader.accept(rawClassNode, ClassReader.SKIP_DEBUG);
+            if (!classMethodFilter.shouldProcess(rawClassNode) ||
+                    rawClassNode.methods.stream().noneMatch(method -> MethodProcessor.shouldProcess(method) &&
+                            classMethodFilter.shouldProcess(rawClassNode, method))) {
+                if (useAnnotations) {
+                    ClassMethodFilter.cleanAnnotations(rawClassNode);
+                    ClassWriter clearedClassWriter = new SafeClassWriter(metadataReader, Opcodes.ASM9);
+                    rawClassNode.accept(clearedClassWriter);
+                    prepared.data = clearedClassWriter.toByteArray();
+                }
+                return prepared;
+            }
+
+            classNumber.getAndIncrement();
+
+            if (inline) {
+                Inliner inliner = new Inliner(rawClassNode);
+                for (MethodNode method : rawClassNode.methods) {
+                    if (isTranslated(rawClassNode, method)) {
+                        inlinedNumber.addAndGet(inliner.inline(method));
+                    }
+                }
+            }
+
+            ClassWriter preprocessorClassWriter = new SafeClassWriter(metadataReader, Opcodes.ASM9 | ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+            rawClassNode.accept(preprocessorClassWriter);
+            byte[] classBytes = preprocessorClassWriter.toByteArray();
+            classReader = new ClassReader(classBytes);
+            prepared.className = classReader.getClassName();
+            if (manifest != null) {
+                prepared.hash = BuildManifest.hash(translationHash.getBytes(StandardCharsets.UTF_8), classBytes);
+                prepared.record = readRecord(prepared.className, prepared.hash);
+                if (prepared.record != null) {
+                    // The class as its translation left it last time
+                    prepared.data = prepared.record.getClassBytes();
+                    prepared.classNode = new ClassNode();
+                    new ClassReader(prepared.data).accept(prepared.classNode, 0);
+                    return prepared;
+                }
+            }
+            ClassNode classNode = readClass(classBytes);
+            for (MethodNode method : classNode.methods) {
+                if (isTranslated(classNode, method) && method.instructions.size() > 0) {
+                    prepared.analyses.put(method, new MethodAnalyses(classNode, method));
+                }
+            }
+            prepared.classNode = classNode;
+        } catch (IOException ex) {
+            prepared.error = ex;
+        }
+        return prepared;
+    }
+
+    // The class as it is translated, with a <clinit> to register its natives from
+    private static ClassNode readClass(byte[] classBytes) {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(classBytes).accept(classNode, 0);
+        if (classNode.methods.stream().noneMatch(x -> x.name.equals("<clinit>"))) {
+            classNode.methods.add(new MethodNode(Opcodes.ACC_STATIC, "<clinit>", "()V", null, new String[0]));
+        }
+        return classNode;
+    }
+
+    // Runs in jar order: numbers the class and its methods as a serial run would
+    private void startTranslation(PreparedEntry prepared) {
+        ClassNode classNode = prepared.classNode;
+        // The class of an interface is numbered by the interfaces before it. Interfaces are never reused
+        InterfaceStaticClassProvider provider = staticClassProvider.forClass(classNode);
+        prepared.classIndex = currentClassId++;
+        prepared.methodIndex = methodIndex;
+        if (prepared.record != null) {
+            methodIndex += prepared.record.getMethods();
+            return;
+        }
+        prepared.translation = new ClassTranslation(this, new IdRequests(), provider);
+        for (MethodNode method : classNode.methods) {
+            if (isTranslated(classNode, method)) {
+                methodIndex++;
+            }
+        }
+        prepared.methods = methodIndex - prepared.methodIndex;
+    }
+
+    // Runs in jar order: an unchanged class asks the shared caches for what it asked for last time. They were preset
+    // to the same ids, but its code keeps the symbolic ones, so it holds with whatever they hand out
+    private int[] replayClass(TranslationRecord record) {
+        List<List<String>> keys = record.getKeys();
+        int[] ids = new int[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            ids[i] = requestId(keys.get(i));
+        }
+        return ids;
+    }
+
+    // Asks the shared caches for an id as the overlays of a translation do
+    private int requestId(List<String> key) {
+        switch (key.get(0)) {
+            case "(cstrings[%d])":
+                return cachedStrings.getId(key.get(1));
+            case "virtual_%d":
+                return cachedVirtualCalls.getId(key.get(1));
+            case "direct_%d":
+                return cachedDirectCalls.getId(CachedMethodInfo.fromKey(key.get(1)));
+            case "class":
+                return cachedClasses.getId(key.get(1));
+            case "field":
+                return cachedClasses.getClass(key.get(1)).getCachedFieldId(CachedFieldInfo.fromKey(key.get(2)));
+            case "field index":
+                return cachedClasses.getClass(key.get(1)).getCachedFieldIndex(CachedFieldInfo.fromKey(key.get(2)));
+            case "method":
+                return cachedClasses.getClass(key.get(1)).getCachedMethodId(CachedMethodInfo.fromKey(key.get(2)));
+            case "method index":
+                return cachedClasses.getClass(key.get(1)).getCachedMethodIndex(CachedMethodInfo.fromKey(key.get(2)), Boolean.parseBoolean(key.get(3)));
+            default:
+                throw new IllegalStateException("unknown id request " + key);
+        }
+    }
+
+    // Runs on the pool, against the overlays of the shared caches handing out symbolic ids
+    private PreparedEntry translateClass(PreparedEntry prepared, AtomicInteger methodNumber) {
+        ClassNode classNode = prepared.classNode;
+        ClassTranslation translation = prepared.translation;
+        MethodProcessor methodProcessor = new MethodProcessor(this);
+
+        StringBuilder instructions = new StringBuilder();
+        instructions.append("\n//").append(classNode.name).append("\n");
+
+        classNode.visitMethod(Opcodes.ACC_NATIVE | Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, "$daedalusLoader", "()V", null, new String[0]);
+        classNode.version = 52;
+
+        int methodIndex = prepared.methodIndex;
+        for (int i = 0; i < classNode.methods.size(); i++) {
+            MethodNode method = classNode.methods.get(i);
+
+            if (!isTranslated(classNode, method)) {
+                continue;
+            }
+            //解析方法
+            MethodContext context = new MethodContext(this, method, methodIndex, classNode, prepared.classIndex, translation);
+            context.analyses = prepared.analyses.get(method);
+            methodProcessor.processMethod(context);
+            instructions.append(context.output.toString().replace("\t", "    "));
+
+            if ((classNode.access & Opcodes.ACC_INTERFACE) > 0) {
+                method.access &= ~Opcodes.ACC_NATIVE;
+            }
+            methodIndex++;
+            if (!"<clinit>".equals(method.name)) {
+                translation.count(methodNumber, 1);
+            }
+        }
+
+        if (!translation.getStaticClassProvider().isEmpty()) {
+            translation.getCachedStrings().getPointer(translation.getStaticClassProvider().getCurrentClassName().replace('/', '.'));
+        }
+        prepared.source = instructions.toString();
+        prepared.analyses.clear();
+        return prepared;
+    }
+
+    // Runs in jar order: the class gets its ids and adds what it added to the shared state
+    private void commitClass(PreparedEntry prepared, Map<String, ClassNode> map, Map<String, String> classNameMap,
+                             Map<String, String> classSources, Map<String, int[]> classIds) {
+        ClassNode classNode = prepared.classNode;
+        map.put(classNode.name, classNode);
+        classNameMap.put(classNode.name, prepared.className);
+        if (prepared.record != null) {
+            TranslationRecord record = prepared.record;
+            classIds.put(classNode.name, replayClass(record));
+            ClassTranslation.commit(this, record.getMethodNames(), record.getNoInitClasses(), readBootstrapMethods(record.getBootstrapClass()));
+            for (int i = 0; i < statistics.size(); i++) {
+                statistics.get(i).addAndGet(record.getCounts()[i]);
+            }
+            classSources.put(classNode.name, record.getSource());
+            manifest.setRecord(classNode.name, manifest.getRecord(classNode.name));
+            prepared.record = null;
+            reusedClasses++;
+        } else {
+            prepared.translation.commit(this);
+            classIds.put(classNode.name, prepared.translation.getIdRequests().getIds());
+            classSources.put(classNode.name, prepared.source);
+        }
+        if (manifest != null && manifest.putClass(classNode.name, prepared.hash)) {
+            changedClasses++;
+        }
+    }
+
+    // Runs on the pool once the class is translated
+    private PreparedEntry finishClass(PreparedEntry prepared, ClassMetadataReader metadataReader, boolean useAnnotations) {
+        if (useAnnotations) {
+            ClassMethodFilter.cleanAnnotations(prepared.classNode);
+        }
+        ClassWriter classWriter = new SafeClassWriter(metadataReader, Opcodes.ASM9 | ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        prepared.classNode.accept(classWriter);
+        //保存class文件
+        prepared.data = classWriter.toByteArray();
+        if (manifest != null && !Util.getFlag(prepared.classNode.access, Opcodes.ACC_INTERFACE)) {
+            writeRecord(prepared);
+        }
+        prepared.translation = null;
+        prepared.source = null;
+        return prepared;
+    }
+
+    // Everything besides the class itself its translation reads: the configuration, with the options and the classes
+    // and methods to translate, and the translator
+    private static String getTranslationHash(Config config) throws IOException {
+        StringWriter configText = new StringWriter();
+        try {
+            new Persister().write(config, configText);
+        } catch (Exception e) {
+            throw new IOException("Failed to write the configuration", e);
+        }
+        StringBuilder translator = new StringBuilder();
+        try {
+            Path location = Paths.get(MYObfuscator.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            try (Stream<Path> files = Files.isDirectory(location) ? Files.walk(location) : Stream.of(location)) {
+                for (Path file : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                    translator.append(file).append('\0').append(Files.size(file)).append('\0')
+                            .append(Files.getLastModifiedTime(file).toMillis()).append('\0');
+                }
+            }
+        } catch (URISyntaxException | SecurityException e) {
+            // Without a location only the configuration tells builds apart
+        }
+        return BuildManifest.hash(configText + "\0" + translator);
+    }
+
+    // The shared caches hand out the ids of the last build again, so the code of a reused class refers to the same
+    // strings, calls and members. Ids nothing asks for any more are not written again
+    private void presetIds() {
+        manifest.getEntries("string.").forEach((id, value) -> cachedStrings.presetId(value, Integer.parseInt(id)));
+        manifest.getEntries("virtual.").forEach((id, key) -> cachedVirtualCalls.presetId(key, Integer.parseInt(id)));
+        manifest.getEntries("direct.").forEach((id, key) -> cachedDirectCalls.presetId(CachedMethodInfo.fromKey(key), Integer.parseInt(id)));
+        Map<String, Map<Integer, CachedFieldInfo>> fields = new HashMap<>();
+        manifest.getEntries("field.").forEach((key, field) -> fields.computeIfAbsent(key.substring(0, key.lastIndexOf('.')), owner -> new TreeMap<>())
+                .put(Integer.parseInt(key.substring(key.lastIndexOf('.') + 1)), CachedFieldInfo.fromKey(field)));
+        Map<String, Map<Integer, CachedMethodInfo>> methods = new HashMap<>();
+        manifest.getEntries("method.").forEach((key, method) -> methods.computeIfAbsent(key.substring(0, key.lastIndexOf('.')), owner -> new TreeMap<>())
+                .put(Integer.parseInt(key.substring(key.lastIndexOf('.') + 1)), CachedMethodInfo.fromKey(method)));
+        Set<String> owners = new HashSet<>(fields.keySet());
+        owners.addAll(methods.keySet());
+        for (String owner : owners) {
+            cachedClasses.presetMembers(owner, new ArrayList<>(fields.getOrDefault(owner, Collections.emptyMap()).values()),
+                    new ArrayList<>(methods.getOrDefault(owner, Collections.emptyMap()).values()));
+        }
+    }
+
+    // Writes the ids the shared caches handed out for the next build to preset
+    private void saveIds() {
+        for (Map.Entry<String, CachedClassInfo> next : cachedClasses.getCache().entrySet()) {
+            manifest.setClassId(next.getKey(), next.getValue().getId());
+            List<CachedFieldInfo> fields = next.getValue().getCachedFields();
+            for (int i = 0; i < fields.size(); i++) {
+                manifest.setEntry("field." + next.getKey() + "." + i, fields.get(i).getKey());
+            }
+            List<CachedMethodInfo> methods = next.getValue().getCachedMethods();
+            for (int i = 0; i < methods.size(); i++) {
+                manifest.setEntry("method." + next.getKey() + "." + i, methods.get(i).getKey());
+            }
+        }
+        cachedStrings.getCache().forEach((value, id) -> manifest.setEntry("string." + id, value));
+        cachedVirtualCalls.getCache().forEach((key, id) -> manifest.setEntry("virtual." + id, key));
+        cachedDirectCalls.getCache().forEach((methodInfo, id) -> manifest.setEntry("direct." + id, methodInfo.getKey()));
+    }
+
+    private static List<MethodNode> readBootstrapMethods(byte[] bootstrapClass) {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(bootstrapClass).accept(classNode, 0);
+        return classNode.methods;
+    }
+
+    private Path getRecordPath(String className) {
+        return recordDir.resolve(BuildManifest.hash(className) + ".bin");
+    }
+
+    // The translation of the class in the last build, if the class and everything its translation read are unchanged.
+    // An unreadable record only costs a translation
+    private TranslationRecord readRecord(String className, String hash) {
+        String recordHash = manifest.getRecord(className);
+        Path path = getRecordPath(className);
+        if (recordHash == null || !manifest.isUnchanged(className, hash) || !Files.exists(path)) {
+            return null;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(path);
+            if (!recordHash.equals(BuildManifest.hash(bytes))) {
+                return null;
+            }
+            TranslationRecord record = TranslationRecord.fromBytes(bytes);
+            if (record == null || !record.getHash().equals(hash) || record.getCounts().length != statistics.size()) {
+                return null;
+            }
+            // Devirtualized code holds only while the calls have the same single targets
+            for (Map.Entry<List<String>, String> singleTarget : record.getSingleTargets().entrySet()) {
+                List<String> call = singleTarget.getKey();
+                String target = classHierarchy == null ? null : classHierarchy.getSingleTarget(call.get(0), call.get(1), call.get(2));
+                if (!singleTarget.getValue().equals(target == null ? "" : target)) {
+                    return null;
+                }
+            }
+            return record;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Runs on the pool: keeps the translation of the class for the next build
+    private void writeRecord(PreparedEntry prepared) {
+        ClassTranslation translation = prepared.translation;
+        ClassNode bootstrapClass = new ClassNode();
+        bootstrapClass.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, "bootstrap", null, "java/lang/Object", null);
+        bootstrapClass.methods.addAll(translation.getBootstrapMethods());
+        ClassWriter bootstrapWriter = new ClassWriter(0);
+        bootstrapClass.accept(bootstrapWriter);
+        byte[] bytes = new TranslationRecord(prepared.hash, prepared.source, prepared.data, translation.getIdRequests().getKeyParts(),
+                translation.getClassMethodNameMap(), translation.getNoInitClassMap(),
+                bootstrapWriter.toByteArray(), translation.getCounts(statistics), prepared.methods,
+                translation.getSingleTargets()).toBytes();
+        try {
+            Path path = getRecordPath(prepared.classNode.name);
+            Files.createDirectories(path.getParent());
+            Files.write(path, bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        manifest.setRecord(prepared.classNode.name, BuildManifest.hash(bytes));
+    }
+
+    // Records of classes no longer in the jar would never be read again
+    private void deleteStaleRecords(Set<String> classNames) throws IOException {
+        if (!Files.isDirectory(recordDir)) {
+            return;
+        }
+        Set<Path> records = new HashSet<>();
+        for (String className : classNames) {
+            records.add(getRecordPath(className));
+        }
+        try (Stream<Path> files = Files.list(recordDir)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                if (!records.contains(file)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private static void writePrepared(ZipOutputStream out, PreparedEntry prepared) {
+        try {
+            if (prepared.error != null) {
+                throw prepared.error;
+            }
+            Util.writeEntry(out, prepared.name, prepared.data);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.out.println("Error while processing " + prepared.name + " " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Helpers of the Math/Float/Double intrinsics, following the Java definitions for NaN and signed zeros.
+     */
+    static String getMathHelpers() {
+        return "static inline jfloat daedalus_min_f(jfloat a, jfloat b) {\n" +
+                "    if (a != a) return a;\n" +
+                "    if (a == 0.0f && b == 0.0f && signbit(b)) return b;\n" +
+                "    return a <= b ? a : b;\n" +
+                "}\n" +
+                "\n" +
+                "static inline jdouble daedalus_min_d(jdouble a, jdouble b) {\n" +
+                "    if (a != a) return a;\n" +
+                "    if (a == 0.0 && b == 0.0 && signbit(b)) return b;\n" +
+                "    return a <= b ? a : b;\n" +
+                "}\n" +
+                "\n" +
+                "static inline jfloat daedalus_max_f(jfloat a, jfloat b) {\n" +
+                "    if (a != a) return a;\n" +
+                "    if (a == 0.0f && b == 0.0f && signbit(a)) return b;\n" +
+                "    return a >= b ? a : b;\n" +
+                "}\n" +
+                "\n" +
+                "static inline jdouble daedalus_max_d(jdouble a, jdouble b) {\n" +
+                "    if (a != a) return a;\n" +
+                "    if (a == 0.0 && b == 0.0 && signbit(a)) return b;\n" +
+                "    return a >= b ? a : b;\n" +
+                "}\n" +
+                "\n" +
+                "static inline jint daedalus_float_bits(jfloat f) { jint i; memcpy(&i, &f, sizeof(i)); return i; }\n" +
+                "static inline jlong daedalus_double_bits(jdouble d) { jlong j; memcpy(&j, &d, sizeof(j)); return j; }\n" +
+                "static inline jfloat daedalus_bits_float(jint i) { jfloat f; memcpy(&f, &i, sizeof(f)); return f; }\n" +
+                "static inline jdouble daedalus_bits_double(jlong j) { jdouble d; memcpy(&d, &j, sizeof(d)); return d; }\n\n";
+    }
+
+    /**
+     * The pieces of a lowered string concatenation, with the text of the constants and primitives they can hold.
+     */
+    static String getConcatHeader() {
+        return "struct daedalus_piece {\n" +
+                "    jstring str;\n" +
+                "    const jchar *chars;\n" +
+                "    jsize len;\n" +
+                "    jchar buf[20];\n" +
+                "};\n" +
+                "\n" +
+                "static const jchar daedalus_true[] = {'t', 'r', 'u', 'e'};\n" +
+                "static const jchar daedalus_false[] = {'f', 'a', 'l', 's', 'e'};\n" +
+                "static const jchar daedalus_null[] = {'n', 'u', 'l', 'l'};\n" +
+                "\n" +
+                "static inline jsize daedalus_long_chars(jlong value, jchar *buf) {\n" +
+                "    jchar tmp[20];\n" +
+                "    unsigned long long v = value < 0 ? 0ULL - (unsigned long long) value : (unsigned long long) value;\n" +
+                "    jsize n = 0, len = 0;\n" +
+                "    do { tmp[n++] = (jchar) ('0' + v % 10); v /= 10; } while (v);\n" +
+                "    if (value < 0) buf[len++] = '-';\n" +
+                "    while (n) buf[len++] = tmp[--n];\n" +
+                "    return len;\n" +
+                "}\n" +
+                "\n" +
+                "jstring daedalus_concat(JNIEnv *env, struct daedalus_piece *pieces, int count);\n\n";
+    }
+
+    /**
+     * Joins the pieces of a lowered string concatenation into a new string.
+     */
+    static String getConcat() {
+        return "jstring daedalus_concat(JNIEnv *env, struct daedalus_piece *pieces, int count) {\n" +
+                "    jlong total = 0;\n" +
+                "    for (int i = 0; i < count; i++) {\n" +
+                "        if (pieces[i].str) pieces[i].len = (*env)->GetStringLength(env, pieces[i].str);\n" +
+                "        total += pieces[i].len;\n" +
+                "    }\n" +
+                "    if (total > 0x7fffffff) {\n" +
+                "        throw_exception(env, \"java/lang/OutOfMemoryError\", \"Overflow: String length out of range\", 0);\n" +
+                "        return NULL;\n" +
+                "    }\n" +
+                "    jchar stack[256];\n" +
+                "    jchar *buf = total <= 256 ? stack : malloc((size_t) total * sizeof(jchar));\n" +
+                "    if (!buf) {\n" +
+                "        throw_exception(env, \"java/lang/OutOfMemoryError\", \"String concatenation\", 0);\n" +
+                "        return NULL;\n" +
+                "    }\n" +
+                "    jsize offset = 0;\n" +
+                "    for (int i = 0; i < count; i++) {\n" +
+                "        if (pieces[i].str) (*env)->GetStringRegion(env, pieces[i].str, 0, pieces[i].len, buf + offset);\n" +
+                "        else if (pieces[i].len) memcpy(buf + offset, pieces[i].chars, pieces[i].len * sizeof(jchar));\n" +
+                "        offset += pieces[i].len;\n" +
+                "    }\n" +
+                "    jstring result = (*env)->NewString(env, buf, (jsize) total);\n" +
+                "    if (buf != stack) free(buf);\n" +
+                "    return result;\n" +
+                "}\n\n";
+    }
+
+    /**
+     * The private monitor cold class caches park on. It is never handed to Java code, so no Java code can hold it.
+     */
+    static String getOnceLock() {
+        return "jobject daedalus_once_lock(JNIEnv *env) {\n" +
+                "    static _Atomic(jobject) lock;\n" +
+                "    jobject cached = atomic_load_explicit(&lock, memory_order_acquire);\n" +
+                "    if (cached) return cached;\n" +
+                "    jclass object = (*env)->FindClass(env, \"java/lang/Object\");\n" +
+                "    if (!object) return NULL;\n" +
+                "    jobject local = (*env)->AllocObject(env, object);\n" +
+                "    (*env)->DeleteLocalRef(env, object);\n" +
+                "    if (!local) return NULL;\n" +
+                "    jobject global = (*env)->NewGlobalRef(env, local);\n" +
+                "    (*env)->DeleteLocalRef(env, local);\n" +
+                "    if (!global) return NULL;\n" +
+                "    if (!atomic_compare_exchange_strong_explicit(&lock, &cached, global, memory_order_acq_rel, memory_order_acquire)) {\n" +
+                "        (*env)->DeleteGlobalRef(env, global);\n" +
+                "        return cached;\n" +
+                "    }\n" +
+                "    return global;\n" +
+                "}\n\n";
+    }
+
+    /**
+     * The lazy accessor c_N_ of a cached class: findClass declares the local clazz, resolve fills the ids of fresh.
+     */
+    static String getClassAccessor(int id, String findClass, String resolve) {
+        return getOnceAccessor("cached_c_" + id, "c_" + id + "_", findClass, resolve, true);
+    }
+
+    /**
+     * A once-initialized cache. Every cold caller runs FindClass itself, so static initializers run (or are waited
+     * for) in the JVM and never under the lock. The first caller through the monitor then resolves the ids and
+     * publishes them, and the callers parked behind it find the cache filled.
+     */
+    private static String getOnceAccessor(String struct, String name, String findClass, String resolve, boolean describe) {
+        return new StringBuilder()
+                .append("static const struct ").append(struct).append("* ").append(name).append("(JNIEnv *env) {\n")
+                .append("    static struct ").append(struct).append(" empty;\n")
+                .append("    static struct ").append(struct).append(" *_Atomic cache;\n")
+                .append("    struct ").append(struct).append(" *cached = atomic_load_explicit(&cache, memory_order_acquire);\n")
+                .append("    if (cached) return cached;\n").append(findClass)
+                .append("    if (!clazz) {\n")
+                .append(describe ? "        (*env)->ExceptionDescribe(env);\n        (*env)->ExceptionClear(env);\n" : "")
+                .append("        return &empty;\n")
+                .append("    }\n")
+                .append("    jobject lock = daedalus_once_lock(env);\n")
+                .append("    if (!lock || (*env)->MonitorEnter(env, lock) != JNI_OK) {\n")
+                .append("        (*env)->DeleteLocalRef(env, clazz);\n")
+                .append("        return &empty;\n")
+                .append("    }\n")
+                .append("    cached = atomic_load_explicit(&cache, memory_order_relaxed);\n")
+                .append("    if (!cached) {\n")
+                .append("        struct ").append(struct).append(" *fresh = calloc(1, sizeof(*fresh));\n")
+                .append("        if (fresh) {\n")
+                .append("            fresh->clazz = (*env)->NewGlobalRef(env, clazz);\n")
+                .append(resolve.replace("    fresh->", "            fresh->"))
+                .append("            fresh->initialize = JNI_TRUE;\n")
+                .append("            atomic_store_explicit(&cache, fresh, memory_order_release);\n")
+                .append("        }\n")
+                .append("        cached = fresh ? fresh : &empty;\n")
+                .append("    }\n")
+                .append("    (*env)->MonitorExit(env, lock);\n")
+                .append("    (*env)->DeleteLocalRef(env, clazz);\n")
+                .append("    return cached;\n")
+                .append("}\n\n")
+                .toString();
+    }
+
+    private List<String> genCode(Path cppDir, Config config, Map<String, String> classSources, Map<String, int[]> classIds,
+                                 Map<String, ClassNode> map, Map<String, String> classNameMap) throws IOException {
         // Retain the original `stringObf` value without forcing it
         // Assume `stringObf` is defined elsewhere in the class or passed as a parameter
         // boolean stringObf = this.stringObf; // Example if it's a class member
 
+        // daedalus.h carries the helpers every unit needs and only depends on the options, daedalus.c the shared
+        // state and the registrations, and the translated methods are spread over the shards by generated size, each
+        // with a header of what it uses
+        BufferedWriter headerWriter = Files.newBufferedWriter(cppDir.resolve("daedalus.h").toAbsolutePath());
         BufferedWriter mainWriter = Files.newBufferedWriter(cppDir.resolve("daedalus.c").toAbsolutePath());
-        mainWriter
-                .append("#include <jni.h>\n" + "#include <stdatomic.h>\n" + "#include <string.h>\n" + "#include <stdbool.h>\n")
+        headerWriter
+                .append("#ifndef DAEDALUS_H\n" + "#define DAEDALUS_H\n\n")
+                .append("#include <jni.h>\n" + "#include <stdatomic.h>\n" + "#include <stdlib.h>\n" + "#include <string.h>\n" + "#include <stdbool.h>\n")
                 .append(stringObf ? "#include <stdarg.h>\n" : "")
                 .append("#include <math.h>\n\n");
+        mainWriter.append("#include \"daedalus.h\"\n\n");
+
+        headerWriter.append(getMathHelpers());
+
+        // Fast paths of the arraycopy/Arrays intrinsics; JNI_FALSE (or -1 for the ones returning a jint) sends the call
+        // back to Java, also when an array cannot be pinned, so the Java call raises what it has to
+        headerWriter
+                .append("static inline jboolean daedalus_arraycopy(JNIEnv *env, jarray src, jint src_pos, jarray dst, jint dst_pos, jint len, size_t size) {\n" +
+                        "    if (!src || !dst || src_pos < 0 || dst_pos < 0 || len < 0) return JNI_FALSE;\n" +
+                        "    if (len > (*env)->GetArrayLength(env, src) - src_pos || len > (*env)->GetArrayLength(env, dst) - dst_pos) return JNI_FALSE;\n" +
+                        "    if (len == 0) return JNI_TRUE;\n" +
+                        "    jboolean same = (*env)->IsSameObject(env, src, dst);\n" +
+                        "    char *s = (*env)->GetPrimitiveArrayCritical(env, src, NULL);\n" +
+                        "    if (!s) { (*env)->ExceptionClear(env); return JNI_FALSE; }\n" +
+                        "    char *d = same ? s : (*env)->GetPrimitiveArrayCritical(env, dst, NULL);\n" +
+                        "    if (!d) { (*env)->ReleasePrimitiveArrayCritical(env, src, s, JNI_ABORT); (*env)->ExceptionClear(env); return JNI_FALSE; }\n" +
+                        "    memmove(d + (size_t) dst_pos * size, s + (size_t) src_pos * size, (size_t) len * size);\n" +
+                        "    if (!same) (*env)->ReleasePrimitiveArrayCritical(env, dst, d, 0);\n" +
+                        "    (*env)->ReleasePrimitiveArrayCritical(env, src, s, same ? 0 : JNI_ABORT);\n" +
+                        "    return JNI_TRUE;\n" +
+                        "}\n" +
+                        "\n" +
+                        "static inline jint daedalus_array_equals(JNIEnv *env, jarray a, jarray b, size_t size) {\n" +
+                        "    if ((*env)->IsSameObject(env, a, b)) return 1;\n" +
+                        "    if (!a || !b) return 0;\n" +
+                        "    jsize len = (*env)->GetArrayLength(env, a);\n" +
+                        "    if (len != (*env)->GetArrayLength(env, b)) return 0;\n" +
+                        "    if (len == 0) return 1;\n" +
+                        "    void *x = (*env)->GetPrimitiveArrayCritical(env, a, NULL);\n" +
+                        "    if (!x) { (*env)->ExceptionClear(env); return -1; }\n" +
+                        "    void *y = (*env)->GetPrimitiveArrayCritical(env, b, NULL);\n" +
+                        "    if (!y) { (*env)->ReleasePrimitiveArrayCritical(env, a, x, JNI_ABORT); (*env)->ExceptionClear(env); return -1; }\n" +
+                        "    jint result = memcmp(x, y, (size_t) len * size) == 0;\n" +
+                        "    (*env)->ReleasePrimitiveArrayCritical(env, b, y, JNI_ABORT);\n" +
+                        "    (*env)->ReleasePrimitiveArrayCritical(env, a, x, JNI_ABORT);\n" +
+                        "    return result;\n" +
+                        "}\n\n");
+        // Fast paths of the String intrinsics, with -1 (-2 for indexOf) when a string cannot be pinned. The cache keeps the length and, for short strings, the chars of
+        // the string a method read last; strings are immutable, so it stays valid while the reference is alive
+        headerWriter
+                .append("#define DAEDALUS_STR_CACHE 256\n" +
+                        "\n" +
+                        "struct daedalus_str_cache {\n" +
+                        "    jstring ref;\n" +
+                        "    jsize len;\n" +
+                        "    jboolean filled;\n" +
+                        "    jchar chars[DAEDALUS_STR_CACHE];\n" +
+                        "};\n" +
+                        "\n" +
+                        "static inline jsize daedalus_str_len(JNIEnv *env, struct daedalus_str_cache *cache, jstring s) {\n" +
+                        "    if (!cache) return (*env)->GetStringLength(env, s);\n" +
+                        "    if (cache->ref != s) {\n" +
+                        "        cache->ref = s;\n" +
+                        "        cache->len = (*env)->GetStringLength(env, s);\n" +
+                        "        cache->filled = JNI_FALSE;\n" +
+                        "    }\n" +
+                        "    return cache->len;\n" +
+                        "}\n" +
+                        "\n" +
+                        "static inline const jchar *daedalus_str_chars(JNIEnv *env, struct daedalus_str_cache *cache, jstring s) {\n" +
+                        "    if (!cache || daedalus_str_len(env, cache, s) > DAEDALUS_STR_CACHE) return NULL;\n" +
+                        "    if (!cache->filled) {\n" +
+                        "        (*env)->GetStringRegion(env, s, 0, cache->len, cache->chars);\n" +
+                        "        cache->filled = JNI_TRUE;\n" +
+                        "    }\n" +
+                        "    return cache->chars;\n" +
+                        "}\n" +
+                        "\n" +
+                        "static inline jint daedalus_str_char_at(JNIEnv *env, struct daedalus_str_cache *cache, jstring s, jint i) {\n" +
+                        "    const jchar *chars = daedalus_str_chars(env, cache, s);\n" +
+                        "    if (chars) return chars[i];\n" +
+                        "    jchar c;\n" +
+                        "    (*env)->GetStringRegion(env, s, i, 1, &c);\n" +
+                        "    return c;\n" +
+                        "}\n" +
+                        "\n" +
+                        "static inline jint daedalus_str_index_of(JNIEnv *env, struct daedalus_str_cache *cache, jstring s, jint ch, jint from) {\n" +
+                        "    jsize len = daedalus_str_len(env, cache, s);\n" +
+                        "    if (from < 0) from = 0;\n" +
+                        "    if (ch < 0 || from >= len) return -1;\n" +
+                        "    const jchar *chars = daedalus_str_chars(env, cache, s);\n" +
+                        "    if (chars) {\n" +
+                        "        for (jint i = from; i < len; i++) if (chars[i] == ch) return i;\n" +
+                        "        return -1;\n" +
+                        "    }\n" +
+                        "    const jchar *p = (*env)->GetStringCritical(env, s, NULL);\n" +
+                        "    if (!p) { (*env)->ExceptionClear(env); return -2; }\n" +
+                        "    jint result = -1;\n" +
+                        "    for (jint i = from; i < len; i++) if (p[i] == ch) { result = i; break; }\n" +
+                        "    (*env)->ReleaseStringCritical(env, s, p);\n" +
+                        "    return result;\n" +
+                        "}\n" +
+                        "\n" +
+                        "static inline jint daedalus_str_equals(JNIEnv *env, jstring a, jobject b, jclass string_class) {\n" +
+                        "    if ((*env)->IsSameObject(env, a, b)) return 1;\n" +
+                        "    if (!b || !(*env)->IsInstanceOf(env, b, string_class)) return 0;\n" +
+                        "    jsize len = (*env)->GetStringLength(env, a);\n" +
+                        "    if (len != (*env)->GetStringLength(env, b)) return 0;\n" +
+                        "    if (len == 0) return 1;\n" +
+                        "    const jchar *x = (*env)->GetStringCritical(env, a, NULL);\n" +
+                        "    if (!x) { (*env)->ExceptionClear(env); return -1; }\n" +
+                        "    const jchar *y = (*env)->GetStringCritical(env, b, NULL);\n" +
+                        "    if (!y) { (*env)->ReleaseStringCritical(env, a, x); (*env)->ExceptionClear(env); return -1; }\n" +
+                        "    jint result = memcmp(x, y, (size_t) len * sizeof(jchar)) == 0;\n" +
+                        "    (*env)->ReleaseStringCritical(env, b, y);\n" +
+                        "    (*env)->ReleaseStringCritical(env, a, x);\n" +
+                        "    return result;\n" +
+                        "}\n\n");
+        String[][] arrayTypes = {
+                {"z", "jboolean", "Boolean", "(p[i] ? 1231u : 1237u)"},
+                {"c", "jchar", "Char", "(unsigned int) p[i]"},
+                {"b", "jbyte", "Byte", "(unsigned int) p[i]"},
+                {"s", "jshort", "Short", "(unsigned int) p[i]"},
+                {"i", "jint", "Int", "(unsigned int) p[i]"},
+                {"f", "jfloat", "Float", "(unsigned int) (p[i] != p[i] ? 0x7fc00000 : daedalus_float_bits(p[i]))"},
+                {"j", "jlong", "Long", "(unsigned int) (p[i] ^ (jlong) ((unsigned long long) p[i] >> 32))"},
+                {"d", "jdouble", "Double", "(unsigned int) (bits ^ (jlong) ((unsigned long long) bits >> 32))"}
+        };
+        for (String[] arrayType : arrayTypes) {
+            String suffix = arrayType[0];
+            String type = arrayType[1];
+            headerWriter
+                    .append("static inline jboolean daedalus_fill_").append(suffix).append("(JNIEnv *env, jarray a, jint from, jint to, ").append(type).append(" v, jboolean whole) {\n" +
+                            "    if (!a) return JNI_FALSE;\n" +
+                            "    jsize len = (*env)->GetArrayLength(env, a);\n" +
+                            "    if (whole) { from = 0; to = len; }\n" +
+                            "    if (from < 0 || from > to || to > len) return JNI_FALSE;\n" +
+                            "    if (from == to) return JNI_TRUE;\n" +
+                            "    ").append(type).append(" *p = (*env)->GetPrimitiveArrayCritical(env, a, NULL);\n" +
+                            "    if (!p) { (*env)->ExceptionClear(env); return JNI_FALSE; }\n" +
+                            "    for (jint i = from; i < to; i++) p[i] = v;\n" +
+                            "    (*env)->ReleasePrimitiveArrayCritical(env, a, p, 0);\n" +
+                            "    return JNI_TRUE;\n" +
+                            "}\n" +
+                            "\n" +
+                            "static inline jarray daedalus_copyof_").append(suffix).append("(JNIEnv *env, jarray a, jint n) {\n" +
+                            "    jsize len = (*env)->GetArrayLength(env, a);\n" +
+                            "    jarray r = (*env)->New").append(arrayType[2]).append("Array(env, n);\n" +
+                            "    if (!r) { (*env)->ExceptionClear(env); return NULL; }\n" +
+                            "    jsize count = len < n ? len : n;\n" +
+                            "    if (count == 0) return r;\n" +
+                            "    void *s = (*env)->GetPrimitiveArrayCritical(env, a, NULL);\n" +
+                            "    if (!s) { (*env)->DeleteLocalRef(env, r); (*env)->ExceptionClear(env); return NULL; }\n" +
+                            "    void *d = (*env)->GetPrimitiveArrayCritical(env, r, NULL);\n" +
+                            "    if (!d) { (*env)->ReleasePrimitiveArrayCritical(env, a, s, JNI_ABORT); (*env)->DeleteLocalRef(env, r); (*env)->ExceptionClear(env); return NULL; }\n" +
+                            "    memcpy(d, s, (size_t) count * sizeof(").append(type).append("));\n" +
+                            "    (*env)->ReleasePrimitiveArrayCritical(env, r, d, 0);\n" +
+                            "    (*env)->ReleasePrimitiveArrayCritical(env, a, s, JNI_ABORT);\n" +
+                            "    return r;\n" +
+                            "}\n" +
+                            "\n" +
+                            "static inline jboolean daedalus_hash_").append(suffix).append("(JNIEnv *env, jarray a, jint *hash) {\n" +
+                            "    if (!a) { *hash = 0; return JNI_TRUE; }\n" +
+                            "    jsize len = (*env)->GetArrayLength(env, a);\n" +
+                            "    if (len == 0) { *hash = 1; return JNI_TRUE; }\n" +
+                            "    ").append(type).append(" *p = (*env)->GetPrimitiveArrayCritical(env, a, NULL);\n" +
+                            "    if (!p) { (*env)->ExceptionClear(env); return JNI_FALSE; }\n" +
+                            "    unsigned int h = 1;\n" +
+                            "    for (jsize i = 0; i < len; i++) {\n")
+                    .append(suffix.equals("d") ? "        jlong bits = p[i] != p[i] ? 0x7ff8000000000000LL : daedalus_double_bits(p[i]);\n" : "")
+                    .append("        h = 31u * h + ").append(arrayType[3]).append(";\n" +
+                            "    }\n" +
+                            "    (*env)->ReleasePrimitiveArrayCritical(env, a, p, JNI_ABORT);\n" +
+                            "    *hash = (jint) h;\n" +
+                            "    return JNI_TRUE;\n" +
+                            "}\n\n");
+        }
 
         // Remove license-related variables and handling
         // String signCode = LicenseManager.s();
@@ -968,7 +2022,7 @@ public class MYObfuscator {
 
         // Retain the string obfuscation functions conditionally
         if (config.getOptions() != null && "true".equals(config.getOptions().getStringObf())) {
-            mainWriter
+            headerWriter
                     .append("\nstatic inline char* daedalus_c_str_obf(char *a, char *b, const size_t len) {\n" +
                             "    volatile char c[len]; memcpy((char*) c, b, len); memcpy(b, (char*) c, len);\n" +
                             "    for(size_t i = 0; i < len; i++) a[i] ^= b[i]; return a;\n" +
@@ -983,49 +2037,31 @@ public class MYObfuscator {
 
         // Remove or bypass expiration and license checks
         // Always include the necessary structures for professional mode
+        headerWriter.append("jobject daedalus_once_lock(JNIEnv *env);\n\n");
         mainWriter
+                .append(getOnceLock())
                 .append("struct cached_system {\n" +
                         "    jclass clazz;\n" +
                         "    jfieldID id_0;\n" +
+                        "    jboolean initialize;\n" +
                         "};\n" +
-                        "\n" +
-                        "static const struct cached_system* cc_system(JNIEnv *env) {\n" +
-                        "    static struct cached_system cache;\n" +
-                        "    static atomic_flag lock;\n" +
-                        "    if (cache.clazz) return &cache;\n" +
-                        "\n" +
-                        "    jclass clazz = (*env)->FindClass(env, \"java/lang/System\");\n" +
-                        "    while (atomic_flag_test_and_set(&lock)) {}\n" +
-                        "    if (!cache.clazz) {\n" +
-                        "        cache.clazz = (*env)->NewGlobalRef(env, clazz);\n" +
-                        "        cache.id_0 = (*env)->GetStaticFieldID(env, clazz, \"out\", \"Ljava/io/PrintStream;\");\n" +
-                        "    }\n" +
-                        "    atomic_flag_clear(&lock);\n" +
-                        "    return &cache;\n" +
-                        "}\n" +
-                        "\n" +
+                        "\n"
+                )
+                .append(getOnceAccessor("cached_system", "cc_system", "    jclass clazz = (*env)->FindClass(env, \"java/lang/System\");\n",
+                        "    fresh->id_0 = (*env)->GetStaticFieldID(env, clazz, \"out\", \"Ljava/io/PrintStream;\");\n", false))
+                .append(
                         "struct cached_print {\n" +
                         "    jclass clazz;\n" +
                         "    jmethodID method_0;\n" +
+                        "    jboolean initialize;\n" +
                         "};\n" +
-                        "\n" +
-                        "static const struct cached_print* cc_print(JNIEnv *env) {\n" +
-                        "    static struct cached_print cache;\n" +
-                        "    static atomic_flag lock;\n" +
-                        "    if (cache.clazz) return &cache;\n" +
-                        "\n" +
-                        "    jclass clazz = (*env)->FindClass(env, \"java/io/PrintStream\");\n" +
-                        "    while (atomic_flag_test_and_set(&lock)) {}\n" +
-                        "    if (!cache.clazz) {\n" +
-                        "        cache.clazz = (*env)->NewGlobalRef(env, clazz);\n" +
-                        "        cache.method_0 = (*env)->GetMethodID(env, clazz, \"println\", \"(Ljava/lang/String;)V\");\n" +
-                        "    }\n" +
-                        "    atomic_flag_clear(&lock);\n" +
-                        "    return &cache;\n" +
-                        "}\n\n"
-                );
+                        "\n"
+                )
+                .append(getOnceAccessor("cached_print", "cc_print", "    jclass clazz = (*env)->FindClass(env, \"java/io/PrintStream\");\n",
+                        "    fresh->method_0 = (*env)->GetMethodID(env, clazz, \"println\", \"(Ljava/lang/String;)V\");\n", false));
 
         // Retain the `throw_exception` function as is
+        headerWriter.append("void throw_exception(JNIEnv *env, const char *exception, const char *error, int line);\n\n");
         mainWriter
                 .append("void throw_exception(JNIEnv *env, const char *exception, const char *error, int line) {\n" +
                         "        jclass exception_ptr = (*env)->FindClass(env, exception);\n" +
@@ -1041,128 +2077,300 @@ public class MYObfuscator {
                         "}\n\n"
                 );
 
-        // Process cached classes without license or expiration conditions
-        for (Map.Entry<String, CachedClassInfo> next : cachedClasses.getCache().entrySet()) {
-            int id = next.getValue().getId();
-            StringBuilder fieldStr = new StringBuilder();
-            List<CachedFieldInfo> fields = next.getValue().getCachedFields();
-            for (int i = 0; i < fields.size(); i++) {
-                CachedFieldInfo fieldInfo = fields.get(i);
-                if (!"<init>".equals(fieldInfo.getName())) {
-                    fieldStr.append("\tjfieldID id_").append(i).append(";\n");
+        // LDC string constants: interned once, then read from the table of the shard as global references
+        headerWriter
+                .append("jstring daedalus_ldc_string(JNIEnv *env, _Atomic(jstring) *slot, const jchar *chars, jsize len, jmethodID intern);\n\n");
+        mainWriter
+                .append("jstring daedalus_ldc_string(JNIEnv *env, _Atomic(jstring) *slot, const jchar *chars, jsize len, jmethodID intern) {\n" +
+                        "    jstring local = (*env)->NewString(env, chars, len);\n" +
+                        "    if (!local) return NULL;\n" +
+                        "    jstring interned = (*env)->CallObjectMethod(env, local, intern);\n" +
+                        "    (*env)->DeleteLocalRef(env, local);\n" +
+                        "    if (!interned) return NULL;\n" +
+                        "    jstring global = (*env)->NewGlobalRef(env, interned);\n" +
+                        "    (*env)->DeleteLocalRef(env, interned);\n" +
+                        "    if (!global) {\n" +
+                        "        jclass oom = (*env)->FindClass(env, \"java/lang/OutOfMemoryError\");\n" +
+                        "        if (oom) (*env)->ThrowNew(env, oom, \"ldc string\");\n" +
+                        "        return NULL;\n" +
+                        "    }\n" +
+                        "    jstring cached = NULL;\n" +
+                        "    if (!atomic_compare_exchange_strong_explicit(slot, &cached, global, memory_order_acq_rel, memory_order_acquire)) {\n" +
+                        "        (*env)->DeleteGlobalRef(env, global);\n" +
+                        "        return cached;\n" +
+                        "    }\n" +
+                        "    return global;\n" +
+                        "}\n\n"
+                );
+
+        // StringConcatFactory sites lowered by InvokeDynamicHandler
+        headerWriter.append(getConcatHeader());
+        mainWriter.append(getConcat());
+
+        // Eager binding: the ids a class can resolve while it initializes live in a table of its shard, filled by
+        // the bind function of the class from its $daedalusLoader. Classes are loaded with Class.forName without
+        // initializing them, and only members of the class and its superclasses are bound, as those are initialized
+        // already; everything else stays on the lazy accessors, so classes initialize when the code first needs them.
+        // A slot is only ever set once, from NULL to its final value, before the class that reads it is initialized.
+        // A failed binding leaves its error pending, which fails the initialization of the class.
+        if (eagerBinding) {
+            headerWriter
+                    .append("jboolean daedalus_bind_class(JNIEnv *env, _Atomic(void *) *refs, int index, jclass caller, const char *name);\n")
+                    .append("jboolean daedalus_bind_field(JNIEnv *env, _Atomic(void *) *refs, int index, int owner, const char *name, const char *desc, jboolean is_static);\n")
+                    .append("jboolean daedalus_bind_method(JNIEnv *env, _Atomic(void *) *refs, int index, int owner, const char *name, const char *desc, jboolean is_static);\n\n");
+            mainWriter
+                    .append("jboolean daedalus_bind_class(JNIEnv *env, _Atomic(void *) *refs, int index, jclass caller, const char *name) {\n" +
+                            "    if (atomic_load_explicit(&refs[index], memory_order_acquire)) return JNI_TRUE;\n" +
+                            "    jclass classClass = (*env)->GetObjectClass(env, caller);\n" +
+                            "    jmethodID getClassLoader = (*env)->GetMethodID(env, classClass, \"getClassLoader\", \"()Ljava/lang/ClassLoader;\");\n" +
+                            "    jmethodID forName = (*env)->GetStaticMethodID(env, classClass, \"forName\", \"(Ljava/lang/String;ZLjava/lang/ClassLoader;)Ljava/lang/Class;\");\n" +
+                            "    jobject loader = (*env)->CallObjectMethod(env, caller, getClassLoader);\n" +
+                            "    jstring className = (*env)->ExceptionCheck(env) ? NULL : (*env)->NewStringUTF(env, name);\n" +
+                            "    jclass clazz = className ? (*env)->CallStaticObjectMethod(env, classClass, forName, className, JNI_FALSE, loader) : NULL;\n" +
+                            "    (*env)->DeleteLocalRef(env, className);\n" +
+                            "    (*env)->DeleteLocalRef(env, loader);\n" +
+                            "    (*env)->DeleteLocalRef(env, classClass);\n" +
+                            "    if (!clazz) return JNI_FALSE;\n" +
+                            "    void *ref = (*env)->NewGlobalRef(env, clazz);\n" +
+                            "    void *expected = NULL;\n" +
+                            "    (*env)->DeleteLocalRef(env, clazz);\n" +
+                            "    if (!ref) return JNI_FALSE;\n" +
+                            "    if (!atomic_compare_exchange_strong_explicit(&refs[index], &expected, ref, memory_order_release, memory_order_acquire)) {\n" +
+                            "        (*env)->DeleteGlobalRef(env, ref);\n" +
+                            "    }\n" +
+                            "    return JNI_TRUE;\n" +
+                            "}\n" +
+                            "\n" +
+                            "jboolean daedalus_bind_field(JNIEnv *env, _Atomic(void *) *refs, int index, int owner, const char *name, const char *desc, jboolean is_static) {\n" +
+                            "    if (atomic_load_explicit(&refs[index], memory_order_acquire)) return JNI_TRUE;\n" +
+                            "    jclass clazz = atomic_load_explicit(&refs[owner], memory_order_acquire);\n" +
+                            "    jfieldID id = is_static ? (*env)->GetStaticFieldID(env, clazz, name, desc)\n" +
+                            "                            : (*env)->GetFieldID(env, clazz, name, desc);\n" +
+                            "    if (!id) return JNI_FALSE;\n" +
+                            "    atomic_store_explicit(&refs[index], (void *) id, memory_order_release);\n" +
+                            "    return JNI_TRUE;\n" +
+                            "}\n" +
+                            "\n" +
+                            "jboolean daedalus_bind_method(JNIEnv *env, _Atomic(void *) *refs, int index, int owner, const char *name, const char *desc, jboolean is_static) {\n" +
+                            "    if (atomic_load_explicit(&refs[index], memory_order_acquire)) return JNI_TRUE;\n" +
+                            "    jclass clazz = atomic_load_explicit(&refs[owner], memory_order_acquire);\n" +
+                            "    jmethodID id = is_static ? (*env)->GetStaticMethodID(env, clazz, name, desc)\n" +
+                            "                             : (*env)->GetMethodID(env, clazz, name, desc);\n" +
+                            "    if (!id) return JNI_FALSE;\n" +
+                            "    atomic_store_explicit(&refs[index], (void *) id, memory_order_release);\n" +
+                            "    return JNI_TRUE;\n" +
+                            "}\n\n");
+        }
+
+        if (manifest != null) {
+            saveIds();
+        }
+
+        // The registrations, direct calls and inline caches refer to translated methods of any shard. Their names
+        // come from the methods, so two methods hashing to the same name would share a function
+        Map<String, String> functionKeys = new HashMap<>();
+        Map<String, String> functionDescs = new HashMap<>();
+        List<Map.Entry<String, String>> functions = new ArrayList<>(classMethodNameMap.entrySet());
+        functions.sort(Map.Entry.comparingByKey());
+        for (Map.Entry<String, String> function : functions) {
+            String key = function.getKey();
+            String other = functionKeys.put(function.getValue(), key);
+            if (other != null) {
+                throw new IllegalStateException(other + " and " + key + " hash to the same function " + function.getValue());
+            }
+            String desc = key.substring(key.indexOf('(', key.lastIndexOf('.')));
+            functionDescs.put(function.getValue(), desc);
+            mainWriter.append(ShardWriter.getPrototype(function.getValue(), desc)).append(";\n");
+        }
+        mainWriter.append("\n");
+
+        // The shards declare the call targets they use; what each direct call is bound to is decided here
+        headerWriter.append("#define DAEDALUS_DIRECT_DEPTH 64\n\n")
+                .append("extern _Thread_local int daedalus_depth;\n\n");
+        List<CachedMethodInfo> directCalls = new ArrayList<>(Collections.nCopies(cachedDirectCalls.getIdBound(), null));
+        List<String> directFunctions = new ArrayList<>(Collections.nCopies(cachedDirectCalls.getIdBound(), null));
+        for (Map.Entry<CachedMethodInfo, Integer> directCall : cachedDirectCalls.getCache().entrySet()) {
+            directCalls.set(directCall.getValue(), directCall.getKey());
+            directFunctions.set(directCall.getValue(), getDirectFunction(map, directCall.getKey()));
+        }
+        if (!cachedDirectCalls.isEmpty()) {
+            mainWriter.append("_Thread_local int daedalus_depth;\n\n");
+        }
+
+        // Each class an inline cache may dispatch to publishes itself from $daedalusLoader into a weak slot named
+        // after its cache id, so a miss never looks up (and initializes) a class the program has not loaded yet
+        headerWriter.append("#define DAEDALUS_IC_MISSES 8\n\n")
+                .append("struct daedalus_ic {\n" +
+                        "    jweak clazz;\n" +
+                        "    void *target;\n" +
+                        "};\n" +
+                        "\n" +
+                        "void *daedalus_ic_target(JNIEnv *env, _Atomic(struct daedalus_ic *) *site, atomic_int *misses, jobject obj,\n" +
+                        "                         void *(*lookup)(JNIEnv *, jclass));\n" +
+                        "jboolean daedalus_ic_match(JNIEnv *env, jclass clazz, _Atomic(jweak) *slot, jmethodID id, const char *name, const char *desc);\n\n");
+        List<String> virtualCalls = new ArrayList<>(Collections.nCopies(cachedVirtualCalls.getIdBound(), null));
+        List<List<String[]>> virtualTargets = new ArrayList<>(Collections.nCopies(cachedVirtualCalls.getIdBound(), null));
+        Set<String> slotClasses = new HashSet<>();
+        if (!cachedVirtualCalls.isEmpty()) {
+            Map<String, List<String[]>> overriders = new HashMap<>();
+            for (ClassNode classNode : map.values()) {
+                if (Util.getFlag(classNode.access, Opcodes.ACC_INTERFACE)) {
+                    continue;
+                }
+                for (MethodNode method : classNode.methods) {
+                    String function = classMethodNameMap.get(classNode.name + "." + method.name + method.desc);
+                    if (function == null || method.name.startsWith("<") ||
+                            Util.getFlag(method.access, Opcodes.ACC_STATIC) ||
+                            Util.getFlag(method.access, Opcodes.ACC_PRIVATE) ||
+                            Util.getFlag(method.access, Opcodes.ACC_SYNCHRONIZED)) {
+                        continue;
+                    }
+                    overriders.computeIfAbsent(method.name + method.desc, key -> new ArrayList<>())
+                            .add(new String[]{classNode.name, function});
                 }
             }
-            StringBuilder methodStr = new StringBuilder();
-            List<CachedMethodInfo> methods = next.getValue().getCachedMethods();
-            for (int i = 0; i < methods.size(); i++) {
-                methodStr.append("    jmethodID method_").append(i).append(";\n");
+
+            for (Map.Entry<String, Integer> virtualCall : cachedVirtualCalls.getCache().entrySet()) {
+                String key = virtualCall.getKey();
+                String method = key.substring(0, key.lastIndexOf(' '));
+                String requiredPackage = key.substring(key.lastIndexOf(' ') + 1);
+                List<String[]> candidates = new ArrayList<>(overriders.getOrDefault(method, Collections.emptyList()));
+                candidates.sort(Comparator.comparing(candidate -> candidate[0]));
+                List<String[]> targets = new ArrayList<>();
+                for (String[] candidate : candidates) {
+                    String candidatePackage = candidate[0].substring(0, Math.max(candidate[0].lastIndexOf('/'), 0));
+                    CachedClassInfo classInfo = cachedClasses.getCache().get(candidate[0]);
+                    if ((requiredPackage.equals("*") || requiredPackage.equals(candidatePackage)) && classInfo != null) {
+                        targets.add(new String[]{"daedalus_class_" + classInfo.getId(), candidate[1]});
+                        slotClasses.add(candidate[0]);
+                    }
+                }
+                virtualCalls.set(virtualCall.getValue(), method);
+                virtualTargets.set(virtualCall.getValue(), targets);
             }
-            mainWriter.append("struct cached_c_").append(String.valueOf(id)).append(" {\n")
-                    .append("\tjclass clazz;\n")
-                    .append(String.valueOf(fieldStr))
-                    .append(String.valueOf(methodStr))
-                    .append("\tjboolean initialize;\n")
-                    .append("};\n\n");
 
-            StringBuilder cachedFieldStr = new StringBuilder();
+            Set<Integer> slots = new TreeSet<>();
+            for (String slotClass : slotClasses) {
+                slots.add(cachedClasses.getCache().get(slotClass).getId());
+            }
+            for (int slot : slots) {
+                mainWriter.append("_Atomic(jweak) daedalus_class_").append(String.valueOf(slot)).append(";\n");
+            }
+            mainWriter.append("\n")
+                    .append("// Called from $daedalusLoader, which may run on several threads; the first weak ref wins\n" +
+                            "static void daedalus_ic_publish(JNIEnv *env, _Atomic(jweak) *slot, jclass clazz) {\n" +
+                            "    if (atomic_load_explicit(slot, memory_order_acquire)) return;\n" +
+                            "    jweak ref = (*env)->NewWeakGlobalRef(env, clazz);\n" +
+                            "    jweak expected = NULL;\n" +
+                            "    if (ref && !atomic_compare_exchange_strong_explicit(slot, &expected, ref, memory_order_release, memory_order_acquire)) {\n" +
+                            "        (*env)->DeleteWeakGlobalRef(env, ref);\n" +
+                            "    }\n" +
+                            "}\n" +
+                            "\n" +
+                            "// The selected method is the one a loaded, assignable class declares under the same id\n" +
+                            "jboolean daedalus_ic_match(JNIEnv *env, jclass clazz, _Atomic(jweak) *slot, jmethodID id, const char *name, const char *desc) {\n" +
+                            "    jweak ref = atomic_load_explicit(slot, memory_order_acquire);\n" +
+                            "    jclass owner = ref ? (*env)->NewLocalRef(env, ref) : NULL;\n" +
+                            "    if (!owner) return JNI_FALSE;\n" +
+                            "    jboolean match = (*env)->IsAssignableFrom(env, clazz, owner) && (*env)->GetMethodID(env, owner, name, desc) == id;\n" +
+                            "    (*env)->ExceptionClear(env);\n" +
+                            "    (*env)->DeleteLocalRef(env, owner);\n" +
+                            "    return match;\n" +
+                            "}\n" +
+                            "\n" +
+                            "// Returns the cached function for the receiver's class, refilling the cache on a miss. Replaced entries\n" +
+                            "// are never freed since another thread may still read them, so a site that keeps missing or reaches a\n" +
+                            "// class without a translated target stops caching and stays on the JNI call.\n" +
+                            "void *daedalus_ic_target(JNIEnv *env, _Atomic(struct daedalus_ic *) *site, atomic_int *misses, jobject obj,\n" +
+                            "                         void *(*lookup)(JNIEnv *, jclass)) {\n" +
+                            "    if (atomic_load_explicit(misses, memory_order_relaxed) >= DAEDALUS_IC_MISSES) return NULL;\n" +
+                            "    jclass clazz = (*env)->GetObjectClass(env, obj);\n" +
+                            "    struct daedalus_ic *ic = atomic_load_explicit(site, memory_order_acquire);\n" +
+                            "    void *target = NULL;\n" +
+                            "    if (ic && (*env)->IsSameObject(env, clazz, ic->clazz)) {\n" +
+                            "        target = ic->target;\n" +
+                            "    } else if (atomic_fetch_add_explicit(misses, 1, memory_order_relaxed) < DAEDALUS_IC_MISSES) {\n" +
+                            "        target = lookup(env, clazz);\n" +
+                            "        struct daedalus_ic *next = target ? malloc(sizeof(struct daedalus_ic)) : NULL;\n" +
+                            "        if (next) {\n" +
+                            "            next->clazz = (*env)->NewWeakGlobalRef(env, clazz);\n" +
+                            "            next->target = target;\n" +
+                            "            atomic_store_explicit(site, next, memory_order_release);\n" +
+                            "        } else if (!target) {\n" +
+                            "            atomic_store_explicit(misses, DAEDALUS_IC_MISSES, memory_order_relaxed);\n" +
+                            "        }\n" +
+                            "    }\n" +
+                            "    (*env)->DeleteLocalRef(env, clazz);\n" +
+                            "    return target;\n" +
+                            "}\n\n");
+        }
 
-            for (int i = 0; i < fields.size(); i++) {
-                CachedFieldInfo fieldInfo = fields.get(i);
-                if (!"<init>".equals(fieldInfo.getName())) {
-                    if (fieldInfo.isStatic()) {
-                        if (stringObf) {
-                            cachedFieldStr
-                                    .append("\t\tcache.id_").append(i)
-                                    .append(" = (*env)->GetStaticFieldID(env, clazz, ")
-                                    .append(Util.getStringObf(fieldInfo.getName())).append(", ")
-                                    .append(Util.getStringObf(fieldInfo.getDesc())).append(");\n");
-                        } else {
-                            cachedFieldStr
-                                    .append("\t\tcache.id_").append(i)
-                                    .append(" = (*env)->GetStaticFieldID(env, clazz, \"")
-                                    .append(fieldInfo.getName()).append("\", \"")
-                                    .append(fieldInfo.getDesc()).append("\");\n");
-                        }
-                    } else {
-                        if (stringObf) {
-                            cachedFieldStr
-                                    .append("\t\tcache.id_").append(i)
-                                    .append(" = (*env)->GetFieldID(env, clazz, ")
-                                    .append(Util.getStringObf(fieldInfo.getName())).append(", ")
-                                    .append(Util.getStringObf(fieldInfo.getDesc())).append(");\n");
-                        } else {
-                            cachedFieldStr
-                                    .append("\t\tcache.id_").append(i)
-                                    .append(" = (*env)->GetFieldID(env, clazz, \"")
-                                    .append(fieldInfo.getName()).append("\", \"")
-                                    .append(fieldInfo.getDesc()).append("\");\n");
-                        }
-                    }
+        // Iterations a pinned loop runs before it releases its arrays, so a GC waiting on them is held up briefly
+        headerWriter.append("#define DAEDALUS_PIN_CHUNK 16384\n")
+                .append("#define DAEDALUS_PIN_CHUNK_NESTED 64\n\n");
+        headerWriter.append("#endif\n");
+        headerWriter.close();
+
+        // Classes go to the shard with the least code so far, largest first, and keep their jar order within it.
+        // An incremental build leaves known classes in their previous shard, so an unchanged shard compiles to
+        // the same object
+        List<String> names = new ArrayList<>(classSources.keySet());
+        List<String> bodies = new ArrayList<>(classSources.values());
+        long totalSize = 0;
+        for (String body : bodies) {
+            totalSize += body.length();
+        }
+        int shardSize = Integer.getInteger("shardSize", 4 << 20);
+        int shardCount = (int) Math.max(1, Math.min(bodies.size(), (totalSize + shardSize - 1) / shardSize));
+        if (manifest != null) {
+            shardCount = Math.max(shardCount, manifest.getShardCount());
+            manifest.setShardCount(shardCount);
+        }
+        long[] shardSizes = new long[shardCount];
+        int[] shardOf = new int[bodies.size()];
+        List<Integer> bySize = new ArrayList<>();
+        for (int i = 0; i < bodies.size(); i++) {
+            shardOf[i] = manifest != null ? manifest.getShard(names.get(i)) : -1;
+            if (shardOf[i] >= 0 && shardOf[i] < shardCount) {
+                shardSizes[shardOf[i]] += bodies.get(i).length();
+            } else {
+                bySize.add(i);
+            }
+        }
+        bySize.sort((a, b) -> Integer.compare(bodies.get(b).length(), bodies.get(a).length()));
+        for (int index : bySize) {
+            int shard = 0;
+            for (int i = 1; i < shardCount; i++) {
+                if (shardSizes[i] < shardSizes[shard]) {
+                    shard = i;
                 }
             }
-            StringBuilder cachedMethodStr = new StringBuilder();
-            for (int i = 0; i < methods.size(); i++) {
-                CachedMethodInfo methodInfo = methods.get(i);
-                if (methodInfo.isStatic()) {
-                    if (stringObf) {
-                        cachedMethodStr
-                                .append("\t\tcache.method_").append(i)
-                                .append(" = (*env)->GetStaticMethodID(env, clazz, ")
-                                .append(Util.getStringObf(methodInfo.getName())).append(", ")
-                                .append(Util.getStringObf(methodInfo.getDesc())).append(");\n");
-                    } else {
-                        cachedMethodStr
-                                .append("\t\tcache.method_").append(i)
-                                .append(" = (*env)->GetStaticMethodID(env, clazz, \"")
-                                .append(methodInfo.getName()).append("\", \"")
-                                .append(methodInfo.getDesc()).append("\");\n");
-                    }
-                } else {
-                    if (stringObf) {
-                        cachedMethodStr
-                                .append("\t\tcache.method_").append(i)
-                                .append(" = (*env)->GetMethodID(env, clazz, ")
-                                .append(Util.getStringObf(methodInfo.getName())).append(", ")
-                                .append(Util.getStringObf(methodInfo.getDesc())).append(");\n");
-                    } else {
-                        cachedMethodStr
-                                .append("\t\tcache.method_").append(i)
-                                .append(" = (*env)->GetMethodID(env, clazz, \"")
-                                .append(methodInfo.getName()).append("\", \"")
-                                .append(methodInfo.getDesc()).append("\");\n");
-                    }
+            shardOf[index] = shard;
+            shardSizes[shard] += bodies.get(index).length();
+        }
+        ShardWriter shardWriter = new ShardWriter(cachedClasses.getCache(), directCalls, directFunctions, virtualCalls,
+                virtualTargets, functionDescs, map, eagerBinding, stringObf);
+        List<String> sources = new ArrayList<>();
+        sources.add("daedalus.c");
+        for (int shard = 0; shard < shardCount; shard++) {
+            List<String> shardClasses = new ArrayList<>();
+            for (int i = 0; i < names.size(); i++) {
+                if (shardOf[i] == shard) {
+                    shardClasses.add(names.get(i));
                 }
             }
-            String clazz = "\tjclass clazz = (*env)->FindClass(env, \"" + next.getKey() + "\");\n";
-            if (stringObf) {
-                clazz = "\tjclass clazz = (*env)->FindClass(env, " + Util.getStringObf(next.getKey()) + ");\n";
+            sources.add(shardWriter.write(cppDir, shard, shardClasses, classSources, classIds));
+        }
+        if (manifest != null) {
+            for (int i = 0; i < names.size(); i++) {
+                manifest.setShard(names.get(i), shardOf[i]);
             }
-            mainWriter
-                    .append("static const struct cached_c_").append(String.valueOf(id)).append("* c_").append(String.valueOf(id)).append("_(JNIEnv *env) {\n")
-                    .append("    static struct cached_c_").append(String.valueOf(id)).append(" cache;\n")
-                    .append("    static atomic_flag lock;\n")
-                    .append("    if (cache.initialize) return &cache;\n")
-                    .append("    cache.initialize = JNI_FALSE;\n").append(clazz)
-                    .append("    while (atomic_flag_test_and_set(&lock)) {}\n")
-                    .append("    if (!cache.initialize) {\n")
-                    .append("        cache.clazz = (*env)->NewGlobalRef(env, clazz);\n")
-                    .append("        if ((*env)->ExceptionCheck(env) && !clazz) {\n")
-                    .append("            cache.initialize = JNI_FALSE;\n")
-                    .append("            (*env)->ExceptionDescribe(env);\n")
-                    .append("            (*env)->ExceptionClear(env);\n")
-                    .append("            atomic_flag_clear(&lock);\n")
-                    .append("            return &cache;\n")
-                    .append("        }\n")
-                    .append(cachedFieldStr.toString()).append(cachedMethodStr.toString())
-                    .append("        cache.initialize = JNI_TRUE;\n")
-                    .append("    }\n")
-                    .append("    atomic_flag_clear(&lock);\n")
-                    .append("    return &cache;\n")
-                    .append("}\n\n");
-        }
-
-        // Append instructions as is
-        mainWriter.append(instructions);
+        }
+        Map<String, String> classBindings = shardWriter.getClassBindings();
+        for (String bindName : new TreeSet<>(classBindings.values())) {
+            mainWriter.append("void ").append(bindName).append("(JNIEnv *env, jclass clazz);\n");
+        }
+        mainWriter.append("\n");
 
         // Perform native registrations without any conditionals to enforce professional mode
         for (Map.Entry<String, CachedClassInfo> next : cachedClasses.getCache().entrySet()) {
@@ -1209,10 +2417,14 @@ public class MYObfuscator {
                             .append("\t};\n")
                             .append("\n")
                             .append("\t(*env)->RegisterNatives(env, clazz, table, ").append(String.valueOf(methodCount)).append(");\n")
+                            .append(slotClasses.contains(classNode.name) ? "\tdaedalus_ic_publish(env, &daedalus_class_" + next.getValue().getId() +
+                                    ", clazz);\n" : "")
+                            .append(classBindings.containsKey(classNode.name) ? "\t" + classBindings.get(classNode.name) + "(env, clazz);\n" : "")
                             .append("}\n\n");
                 }
             }
         }
         mainWriter.close();
+        return sources;
     }
 }
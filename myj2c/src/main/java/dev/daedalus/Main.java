@@ -1,6 +1,7 @@
 package dev.daedalus;
 
 import dev.daedalus.env.SetupManager;
+import dev.daedalus.helpers.ZigCache;
 import dev.daedalus.utils.StringUtils;
 import dev.daedalus.xml.Config;
 import org.simpleframework.xml.Serializer;
@@ -48,10 +49,13 @@ public class Main {
             description = "Translator .jar file into .c files and generates output .jar file")
     private static class NativeObfuscatorRunner implements Callable<Integer> {
 
-        @CommandLine.Parameters(index = "0", description = "Jar file to transpile")
+        @CommandLine.Spec
+        private CommandLine.Model.CommandSpec spec;
+
+        @CommandLine.Parameters(index = "0", arity = "0..1", description = "Jar file to transpile")
         private File jarFile;
 
-        @CommandLine.Parameters(index = "1", description = "Output direnctory")
+        @CommandLine.Parameters(index = "1", arity = "0..1", description = "Output direnctory")
         private String outputDirectory;
 
         @CommandLine.Option(names = {"-c", "--config"}, defaultValue = "config.xml",
@@ -73,6 +77,9 @@ public class Main {
         @CommandLine.Option(names = {"-d"}, description = "Delete Jar file after translator")
         private boolean delete;
 
+        @CommandLine.Option(names = {"--prewarm"}, description = "Build the zig runtime of all configured targets into the compile cache and exit")
+        private boolean prewarm;
+
         @Override
         public Integer call() throws Exception {
             MYObfuscator obfuscator = new MYObfuscator();
@@ -106,6 +113,26 @@ public class Main {
                             "\t\t<stringObf>false</stringObf>\n" +
                             "\t\t<!--控制流混淆-->\n" +
                             "\t\t<flowObf>false</flowObf>\n" +
+                            "\t\t<!--类型化局部变量(jint/jlong/jobject代替jvalue)-->\n" +
+                            "\t\t<typedLocals>false</typedLocals>\n" +
+                            "\t\t<!--循环体使用JNI局部引用帧(PushLocalFrame/PopLocalFrame)-->\n" +
+                            "\t\t<localFrames>false</localFrames>\n" +
+                            "\t\t<!--类加载时一次性解析类/方法/字段ID(不会提前初始化引用到的类)-->\n" +
+                            "\t\t<eagerBinding>false</eagerBinding>\n" +
+                            "\t\t<!--在调用方中内联同类的小型static/private/final方法-->\n" +
+                            "\t\t<inline>false</inline>\n" +
+                            "\t\t<!--按输入jar和-l依赖库的类层次去虚拟化单态调用(运行时生成的子类不可见)-->\n" +
+                            "\t\t<devirtualize>false</devirtualize>\n" +
+                            "\t\t<!--在不含其他JNI调用的数组循环中用GetPrimitiveArrayCritical固定数组,直接读写元素(单个方法或类可用@ArrayKernel开启)-->\n" +
+                            "\t\t<pinArrays>false</pinArrays>\n" +
+                            "\t\t<!--保留输出目录下的cpp和build,只重新翻译字节码变化的类、重新编译内容变化的C文件并与缓存的目标文件重新链接(-DverifyIncremental=true 时结果与完整构建不同则构建失败)-->\n" +
+                            "\t\t<incremental>false</incremental>\n" +
+                            "\t\t<!--随机种子: 指定后类ID、native包名、字符串混淆密钥和时间戳都由它生成,同一输入的两次构建结果完全相同-->\n" +
+                            "\t\t<!--<seed>0</seed>-->\n" +
+                            "\t\t<!--zig编译缓存目录(相对于当前目录),保存各目标平台编译好的libc和compiler-rt,在多次构建之间复用-->\n" +
+                            "\t\t<compileCache>zig-cache</compileCache>\n" +
+                            "\t\t<!--编译缓存大小上限(MB),超出时清理最久未使用的目标平台缓存-->\n" +
+                            "\t\t<compileCacheSize>4096</compileCacheSize>\n" +
                             "\t</options>" +
                             "\t<include>\n" +
                             "\t\t<!-- match支持 Ant 风格的路径匹配 ? 匹配一个字符, * 匹配多个字符, ** 匹配多层路径 -->\n" +
@@ -134,6 +161,26 @@ public class Main {
                             "\t\t<stringObf>false</stringObf>\n" +
                             "\t\t<!--Control flow obfuscation-->\n" +
                             "\t\t<flowObf>false</flowObf>\n" +
+                            "\t\t<!--Typed C locals (jint/jlong/jobject instead of jvalue)-->\n" +
+                            "\t\t<typedLocals>false</typedLocals>\n" +
+                            "\t\t<!--JNI local reference frames around loop bodies (PushLocalFrame/PopLocalFrame)-->\n" +
+                            "\t\t<localFrames>false</localFrames>\n" +
+                            "\t\t<!--Resolve class/method/field IDs once when a class loads (referenced classes still initialize on first use)-->\n" +
+                            "\t\t<eagerBinding>false</eagerBinding>\n" +
+                            "\t\t<!--Inline small static/private/final methods of the same class into their callers-->\n" +
+                            "\t\t<inline>false</inline>\n" +
+                            "\t\t<!--Devirtualize monomorphic calls using the class hierarchy of the input jar and -l libraries (classes generated at runtime are not seen)-->\n" +
+                            "\t\t<devirtualize>false</devirtualize>\n" +
+                            "\t\t<!--Pin the arrays of loops that make no other JNI call with GetPrimitiveArrayCritical and access elements directly (@ArrayKernel enables it for single methods or classes)-->\n" +
+                            "\t\t<pinArrays>false</pinArrays>\n" +
+                            "\t\t<!--Keep cpp and build in the output directory, translate again only the classes whose bytecode changed and recompile only the C files whose content changed, relinking them with the cached objects (-DverifyIncremental=true fails the build if the result differs from a clean build)-->\n" +
+                            "\t\t<incremental>false</incremental>\n" +
+                            "\t\t<!--Seed for class ids, the native package name, string obfuscation keys and timestamps; with a seed two builds of the same input are identical-->\n" +
+                            "\t\t<!--<seed>0</seed>-->\n" +
+                            "\t\t<!--Zig compile cache directory (relative to the current directory) keeping the libc and compiler-rt built for each target between builds-->\n" +
+                            "\t\t<compileCache>zig-cache</compileCache>\n" +
+                            "\t\t<!--Size limit of the compile cache in MB; the caches of the least recently used targets are evicted beyond it-->\n" +
+                            "\t\t<compileCacheSize>4096</compileCacheSize>\n" +
                             "\t</options>" +
                             "\t<include>\n" +
                             "\t\t<!-- Match supports Ant style path matching? Match one character, * match multiple characters, * * match multiple paths -->\n" +
@@ -161,6 +208,18 @@ public class Main {
             }
             Serializer serializer = new Persister();
             Config configInfo = serializer.read(Config.class, stringBuilder.toString());
+            if (prewarm) {
+                ZigCache zigCache = ZigCache.fromOptions(configInfo.getOptions());
+                if (zigCache == null) {
+                    throw new CommandLine.ParameterException(spec.commandLine(), "--prewarm needs <compileCache> in " + config);
+                }
+                SetupManager.init();
+                zigCache.prewarm(configInfo.getTargets());
+                return 0;
+            }
+            if (jarFile == null || outputDirectory == null) {
+                throw new CommandLine.ParameterException(spec.commandLine(), "Missing required parameters: <jarFile> <outputDirectory>");
+            }
             Future<Path> future = threadPool.submit(() -> obfuscator.preProcess(jarFile.toPath(), configInfo, useAnnotations));
             if (locale.getLanguage().contains("zh")) {
                 System.out.println("正在检查授权...");
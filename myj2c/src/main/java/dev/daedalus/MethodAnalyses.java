@@ -0,0 +1,85 @@
+package dev.daedalus;
+
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+
+/**
+ * The dataflow analyses of one method. They only read the class and the method and depend on nothing
+ * translated before, so they can run ahead of the ordered translation on any thread.
+ */
+public class MethodAnalyses {
+
+    private TypedSlots typedSlots;
+    private LoopFrames loopFrames;
+    private ExceptionChecks exceptionChecks;
+    private NewObjects newObjects;
+    private ArrayTypes arrayTypes;
+    private ArrayLoops arrayLoops;
+
+    public MethodAnalyses(ClassNode clazz, MethodNode method) {
+        if (MYObfuscator.isTypedLocals()) {
+            try {
+                typedSlots = new TypedSlots(clazz.name, method);
+            } catch (AnalyzerException e) {
+                typedSlots = null;
+            }
+        }
+        if (MYObfuscator.isLocalFrames()) {
+            try {
+                loopFrames = new LoopFrames(clazz.name, method);
+                if (loopFrames.isEmpty()) {
+                    loopFrames = null;
+                }
+            } catch (AnalyzerException e) {
+                loopFrames = null;
+            }
+        }
+        try {
+            exceptionChecks = new ExceptionChecks(clazz, method);
+        } catch (AnalyzerException e) {
+            exceptionChecks = null;
+        }
+        try {
+            newObjects = new NewObjects(clazz, method);
+            if (newObjects.isEmpty()) {
+                newObjects = null;
+            }
+        } catch (AnalyzerException e) {
+            newObjects = null;
+        }
+        if (ArrayTypes.isNeeded(method)) {
+            try {
+                arrayTypes = new ArrayTypes(clazz.name, method);
+            } catch (AnalyzerException e) {
+                arrayTypes = null;
+            }
+        }
+        try {
+            // Loop frames push and pop inside the loop, which a critical region cannot allow
+            boolean pin = MYObfuscator.isPinArrays() || ClassMethodFilter.isArrayKernel(clazz, method);
+            arrayLoops = new ArrayLoops(clazz.name, method, pin && loopFrames == null);
+            if (arrayLoops.isEmpty()) {
+                arrayLoops = null;
+            }
+        } catch (AnalyzerException e) {
+            arrayLoops = null;
+        }
+    }
+
+    public void apply(MethodContext context) {
+        context.typedSlots = typedSlots;
+        context.loopFrames = loopFrames;
+        context.exceptionChecks = exceptionChecks;
+        context.newObjects = newObjects;
+        context.arrayTypes = arrayTypes;
+        context.arrayLoops = arrayLoops;
+        if (newObjects != null) {
+            context.count(context.obfuscator.getFusedAllocations(), newObjects.getCount());
+        }
+        if (arrayLoops != null) {
+            context.count(context.obfuscator.getArrayLoops(), arrayLoops.getLoopCount());
+            context.count(context.obfuscator.getPinnedLoops(), arrayLoops.getPinnedCount());
+        }
+    }
+}
@@ -1,17 +1,20 @@
 package dev.daedalus;
 
+import dev.daedalus.cache.CachedMethodInfo;
 import dev.daedalus.cache.ClassNodeCache;
-import dev.daedalus.cache.FieldNodeCache;
-import dev.daedalus.cache.MethodNodeCache;
 import dev.daedalus.cache.NodeCache;
 import dev.daedalus.utils.LabelPool;
 import dev.daedalus.utils.Snippets;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.TryCatchBlockNode;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class MethodContext {
 
@@ -40,11 +43,21 @@ public class MethodContext {
 
     public int stackPointer;
 
+    public TypedSlots typedSlots;
+    public LoopFrames loopFrames;
+    public ExceptionChecks exceptionChecks;
+    public ArrayLoops arrayLoops;
+    public NewObjects newObjects;
+    public ArrayTypes arrayTypes;
+    public MethodAnalyses analyses;
+
     private final LabelPool labelPool = new LabelPool();
+    private final ClassTranslation translation;
 
     public MethodContext(MYObfuscator obfuscator, MethodNode method, int methodIndex, ClassNode clazz,
-                         int classIndex) {
+                         int classIndex, ClassTranslation translation) {
         this.obfuscator = obfuscator;
+        this.translation = translation;
         this.method = method;
         this.methodIndex = methodIndex;
         this.clazz = clazz;
@@ -57,23 +70,53 @@ public class MethodContext {
         this.stack = new ArrayList<>();
         this.locals = new ArrayList<>();
         this.tryCatches = new HashSet<>();
-        this.catches = new HashMap<>();
+        this.catches = new LinkedHashMap<>();
     }
 
     public NodeCache<String> getCachedStrings() {
-        return obfuscator.getCachedStrings();
+        return translation.getCachedStrings();
     }
 
     public ClassNodeCache getCachedClasses() {
-        return obfuscator.getCachedClasses();
+        return translation.getCachedClasses();
+    }
+
+    public NodeCache<CachedMethodInfo> getCachedDirectCalls() {
+        return translation.getCachedDirectCalls();
+    }
+
+    public NodeCache<String> getCachedVirtualCalls() {
+        return translation.getCachedVirtualCalls();
+    }
+
+    public InterfaceStaticClassProvider getStaticClassProvider() {
+        return translation.getStaticClassProvider();
     }
 
-    public MethodNodeCache getCachedMethods() {
-        return obfuscator.getCachedMethods();
+    public Map<String, String> getClassMethodNameMap() {
+        return translation.getClassMethodNameMap();
     }
 
-    public FieldNodeCache getCachedFields() {
-        return obfuscator.getCachedFields();
+    public Map<String, String> getNoInitClassMap() {
+        return translation.getNoInitClassMap();
+    }
+
+    public void addBootstrapMethod(String name, String desc, Consumer<MethodNode> creator) {
+        translation.addBootstrapMethod(name, desc, creator);
+    }
+
+    /**
+     * Adds to a statistic of the obfuscator, unless this translation only records the ids of the class.
+     */
+    public void count(AtomicInteger statistic, int delta) {
+        translation.count(statistic, delta);
+    }
+
+    /**
+     * The single target of a virtual call, or null. Only asked when devirtualizing.
+     */
+    public String getSingleTarget(String owner, String name, String desc) {
+        return translation.getSingleTarget(obfuscator.getClassHierarchy(), owner, name, desc);
     }
 
     public Snippets getSnippets() {
@@ -83,4 +126,11 @@ public class MethodContext {
     public LabelPool getLabelPool() {
         return labelPool;
     }
+
+    public String getJumpLabel(AbstractInsnNode from, LabelNode target) {
+        if (loopFrames == null) {
+            return labelPool.getName(target.getLabel());
+        }
+        return loopFrames.getJumpLabel(labelPool, from, target);
+    }
 }
@@ -5,6 +5,7 @@ import dev.daedalus.instructions.*;
 import dev.daedalus.special.ClInitSpecialMethodProcessor;
 import dev.daedalus.special.DefaultSpecialMethodProcessor;
 import dev.daedalus.special.SpecialMethodProcessor;
+import dev.daedalus.utils.BuildManifest;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
@@ -96,13 +97,21 @@ public class MethodProcessor {
                 !method.name.equals("<init>");
     }
 
+    /**
+     * The C function of a translated method, named after the method so it keeps its name whatever the rest of the
+     * jar adds or removes.
+     */
+    public static String getFunctionName(String owner, String name, String desc) {
+        return "daedalus_" + BuildManifest.hash("method " + owner + "." + name + desc).substring(0, 16);
+    }
+
     public void processMethod(MethodContext context) {
         MethodNode method = context.method;
 
         SpecialMethodProcessor specialMethodProcessor = getSpecialMethodProcessor(method.name);
 
         if ("<clinit>".equals(method.name) && method.instructions.size() == 0) {
-            context.obfuscator.getNoInitClassMap().put(context.clazz.name, "1");
+            context.getNoInitClassMap().put(context.clazz.name, "1");
             if (specialMethodProcessor != null) {
                 specialMethodProcessor.postProcess(context);
             }
@@ -116,11 +125,14 @@ public class MethodProcessor {
 
         output.append("/* ").append(context.clazz.name).append(".").append(Util.escapeCommentString(method.name)).append(Util.escapeCommentString(method.desc)).append("*/");
         output.append("\n");
+        // Analyses prepared ahead of translation come with the context, the others are run here
+        (context.analyses != null ? context.analyses : new MethodAnalyses(context.clazz, method)).apply(context);
+        context.analyses = null;
         specialMethodProcessor.preProcess(context);
 /*      String methodName = specialMethodProcessor.preProcess(context);
         methodName = "__ngen_" + methodName.replace('/', '_');*/
-        String methodName = Util.escapeCppNameString("daedalus_" + context.methodIndex);
-        context.obfuscator.getClassMethodNameMap().put(context.clazz.name + "." + method.name + method.desc, methodName);
+        String methodName = getFunctionName(context.clazz.name, method.name, method.desc);
+        context.getClassMethodNameMap().put(context.clazz.name + "." + method.name + method.desc, methodName);
         //System.out.println(context.clazz.name + "." + method.name + method.desc + "------------------" + methodName);
         boolean isStatic = Util.getFlag(method.access, Opcodes.ACC_STATIC);
         context.ret = Type.getReturnType(method.desc);
@@ -149,7 +161,7 @@ public class MethodProcessor {
                     outerJavaMethodName,
                     targetDesc, methodName);
             //String m = "/*outerJavaMethodName:" + outerJavaMethodName + " targetDesc:" + targetDesc + " methodName:" + methodName + "*/\n";
-            obfuscator.getStaticClassProvider().addMethod(context.nativeMethod, /*m +*/ methodSource);
+            context.getStaticClassProvider().addMethod(context.nativeMethod, /*m +*/ methodSource);
         } else {
 
             //String m = "/*outerJavaMethodName2:" + context.proxyMethod.name + " targetDesc2:" + method.desc + " methodName2:" + methodName + "*/\n";
@@ -202,23 +214,36 @@ public class MethodProcessor {
         }
 
 
-        if (method.maxStack > 0) {
-            for (int i = 0; i < method.maxStack; i++) {
-                output.append(String.format("\tjvalue cstack%s; memset(&cstack%s, 0, sizeof(jvalue));\n", i, i));
+        int bodyStart = output.length();
+
+        if (context.typedSlots == null) {
+            if (method.maxStack > 0) {
+                for (int i = 0; i < method.maxStack; i++) {
+                    output.append(String.format("\tjvalue cstack%s; memset(&cstack%s, 0, sizeof(jvalue));\n", i, i));
+                }
+                output.append("\n");
+            } else {
+                output.append(String.format("\tjvalue cstack%s; memset(&cstack%s, 0, sizeof(jvalue));\n", 0, 0));
             }
-            output.append("\n");
-        } else {
-            output.append(String.format("\tjvalue cstack%s; memset(&cstack%s, 0, sizeof(jvalue));\n", 0, 0));
-        }
 
-        if (method.maxLocals > 0) {
-            for (int i = 0; i < method.maxLocals; i++) {
-                output.append(String.format("\tjvalue clocal%s; memset(&clocal%s, 0, sizeof(jvalue));\n", i, i));
+            if (method.maxLocals > 0) {
+                for (int i = 0; i < method.maxLocals; i++) {
+                    output.append(String.format("\tjvalue clocal%s; memset(&clocal%s, 0, sizeof(jvalue));\n", i, i));
+                }
+            } else {
+                output.append(String.format("\tjvalue clocal%s; memset(&clocal%s, 0, sizeof(jvalue));\n", 0, 0));
             }
-        } else {
-            output.append(String.format("\tjvalue clocal%s; memset(&clocal%s, 0, sizeof(jvalue));\n", 0, 0));
+            output.append("\n");
+        }
+        if (context.loopFrames != null) {
+            output.append(context.loopFrames.getDeclarations());
+        }
+        if (context.arrayLoops != null) {
+            output.append(context.arrayLoops.getDeclarations(method.maxStack));
+        }
+        if (context.loopFrames == null && MethodHandler.usesStringCache(method)) {
+            output.append("\tstruct daedalus_str_cache daedalus_strs; daedalus_strs.ref = NULL;\n");
         }
-        output.append("\n");
         //if (method.maxStack > 0 || method.maxLocals > 0) {
         output.append("\tjvalue temp0; memset(&temp0, 0, sizeof(jvalue));\n");
         output.append("\n");
@@ -249,17 +274,59 @@ public class MethodProcessor {
             AbstractInsnNode node = method.instructions.get(instruction);
            /* context.output.append("// ").append(Util.escapeCommentString(handlers[node.getType()]
                     .insnToString(context, node))).append("; Stack: ").append(context.stackPointer).append("\n");*/
+            if (context.typedSlots != null) {
+                context.output.append(context.typedSlots.getMarker(node));
+            }
+            if (context.loopFrames != null) {
+                context.output.append(context.loopFrames.getHeaderCode(context.getLabelPool(), node));
+            }
+            if (context.arrayLoops != null) {
+                context.output.append(context.arrayLoops.getHeaderCode(node));
+            }
             handlers[node.getType()].accept(context, node);
+            if (context.loopFrames != null) {
+                context.output.append(context.loopFrames.getFallThroughCode(node));
+            }
             context.stackPointer = handlers[node.getType()].getNewStackPointer(node, context.stackPointer);
             // context.output.append("// New stack: ").append(context.stackPointer).append("\n");
             //output.append("\nprintf(\"run : " + context.stackPointer + "\\n\");\n");
         }
         origin.append(context.output.toString().replace("\n", "\n    "));
+        if (context.arrayLoops != null && context.arrayLoops.getPinnedCount() > 0) {
+            // The pinned copies only come in through their gotos, so they go after the body
+            ExceptionChecks exceptionChecks = context.exceptionChecks;
+            Set<TryCatchBlockNode> tryCatches = context.tryCatches;
+            context.exceptionChecks = null;
+            for (int kernel = 0; kernel < context.arrayLoops.getPinnedCount(); kernel++) {
+                context.output = new StringBuilder();
+                context.tryCatches = context.arrayLoops.getTryCatches(kernel);
+                context.stackPointer = 0;
+                List<AbstractInsnNode> body = context.arrayLoops.beginKernel(kernel);
+                for (AbstractInsnNode node : body) {
+                    handlers[node.getType()].accept(context, node);
+                    context.stackPointer = handlers[node.getType()].getNewStackPointer(node, context.stackPointer);
+                }
+                if (context.typedSlots != null) {
+                    // a kernel is entered from its loop header and reads the slots live there
+                    origin.append(context.typedSlots.getMarker(body.get(0)));
+                }
+                origin.append(context.arrayLoops.endKernel(context.getLabelPool(), context.output.toString()).replace("\n", "\n    "));
+            }
+            context.exceptionChecks = exceptionChecks;
+            context.tryCatches = tryCatches;
+        }
+        if (context.typedSlots != null) {
+            origin.append(context.typedSlots.getGlueMarker());
+        }
         context.output = origin;
+        if (context.exceptionChecks != null) {
+            context.count(context.obfuscator.getElidedChecks(), context.exceptionChecks.getElided());
+        }
 
         boolean hasAddedNewBlocks = true;
 
         Set<CatchesBlock> proceedBlocks = new HashSet<>();
+        Set<CatchesBlock> dispatchedBlocks = new HashSet<>(context.catches.keySet());
 
         while (hasAddedNewBlocks) {
             hasAddedNewBlocks = false;
@@ -268,6 +335,10 @@ public class MethodProcessor {
                     continue;
                 }
                 proceedBlocks.add(catchBlock);
+                if (dispatchedBlocks.contains(catchBlock)) {
+                    output.append("\t").append(context.catches.get(catchBlock)).append("_DISPATCH: ")
+                            .append(context.getSnippets().getSnippet("TRYCATCH_DISPATCH", Util.createMap()));
+                }
                 output.append("\t").append(context.catches.get(catchBlock)).append(": ");
                 CatchesBlock.CatchBlock currentCatchBlock = catchBlock.getCatches().get(0);
                 if (currentCatchBlock.getClazz() == null) {
@@ -345,6 +416,10 @@ public class MethodProcessor {
             }
         }
 
+        if (context.loopFrames != null) {
+            output.append(context.loopFrames.getEdgeBlocks());
+        }
+
         switch (context.ret.getSort()) {
             case 0:
                 output.append("return;\n");
@@ -383,6 +458,12 @@ public class MethodProcessor {
                 break;
         }
 
+        if (context.typedSlots != null) {
+            String body = context.typedSlots.lower(output.substring(bodyStart));
+            output.setLength(bodyStart);
+            output.append(body);
+        }
+
         output.append("}\n\n");
 
         method.localVariables.clear();
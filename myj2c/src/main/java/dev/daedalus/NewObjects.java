@@ -0,0 +1,156 @@
+package dev.daedalus;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SourceInterpreter;
+import org.objectweb.asm.tree.analysis.SourceValue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@code NEW C; DUP; <args>; INVOKESPECIAL C.<init>} sequences of a method that are emitted as one NewObject call.
+ * The NEW emits nothing and the constructor call allocates, so the class gets initialized after the arguments
+ * instead of before them. That is only allowed when nothing in between can tell: either the class is already
+ * initialized (the own class, or one of the classes the VM initializes at startup), or the arguments are
+ * straight-line code that can neither throw, run Java code nor initialize another class.
+ */
+public class NewObjects {
+
+    private final Set<AbstractInsnNode> deferred = new HashSet<>();
+    private final Set<AbstractInsnNode> fused = new HashSet<>();
+
+    public NewObjects(ClassNode clazz, MethodNode method) throws AnalyzerException {
+        InsnList instructions = method.instructions;
+        Frame<SourceValue>[] frames = new Analyzer<>(new SourceInterpreter()).analyze(clazz.name, method);
+        Set<LabelNode> jumpTargets = new HashSet<>();
+        for (AbstractInsnNode insn : instructions) {
+            if (insn instanceof JumpInsnNode) {
+                jumpTargets.add(((JumpInsnNode) insn).label);
+            } else if (insn instanceof TableSwitchInsnNode) {
+                jumpTargets.addAll(((TableSwitchInsnNode) insn).labels);
+                jumpTargets.add(((TableSwitchInsnNode) insn).dflt);
+            } else if (insn instanceof LookupSwitchInsnNode) {
+                jumpTargets.addAll(((LookupSwitchInsnNode) insn).labels);
+                jumpTargets.add(((LookupSwitchInsnNode) insn).dflt);
+            }
+        }
+        for (TryCatchBlockNode tryCatch : method.tryCatchBlocks) {
+            jumpTargets.add(tryCatch.handler);
+        }
+
+        Map<AbstractInsnNode, AbstractInsnNode> constructors = new HashMap<>();
+        Set<AbstractInsnNode> shared = new HashSet<>();
+        for (int i = 0; i < instructions.size(); i++) {
+            AbstractInsnNode insn = instructions.get(i);
+            if (insn.getOpcode() != Opcodes.INVOKESPECIAL || !((MethodInsnNode) insn).name.equals("<init>") || frames[i] == null) {
+                continue;
+            }
+            MethodInsnNode init = (MethodInsnNode) insn;
+            Frame<SourceValue> frame = frames[i];
+            int receiver = frame.getStackSize() - 1 - Type.getArgumentTypes(init.desc).length;
+            if (receiver < 1) {
+                continue;
+            }
+            // The receiver is the copy the DUP pushed; the copy under it is still the one the NEW right before it pushed
+            AbstractInsnNode dup = getSource(frame.getStack(receiver));
+            AbstractInsnNode allocation = getSource(frame.getStack(receiver - 1));
+            if (dup == null || dup.getOpcode() != Opcodes.DUP || allocation == null || allocation.getOpcode() != Opcodes.NEW ||
+                    !((TypeInsnNode) allocation).desc.equals(init.owner) || nextReal(allocation) != dup) {
+                continue;
+            }
+            if (constructors.put(allocation, init) != null) {
+                shared.add(allocation);
+            }
+        }
+
+        for (Map.Entry<AbstractInsnNode, AbstractInsnNode> constructor : constructors.entrySet()) {
+            AbstractInsnNode allocation = constructor.getKey();
+            if (shared.contains(allocation)) {
+                continue;
+            }
+            String owner = ((TypeInsnNode) allocation).desc;
+            if (owner.equals(clazz.name) || ShardWriter.VM_CLASSES.contains(owner) ||
+                    isQuiet(nextReal(allocation), constructor.getValue(), jumpTargets)) {
+                deferred.add(allocation);
+                fused.add(constructor.getValue());
+            }
+        }
+    }
+
+    private static AbstractInsnNode getSource(SourceValue value) {
+        return value.insns.size() == 1 ? value.insns.iterator().next() : null;
+    }
+
+    private static AbstractInsnNode nextReal(AbstractInsnNode insn) {
+        AbstractInsnNode next = insn.getNext();
+        while (next != null && next.getOpcode() < 0) {
+            next = next.getNext();
+        }
+        return next;
+    }
+
+    // Straight-line argument code that cannot throw, call out or initialize a class
+    private static boolean isQuiet(AbstractInsnNode from, AbstractInsnNode to, Set<LabelNode> jumpTargets) {
+        for (AbstractInsnNode insn = from.getNext(); insn != to; insn = insn.getNext()) {
+            if (insn instanceof LabelNode && jumpTargets.contains(insn)) {
+                return false;
+            }
+            int opcode = insn.getOpcode();
+            if (opcode < 0) {
+                continue;
+            }
+            switch (opcode) {
+                case Opcodes.IDIV:
+                case Opcodes.LDIV:
+                case Opcodes.IREM:
+                case Opcodes.LREM:
+                    return false;
+                case Opcodes.LDC: {
+                    Object cst = ((LdcInsnNode) insn).cst;
+                    if (!(cst instanceof Number) && !(cst instanceof String)) {
+                        return false;
+                    }
+                    continue;
+                }
+                case Opcodes.IINC:
+                    continue;
+            }
+            if (!(opcode >= Opcodes.ACONST_NULL && opcode <= Opcodes.SIPUSH ||
+                    opcode >= Opcodes.ILOAD && opcode <= Opcodes.ALOAD ||
+                    opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE ||
+                    opcode >= Opcodes.POP && opcode <= Opcodes.DCMPG)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return fused.isEmpty();
+    }
+
+    public int getCount() {
+        return fused.size();
+    }
+
+    /**
+     * Whether the NEW leaves its allocation to the constructor call.
+     */
+    public boolean isDeferred(AbstractInsnNode node) {
+        return deferred.contains(node);
+    }
+
+    /**
+     * Whether the constructor call allocates the object of its deferred NEW.
+     */
+    public boolean isFused(AbstractInsnNode node) {
+        return fused.contains(node);
+    }
+}
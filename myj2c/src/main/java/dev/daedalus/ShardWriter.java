@@ -0,0 +1,372 @@
+package dev.daedalus;
+
+import dev.daedalus.cache.CachedClassInfo;
+import dev.daedalus.cache.CachedFieldInfo;
+import dev.daedalus.cache.CachedMethodInfo;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes a shard of the translated classes with a header of its own. The code of a class refers to the strings, call
+ * targets and cached members by the symbolic ids of its requests, which stand for their ids across the jar; in the
+ * shard they are numbered again in the order the shard uses them, and its header declares only those. A shard then only changes with its own classes and the
+ * methods they call, and the cached classes get an accessor per shard.
+ */
+class ShardWriter {
+
+    private static final Pattern REFERENCE = Pattern.compile(
+            "\\(cstrings\\[(\\d+)]\\)|\\bdirect_(\\d+)\\b|\\bvirtual_(\\d+)\\b|\\bc_(\\d+)_\\(env\\)->(clazz|id_(\\d+)|method_(\\d+))");
+
+    // Initialized by the VM before any class of the application, so loading them early changes nothing
+    static final Set<String> VM_CLASSES = new HashSet<>(Arrays.asList(
+            "java/lang/Object", "java/lang/String", "java/lang/Class", "java/lang/System", "java/lang/Thread",
+            "java/lang/ThreadGroup", "java/lang/Throwable", "java/lang/NullPointerException",
+            "java/lang/ArithmeticException", "java/lang/ClassCastException", "java/lang/ArrayStoreException",
+            "java/lang/OutOfMemoryError", "java/lang/StackOverflowError"));
+
+    private final Map<Integer, String> classNames = new HashMap<>();
+    private final Map<String, CachedClassInfo> classes;
+    private final List<CachedMethodInfo> directCalls;
+    private final List<String> directFunctions;
+    private final List<String> virtualCalls;
+    private final List<List<String[]>> virtualTargets;
+    private final Map<String, String> functionDescs;
+    private final Map<String, ClassNode> map;
+    private final boolean eagerBinding;
+    private final boolean stringObf;
+    private final Map<String, String> classBindings = new HashMap<>();
+
+    /**
+     * The lists are indexed by the ids of the shared call caches. A virtual call is the "name(desc)" it dispatches, with
+     * its targets as pairs of the weak class slot and the function; functionDescs gives the descriptor of every
+     * translated function, and map the classes of the jar.
+     */
+    ShardWriter(Map<String, CachedClassInfo> classes, List<CachedMethodInfo> directCalls,
+                List<String> directFunctions, List<String> virtualCalls, List<List<String[]>> virtualTargets,
+                Map<String, String> functionDescs, Map<String, ClassNode> map, boolean eagerBinding, boolean stringObf) {
+        this.classes = classes;
+        this.directCalls = directCalls;
+        this.directFunctions = directFunctions;
+        this.virtualCalls = virtualCalls;
+        this.virtualTargets = virtualTargets;
+        this.functionDescs = functionDescs;
+        this.map = map;
+        this.eagerBinding = eagerBinding;
+        this.stringObf = stringObf;
+        for (Map.Entry<String, CachedClassInfo> entry : classes.entrySet()) {
+            classNames.put(entry.getValue().getId(), entry.getKey());
+        }
+    }
+
+    /**
+     * The bind function of every written class that has eager bindings, called from its registration.
+     */
+    Map<String, String> getClassBindings() {
+        return classBindings;
+    }
+
+    static String getPrototype(String function, String desc) {
+        StringBuilder prototype = new StringBuilder(MethodProcessor.CPP_TYPES[Type.getReturnType(desc).getSort()])
+                .append(" JNICALL ").append(function).append("(JNIEnv *, jobject");
+        for (Type arg : Type.getArgumentTypes(desc)) {
+            prototype.append(", ").append(MethodProcessor.CPP_TYPES[arg.getSort()]);
+        }
+        return prototype.append(")").toString();
+    }
+
+    private String getLiteral(String value) {
+        return stringObf ? Util.getStringObf(value) : "\"" + value + "\"";
+    }
+
+    /**
+     * Writes daedalus_shard_N.c with the classes, in their order, and daedalus_shard_N.h, and returns the source. The
+     * ids of a class are its resolved requests, indexed by the symbolic ids in its code.
+     */
+    String write(Path cppDir, int shard, List<String> shardClasses, Map<String, String> classSources,
+                 Map<String, int[]> classIds) throws IOException {
+        Map<Integer, Integer> usedStrings = new LinkedHashMap<>();
+        Map<Integer, Integer> usedDirectCalls = new LinkedHashMap<>();
+        Map<Integer, Integer> usedVirtualCalls = new LinkedHashMap<>();
+        Map<Integer, UsedClass> usedClasses = new LinkedHashMap<>();
+        Map<String, Integer> refs = new HashMap<>();
+        List<String> bindCalls = new ArrayList<>();
+        StringBuilder code = new StringBuilder();
+        StringBuilder bindFunctions = new StringBuilder();
+
+        for (String className : shardClasses) {
+            Matcher matcher = REFERENCE.matcher(classSources.get(className));
+            int[] ids = classIds.get(className);
+            StringBuffer local = new StringBuffer();
+            Set<Integer> classRefs = new TreeSet<>();
+            while (matcher.find()) {
+                String replacement;
+                if (matcher.group(1) != null) {
+                    replacement = "(cstrings[" + number(usedStrings, ids[Integer.parseInt(matcher.group(1))]) + "])";
+                } else if (matcher.group(2) != null) {
+                    replacement = "direct_" + number(usedDirectCalls, ids[Integer.parseInt(matcher.group(2))]);
+                } else if (matcher.group(3) != null) {
+                    replacement = "virtual_" + number(usedVirtualCalls, ids[Integer.parseInt(matcher.group(3))]);
+                } else {
+                    int id = ids[Integer.parseInt(matcher.group(4))];
+                    int field = matcher.group(6) != null ? ids[Integer.parseInt(matcher.group(6))] : -1;
+                    int method = matcher.group(7) != null ? ids[Integer.parseInt(matcher.group(7))] : -1;
+                    UsedClass used = usedClasses.computeIfAbsent(id, key -> new UsedClass());
+                    String member = field >= 0 ? "id_" + number(used.fields, field)
+                            : method >= 0 ? "method_" + number(used.methods, method)
+                            : "clazz";
+                    replacement = "c_" + id + "_(env)->" + member;
+                    String owner = classNames.get(id);
+                    if (eagerBinding && owner != null && isBindable(className, owner, field, method)) {
+                        int ref = bind(refs, bindCalls, id, owner, member, field, method);
+                        classRefs.add(refs.get(id + "->clazz"));
+                        classRefs.add(ref);
+                        String type = member.equals("clazz") ? "jclass" : member.startsWith("id_") ? "jfieldID" : "jmethodID";
+                        replacement = "((" + type + ") daedalus_ref(" + ref + "))";
+                    }
+                }
+                matcher.appendReplacement(local, Matcher.quoteReplacement(replacement));
+            }
+            matcher.appendTail(local);
+            code.append(local);
+
+            CachedClassInfo classInfo = classes.get(className);
+            if (!classRefs.isEmpty() && classInfo != null) {
+                // Binds what the code of the class uses; owners are numbered first, so they are bound first
+                String bindName = "daedalus_bind_" + classInfo.getId();
+                bindFunctions.append("void ").append(bindName).append("(JNIEnv *env, jclass clazz) {\n");
+                for (int ref : classRefs) {
+                    bindFunctions.append(bindCalls.get(ref));
+                }
+                bindFunctions.append("}\n\n");
+                classBindings.put(className, bindName);
+            }
+        }
+
+        String headerName = "daedalus_shard_" + shard + ".h";
+        String source = "daedalus_shard_" + shard + ".c";
+        StringBuilder definitions = new StringBuilder();
+        try (BufferedWriter header = Files.newBufferedWriter(cppDir.resolve(headerName).toAbsolutePath())) {
+            header.append("#ifndef DAEDALUS_SHARD_").append(String.valueOf(shard)).append("_H\n")
+                    .append("#define DAEDALUS_SHARD_").append(String.valueOf(shard)).append("_H\n\n");
+            if (!usedStrings.isEmpty()) {
+                header.append("static _Atomic(jstring) cstrings[").append(String.valueOf(usedStrings.size())).append("];\n\n");
+            }
+            if (!bindCalls.isEmpty()) {
+                // A slot a class reads is set while the class initializes, before any of its code can run, so a
+                // relaxed load, a plain load on every target, always sees it
+                header.append("static _Atomic(void *) daedalus_refs[").append(String.valueOf(bindCalls.size())).append("];\n\n")
+                        .append("static inline void *daedalus_ref(int index) {\n" +
+                                "    return atomic_load_explicit(&daedalus_refs[index], memory_order_relaxed);\n" +
+                                "}\n\n");
+            }
+
+            for (Map.Entry<Integer, UsedClass> entry : usedClasses.entrySet()) {
+                writeClass(header, definitions, entry.getKey(), entry.getValue());
+            }
+
+            // Prototypes of the translated functions the call targets refer to, in this shard or another
+            Map<String, String> prototypes = new TreeMap<>();
+            Set<String> slots = new TreeSet<>();
+            for (int id : usedDirectCalls.keySet()) {
+                String function = directFunctions.get(id);
+                if (function != null) {
+                    prototypes.put(function, getPrototype(function, functionDescs.get(function)));
+                }
+            }
+            for (int id : usedVirtualCalls.keySet()) {
+                for (String[] target : virtualTargets.get(id)) {
+                    prototypes.put(target[1], getPrototype(target[1], functionDescs.get(target[1])));
+                    slots.add(target[0]);
+                }
+            }
+            for (String prototype : prototypes.values()) {
+                header.append(prototype).append(";\n");
+            }
+            header.append("\n");
+            for (String slot : slots) {
+                header.append("extern _Atomic(jweak) ").append(slot).append(";\n");
+            }
+            header.append("\n");
+
+            for (Map.Entry<Integer, Integer> entry : usedDirectCalls.entrySet()) {
+                CachedMethodInfo methodInfo = directCalls.get(entry.getKey());
+                String function = directFunctions.get(entry.getKey());
+                String returnType = MethodProcessor.CPP_TYPES[Type.getReturnType(methodInfo.getDesc()).getSort()];
+                StringBuilder params = new StringBuilder("JNIEnv *, jobject");
+                for (Type arg : Type.getArgumentTypes(methodInfo.getDesc())) {
+                    params.append(", ").append(MethodProcessor.CPP_TYPES[arg.getSort()]);
+                }
+                header.append("static ").append(returnType).append(" (JNICALL *const direct_").append(String.valueOf(entry.getValue()))
+                        .append(")(").append(params).append(") = ").append(function != null ? function : "NULL").append(";\n");
+            }
+            header.append("\n");
+
+            for (Map.Entry<Integer, Integer> entry : usedVirtualCalls.entrySet()) {
+                String pointer = "virtual_" + entry.getValue();
+                List<String[]> targets = virtualTargets.get(entry.getKey());
+                if (targets.isEmpty()) {
+                    header.append("static void *(*const ").append(pointer).append(")(JNIEnv *, jclass) = NULL;\n");
+                    continue;
+                }
+                String method = virtualCalls.get(entry.getKey());
+                String nameStr = getLiteral(method.substring(0, method.indexOf('(')));
+                String descStr = getLiteral(method.substring(method.indexOf('(')));
+                header.append("static void *").append(pointer).append("_lookup(JNIEnv *env, jclass clazz);\n")
+                        .append("static void *(*const ").append(pointer).append(")(JNIEnv *, jclass) = ").append(pointer).append("_lookup;\n");
+                definitions.append("static void *").append(pointer).append("_lookup(JNIEnv *env, jclass clazz) {\n")
+                        .append("    jmethodID id = (*env)->GetMethodID(env, clazz, ").append(nameStr).append(", ").append(descStr).append(");\n")
+                        .append("    if (!id) {\n")
+                        .append("        (*env)->ExceptionClear(env);\n")
+                        .append("        return NULL;\n")
+                        .append("    }\n")
+                        .append("    void *target = NULL;\n");
+                for (String[] target : targets) {
+                    definitions.append("    if (!target) target = daedalus_ic_match(env, clazz, &").append(target[0])
+                            .append(", id, ").append(nameStr).append(", ").append(descStr).append(") ? (void *) &").append(target[1]).append(" : NULL;\n");
+                }
+                definitions.append("    return target;\n")
+                        .append("}\n\n");
+            }
+            header.append("\n#endif\n");
+        }
+
+        try (BufferedWriter writer = Files.newBufferedWriter(cppDir.resolve(source).toAbsolutePath())) {
+            writer.append("#include \"daedalus.h\"\n")
+                    .append("#include \"").append(headerName).append("\"\n")
+                    .append(code)
+                    .append("\n")
+                    .append(definitions)
+                    .append(bindFunctions);
+        }
+        return source;
+    }
+
+    private static int number(Map<Integer, Integer> used, int id) {
+        return used.computeIfAbsent(id, key -> used.size());
+    }
+
+    // The shard's slot for a cached member, with the slot of its class before it
+    private int bind(Map<String, Integer> refs, List<String> bindCalls, int id, String owner, String member, int field, int method) {
+        String classKey = id + "->clazz";
+        if (!refs.containsKey(classKey)) {
+            refs.put(classKey, bindCalls.size());
+            bindCalls.add("\tif (!daedalus_bind_class(env, daedalus_refs, " + bindCalls.size() + ", clazz, " + getLiteral(owner.replace('/', '.')) + ")) return;\n");
+        }
+        String key = id + "->" + member;
+        Integer ref = refs.get(key);
+        if (ref != null) {
+            return ref;
+        }
+        ref = bindCalls.size();
+        refs.put(key, ref);
+        CachedClassInfo classInfo = classes.get(owner);
+        if (field >= 0) {
+            CachedFieldInfo fieldInfo = classInfo.getCachedFields().get(field);
+            bindCalls.add("\tif (!daedalus_bind_field(env, daedalus_refs, " + ref + ", " + refs.get(classKey) + ", "
+                    + getLiteral(fieldInfo.getName()) + ", " + getLiteral(fieldInfo.getDesc()) + ", "
+                    + (fieldInfo.isStatic() ? "JNI_TRUE" : "JNI_FALSE") + ")) return;\n");
+        } else {
+            CachedMethodInfo methodInfo = classInfo.getCachedMethods().get(method);
+            bindCalls.add("\tif (!daedalus_bind_method(env, daedalus_refs, " + ref + ", " + refs.get(classKey) + ", "
+                    + getLiteral(methodInfo.getName()) + ", " + getLiteral(methodInfo.getDesc()) + ", "
+                    + (methodInfo.isStatic() ? "JNI_TRUE" : "JNI_FALSE") + ")) return;\n");
+        }
+        return ref;
+    }
+
+    // Whether the class can bind the reference while it initializes. Loading a class of the jar or of the VM does not
+    // initialize it, but resolving a member does, so members are only bound for the class and its superclasses,
+    // which are initialized before it, and only when the jar declares them, so binding cannot fail
+    private boolean isBindable(String className, String owner, int field, int method) {
+        if (field < 0 && method < 0) {
+            return owner.equals(className) || map.containsKey(owner) || VM_CLASSES.contains(owner);
+        }
+        CachedClassInfo classInfo = classes.get(owner);
+        String name;
+        String desc;
+        if (field >= 0) {
+            CachedFieldInfo fieldInfo = classInfo.getCachedFields().get(field);
+            name = fieldInfo.getName();
+            desc = fieldInfo.getDesc();
+        } else {
+            CachedMethodInfo methodInfo = classInfo.getCachedMethods().get(method);
+            name = methodInfo.getName();
+            desc = methodInfo.getDesc();
+        }
+        boolean initialized = false;
+        for (ClassNode classNode = map.get(className); classNode != null; classNode = map.get(classNode.superName)) {
+            initialized |= classNode.name.equals(owner);
+            if (!initialized) {
+                continue;
+            }
+            for (FieldNode fieldNode : classNode.fields) {
+                if (field >= 0 && fieldNode.name.equals(name) && fieldNode.desc.equals(desc)) {
+                    return true;
+                }
+            }
+            for (MethodNode methodNode : classNode.methods) {
+                if (method >= 0 && methodNode.name.equals(name) && methodNode.desc.equals(desc)) {
+                    return true;
+                }
+            }
+            if (name.equals("<init>")) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // The struct of a cached class with the members the shard uses, and its accessor
+    private void writeClass(BufferedWriter header, StringBuilder definitions, int id, UsedClass used) throws IOException {
+        String className = classNames.get(id);
+        CachedClassInfo classInfo = classes.get(className);
+        header.append("struct cached_c_").append(String.valueOf(id)).append(" {\n")
+                .append("\tjclass clazz;\n");
+        StringBuilder resolve = new StringBuilder();
+        for (Map.Entry<Integer, Integer> field : used.fields.entrySet()) {
+            CachedFieldInfo fieldInfo = classInfo.getCachedFields().get(field.getKey());
+            header.append("\tjfieldID id_").append(String.valueOf(field.getValue())).append(";\n");
+            resolve.append("    fresh->id_").append(field.getValue())
+                    .append(fieldInfo.isStatic() ? " = (*env)->GetStaticFieldID(env, clazz, " : " = (*env)->GetFieldID(env, clazz, ")
+                    .append(getLiteral(fieldInfo.getName())).append(", ")
+                    .append(getLiteral(fieldInfo.getDesc())).append(");\n");
+        }
+        for (Map.Entry<Integer, Integer> method : used.methods.entrySet()) {
+            CachedMethodInfo methodInfo = classInfo.getCachedMethods().get(method.getKey());
+            header.append("    jmethodID method_").append(String.valueOf(method.getValue())).append(";\n");
+            resolve.append("    fresh->method_").append(method.getValue())
+                    .append(methodInfo.isStatic() ? " = (*env)->GetStaticMethodID(env, clazz, " : " = (*env)->GetMethodID(env, clazz, ")
+                    .append(getLiteral(methodInfo.getName())).append(", ")
+                    .append(getLiteral(methodInfo.getDesc())).append(");\n");
+        }
+        header.append("\tjboolean initialize;\n")
+                .append("};\n\n")
+                .append("static const struct cached_c_").append(String.valueOf(id)).append("* c_").append(String.valueOf(id)).append("_(JNIEnv *env);\n\n");
+        definitions.append(MYObfuscator.getClassAccessor(id, "\tjclass clazz = (*env)->FindClass(env, " + getLiteral(className) + ");\n", resolve.toString()));
+    }
+
+    // The members of a cached class the shard uses, by their index in the shared cache
+    private static class UsedClass {
+        final Map<Integer, Integer> fields = new LinkedHashMap<>();
+        final Map<Integer, Integer> methods = new LinkedHashMap<>();
+    }
+}
@@ -0,0 +1,233 @@
+package dev.daedalus;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Typed C variables for the operand stack and locals of a method.
+ * Every {@code cstackN.x}/{@code clocalN.x} access is lowered to its own {@code cstackN_x} variable,
+ * whole-slot copies (DUP/SWAP) are resolved through the analyzer frames.
+ * A variable is only zero-initialized when some instruction can read it before it is definitely assigned:
+ * the code of each instruction is marked, and a read at the start of an instruction is covered when its
+ * frame holds a value of the same type in that slot (the verifier merges anything else to uninitialized).
+ */
+public class TypedSlots {
+
+    private static final Pattern ADDRESS_ACCESS = Pattern.compile("&(cstack|clocal)(\\d+)\\.([zbcs])\\b");
+    private static final Pattern ACCESS = Pattern.compile("\\b(cstack|clocal)(\\d+)\\.([zbcsifjdl])\\b");
+    private static final Pattern VARIABLE = Pattern.compile("\\b(?:cstack|clocal)\\d+_([zbcsifjdl])\\b");
+    private static final Pattern COPY = Pattern.compile("(?:jvalue )?(cstack\\d+|tmp) = (cstack\\d+|tmp);");
+    private static final Pattern SEGMENT = Pattern.compile("/\\*@insn (-?\\d+)\\*/|" + VARIABLE.pattern());
+    private static final String GLUE = "/*@insn -1*/";
+
+    private static final Map<Character, String> C_TYPES = new HashMap<>();
+
+    static {
+        C_TYPES.put('z', "jboolean");
+        C_TYPES.put('b', "jbyte");
+        C_TYPES.put('c', "jchar");
+        C_TYPES.put('s', "jshort");
+        C_TYPES.put('i', "jint");
+        C_TYPES.put('f', "jfloat");
+        C_TYPES.put('j', "jlong");
+        C_TYPES.put('d', "jdouble");
+        C_TYPES.put('l', "jobject");
+    }
+
+    private final MethodNode method;
+    private final Frame<BasicValue>[] frames;
+
+    public TypedSlots(String owner, MethodNode method) throws AnalyzerException {
+        this.method = method;
+        this.frames = new Analyzer<>(new BasicInterpreter()).analyze(owner, method);
+    }
+
+    /**
+     * Stack slot types before the instruction, one char per slot, '-' for the upper half of long/double.
+     * Returns null for unreachable instructions.
+     */
+    public char[] getStackTypes(AbstractInsnNode node) {
+        Frame<BasicValue> frame = frames[method.instructions.indexOf(node)];
+        if (frame == null) {
+            return null;
+        }
+        StringBuilder types = new StringBuilder();
+        for (int i = 0; i < frame.getStackSize(); i++) {
+            BasicValue value = frame.getStack(i);
+            types.append(typeOf(value));
+            if (value.getSize() == 2) {
+                types.append('-');
+            }
+        }
+        return types.toString().toCharArray();
+    }
+
+    private static char typeOf(BasicValue value) {
+        if (value == BasicValue.INT_VALUE) {
+            return 'i';
+        } else if (value == BasicValue.FLOAT_VALUE) {
+            return 'f';
+        } else if (value == BasicValue.LONG_VALUE) {
+            return 'j';
+        } else if (value == BasicValue.DOUBLE_VALUE) {
+            return 'd';
+        } else if (value == BasicValue.UNINITIALIZED_VALUE) {
+            return '-';
+        }
+        return 'l';
+    }
+
+    /**
+     * Rewrites the untyped {@code cstackA = cstackB;} copies of a DUP/SWAP snippet into typed copies.
+     */
+    public String lowerCopies(String code, AbstractInsnNode node) {
+        char[] stackTypes = getStackTypes(node);
+        if (stackTypes == null) {
+            return "";
+        }
+        Map<String, Character> types = new HashMap<>();
+        for (int i = 0; i < stackTypes.length; i++) {
+            types.put("cstack" + i, stackTypes[i]);
+        }
+        StringBuilder result = new StringBuilder();
+        Matcher matcher = COPY.matcher(code);
+        while (matcher.find()) {
+            String target = matcher.group(1);
+            String source = matcher.group(2);
+            Character type = types.get(source);
+            types.put(target, type);
+            if (type == null || type == '-') {
+                continue;
+            }
+            result.append(target.equals("tmp") ? "temp0" : target).append('.').append(type).append(" = ")
+                    .append(source.equals("tmp") ? "temp0" : source).append('.').append(type).append("; ");
+        }
+        return result.toString();
+    }
+
+    /**
+     * Marks the start of the code of an instruction in the method body.
+     */
+    public String getMarker(AbstractInsnNode node) {
+        return "/*@insn " + method.instructions.indexOf(node) + "*/";
+    }
+
+    /**
+     * Marks the start of code that belongs to no instruction (catch dispatch, loop edges, kernels, the exit).
+     */
+    public String getGlueMarker() {
+        return GLUE;
+    }
+
+    /**
+     * Lowers all slot accesses of the method body, removes the markers and prepends the typed declarations.
+     * Sub-int accesses share the jint variable unless their address is taken.
+     */
+    public String lower(String body) {
+        Set<String> addressed = new HashSet<>();
+        Matcher address = ADDRESS_ACCESS.matcher(body);
+        while (address.find()) {
+            addressed.add(address.group(1) + address.group(2) + "_" + address.group(3));
+        }
+        body = ADDRESS_ACCESS.matcher(body).replaceAll("&$1$2_$3");
+        Matcher matcher = ACCESS.matcher(body);
+        StringBuffer lowered = new StringBuffer();
+        while (matcher.find()) {
+            char type = matcher.group(3).charAt(0);
+            // a sub-int read after a JNI call filled the variable through its address has to read that variable
+            if ("zbcs".indexOf(type) >= 0 && !addressed.contains(matcher.group(1) + matcher.group(2) + "_" + type)) {
+                type = 'i';
+            }
+            matcher.appendReplacement(lowered, matcher.group(1) + matcher.group(2) + "_" + type);
+        }
+        matcher.appendTail(lowered);
+        body = lowered.toString();
+
+        Map<String, Boolean> variables = new TreeMap<>(TypedSlots::compareVariables);
+        Matcher segment = SEGMENT.matcher(body);
+        int index = -1;
+        Set<String> seen = new HashSet<>();
+        while (segment.find()) {
+            if (segment.group(1) != null) {
+                index = Integer.parseInt(segment.group(1));
+                seen.clear();
+                continue;
+            }
+            String name = segment.group();
+            // only the first access of an instruction can observe the value it starts with
+            boolean uninitialized = seen.add(name) && isReadAt(body, segment.start(), segment.end()) &&
+                    !isAssigned(index, name);
+            variables.merge(name, uninitialized, Boolean::logicalOr);
+        }
+        body = body.replaceAll("/\\*@insn -?\\d+\\*/", "");
+
+        StringBuilder declarations = new StringBuilder();
+        for (Map.Entry<String, Boolean> entry : variables.entrySet()) {
+            String name = entry.getKey();
+            String type = C_TYPES.get(name.charAt(name.length() - 1));
+            declarations.append('\t').append(type).append(' ').append(name);
+            if (entry.getValue()) {
+                declarations.append(" = (").append(type).append(") 0");
+            }
+            declarations.append(";\n");
+        }
+        if (declarations.length() > 0) {
+            declarations.append("\n");
+        }
+        return declarations + body;
+    }
+
+    /**
+     * Whether the variable holds a value on every path into the instruction. Code outside of any
+     * instruction has no frame, and an unreachable instruction never runs.
+     */
+    private boolean isAssigned(int index, String name) {
+        if (index < 0) {
+            return false;
+        }
+        Frame<BasicValue> frame = frames[index];
+        if (frame == null) {
+            return true;
+        }
+        char type = name.charAt(name.length() - 1);
+        int slot = Integer.parseInt(name.substring(6, name.indexOf('_')));
+        if (name.startsWith("clocal")) {
+            return slot < frame.getLocals() && typeOf(frame.getLocal(slot)) == type;
+        }
+        char[] stackTypes = getStackTypes(method.instructions.get(index));
+        return slot < stackTypes.length && stackTypes[slot] == type;
+    }
+
+    private static boolean isReadAt(String body, int start, int end) {
+        int lineStart = body.lastIndexOf('\n', start) + 1;
+        int lineEnd = body.indexOf('\n', end);
+        String line = body.substring(lineStart, lineEnd < 0 ? body.length() : lineEnd);
+        if (start > 0 && body.charAt(start - 1) == '&') {
+            return !(line.contains("(*env)->Get") && line.contains("ArrayRegion("));
+        }
+        String rest = body.substring(end, Math.min(body.length(), end + 3)).trim();
+        return !(rest.startsWith("=") && !rest.startsWith("=="));
+    }
+
+    private static int compareVariables(String a, String b) {
+        int result = a.substring(0, 6).compareTo(b.substring(0, 6));
+        if (result != 0) {
+            return -result;
+        }
+        int indexA = Integer.parseInt(a.substring(6, a.indexOf('_')));
+        int indexB = Integer.parseInt(b.substring(6, b.indexOf('_')));
+        if (indexA != indexB) {
+            return Integer.compare(indexA, indexB);
+        }
+        return a.compareTo(b);
+    }
+}
@@ -1,5 +1,6 @@
 package dev.daedalus;
 
+import dev.daedalus.utils.SeededRandom;
 import org.objectweb.asm.Opcodes;
 
 import java.io.*;
@@ -93,8 +94,14 @@ public class Util {
         }
     }
 
+    public static JarEntry newEntry(String name) {
+        JarEntry entry = new JarEntry(name);
+        entry.setTime(SeededRandom.getTime(System.currentTimeMillis()));
+        return entry;
+    }
+
     public static void writeEntry(JarFile f, ZipOutputStream out, JarEntry e) throws IOException {
-        out.putNextEntry(new JarEntry(e.getName()));
+        out.putNextEntry(newEntry(e.getName()));
         try (InputStream in = f.getInputStream(e)) {
             transfer(in, out);
         }
@@ -102,7 +109,7 @@ public class Util {
     }
 
     public static void writeEntry(ZipOutputStream out, String entryName, byte[] data) throws IOException {
-        out.putNextEntry(new JarEntry(entryName));
+        out.putNextEntry(newEntry(entryName));
         out.write(data, 0, data.length);
         out.closeEntry();
     }
@@ -450,7 +457,7 @@ public class Util {
     }
 
     private static int[] getRandomSeeds(int[] data) {
-        Random random = new Random();
+        Random random = SeededRandom.forKey("string " + Arrays.toString(data));
         int[] result = new int[data.length];
         for (int i = 0; i < data.length; i++) {
             result[i] = data[i] + (random.nextInt(256) - 128);
@@ -0,0 +1,182 @@
+package dev.daedalus.asm;
+
+import org.objectweb.asm.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Whole-program class hierarchy of the input jar and its libraries.
+ * The classes found on the class path are treated as the complete set of subtypes of the types they declare,
+ * interfaces implemented by lambdas are left open and, when the program creates proxies, so are all interfaces.
+ */
+public class ClassHierarchy {
+
+    private static class ClassInfo {
+        int access;
+        String superName;
+        String[] interfaces;
+        final Map<String, Integer> methods = new HashMap<>();
+    }
+
+    private final Map<String, ClassInfo> classes = new HashMap<>();
+    private final Map<String, List<String>> subtypes = new HashMap<>();
+    private final Set<String> lambdaTargets = new HashSet<>();
+    private boolean usesProxies;
+
+    public ClassHierarchy(List<JarFile> classPath) throws IOException {
+        for (JarFile file : classPath) {
+            if (file == null) {
+                continue;
+            }
+            Enumeration<JarEntry> entries = file.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (!entry.getName().endsWith(".class")) {
+                    continue;
+                }
+                try (InputStream in = file.getInputStream(entry)) {
+                    new ClassReader(in).accept(new HierarchyVisitor(), ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+                } catch (RuntimeException ignored) {
+                    // not a readable class file, it cannot take part in the hierarchy
+                }
+            }
+        }
+        classes.forEach((name, info) -> {
+            if (info.superName != null) {
+                subtypes.computeIfAbsent(info.superName, key -> new ArrayList<>()).add(name);
+            }
+            for (String itf : info.interfaces) {
+                subtypes.computeIfAbsent(itf, key -> new ArrayList<>()).add(name);
+            }
+        });
+    }
+
+    private class HierarchyVisitor extends ClassVisitor {
+
+        private ClassInfo info;
+
+        HierarchyVisitor() {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            if (classes.containsKey(name)) {
+                return;
+            }
+            info = new ClassInfo();
+            info.access = access;
+            info.superName = superName;
+            info.interfaces = interfaces == null ? new String[0] : interfaces;
+            classes.put(name, info);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            if (info == null) {
+                return null;
+            }
+            info.methods.put(name + descriptor, access);
+            return new MethodVisitor(Opcodes.ASM9) {
+                @Override
+                public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                    if (owner.equals("java/lang/reflect/Proxy") &&
+                            (name.equals("newProxyInstance") || name.equals("getProxyClass"))) {
+                        usesProxies = true;
+                    }
+                }
+
+                @Override
+                public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+                    if (bootstrapMethodHandle.getOwner().equals("java/lang/invoke/LambdaMetafactory")) {
+                        lambdaTargets.add(Type.getReturnType(descriptor).getInternalName());
+                    }
+                }
+            };
+        }
+    }
+
+    private static String getPackage(String name) {
+        return name.substring(0, Math.max(name.lastIndexOf('/'), 0));
+    }
+
+    /**
+     * The class whose declaration a virtual call on an instance of {@code clazz} selects, or null when that
+     * depends on classes outside the class path. A package-private method is only overridden from its own
+     * package, so with {@code requiredPackage} set a declaration anywhere else gives up as well.
+     */
+    private String resolve(String clazz, String name, String desc, String requiredPackage) {
+        for (String current = clazz; current != null; ) {
+            ClassInfo info = classes.get(current);
+            if (info == null) {
+                return null;
+            }
+            Integer access = info.methods.get(name + desc);
+            if (access != null) {
+                if ((access & (Opcodes.ACC_STATIC | Opcodes.ACC_ABSTRACT | Opcodes.ACC_PRIVATE)) != 0 ||
+                        (requiredPackage != null && !getPackage(current).equals(requiredPackage))) {
+                    return null;
+                }
+                return current;
+            }
+            current = info.superName;
+        }
+        return null;
+    }
+
+    private String getRequiredPackage(String owner, String name, String desc) {
+        for (String current = owner; current != null; ) {
+            ClassInfo info = classes.get(current);
+            if (info == null) {
+                return null;
+            }
+            Integer access = info.methods.get(name + desc);
+            if (access != null) {
+                return (access & (Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED | Opcodes.ACC_PRIVATE)) == 0 ? getPackage(current) : null;
+            }
+            current = info.superName;
+        }
+        return null;
+    }
+
+    /**
+     * The only class that declares the method a virtual or interface call on {@code owner} can reach,
+     * or null when the site is not provably monomorphic.
+     */
+    public String getSingleTarget(String owner, String name, String desc) {
+        if (!classes.containsKey(owner)) {
+            return null;
+        }
+        String requiredPackage = getRequiredPackage(owner, name, desc);
+        String target = null;
+        Set<String> seen = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(owner);
+        seen.add(owner);
+        while (!queue.isEmpty()) {
+            String current = queue.poll();
+            ClassInfo info = classes.get(current);
+            if ((info.access & Opcodes.ACC_INTERFACE) != 0) {
+                if (usesProxies || lambdaTargets.contains(current)) {
+                    return null;
+                }
+            } else if ((info.access & Opcodes.ACC_ABSTRACT) == 0) {
+                String resolved = resolve(current, name, desc, requiredPackage);
+                if (resolved == null || (target != null && !target.equals(resolved))) {
+                    return null;
+                }
+                target = resolved;
+            }
+            for (String subtype : subtypes.getOrDefault(current, Collections.emptyList())) {
+                if (seen.add(subtype)) {
+                    queue.add(subtype);
+                }
+            }
+        }
+        return target;
+    }
+}
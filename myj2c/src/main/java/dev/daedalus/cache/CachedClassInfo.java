@@ -1,9 +1,11 @@
 package dev.daedalus.cache;
 
+import dev.daedalus.utils.SeededRandom;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
-import java.util.UUID;
 
 public class CachedClassInfo {
 
@@ -17,11 +19,19 @@ public class CachedClassInfo {
 
     private final List<CachedMethodInfo> cachedMethods = new ArrayList<>();
 
+    // Set on the classes of a task's overlay, whose member ids resolve to those of the shared class
+    private IdRequests ids;
+    private ClassNodeCache shared;
+
     public CachedClassInfo(String clazz, String name, String desc, boolean isStatic) {
+        this(clazz, name, desc, isStatic, SeededRandom.forKey("class " + clazz).nextInt(Integer.MAX_VALUE));
+    }
+
+    public CachedClassInfo(String clazz, String name, String desc, boolean isStatic, int id) {
         this.clazz = clazz;
         this.name = name;
         this.desc = desc;
-        this.id =  Math.abs(UUID.randomUUID().hashCode());
+        this.id = id;
         this.isStatic = isStatic;
     }
 
@@ -64,6 +74,9 @@ public class CachedClassInfo {
     }
 
     public int getCachedFieldId(CachedFieldInfo cachedFieldInfo) {
+        if (ids != null) {
+            return ids.next(Arrays.asList("field", clazz, cachedFieldInfo), () -> shared.getClass(clazz).getCachedFieldId(cachedFieldInfo));
+        }
         for (CachedFieldInfo cachedField : cachedFields) {
             if (cachedField.equals(cachedFieldInfo)) {
                 return cachedField.getId();
@@ -74,7 +87,30 @@ public class CachedClassInfo {
         return cachedFieldInfo.getId();
     }
 
+    /**
+     * The index of the last cached field with the name, or of the field added for it.
+     */
+    public int getCachedFieldIndex(CachedFieldInfo cachedFieldInfo) {
+        if (ids != null) {
+            return ids.next(Arrays.asList("field index", clazz, cachedFieldInfo), () -> shared.getClass(clazz).getCachedFieldIndex(cachedFieldInfo));
+        }
+        int index = -1;
+        for (int i = 0; i < cachedFields.size(); i++) {
+            if (cachedFields.get(i).getName().equals(cachedFieldInfo.getName())) {
+                index = i;
+            }
+        }
+        if (index == -1) {
+            cachedFields.add(cachedFieldInfo);
+            index = cachedFields.size() - 1;
+        }
+        return index;
+    }
+
     public int getCachedMethodId(CachedMethodInfo cachedMethodInfo) {
+        if (ids != null) {
+            return ids.next(Arrays.asList("method", clazz, cachedMethodInfo), () -> shared.getClass(clazz).getCachedMethodId(cachedMethodInfo));
+        }
         for (CachedMethodInfo methodInfo : cachedMethods) {
             if (methodInfo.equals(cachedMethodInfo)) {
                 return methodInfo.getId();
@@ -85,6 +121,30 @@ public class CachedClassInfo {
         return cachedMethodInfo.getId();
     }
 
+    /**
+     * The index of the last cached method with the name, and the descriptor too unless anyDesc, or of the method
+     * added for it.
+     */
+    public int getCachedMethodIndex(CachedMethodInfo cachedMethodInfo, boolean anyDesc) {
+        if (ids != null) {
+            return ids.next(Arrays.asList("method index", clazz, cachedMethodInfo, anyDesc), () -> shared.getClass(clazz).getCachedMethodIndex(cachedMethodInfo, anyDesc));
+        }
+        int index = -1;
+        for (int i = 0; i < cachedMethods.size(); i++) {
+            CachedMethodInfo methodInfo = cachedMethods.get(i);
+            if (methodInfo.getName().equals(cachedMethodInfo.getName()) &&
+                    (anyDesc || methodInfo.getDesc().equals(cachedMethodInfo.getDesc()))) {
+                index = i;
+            }
+        }
+        if (index == -1) {
+            cachedMethodInfo.setId(cachedMethods.size());
+            cachedMethods.add(cachedMethodInfo);
+            index = cachedMethods.size() - 1;
+        }
+        return index;
+    }
+
     public void addCachedMethod(CachedMethodInfo cachedMethodInfo) {
         boolean contains = false;
         for (CachedMethodInfo methodInfo : cachedMethods) {
@@ -103,6 +163,35 @@ public class CachedClassInfo {
         return id;
     }
 
+    CachedClassInfo requesting(IdRequests ids, ClassNodeCache shared) {
+        this.ids = ids;
+        this.shared = shared;
+        return this;
+    }
+
+    /**
+     * The same class with its cached fields and methods under another id.
+     */
+    public CachedClassInfo withId(int id) {
+        CachedClassInfo classInfo = new CachedClassInfo(clazz, name, desc, isStatic, id);
+        classInfo.cachedFields.addAll(cachedFields);
+        classInfo.cachedMethods.addAll(cachedMethods);
+        return classInfo;
+    }
+
+    /**
+     * The same class with these cached fields and methods first, under the ids they had in an earlier build, and its
+     * own after them.
+     */
+    public CachedClassInfo withMembers(List<CachedFieldInfo> fields, List<CachedMethodInfo> methods) {
+        CachedClassInfo classInfo = new CachedClassInfo(clazz, name, desc, isStatic, id);
+        fields.forEach(classInfo::addCachedField);
+        methods.forEach(classInfo::addCachedMethod);
+        cachedFields.forEach(classInfo::addCachedField);
+        cachedMethods.forEach(classInfo::addCachedMethod);
+        return classInfo;
+    }
+
     @Override
     public String toString() {
         return "CachedClassInfo{" +
@@ -58,6 +58,22 @@ public class CachedFieldInfo {
         this.id = id;
     }
 
+    /**
+     * The member as a line of a build manifest: owner, name, descriptor and whether it is static, separated by dots,
+     * which none of them contain.
+     */
+    public String getKey() {
+        return clazz + "." + name + "." + desc + "." + isStatic;
+    }
+
+    public static CachedFieldInfo fromKey(String key) {
+        int isStatic = key.lastIndexOf('.');
+        int desc = key.lastIndexOf('.', isStatic - 1);
+        int name = key.lastIndexOf('.', desc - 1);
+        return new CachedFieldInfo(key.substring(0, name), key.substring(name + 1, desc), key.substring(desc + 1, isStatic),
+                Boolean.parseBoolean(key.substring(isStatic + 1)));
+    }
+
     @Override
     public String toString() {
         return "CachedFieldInfo{" +
@@ -1,17 +1,42 @@
 package dev.daedalus.cache;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class ClassNodeCache {
     private final String pointerPattern;
     private final Map<String, CachedClassInfo> cache;
+    private final Map<String, Integer> presetIds = new HashMap<>();
+    private final Set<Integer> usedIds = new HashSet<>();
+    private final Set<Integer> reservedIds = new HashSet<>();
+    private final Map<String, List<CachedFieldInfo>> presetFields = new HashMap<>();
+    private final Map<String, List<CachedMethodInfo>> presetMethods = new HashMap<>();
+    private final ClassNodeCache shared;
+    private final IdRequests ids;
 
     public ClassNodeCache(String pointerPattern) {
+        this(pointerPattern, null, null);
+    }
+
+    private ClassNodeCache(String pointerPattern, ClassNodeCache shared, IdRequests ids) {
         this.pointerPattern = pointerPattern;
+        this.shared = shared;
+        this.ids = ids;
         cache = new HashMap<>();
     }
 
+    /**
+     * A cache for one translation of a class. Its classes, and the fields and methods cached on them, get symbolic ids
+     * for the ids the requests of the class get from this cache.
+     */
+    public ClassNodeCache overlay(IdRequests ids) {
+        return new ClassNodeCache(pointerPattern, this, ids);
+    }
+
     public String getPointer(String key) {
         return String.format(pointerPattern, getId(key));
     }
@@ -33,13 +58,76 @@ public class ClassNodeCache {
             return null;
         }
         if (!cache.containsKey(clazz)) {
-            CachedClassInfo classInfo = new CachedClassInfo(clazz, clazz, "", false);
             //System.out.println(classInfo);
-            cache.put(clazz, classInfo);
+            if (ids != null) {
+                String key = clazz;
+                CachedClassInfo classInfo = new CachedClassInfo(clazz, clazz, "", false, ids.next(Arrays.asList("class", key), () -> shared.getId(key)));
+                cache.put(clazz, classInfo.requesting(ids, shared));
+            } else {
+                put(clazz, new CachedClassInfo(clazz, clazz, "", false));
+            }
         }
         return cache.get(clazz);
     }
 
+    /**
+     * Caches the class under its preset id, or under its own id moved up to the next free one if another class has it,
+     * with its preset members first.
+     */
+    public CachedClassInfo put(String clazz, CachedClassInfo classInfo) {
+        CachedClassInfo old = cache.remove(clazz);
+        if (old != null) {
+            usedIds.remove(old.getId());
+        }
+        Integer preset = presetIds.get(clazz);
+        int id = preset != null ? preset : classInfo.getId();
+        if (preset == null) {
+            while (usedIds.contains(id) || reservedIds.contains(id)) {
+                id = id == Integer.MAX_VALUE - 1 ? 0 : id + 1;
+            }
+        }
+        usedIds.add(id);
+        if (presetFields.containsKey(clazz)) {
+            classInfo = classInfo.withMembers(presetFields.get(clazz), presetMethods.get(clazz));
+        }
+        classInfo = id == classInfo.getId() ? classInfo : classInfo.withId(id);
+        cache.put(clazz, classInfo);
+        return classInfo;
+    }
+
+    /**
+     * Makes the class get this id once it is cached, as it had in an earlier build. A class already cached under the
+     * id moves to another one.
+     */
+    public void presetId(String clazz, int id) {
+        presetIds.put(clazz, id);
+        reservedIds.add(id);
+        if (usedIds.contains(id)) {
+            for (Map.Entry<String, CachedClassInfo> entry : new HashMap<>(cache).entrySet()) {
+                if (entry.getValue().getId() == id && !entry.getKey().equals(clazz)) {
+                    put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        CachedClassInfo cached = cache.get(clazz);
+        if (cached != null && cached.getId() != id) {
+            put(clazz, cached);
+        }
+    }
+
+    /**
+     * Makes the fields and methods cached on the class get the ids they had in an earlier build, which are their
+     * indices in the lists. Members cached for the first time come after them.
+     */
+    public void presetMembers(String clazz, List<CachedFieldInfo> fields, List<CachedMethodInfo> methods) {
+        presetFields.put(clazz, fields);
+        presetMethods.put(clazz, methods);
+        CachedClassInfo cached = cache.get(clazz);
+        if (cached != null) {
+            put(clazz, cached);
+        }
+    }
+
     public int size() {
         return cache.size();
     }
@@ -54,5 +142,6 @@ public class ClassNodeCache {
 
     public void clear() {
         cache.clear();
+        usedIds.clear();
     }
 }
@@ -0,0 +1,77 @@
+package dev.daedalus.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntSupplier;
+
+/**
+ * The ids one class asks the shared caches for, in the order it asks. The shared caches number what they cache in
+ * the order it is first asked for, so a class on the pool is translated against symbolic ids: each request stands for
+ * itself, numbered by its position. Once the classes before it have asked, the requests are put to the shared caches
+ * in jar order, as a serial run would, and the code of the class has its symbolic ids replaced by the resulting ones
+ * when its shard is written.
+ */
+public class IdRequests {
+
+    private final List<Object> keys = new ArrayList<>();
+    private final List<IntSupplier> resolvers = new ArrayList<>();
+    private int[] resolved;
+
+    /**
+     * Remembers how to ask the shared caches for the key, and returns the symbolic id of the request.
+     */
+    public int next(Object key, IntSupplier resolver) {
+        if (resolved != null) {
+            throw new IllegalStateException("ids already resolved");
+        }
+        keys.add(key);
+        resolvers.add(resolver);
+        return keys.size() - 1;
+    }
+
+    /**
+     * Asks the shared caches for the real ids, in the order they were requested. Runs in jar order.
+     */
+    public void resolve() {
+        if (resolved != null) {
+            throw new IllegalStateException("ids already resolved");
+        }
+        resolved = new int[resolvers.size()];
+        for (int i = 0; i < resolved.length; i++) {
+            resolved[i] = resolvers.get(i).getAsInt();
+        }
+        resolvers.clear();
+    }
+
+    /**
+     * The keys in the order they were asked for, each part as text, so an unchanged class can ask for them again in a
+     * later build. Cached members are written as their keys.
+     */
+    public List<List<String>> getKeyParts() {
+        List<List<String>> keyParts = new ArrayList<>();
+        for (Object key : keys) {
+            List<String> parts = new ArrayList<>();
+            for (Object part : (List<?>) key) {
+                if (part instanceof CachedFieldInfo) {
+                    parts.add(((CachedFieldInfo) part).getKey());
+                } else if (part instanceof CachedMethodInfo) {
+                    parts.add(((CachedMethodInfo) part).getKey());
+                } else {
+                    parts.add(String.valueOf(part));
+                }
+            }
+            keyParts.add(parts);
+        }
+        return keyParts;
+    }
+
+    /**
+     * The resolved ids, indexed by the symbolic ones.
+     */
+    public int[] getIds() {
+        if (resolved == null) {
+            throw new IllegalStateException("ids not resolved");
+        }
+        return resolved.clone();
+    }
+}
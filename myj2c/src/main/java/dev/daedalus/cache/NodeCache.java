@@ -1,18 +1,40 @@
 package dev.daedalus.cache;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 public class NodeCache<T> {
 
     private final String pointerPattern;
     private final Map<T, Integer> cache;
+    private final Map<T, Integer> presetIds = new HashMap<>();
+    private final Set<Integer> reservedIds = new HashSet<>();
+    private int nextId;
+    private int idBound;
+    private final NodeCache<T> shared;
+    private final IdRequests ids;
 
     public NodeCache(String pointerPattern) {
+        this(pointerPattern, null, null);
+    }
+
+    private NodeCache(String pointerPattern, NodeCache<T> shared, IdRequests ids) {
         this.pointerPattern = pointerPattern;
+        this.shared = shared;
+        this.ids = ids;
         cache = new HashMap<>();
     }
 
+    /**
+     * A cache for one translation of a class, handing out symbolic ids for the ids the class gets from this one.
+     */
+    public NodeCache<T> overlay(IdRequests ids) {
+        return new NodeCache<>(pointerPattern, this, ids);
+    }
+
     public String getPointer(T key) {
         return String.format(pointerPattern, getId(key));
     }
@@ -20,11 +42,43 @@ public class NodeCache<T> {
     public int getId(T key) {
         if (!cache.containsKey(key)) {
             //System.out.println("======" + key);
-            cache.put(key, cache.size());
+            cache.put(key, ids == null ? nextId(key) : ids.next(Arrays.asList(pointerPattern, key), () -> shared.getId(key)));
         }
         return cache.get(key);
     }
 
+    // The preset id of the key, or the next one no other key has or may get
+    private int nextId(T key) {
+        Integer id = presetIds.get(key);
+        if (id == null) {
+            while (reservedIds.contains(nextId)) {
+                nextId++;
+            }
+            id = nextId++;
+        }
+        idBound = Math.max(idBound, id + 1);
+        return id;
+    }
+
+    /**
+     * Makes the key get this id once it is asked for, as it had in an earlier build. Ids are preset before any is
+     * handed out.
+     */
+    public void presetId(T key, int id) {
+        if (!cache.isEmpty()) {
+            throw new IllegalStateException("ids already handed out");
+        }
+        presetIds.put(key, id);
+        reservedIds.add(id);
+    }
+
+    /**
+     * One past the highest id handed out. With preset ids, not every id below it is used.
+     */
+    public int getIdBound() {
+        return idBound;
+    }
+
     public int size() {
         return cache.size();
     }
@@ -39,5 +93,7 @@ public class NodeCache<T> {
 
     public void clear() {
         cache.clear();
+        nextId = 0;
+        idBound = 0;
     }
 }
@@ -74,6 +74,13 @@ public class ProcessHelper {
     }
 
     public static ProcessResult run(Path directory, long timeLimit, List<String> command) throws IOException {
+        return run(directory, timeLimit, command, null);
+    }
+
+    /**
+     * Runs the command with zigCache as the global cache of zig, or with the whole cache in the build directory when it is null.
+     */
+    public static ProcessResult run(Path directory, long timeLimit, List<String> command, Path zigCache) throws IOException {
         StringBuilder sb = new StringBuilder();
         for (String s : command) {
             sb.append(s);
@@ -83,7 +90,12 @@ public class ProcessHelper {
         System.out.println(sb);
         ProcessBuilder processBuilder = new ProcessBuilder(command);
         Map<String, String> environment = processBuilder.environment();
-        environment.put("ZIG_GLOBAL_CACHE_DIR", directory + File.separator + "cpp" + File.separator + ".cache");
+        if (zigCache == null) {
+            environment.put("ZIG_GLOBAL_CACHE_DIR", directory + File.separator + "cpp" + File.separator + ".cache");
+        } else {
+            environment.put("ZIG_GLOBAL_CACHE_DIR", zigCache.toString());
+            environment.put("ZIG_LOCAL_CACHE_DIR", directory + File.separator + "cpp" + File.separator + ".cache");
+        }
         environment.put("TEMP", directory + File.separator + "cpp" + File.separator + ".temp");
         environment.put("TMP", directory + File.separator + "cpp" + File.separator + ".temp");
         Process process = processBuilder.directory(directory.toFile()).start();
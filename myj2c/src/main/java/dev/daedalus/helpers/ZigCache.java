@@ -0,0 +1,162 @@
+package dev.daedalus.helpers;
+
+import dev.daedalus.env.SetupManager;
+import dev.daedalus.utils.FileUtils;
+import dev.daedalus.utils.StringUtils;
+import dev.daedalus.xml.Options;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Persistent global cache of zig, where it keeps the libc, compiler-rt and other runtime artifacts it builds for a
+ * target. Every target gets its own directory, so a target's cache is always complete and can be dropped as a whole:
+ * when the cache grows past its size limit, the targets used least recently are evicted first. The objects of the
+ * translated code stay in the local cache of the build and never end up here.
+ */
+public class ZigCache {
+    public static final Locale locale = Locale.getDefault();
+
+    private static final String LAST_USED = ".last-used";
+    private static final long DEFAULT_SIZE_MB = 4096;
+
+    private final Path root;
+    private final long maxSize;
+    private final Set<String> used = ConcurrentHashMap.newKeySet();
+
+    public ZigCache(Path root, long maxSize) {
+        this.root = root.toAbsolutePath();
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * The cache configured by compileCache and compileCacheSize (in MB), or null to keep zig's cache in the build.
+     */
+    public static ZigCache fromOptions(Options options) {
+        if (options == null || StringUtils.isEmpty(options.getCompileCache())) {
+            return null;
+        }
+        long size = StringUtils.isEmpty(options.getCompileCacheSize()) ? DEFAULT_SIZE_MB : Long.parseLong(options.getCompileCacheSize().trim());
+        return new ZigCache(Paths.get(System.getProperty("user.dir")).resolve(options.getCompileCache().trim()), size << 20);
+    }
+
+    /**
+     * The global cache directory of the target, marked as used by this build.
+     */
+    public Path getDirectory(String target) throws IOException {
+        Path dir = root.resolve(target);
+        Files.createDirectories(dir);
+        Path marker = dir.resolve(LAST_USED);
+        if (!Files.exists(marker)) {
+            Files.write(marker, target.getBytes(StandardCharsets.UTF_8));
+        }
+        Files.setLastModifiedTime(marker, FileTime.fromMillis(System.currentTimeMillis()));
+        used.add(target);
+        return dir;
+    }
+
+    /**
+     * Deletes the caches of the least recently used targets until the cache fits its size limit again.
+     * The targets of this build are kept even if they alone exceed it.
+     */
+    public void evict() throws IOException {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        List<Path> dirs = new ArrayList<>();
+        Map<Path, Long> sizes = new HashMap<>();
+        Map<Path, Long> lastUsed = new HashMap<>();
+        long total = 0;
+        try (Stream<Path> stream = Files.list(root)) {
+            for (Path dir : (Iterable<Path>) stream::iterator) {
+                if (!Files.isDirectory(dir)) {
+                    continue;
+                }
+                long size = getSize(dir);
+                Path marker = dir.resolve(LAST_USED);
+                dirs.add(dir);
+                sizes.put(dir, size);
+                lastUsed.put(dir, Files.getLastModifiedTime(Files.exists(marker) ? marker : dir).toMillis());
+                total += size;
+            }
+        }
+        dirs.sort(Comparator.comparing(lastUsed::get));
+        for (Path dir : dirs) {
+            if (total <= maxSize) {
+                break;
+            }
+            if (used.contains(dir.getFileName().toString())) {
+                continue;
+            }
+            FileUtils.clearDirectory(dir.toString());
+            total -= sizes.get(dir);
+            if (locale.getLanguage().contains("zh")) {
+                System.out.println("已清理最久未使用的编译缓存:" + dir.getFileName() + " (" + (sizes.get(dir) >> 20) + "MB)");
+            } else {
+                System.out.println("Evicted the least recently used compile cache " + dir.getFileName() + " (" + (sizes.get(dir) >> 20) + "MB)");
+            }
+        }
+        if (total > maxSize) {
+            if (locale.getLanguage().contains("zh")) {
+                System.out.println("本次构建的编译缓存 " + (total >> 20) + "MB 超过了上限 " + (maxSize >> 20) + "MB");
+            } else {
+                System.out.println("The compile cache of this build takes " + (total >> 20) + "MB, more than the limit of " + (maxSize >> 20) + "MB");
+            }
+        }
+    }
+
+    private static long getSize(Path dir) throws IOException {
+        try (Stream<Path> stream = Files.walk(dir)) {
+            return stream.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    /**
+     * Links an empty shared library for every target, so zig builds and caches their runtime ahead of the first build.
+     */
+    public void prewarm(List<String> targets) throws IOException {
+        String compilePath = getCompilePath();
+        Path workDir = Files.createTempDirectory("daedalus-prewarm-");
+        try {
+            Files.createDirectories(workDir.resolve("cpp").resolve(".temp"));
+            Files.write(workDir.resolve("prewarm.c"), "int daedalus_prewarm(void) {\n    return 0;\n}\n".getBytes(StandardCharsets.UTF_8));
+            for (String target : targets) {
+                String zigTarget = getZigTarget(target);
+                if (locale.getLanguage().contains("zh")) {
+                    System.out.println("正在预热编译缓存:" + target);
+                } else {
+                    System.out.println("Warming up the compile cache:" + target);
+                }
+                Path cacheDir = getDirectory(zigTarget);
+                String object = "prewarm-" + zigTarget + ".o";
+                ProcessHelper.run(workDir, 3000 * 1000, Arrays.asList(compilePath, "cc", "-c", "-O2", "-target", zigTarget, "-std=c11", "-fPIC",
+                        "-o" + object, "prewarm.c"), cacheDir).check("zig build");
+                ProcessHelper.run(workDir, 3000 * 1000, Arrays.asList(compilePath, "cc", "-target", zigTarget, "-shared", "-s",
+                        "-oprewarm-" + zigTarget + ".lib", object), cacheDir).check("zig build");
+            }
+        } finally {
+            FileUtils.clearDirectory(workDir.toString());
+        }
+        evict();
+    }
+
+    /**
+     * The zig target of a configured target, LINUX_X86_64 becoming x86_64-linux.
+     */
+    public static String getZigTarget(String target) {
+        int split = target.indexOf('_');
+        return target.substring(split + 1).toLowerCase(Locale.ROOT) + "-" + target.substring(0, split).toLowerCase(Locale.ROOT);
+    }
+
+    public static String getCompilePath() {
+        return System.getProperty("user.dir") + File.separator + "zig" + File.separator + "zig" + (SetupManager.isWindows() ? ".exe" : "");
+    }
+}
@@ -2,14 +2,11 @@ package dev.daedalus.instructions;
 
 import dev.daedalus.MethodContext;
 import dev.daedalus.Util;
-import dev.daedalus.cache.CachedClassInfo;
 import dev.daedalus.cache.CachedFieldInfo;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.FieldInsnNode;
 
-import java.util.List;
-
 public class FieldHandler extends GenericInstructionHandler<FieldInsnNode> {
 
     @Override
@@ -22,21 +19,8 @@ public class FieldHandler extends GenericInstructionHandler<FieldInsnNode> {
         //props.put("class_ptr", "/*"+node.owner+"*/"+"c_" + context.getCachedClasses().getId(node.owner) + "_");
         props.put("class_ptr", "c_" + context.getCachedClasses().getId(node.owner) + "_");
         // }
-        CachedClassInfo classInfo = context.getCachedClasses().getCache().get(node.owner);
-        List<CachedFieldInfo> cachedFields = classInfo.getCachedFields();
-        for (int i = 0; i < cachedFields.size(); i++) {
-            CachedFieldInfo fieldNode = cachedFields.get(i);
-            if (fieldNode.getName().equals(node.name)) {
-                //System.out.println("field_id:" + "=====" +node.name+"," + "id_" + i +","+node.owner);
-                //props.put("field_id", "id_" + i +"/*"+node.name+"*/");
-                props.put("field_id", "id_" + i);
-            }
-        }
-        if (props.get("field_id") == null) {
-            cachedFields.add(info);
-            //props.put("field_id", "id_" + (cachedFields.size() - 1)+"/*"+node.name+"*/");
-            props.put("field_id", "id_" + (cachedFields.size() - 1));
-        }
+        //props.put("field_id", "id_" + i +"/*"+node.name+"*/");
+        props.put("field_id", "id_" + context.getCachedClasses().getClass(node.owner).getCachedFieldIndex(info));
     }
 
     @Override
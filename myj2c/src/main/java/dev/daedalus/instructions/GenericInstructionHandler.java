@@ -1,9 +1,11 @@
 package dev.daedalus.instructions;
 
 import dev.daedalus.CatchesBlock;
+import dev.daedalus.LoopFrames;
 import dev.daedalus.MethodContext;
 import dev.daedalus.MethodProcessor;
 import dev.daedalus.Util;
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.TryCatchBlockNode;
@@ -31,63 +33,42 @@ public abstract class GenericInstructionHandler<T extends AbstractInsnNode> impl
             }
         }
         instructionName = MethodProcessor.INSTRUCTIONS.getOrDefault(node.getOpcode(), "NOTFOUND");
+        String frameExit = "";
+        if (context.loopFrames != null) {
+            frameExit = context.loopFrames.getReturnCode(node, null);
+            if (!frameExit.isEmpty() && LoopFrames.returnsReference(context.method)) {
+                frameExit += "temp0.l = NULL; ";
+            }
+        }
         props.put("line", String.valueOf(context.line));
         StringBuilder tryCatch = new StringBuilder("\n");
         //tryCatch.append("    ");
-        if (!tryCatchBlockNodeList.isEmpty()) {
+        if (context.exceptionChecks != null && context.exceptionChecks.cannotThrow(node) ||
+                context.arrayLoops != null && context.arrayLoops.isProven(node)) {
+            // nothing can be pending after this instruction
+        } else if (!tryCatchBlockNodeList.isEmpty()) {
             String tryCatchLabelName = context.catches.computeIfAbsent(new CatchesBlock(tryCatchBlockNodeList.stream().map(item ->
                             new CatchesBlock.CatchBlock(item.type, item.handler)).collect(Collectors.toList())),
                     key -> String.format("L_CATCH_%d", context.catches.size()));
-            tryCatch.append("if ((*env)->ExceptionCheck(env)) { " + "\n");
-            tryCatch.append("    cstack0.l = (*env)->ExceptionOccurred(env);\n");
-            for (TryCatchBlockNode tryCatchBlockNode : tryCatchBlockNodeList) {
-                if (tryCatchBlockNode.type != null) {
-                    //tryCatch.append("   if ((*env)->IsInstanceOf(env, cstack0.l, /*" + tryCatchBlockNode.type + "*/c_" + context.obfuscator.getCachedClasses().getId(tryCatchBlockNode.type) + "_(env)->clazz)) {\n");
-                    tryCatch.append("    if ((*env)->IsInstanceOf(env, cstack0.l, c_" + context.obfuscator.getCachedClasses().getId(tryCatchBlockNode.type) + "_(env)->clazz)) {\n");
-                    tryCatch.append("        (*env)->ExceptionClear(env);\n");
-                    tryCatch.append("        goto ").append(tryCatchLabelName).append(";\n  }\n");
-                }
+            // Handler matching runs once, in the shared dispatch block of this handler set
+            tryCatch.append("if ((*env)->ExceptionCheck(env)) goto ").append(tryCatchLabelName).append("_DISPATCH;\n");
+        } else if (!frameExit.isEmpty()) {
+            if ("void".equals(MethodProcessor.CPP_TYPES[context.ret.getSort()])) {
+                tryCatch.append(context.getSnippets().getSnippet("TRYCATCH_VOID_FRAME", Util.createMap(
+                        "frames", frameExit
+                )));
+            } else {
+                tryCatch.append(context.getSnippets().getSnippet("TRYCATCH_EMPTY_FRAME", Util.createMap(
+                        "frames", frameExit,
+                        "rettype", getReturnField(context)
+                )));
             }
-            tryCatch.append("        (*env)->ExceptionClear(env);\n");
-            tryCatch.append("        goto ").append(tryCatchLabelName).append(";\n");
-            tryCatch.append("}\n");
         } else {
             if ("void".equals(MethodProcessor.CPP_TYPES[context.ret.getSort()])) {
                 tryCatch.append(context.getSnippets().getSnippet("TRYCATCH_VOID", Util.createMap()));
             } else {
-                String type = "";
-                switch (context.ret.getSort()) {
-                    case Type.BOOLEAN:
-                        type = "z";
-                        break;
-                    case Type.BYTE:
-                        type = "b";
-                        break;
-                    case Type.CHAR:
-                        type = "c";
-                        break;
-                    case Type.DOUBLE:
-                        type = "d";
-                        break;
-                    case Type.FLOAT:
-                        type = "f";
-                        break;
-                    case Type.INT:
-                        type = "i";
-                        break;
-                    case Type.LONG:
-                        type = "j";
-                        break;
-                    case Type.SHORT:
-                        type = "s";
-                        break;
-                    case Type.ARRAY:
-                    case Type.OBJECT:
-                    default:
-                        type = "l";
-                }
                 tryCatch.append(context.getSnippets().getSnippet("TRYCATCH_EMPTY", Util.createMap(
-                        "rettype", type
+                        "rettype", getReturnField(context)
                 )));
             }
         }
@@ -130,6 +111,9 @@ public abstract class GenericInstructionHandler<T extends AbstractInsnNode> impl
                 props.put("retvalue", " return temp0.l;");
                 break;
         }
+        if (!frameExit.isEmpty()) {
+            props.put("retvalue", " " + frameExit + props.get("retvalue").trim());
+        }
         trimmedTryCatchBlock = tryCatch.toString().trim().replace('\n', ' ');
 
         for (int i = -5; i <= 5; i++) {
@@ -194,10 +178,43 @@ public abstract class GenericInstructionHandler<T extends AbstractInsnNode> impl
                 props.put("class_ptr","c_"+context.getCachedClasses().getId("java/lang/ExceptionInInitializerError")+"_");
             }
             */
-            context.output.append(context.obfuscator.getSnippets().getSnippet(instructionName, props));
+            if (context.loopFrames != null && LoopFrames.isReturn(node)) {
+                context.output.append(context.loopFrames.getReturnCode(node, node.getOpcode() == Opcodes.ARETURN ?
+                        "cstack" + (context.stackPointer - 1) + ".l" : null));
+            }
+            String code = context.obfuscator.getSnippets().getSnippet(instructionName, props);
+            if (context.arrayLoops != null) {
+                code = context.arrayLoops.wrap(node, context.stackPointer, code);
+            }
+            context.output.append(code);
         }
         context.output.append("\n");
     }
 
+    private static String getReturnField(MethodContext context) {
+        switch (context.ret.getSort()) {
+            case Type.BOOLEAN:
+                return "z";
+            case Type.BYTE:
+                return "b";
+            case Type.CHAR:
+                return "c";
+            case Type.DOUBLE:
+                return "d";
+            case Type.FLOAT:
+                return "f";
+            case Type.INT:
+                return "i";
+            case Type.LONG:
+                return "j";
+            case Type.SHORT:
+                return "s";
+            case Type.ARRAY:
+            case Type.OBJECT:
+            default:
+                return "l";
+        }
+    }
+
     protected abstract void process(MethodContext context, T node);
 }
@@ -10,6 +10,21 @@ public class InsnHandler extends GenericInstructionHandler<InsnNode> {
     @Override
     protected void process(MethodContext context, InsnNode node) {
         //context.output.append("//InsnHandler:"+node.getOpcode()+"\n");
+        if (context.typedSlots != null) {
+            switch (node.getOpcode()) {
+                case Opcodes.DUP:
+                case Opcodes.DUP_X1:
+                case Opcodes.DUP_X2:
+                case Opcodes.DUP2:
+                case Opcodes.DUP2_X1:
+                case Opcodes.DUP2_X2:
+                case Opcodes.SWAP:
+                    context.output.append(context.typedSlots.lowerCopies(
+                            context.obfuscator.getSnippets().getSnippet(instructionName, props), node));
+                    instructionName = null;
+                    break;
+            }
+        }
     }
 
     @Override
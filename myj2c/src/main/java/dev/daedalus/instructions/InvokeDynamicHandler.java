@@ -18,6 +18,10 @@ public class InvokeDynamicHandler extends GenericInstructionHandler<InvokeDynami
 
     @Override
     protected void process(MethodContext context, InvokeDynamicInsnNode node) {
+        if ("java/lang/invoke/StringConcatFactory".equals(node.bsm.getOwner())) {
+            processStringConcat(context, node);
+            return;
+        }
         int index = 0;
         if (cache.containsKey(context.method)) {
             index = cache.get(context.method) + 1;
@@ -34,6 +38,31 @@ public class InvokeDynamicHandler extends GenericInstructionHandler<InvokeDynami
         CachedClassInfo javaClass = context.getCachedClasses().getClass("java/lang/Class");
         CachedClassInfo lookup = context.getCachedClasses().getClass("java/lang/invoke/MethodHandles$Lookup");
         context.output.append("\nstatic jobject indy").append(index).append(";\n");
+
+        // LambdaMetafactory: link once, then reuse the constant instance or construct the spun class directly
+        boolean lambda = "java/lang/invoke/LambdaMetafactory".equals(node.bsm.getOwner());
+        Type[] capturedTypes = Type.getArgumentTypes(node.desc);
+        int resultSlot = context.stackPointer - Arrays.stream(capturedTypes).mapToInt(Type::getSize).sum();
+        if (lambda) {
+            if (capturedTypes.length == 0) {
+                context.output.append("static _Atomic(jobject) lambda").append(index).append(";\n")
+                        .append("cstack").append(resultSlot).append(".l = lambda").append(index).append(";\n")
+                        .append("if (!cstack").append(resultSlot).append(".l) {\n");
+            } else {
+                StringBuilder captured = new StringBuilder();
+                for (int i = 0, offset = resultSlot; i < capturedTypes.length; offset += capturedTypes[i].getSize(), i++) {
+                    captured.append(", ").append(context.getSnippets().getSnippet("INVOKE_ARG_" + capturedTypes[i].getSort(),
+                            Util.createMap("index", offset)));
+                }
+                context.output.append("static _Atomic(jclass) lambda").append(index).append("_class;\n")
+                        .append("static _Atomic(jboolean) lambda").append(index).append("_linked;\n")
+                        .append("static _Atomic(jmethodID) lambda").append(index).append("_init;\n")
+                        .append("if (atomic_load_explicit(&lambda").append(index).append("_init, memory_order_acquire)) {\n")
+                        .append("cstack").append(resultSlot).append(".l = (*env)->NewObject(env, atomic_load_explicit(&lambda").append(index).append("_class, memory_order_relaxed), atomic_load_explicit(&lambda")
+                        .append(index).append("_init, memory_order_relaxed)").append(captured).append(");\n")
+                        .append("} else {\n");
+            }
+        }
         //System.out.println("name:" + node.name + "|desc:" + node.desc + "|bsm:" + node.bsm.toString() + "|node:" + node.toString());
         if (node.bsmArgs.length > 3) {
             //context.output.append("//name:" + node.name + "|desc:" + node.desc + "|bsm:" + node.bsm.toString() + "|node:" + node.toString() + "\n");
@@ -150,36 +179,11 @@ public class InvokeDynamicHandler extends GenericInstructionHandler<InvokeDynami
         }
 
         CachedClassInfo classInfo = context.getCachedClasses().getClass("java/lang/invoke/CallSite");
-        List<CachedMethodInfo> cachedMethods = classInfo.getCachedMethods();
-        boolean hasMethod = false;
-        for (int i = 0; i < cachedMethods.size(); i++) {
-            CachedMethodInfo methodInfo = cachedMethods.get(i);
-            if (methodInfo.getName().equals("getTarget")) {
-                hasMethod = true;
-                context.output.append("temp0.l = (*env)->CallObjectMethod(env, indy").append(index).append(", c_").append(classInfo.getId()).append("_(env)->method_").append(i).append(");\n");
-            }
-        }
-        if (!hasMethod) {
-            CachedMethodInfo cachedMethodInfo = new CachedMethodInfo("java/lang/invoke/CallSite", "getTarget", "()Ljava/lang/invoke/MethodHandle;", false);
-            classInfo.addCachedMethod(cachedMethodInfo);
-            context.output.append("temp0.l = (*env)->CallObjectMethod(env, indy").append(index).append(", c_").append(classInfo.getId()).append("_(env)->method_").append(classInfo.getCachedMethods().size() - 1).append(");\n");
-        }
+        int targetId = classInfo.getCachedMethodIndex(new CachedMethodInfo("java/lang/invoke/CallSite", "getTarget", "()Ljava/lang/invoke/MethodHandle;", false), true);
+        context.output.append("temp0.l = (*env)->CallObjectMethod(env, indy").append(index).append(", c_").append(classInfo.getId()).append("_(env)->method_").append(targetId).append(");\n");
 
         CachedClassInfo methodHandleClassInfo = context.getCachedClasses().getClass("java/lang/invoke/MethodHandle");
-        int methodId = -1;
-        int count = 0;
-        for (
-                CachedMethodInfo cachedMethod : methodHandleClassInfo.getCachedMethods()) {
-            if (cachedMethod.getName().equals("invokeWithArguments")) {
-                methodId = count;
-            }
-            count++;
-        }
-        if (methodId == -1) {
-            CachedMethodInfo cachedMethodInfo = new CachedMethodInfo("java/lang/invoke/MethodHandle", "invokeWithArguments", "([Ljava/lang/Object;)Ljava/lang/Object;", false);
-            methodHandleClassInfo.addCachedMethod(cachedMethodInfo);
-            methodId = methodHandleClassInfo.getCachedMethods().size() - 1;
-        }
+        int methodId = methodHandleClassInfo.getCachedMethodIndex(new CachedMethodInfo("java/lang/invoke/MethodHandle", "invokeWithArguments", "([Ljava/lang/Object;)Ljava/lang/Object;", false), true);
 
         Type[] argTypes = Type.getArgumentTypes(node.desc);
         StringBuilder argsBuilder = new StringBuilder();
@@ -214,21 +218,45 @@ public class InvokeDynamicHandler extends GenericInstructionHandler<InvokeDynami
             String mhDesc = simplifyDesc(Type.getMethodType(Type.getReturnType(node.desc),
                     Util.reverse(Util.reverse(Arrays.stream(Type.getArgumentTypes(node.desc)))).toArray(Type[]::new)).getDescriptor());
 
-            context.obfuscator.getBootstrapMethodsPool()
-                    .getMethod("invoke", methodDesc, method -> {
-                        method.instructions.add(new VarInsnNode(Opcodes.ALOAD, 0));
-                        int idx = 1;
-                        for (Type argument : Type.getArgumentTypes(mhDesc)) {
-                            method.instructions.add(new VarInsnNode(argument.getOpcode(Opcodes.ILOAD), idx));
-                            idx += argument.getSize();
-                        }
-                        method.instructions.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invoke", mhDesc));
-                        method.instructions.add(new InsnNode(Type.getReturnType(mhDesc).getOpcode(Opcodes.IRETURN)));
-                    });
+            context.addBootstrapMethod("invoke", methodDesc, method -> {
+                method.instructions.add(new VarInsnNode(Opcodes.ALOAD, 0));
+                int idx = 1;
+                for (Type argument : Type.getArgumentTypes(mhDesc)) {
+                    method.instructions.add(new VarInsnNode(argument.getOpcode(Opcodes.ILOAD), idx));
+                    idx += argument.getSize();
+                }
+                method.instructions.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invoke", mhDesc));
+                method.instructions.add(new InsnNode(Type.getReturnType(mhDesc).getOpcode(Opcodes.IRETURN)));
+            });
 
             CachedClassInfo classLoader = context.getCachedClasses().getClass(context.obfuscator.getNativeDir() + "/Loader");
             context.output.append("cstack").append(stackOffset).append(".l = (*env)->CallStaticObjectMethod(env, c_").append(classLoader.getId()).append("_(env)->clazz, c_").append(classLoader.getId()).append("_(env)->method_").append(classLoader.getCachedMethodId(new CachedMethodInfo(context.obfuscator.getNativeDir() + "/Loader", "invoke", methodDesc, true))).append(", temp0.l").append(argsBuilder).append(");\n");
         }
+        if (lambda) {
+            String result = "cstack" + resultSlot + ".l";
+            if (capturedTypes.length == 0) {
+                context.output.append("if (!(*env)->ExceptionCheck(env) && ").append(result).append(") {\n")
+                        .append("temp0.l = (*env)->NewGlobalRef(env, ").append(result).append(");\n")
+                        .append("jobject expected = NULL;\n")
+                        .append("if (!atomic_compare_exchange_strong(&lambda").append(index).append(", &expected, temp0.l)) (*env)->DeleteGlobalRef(env, temp0.l);\n")
+                        .append("}\n");
+            } else {
+                // One thread wins the link; the class is stored before the release store of init that readers acquire
+                context.output.append("jboolean unlinked = JNI_FALSE;\n")
+                        .append("if (!(*env)->ExceptionCheck(env) && ").append(result).append(" && atomic_compare_exchange_strong(&lambda")
+                        .append(index).append("_linked, &unlinked, JNI_TRUE)) {\n")
+                        .append("temp0.l = (*env)->GetObjectClass(env, ").append(result).append(");\n")
+                        .append("jmethodID init = (*env)->GetMethodID(env, temp0.l, \"<init>\", \"")
+                        .append(Type.getMethodDescriptor(Type.VOID_TYPE, capturedTypes)).append("\");\n")
+                        .append("if (init) {\n")
+                        .append("atomic_store_explicit(&lambda").append(index).append("_class, (*env)->NewGlobalRef(env, temp0.l), memory_order_relaxed);\n")
+                        .append("atomic_store_explicit(&lambda").append(index).append("_init, init, memory_order_release);\n")
+                        .append("} else (*env)->ExceptionClear(env);\n")
+                        .append("(*env)->DeleteLocalRef(env, temp0.l);\n")
+                        .append("}\n");
+            }
+            context.output.append("}\n");
+        }
         context.output.append(this.props.get("trycatchhandler"));
     }
 
@@ -242,6 +270,126 @@ public class InvokeDynamicHandler extends GenericInstructionHandler<InvokeDynami
         return currentStackPointer - Arrays.stream(Type.getArgumentTypes(node.desc)).mapToInt(Type::getSize).sum() + Type.getReturnType(node.desc).getSize();
     }
 
+    private void processStringConcat(MethodContext context, InvokeDynamicInsnNode node) {
+        boolean stringObf = MYObfuscator.isStringObf();
+        Type[] argTypes = Type.getArgumentTypes(node.desc);
+        String recipe;
+        int constantIndex = 1;
+        if ("makeConcatWithConstants".equals(node.bsm.getName())) {
+            recipe = (String) node.bsmArgs[0];
+        } else {
+            StringBuilder tags = new StringBuilder();
+            for (int i = 0; i < argTypes.length; i++) {
+                tags.append('\u0001');
+            }
+            recipe = tags.toString();
+        }
+
+        int[] argOffsets = new int[argTypes.length];
+        int stackOffset = context.stackPointer;
+        for (Type argType : argTypes) {
+            stackOffset -= argType.getSize();
+        }
+        for (int i = 0, offset = stackOffset; i < argTypes.length; offset += argTypes[i].getSize(), i++) {
+            argOffsets[i] = offset;
+        }
+
+        // Split the recipe into runs of constant text and argument slots; \2 constants fold into the text
+        List<Object> pieces = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        int argIndex = 0;
+        for (int i = 0; i < recipe.length(); i++) {
+            char c = recipe.charAt(i);
+            if (c == '\u0001') {
+                if (text.length() > 0) {
+                    pieces.add(text.toString());
+                    text.setLength(0);
+                }
+                pieces.add(argIndex++);
+            } else if (c == '\u0002') {
+                text.append(node.bsmArgs[constantIndex++]);
+            } else {
+                text.append(c);
+            }
+        }
+        if (text.length() > 0) {
+            pieces.add(text.toString());
+        }
+
+        CachedClassInfo string = context.getCachedClasses().getClass("java/lang/String");
+        String trycatch = props.get("trycatchhandler");
+        StringBuilder owned = new StringBuilder();
+        // Interning a constant and the String.valueOf upcalls can throw (toString() of the argument, or running out of
+        // memory), so a failed one leaves the loop and releases the pieces made so far before the exception is dispatched
+        String failed = "if ((*env)->ExceptionCheck(env)) break;";
+        context.output.append("{ struct daedalus_piece pieces[").append(Math.max(pieces.size(), 1)).append("] = {{0}};\n")
+                .append("do {\n");
+        for (int i = 0; i < pieces.size(); i++) {
+            Object piece = pieces.get(i);
+            String target = "pieces[" + i + "]";
+            if (piece instanceof String) {
+                String value = (String) piece;
+                String pointer = context.getCachedStrings().getPointer(value);
+                context.output.append(target).append(".str = ").append(pointer).append(";\n")
+                        .append("if (!").append(target).append(".str) { ").append(target).append(".str = daedalus_ldc_string(env, &").append(pointer).append(", ")
+                        .append(stringObf ? Util.getStringObf(Util.utf82ints(value)) : "(unsigned short[]) {" + Util.utf82unicode(value) + "}")
+                        .append(", ").append(value.length()).append(", c_").append(string.getId()).append("_(env)->method_")
+                        .append(string.getCachedMethodId(new CachedMethodInfo("java/lang/String", "intern", "()Ljava/lang/String;", false)))
+                        .append("); if (!").append(target).append(".str) break; }\n");
+                continue;
+            }
+            int arg = (Integer) piece;
+            String value = "cstack" + argOffsets[arg];
+            switch (argTypes[arg].getSort()) {
+                case Type.BOOLEAN:
+                    context.output.append(target).append(".chars = ").append(value).append(".i ? daedalus_true : daedalus_false; ")
+                            .append(target).append(".len = ").append(value).append(".i ? 4 : 5;\n");
+                    break;
+                case Type.CHAR:
+                    context.output.append(target).append(".buf[0] = (jchar) ").append(value).append(".i; ")
+                            .append(target).append(".chars = ").append(target).append(".buf; ")
+                            .append(target).append(".len = 1;\n");
+                    break;
+                case Type.BYTE:
+                case Type.SHORT:
+                case Type.INT:
+                    context.output.append(target).append(".len = daedalus_long_chars(").append(value).append(".i, ").append(target).append(".buf); ")
+                            .append(target).append(".chars = ").append(target).append(".buf;\n");
+                    break;
+                case Type.LONG:
+                    context.output.append(target).append(".len = daedalus_long_chars(").append(value).append(".j, ").append(target).append(".buf); ")
+                            .append(target).append(".chars = ").append(target).append(".buf;\n");
+                    break;
+                case Type.FLOAT:
+                case Type.DOUBLE:
+                    boolean isFloat = argTypes[arg].getSort() == Type.FLOAT;
+                    String desc = isFloat ? "(F)Ljava/lang/String;" : "(D)Ljava/lang/String;";
+                    context.output.append(target).append(".str = (*env)->CallStaticObjectMethod(env, c_").append(string.getId()).append("_(env)->clazz, c_")
+                            .append(string.getId()).append("_(env)->method_").append(string.getCachedMethodId(new CachedMethodInfo("java/lang/String", "valueOf", desc, true)))
+                            .append(", ").append(value).append(isFloat ? ".f" : ".d").append("); ").append(failed).append("\n");
+                    owned.append("(*env)->DeleteLocalRef(env, ").append(target).append(".str); ");
+                    break;
+                default:
+                    if ("java/lang/String".equals(argTypes[arg].getInternalName())) {
+                        context.output.append("if (").append(value).append(".l) ").append(target).append(".str = ").append(value).append(".l; ")
+                                .append("else { ").append(target).append(".chars = daedalus_null; ").append(target).append(".len = 4; }\n");
+                    } else {
+                        // String.valueOf passes on a null from toString(), which concatenation turns into "null"
+                        context.output.append(target).append(".str = (*env)->CallStaticObjectMethod(env, c_").append(string.getId()).append("_(env)->clazz, c_")
+                                .append(string.getId()).append("_(env)->method_").append(string.getCachedMethodId(new CachedMethodInfo("java/lang/String", "valueOf", "(Ljava/lang/Object;)Ljava/lang/String;", true)))
+                                .append(", ").append(value).append(".l); ").append(failed).append("\n")
+                                .append("if (!").append(target).append(".str) { ").append(target).append(".chars = daedalus_null; ").append(target).append(".len = 4; }\n");
+                        owned.append("(*env)->DeleteLocalRef(env, ").append(target).append(".str); ");
+                    }
+                    break;
+            }
+        }
+        context.output.append("cstack").append(stackOffset).append(".l = daedalus_concat(env, pieces, ").append(pieces.size()).append(");\n")
+                .append("} while (0);\n")
+                .append(owned).append("}\n")
+                .append(trycatch);
+    }
+
     private String generateMethodHandleLdcInsn(MethodContext context, Handle handle) {
         boolean stringObf = MYObfuscator.isStringObf();
         CachedClassInfo methodHandles = context.getCachedClasses().getClass("java/lang/invoke/MethodHandles");
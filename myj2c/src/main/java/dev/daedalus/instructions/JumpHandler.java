@@ -9,7 +9,7 @@ public class JumpHandler extends GenericInstructionHandler<JumpInsnNode> {
 
     @Override
     protected void process(MethodContext context, JumpInsnNode node) {
-        props.put("label", String.valueOf(context.getLabelPool().getName(node.label.getLabel())));
+        props.put("label", context.getJumpLabel(node, node.label));
     }
 
     @Override
@@ -3,6 +3,8 @@ package dev.daedalus.instructions;
 import dev.daedalus.MYObfuscator;
 import dev.daedalus.MethodContext;
 import dev.daedalus.Util;
+import dev.daedalus.cache.CachedClassInfo;
+import dev.daedalus.cache.CachedMethodInfo;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.LdcInsnNode;
 
@@ -43,13 +45,14 @@ public class LdcHandler extends GenericInstructionHandler<LdcInsnNode> {
         boolean stringObf = MYObfuscator.isStringObf();
         Object cst = node.cst;
         if (cst instanceof String) {
-            if (!node.cst.toString().isEmpty()) {
-                instructionName += "_STRING";
-                props.put("cst_ptr", (stringObf ? Util.getStringObf(Util.utf82ints(node.cst.toString())) : "(unsigned short[]) {" + Util.utf82unicode(node.cst.toString()) + "}"));
-                props.put("cst_length", "" + node.cst.toString().length());
-            } else {
-                instructionName += "_STRING_NULL";
-            }
+            instructionName += "_STRING";
+            String value = node.cst.toString();
+            CachedClassInfo string = context.getCachedClasses().getClass("java/lang/String");
+            props.put("class_ptr", "c_" + string.getId() + "_");
+            props.put("methodid", "method_" + string.getCachedMethodId(new CachedMethodInfo("java/lang/String", "intern", "()Ljava/lang/String;", false)));
+            props.put("cst_ptr", context.getCachedStrings().getPointer(value));
+            props.put("cst_chars", value.isEmpty() ? "NULL" : (stringObf ? Util.getStringObf(Util.utf82ints(value)) : "(unsigned short[]) {" + Util.utf82unicode(value) + "}"));
+            props.put("cst_length", "" + value.length());
         } else if (cst instanceof Integer) {
             instructionName += "_INT";
             props.put("cst", getIntString((Integer) cst));
@@ -2,7 +2,6 @@ package dev.daedalus.instructions;
 
 import dev.daedalus.MethodContext;
 import dev.daedalus.Util;
-import org.objectweb.asm.Label;
 import org.objectweb.asm.tree.LookupSwitchInsnNode;
 
 public class LookupSwitchHandler extends GenericInstructionHandler<LookupSwitchInsnNode> {
@@ -16,9 +15,9 @@ public class LookupSwitchHandler extends GenericInstructionHandler<LookupSwitchI
         for (int i = 0; i < node.labels.size(); ++i) {
             output.append(String.format("    %s\n    ", getPart(context,
                     node.keys.get(i),
-                    node.labels.get(i).getLabel())));
+                    context.getJumpLabel(node, node.labels.get(i)))));
         }
-        output.append(String.format("    %s\n    ", getDefault(context, node.dflt.getLabel())));
+        output.append(String.format("    %s\n    ", getDefault(context, context.getJumpLabel(node, node.dflt))));
 
         instructionName = "LOOKUPSWITCH_END";
     }
@@ -29,16 +28,16 @@ public class LookupSwitchHandler extends GenericInstructionHandler<LookupSwitchI
         ));
     }
 
-    private static String getPart(MethodContext context, int key, Label label) {
+    private static String getPart(MethodContext context, int key, String label) {
         return context.getSnippets().getSnippet("LOOKUPSWITCH_PART", Util.createMap(
                 "key", key,
-                "label", context.getLabelPool().getName(label)
+                "label", label
         ));
     }
 
-    private static String getDefault(MethodContext context, Label label) {
+    private static String getDefault(MethodContext context, String label) {
         return context.getSnippets().getSnippet("LOOKUPSWITCH_DEFAULT", Util.createMap(
-                "label", context.getLabelPool().getName(label)
+                "label", label
         ));
     }
 
@@ -1,22 +1,100 @@
 package dev.daedalus.instructions;
 
-import dev.daedalus.MYObfuscator;
+import dev.daedalus.ArrayTypes;
 import dev.daedalus.MethodContext;
+import dev.daedalus.MethodProcessor;
 import dev.daedalus.Util;
 import dev.daedalus.cache.CachedClassInfo;
-import dev.daedalus.cache.CachedFieldInfo;
 import dev.daedalus.cache.CachedMethodInfo;
+import dev.daedalus.utils.BuildManifest;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Stream;
+import java.util.Map;
+import java.util.Set;
 
 public class MethodHandler extends GenericInstructionHandler<MethodInsnNode> {
 
+    // Static calls that are a C expression; the snippets keep the Java results for NaN, -0.0 and rounding
+    private static final Map<String, String> INTRINSICS = new HashMap<>();
+
+    private static final Set<String> LINKABLE = new HashSet<>(Arrays.asList(
+            "java/lang/Object", "java/lang/String", "java/lang/CharSequence", "java/lang/Class", "java/lang/ClassLoader",
+            "java/lang/Number", "java/lang/Boolean", "java/lang/Byte", "java/lang/Character", "java/lang/Short",
+            "java/lang/Integer", "java/lang/Long", "java/lang/Float", "java/lang/Double", "java/lang/Void",
+            "java/lang/Enum", "java/lang/Comparable", "java/lang/Iterable", "java/lang/Runnable", "java/lang/Thread",
+            "java/lang/StringBuilder", "java/lang/Throwable", "java/lang/Exception", "java/lang/RuntimeException",
+            "java/lang/Error", "java/io/Serializable", "java/io/InputStream", "java/io/OutputStream", "java/io/File",
+            "java/math/BigInteger", "java/math/BigDecimal", "java/lang/invoke/MethodHandle", "java/lang/invoke/MethodType",
+            "java/util/Collection", "java/util/List", "java/util/Set", "java/util/Map", "java/util/Iterator",
+            "java/util/ArrayList", "java/util/HashMap", "java/util/HashSet", "java/util/Optional",
+            "java/util/function/Function", "java/util/function/BiFunction", "java/util/function/Supplier",
+            "java/util/function/Consumer", "java/util/function/BiConsumer", "java/util/function/Predicate",
+            "java/util/stream/Stream"
+    ));
+
+    static {
+        for (String owner : new String[]{"java/lang/Math", "java/lang/StrictMath"}) {
+            INTRINSICS.put(owner + ".abs(I)I", "INTRINSIC_ABS_I");
+            INTRINSICS.put(owner + ".abs(J)J", "INTRINSIC_ABS_J");
+            INTRINSICS.put(owner + ".abs(F)F", "INTRINSIC_ABS_F");
+            INTRINSICS.put(owner + ".abs(D)D", "INTRINSIC_ABS_D");
+            INTRINSICS.put(owner + ".min(II)I", "INTRINSIC_MIN_I");
+            INTRINSICS.put(owner + ".min(JJ)J", "INTRINSIC_MIN_J");
+            INTRINSICS.put(owner + ".min(FF)F", "INTRINSIC_MIN_F");
+            INTRINSICS.put(owner + ".min(DD)D", "INTRINSIC_MIN_D");
+            INTRINSICS.put(owner + ".max(II)I", "INTRINSIC_MAX_I");
+            INTRINSICS.put(owner + ".max(JJ)J", "INTRINSIC_MAX_J");
+            INTRINSICS.put(owner + ".max(FF)F", "INTRINSIC_MAX_F");
+            INTRINSICS.put(owner + ".max(DD)D", "INTRINSIC_MAX_D");
+            INTRINSICS.put(owner + ".sqrt(D)D", "INTRINSIC_SQRT_D");
+            INTRINSICS.put(owner + ".floor(D)D", "INTRINSIC_FLOOR_D");
+            INTRINSICS.put(owner + ".ceil(D)D", "INTRINSIC_CEIL_D");
+            INTRINSICS.put(owner + ".rint(D)D", "INTRINSIC_RINT_D");
+            INTRINSICS.put(owner + ".fma(FFF)F", "INTRINSIC_FMA_F");
+            INTRINSICS.put(owner + ".fma(DDD)D", "INTRINSIC_FMA_D");
+            INTRINSICS.put(owner + ".signum(F)F", "INTRINSIC_SIGNUM_F");
+            INTRINSICS.put(owner + ".signum(D)D", "INTRINSIC_SIGNUM_D");
+        }
+        // StrictMath.copySign treats every NaN sign as positive, Math.copySign keeps the raw bit like C
+        INTRINSICS.put("java/lang/Math.copySign(FF)F", "INTRINSIC_COPYSIGN_F");
+        INTRINSICS.put("java/lang/Math.copySign(DD)D", "INTRINSIC_COPYSIGN_D");
+        INTRINSICS.put("java/lang/Float.floatToRawIntBits(F)I", "INTRINSIC_RAW_BITS_F");
+        INTRINSICS.put("java/lang/Float.floatToIntBits(F)I", "INTRINSIC_BITS_F");
+        INTRINSICS.put("java/lang/Float.intBitsToFloat(I)F", "INTRINSIC_FROM_BITS_F");
+        INTRINSICS.put("java/lang/Float.isNaN(F)Z", "INTRINSIC_IS_NAN");
+        INTRINSICS.put("java/lang/Float.isInfinite(F)Z", "INTRINSIC_IS_INFINITE");
+        INTRINSICS.put("java/lang/Float.isFinite(F)Z", "INTRINSIC_IS_FINITE");
+        INTRINSICS.put("java/lang/Double.doubleToRawLongBits(D)J", "INTRINSIC_RAW_BITS_D");
+        INTRINSICS.put("java/lang/Double.doubleToLongBits(D)J", "INTRINSIC_BITS_D");
+        INTRINSICS.put("java/lang/Double.longBitsToDouble(J)D", "INTRINSIC_FROM_BITS_D");
+        INTRINSICS.put("java/lang/Double.isNaN(D)Z", "INTRINSIC_IS_NAN");
+        INTRINSICS.put("java/lang/Double.isInfinite(D)Z", "INTRINSIC_IS_INFINITE");
+        INTRINSICS.put("java/lang/Double.isFinite(D)Z", "INTRINSIC_IS_FINITE");
+    }
+
+    /**
+     * The lowered calls, owner.name+desc to the snippet that replaces them.
+     */
+    public static Map<String, String> getIntrinsics() {
+        return Collections.unmodifiableMap(INTRINSICS);
+    }
+
     private static Type simplifyType(Type type) {
         switch (type.getSort()) {
             case Type.OBJECT:
@@ -28,125 +106,242 @@ public class MethodHandler extends GenericInstructionHandler<MethodInsnNode> {
         return type;
     }
 
-    private static String simplifyDesc(String desc) {
-        return Type.getMethodType(simplifyType(Type.getReturnType(desc)), Arrays.stream(Type.getArgumentTypes(desc))
-                .map(MethodHandler::simplifyType).toArray(Type[]::new)).getDescriptor();
+    private static Type getAdapterType(Type type) {
+        switch (type.getSort()) {
+            case Type.ARRAY:
+                return getAdapterType(type.getElementType()).equals(type.getElementType()) ? type : simplifyType(type);
+            case Type.OBJECT:
+                return isLinkable(type.getInternalName()) ? type : simplifyType(type);
+        }
+        return type;
+    }
+
+    // Throws WrongMethodTypeException unless the handle in local 0 has exactly the type of the descriptor
+    private static void addTypeCheck(MethodNode method, String desc) {
+        LabelNode matches = new LabelNode();
+        method.instructions.add(new VarInsnNode(Opcodes.ALOAD, 0));
+        method.instructions.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "type", "()Ljava/lang/invoke/MethodType;"));
+        method.instructions.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/invoke/MethodType", "toMethodDescriptorString", "()Ljava/lang/String;"));
+        method.instructions.add(new LdcInsnNode(desc));
+        method.instructions.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z"));
+        method.instructions.add(new JumpInsnNode(Opcodes.IFNE, matches));
+        method.instructions.add(new TypeInsnNode(Opcodes.NEW, "java/lang/invoke/WrongMethodTypeException"));
+        method.instructions.add(new InsnNode(Opcodes.DUP));
+        method.instructions.add(new TypeInsnNode(Opcodes.NEW, "java/lang/StringBuilder"));
+        method.instructions.add(new InsnNode(Opcodes.DUP));
+        method.instructions.add(new LdcInsnNode("handle's method type "));
+        method.instructions.add(new MethodInsnNode(Opcodes.INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(Ljava/lang/String;)V"));
+        method.instructions.add(new VarInsnNode(Opcodes.ALOAD, 0));
+        method.instructions.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "type", "()Ljava/lang/invoke/MethodType;"));
+        method.instructions.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/Object;)Ljava/lang/StringBuilder;"));
+        method.instructions.add(new LdcInsnNode(" but found " + desc));
+        method.instructions.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;"));
+        method.instructions.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;"));
+        method.instructions.add(new MethodInsnNode(Opcodes.INVOKESPECIAL, "java/lang/invoke/WrongMethodTypeException", "<init>", "(Ljava/lang/String;)V"));
+        method.instructions.add(new InsnNode(Opcodes.ATHROW));
+        method.instructions.add(matches);
+    }
+
+    // The adapter lives in the Loader package, so only public platform classes can stay in its descriptor.
+    // They come from a fixed list that every runtime since Java 8 has, not from the JDK running the build
+    private static boolean isLinkable(String internalName) {
+        return LINKABLE.contains(internalName);
+    }
+
+    // System.arraycopy and java.util.Arrays calls on primitive arrays that have a native fast path
+    private String getArrayIntrinsic(MethodContext context, MethodInsnNode node) {
+        if (node.getOpcode() != Opcodes.INVOKESTATIC) {
+            return null;
+        }
+        Type[] args = Type.getArgumentTypes(node.desc);
+        Type array;
+        String intrinsic = null;
+        if (ArrayTypes.isArrayCopy(node)) {
+            array = context.arrayTypes != null ? context.arrayTypes.getCopyType(node) : null;
+            intrinsic = array != null ? "INTRINSIC_ARRAYCOPY" : null;
+        } else if (node.owner.equals("java/util/Arrays") && args.length > 0 && isPrimitiveArray(args[0])) {
+            array = args[0];
+            Type element = array.getElementType();
+            switch (node.name) {
+                case "fill":
+                    if (args.length == 2 && args[1].equals(element)) {
+                        intrinsic = "INTRINSIC_ARRAYS_FILL";
+                    } else if (args.length == 4 && args[1] == Type.INT_TYPE && args[2] == Type.INT_TYPE && args[3].equals(element)) {
+                        intrinsic = "INTRINSIC_ARRAYS_FILL_RANGE";
+                    }
+                    break;
+                case "equals":
+                    // float and double compare by their canonical bits, which memcmp does not do for NaNs
+                    if (args.length == 2 && args[1].equals(array) && element != Type.FLOAT_TYPE && element != Type.DOUBLE_TYPE) {
+                        intrinsic = "INTRINSIC_ARRAYS_EQUALS";
+                    }
+                    break;
+                case "copyOf":
+                    if (args.length == 2 && args[1] == Type.INT_TYPE) {
+                        intrinsic = "INTRINSIC_ARRAYS_COPYOF";
+                    }
+                    break;
+                case "hashCode":
+                    if (args.length == 1) {
+                        intrinsic = "INTRINSIC_ARRAYS_HASHCODE";
+                    }
+                    break;
+            }
+        } else {
+            return null;
+        }
+        if (intrinsic != null) {
+            int sort = array.getElementType().getSort();
+            props.put("ctype", MethodProcessor.CPP_TYPES[sort]);
+            props.put("suffix", String.valueOf("zcbsifjd".charAt(sort - Type.BOOLEAN)));
+        }
+        return intrinsic;
+    }
+
+    private static String getStringIntrinsicName(MethodInsnNode node) {
+        if (node.getOpcode() != Opcodes.INVOKEVIRTUAL || !node.owner.equals("java/lang/String")) {
+            return null;
+        }
+        switch (node.name + node.desc) {
+            case "length()I":
+                return "INTRINSIC_STRING_LENGTH";
+            case "isEmpty()Z":
+                return "INTRINSIC_STRING_IS_EMPTY";
+            case "charAt(I)C":
+                return "INTRINSIC_STRING_CHAR_AT";
+            case "indexOf(I)I":
+                return "INTRINSIC_STRING_INDEX_OF";
+            case "indexOf(II)I":
+                return "INTRINSIC_STRING_INDEX_OF_FROM";
+            case "equals(Ljava/lang/Object;)Z":
+                return "INTRINSIC_STRING_EQUALS";
+        }
+        return null;
+    }
+
+    /**
+     * Whether the method reads strings through the intrinsics, which share one cached char buffer per method.
+     */
+    public static boolean usesStringCache(MethodNode method) {
+        for (AbstractInsnNode insn : method.instructions) {
+            if (insn instanceof MethodInsnNode && getStringIntrinsicName((MethodInsnNode) insn) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // String reads with a native fast path; the cache is keyed by the local reference, so it is left out when
+    // loop frames pop references and their handles can come back for another string
+    private String getStringIntrinsic(MethodContext context, MethodInsnNode node) {
+        String intrinsic = getStringIntrinsicName(node);
+        if (intrinsic != null) {
+            props.put("strcache", context.loopFrames == null ? "&daedalus_strs" : "NULL");
+        }
+        return intrinsic;
+    }
+
+    private static boolean isPrimitiveArray(Type type) {
+        return type.getSort() == Type.ARRAY && type.getDimensions() == 1 && type.getElementType().getSort() <= Type.DOUBLE;
     }
 
     @Override
     protected void process(MethodContext context, MethodInsnNode node) {
-        boolean stringObf = MYObfuscator.isStringObf();
         //System.out.println(node.owner+","+node.getType()+","+node.name+","+node.desc);
         if (node.owner.equals("java/lang/invoke/MethodHandle") &&
                 (node.name.equals("invokeExact") || node.name.equals("invoke")) &&
                 node.getOpcode() == Opcodes.INVOKEVIRTUAL) {
 
-            //System.out.println(node.owner+node.getType()+node.name+node.desc);
-            // stack - mh, args
-            String methodDesc = simplifyDesc(Type.getMethodType(Type.getReturnType(node.desc),
-                    Stream.concat(Arrays.stream(new Type[]{
-                            Type.getObjectType("java/lang/invoke/MethodHandle")
-                    }), Arrays.stream(Type.getArgumentTypes(node.desc))).toArray(Type[]::new)).getDescriptor());
-            Type[] methodArguments = Type.getArgumentTypes(methodDesc);
-            methodArguments[0] = Type.getObjectType("java/lang/invoke/MethodHandle");
-            methodDesc = Type.getMethodDescriptor(Type.getReturnType(methodDesc), methodArguments);
-            String mhDesc = simplifyDesc(node.desc);
-            //context.output.append("printf(\"main run "+System.currentTimeMillis()+"\\n\");");
-            context.output.append("temp0.l = (*env)->NewObjectArray(env, ").append(Type.getArgumentTypes(mhDesc).length).append(", c_").append(context.getCachedClasses().getClass("java/lang/Object").getId()).append("_(env)->clazz, NULL);\n");
-            //context.output.append("(*env)->SetObjectArrayElement(env, temp1.l, 0, cstack1.l);");
-            for (int i = 0; i < Type.getArgumentTypes(mhDesc).length; i++) {
-                Type argumentType = Type.getArgumentTypes(mhDesc)[i];
-                switch (argumentType.getSort()) {
-                    case Type.BOOLEAN:
-                    case Type.CHAR:
-                    case Type.BYTE:
-                    case Type.INT:
-                        CachedClassInfo integer = context.getCachedClasses().getClass("java/lang/Integer");
-                        context.output.append("(*env)->SetObjectArrayElement(env, temp0.l, ").append(i).append(", (*env)->CallStaticObjectMethod(env, c_").append(integer.getId()).append("_(env)->clazz, c_").append(integer.getId()).append("_(env)->method_").append(integer.getCachedMethodId(new CachedMethodInfo("java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;", true))).append(", cstack").append(1 + i).append(".l));\n");
-                        break;
-                    case Type.FLOAT:
-                        CachedClassInfo jfloat = context.getCachedClasses().getClass("java/lang/Float");
-                        context.output.append("(*env)->SetObjectArrayElement(env, temp0.l, ").append(i).append(", (*env)->CallStaticObjectMethod(env, c_").append(jfloat.getId()).append("_(env)->clazz, c_").append(jfloat.getId()).append("_(env)->method_").append(jfloat.getCachedMethodId(new CachedMethodInfo("java/lang/Float", "valueOf", "(F)Ljava/lang/Float;", true))).append(", cstack").append(1 + i).append(".l));\n");
-                        break;
-                    case Type.LONG:
-                        CachedClassInfo jlong = context.getCachedClasses().getClass("java/lang/Long");
-                        context.output.append("(*env)->SetObjectArrayElement(env, temp0.l, ").append(i).append(", (*env)->CallStaticObjectMethod(env, c_").append(jlong.getId()).append("_(env)->clazz, c_").append(jlong.getId()).append("_(env)->method_").append(jlong.getCachedMethodId(new CachedMethodInfo("java/lang/Long", "valueOf", "(J)Ljava/lang/Long;", true))).append(", cstack").append(1 + i).append(".l));\n");
-                        break;
-                    case Type.DOUBLE:
-                        CachedClassInfo jdouble = context.getCachedClasses().getClass("java/lang/Double");
-                        context.output.append("(*env)->SetObjectArrayElement(env, temp0.l, ").append(i).append(", (*env)->CallStaticObjectMethod(env, c_").append(jdouble.getId()).append("_(env)->clazz, c_").append(jdouble.getId()).append("_(env)->method_").append(jdouble.getCachedMethodId(new CachedMethodInfo("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", true))).append(", cstack").append(1 + i).append(".l));\n");
-                        break;
-                    case Type.METHOD:
-                        CachedClassInfo clazz = context.getCachedClasses().getClass(context.clazz.name);
-                        CachedClassInfo javaClass = context.getCachedClasses().getClass("java/lang/Class");
-                        CachedClassInfo methodType = context.getCachedClasses().getClass("java/lang/invoke/MethodType");
-                        context.output.append("(*env)->SetObjectArrayElement(env, temp0.l, ").append(i).append(", (*env)->CallStaticObjectMethod(env, /*java/lang/invoke/MethodType*/c_").append(methodType.getId()).append("_(env)->clazz, /*fromMethodDescriptorString*/c_").append(methodType.getId()).append("_(env)->method_").append(methodType.getCachedMethodId(new CachedMethodInfo("java/lang/invoke/MethodType", "fromMethodDescriptorString", "(Ljava/lang/String;Ljava/lang/ClassLoader;)Ljava/lang/invoke/MethodType;", true))).append(", /*").append(argumentType).append("*/(*env)->NewString(env, ").append(stringObf ? Util.getStringObf(Util.utf82ints(argumentType.toString())) : "(unsigned short[]) {" + Util.utf82unicode(argumentType.toString()) + "}").append(", ").append(argumentType.toString().length()).append("), (*env)->CallObjectMethod(env,/*").append(context.clazz.name).append("*/c_").append(clazz.getId()).append("_(env)->clazz, /*java/lang/Class.getClassLoader*/c_").append(javaClass.getId()).append("_(env)->method_").append(javaClass.getCachedMethodId(new CachedMethodInfo("java/lang/Class", "getClassLoader", "()Ljava/lang/ClassLoader;", false))).append(")));\n");
-                        break;
-                    case Type.ARRAY:
-                    case Type.OBJECT:
-                    default:
-                        context.output.append("(*env)->SetObjectArrayElement(env, temp0.l, ").append(i).append(", cstack").append(1 + i).append(".l);\n");
-                        break;
-                }
+            // stack - mh, args; one static Loader adapter per signature keeps primitives unboxed
+            Type[] args = Type.getArgumentTypes(node.desc);
+            Type returnType = getAdapterType(Type.getReturnType(node.desc));
+            boolean exact = returnType.equals(Type.getReturnType(node.desc));
+            Type[] adapterArgs = new Type[args.length + 1];
+            adapterArgs[0] = Type.getObjectType("java/lang/invoke/MethodHandle");
+            for (int i = 0; i < args.length; i++) {
+                adapterArgs[i + 1] = getAdapterType(args[i]);
+                exact &= adapterArgs[i + 1].equals(args[i]);
             }
-            CachedClassInfo methodHandle = context.getCachedClasses().getClass("java/lang/invoke/MethodHandle");
-            if (Type.getReturnType(mhDesc).getSize() == 0) {
-                context.output.append("(*env)->CallObjectMethod(env, cstack0.l, c_").append(methodHandle.getId()).append("_(env)->method_").append(methodHandle.getCachedMethodId(new CachedMethodInfo("java/lang/invoke/MethodHandle", "invokeWithArguments", "([Ljava/lang/Object;)Ljava/lang/Object;", false))).append(", temp0.l);\n");
-            } else {
-                Type returnType = Type.getReturnType(mhDesc);
-                switch (returnType.getSort()) {
-                    case Type.BOOLEAN:
-                        CachedClassInfo jbool = context.getCachedClasses().getClass("java/lang/Boolean");
-                        context.output.append("cstack0.z = (*env)->CallBooleanMethod(env, (*env)->CallObjectMethod(env, cstack0.l, c_").append(methodHandle.getId()).append("_(env)->method_").append(methodHandle.getCachedMethodId(new CachedMethodInfo("java/lang/invoke/MethodHandle", "invokeWithArguments", "([Ljava/lang/Object;)Ljava/lang/Object;", false))).append(", temp0.l),c_").append(jbool.getId()).append("_(env)->method_").append(jbool.getCachedMethodId(new CachedMethodInfo("java/lang/Boolean", "booleanValue", "()Z", false))).append(");\n");
-                        break;
-                    case Type.CHAR:
-                        CachedClassInfo jchar = context.getCachedClasses().getClass("java/lang/Character");
-                        context.output.append("cstack0.c = (*env)->CallCharMethod(env, (*env)->CallObjectMethod(env, cstack0.l, c_").append(methodHandle.getId()).append("_(env)->method_").append(methodHandle.getCachedMethodId(new CachedMethodInfo("java/lang/invoke/MethodHandle", "invokeWithArguments", "([Ljava/lang/Object;)Ljava/lang/Object;", false))).append(", temp0.l),c_").append(jchar.getId()).append("_(env)->method_").append(jchar.getCachedMethodId(new CachedMethodInfo("java/lang/Character", "charValue", "()C", false))).append(");\n");
-                        break;
-                    case Type.BYTE:
-                        CachedClassInfo jbyte = context.getCachedClasses().getClass("java/lang/Byte");
-                        context.output.append("cstack0.b = (*env)->CallByteMethod(env, (*env)->CallObjectMethod(env, cstack0.l, c_").append(methodHandle.getId()).append("_(env)->method_").append(methodHandle.getCachedMethodId(new CachedMethodInfo("java/lang/invoke/MethodHandle", "invokeWithArguments", "([Ljava/lang/Object;)Ljava/lang/Object;", false))).append(", temp0.l),c_").append(jbyte.getId()).append("_(env)->method_").append(jbyte.getCachedMethodId(new CachedMethodInfo("java/lang/Byte", "byteValue", "()B", false))).append(");\n");
-                        break;
-                    case Type.INT:
-                        CachedClassInfo jint = context.getCachedClasses().getClass("java/lang/Integer");
-                        context.output.append("cstack0.i = (*env)->CallIntMethod(env, (*env)->CallObjectMethod(env, cstack0.l, c_").append(methodHandle.getId()).append("_(env)->method_").append(methodHandle.getCachedMethodId(new CachedMethodInfo("java/lang/invoke/MethodHandle", "invokeWithArguments", "([Ljava/lang/Object;)Ljava/lang/Object;", false))).append(", temp0.l),c_").append(jint.getId()).append("_(env)->method_").append(jint.getCachedMethodId(new CachedMethodInfo("java/lang/Integer", "intValue", "()I", false))).append(");\n");
-                        break;
-                    case Type.FLOAT:
-                        CachedClassInfo jfloat = context.getCachedClasses().getClass("java/lang/Float");
-                        context.output.append("cstack0.f = (*env)->CallFloatMethod(env, (*env)->CallObjectMethod(env, cstack0.l, c_").append(methodHandle.getId()).append("_(env)->method_").append(methodHandle.getCachedMethodId(new CachedMethodInfo("java/lang/invoke/MethodHandle", "invokeWithArguments", "([Ljava/lang/Object;)Ljava/lang/Object;", false))).append(", temp0.l),c_").append(jfloat.getId()).append("_(env)->method_").append(jfloat.getCachedMethodId(new CachedMethodInfo("java/lang/Float", "floatValue", "()F", false))).append(");\n");
-                        break;
-                    case Type.LONG:
-                        CachedClassInfo jlong = context.getCachedClasses().getClass("java/lang/Long");
-                        context.output.append("cstack0.j = (*env)->CallLongMethod(env, (*env)->CallObjectMethod(env, cstack0.l, c_").append(methodHandle.getId()).append("_(env)->method_").append(methodHandle.getCachedMethodId(new CachedMethodInfo("java/lang/invoke/MethodHandle", "invokeWithArguments", "([Ljava/lang/Object;)Ljava/lang/Object;", false))).append(", temp0.l),c_").append(jlong.getId()).append("_(env)->method_").append(jlong.getCachedMethodId(new CachedMethodInfo("java/lang/Long", "longValue", "()J", false))).append(");\n");
-                        break;
-                    case Type.DOUBLE:
-                        CachedClassInfo jdouble = context.getCachedClasses().getClass("java/lang/Double");
-                        context.output.append("cstack0.d = (*env)->CallDoubleMethod(env, (*env)->CallObjectMethod(env, cstack0.l, c_").append(methodHandle.getId()).append("_(env)->method_").append(methodHandle.getCachedMethodId(new CachedMethodInfo("java/lang/invoke/MethodHandle", "invokeWithArguments", "([Ljava/lang/Object;)Ljava/lang/Object;", false))).append(", temp0.l),c_").append(jdouble.getId()).append("_(env)->method_").append(jdouble.getCachedMethodId(new CachedMethodInfo("java/lang/Double", "doubleValue", "()D", false))).append(");\n");
-                        break;
-                    case Type.METHOD:
-                        break;
-                    case Type.ARRAY:
-                    case Type.OBJECT:
-                    default:
-                        context.output.append("cstack0.l = (*env)->CallObjectMethod(env, cstack0.l, c_").append(methodHandle.getId()).append("_(env)->method_").append(methodHandle.getCachedMethodId(new CachedMethodInfo("java/lang/invoke/MethodHandle", "invokeWithArguments", "([Ljava/lang/Object;)Ljava/lang/Object;", false))).append(", temp0.l);\n");
-                        break;
+            // A widened descriptor no longer matches the handle type exactly, so it has to go through invoke. For
+            // invokeExact the adapter first checks the handle type against the type of the site, so it has one
+            // adapter per site type and throws WrongMethodTypeException like the JVM would
+            boolean checkType = !exact && node.name.equals("invokeExact");
+            String siteDesc = node.desc;
+            String mhName = exact ? node.name : "invoke";
+            String adapterName = checkType ? "invokeExact$" + BuildManifest.hash("invokeExact " + siteDesc).substring(0, 16) : mhName;
+            String mhDesc = Type.getMethodDescriptor(returnType, Arrays.copyOfRange(adapterArgs, 1, adapterArgs.length));
+            String methodDesc = Type.getMethodDescriptor(returnType, adapterArgs);
+            context.addBootstrapMethod(adapterName, methodDesc, method -> {
+                if (checkType) {
+                    addTypeCheck(method, siteDesc);
+                }
+                method.instructions.add(new VarInsnNode(Opcodes.ALOAD, 0));
+                int idx = 1;
+                for (Type argument : Type.getArgumentTypes(mhDesc)) {
+                    method.instructions.add(new VarInsnNode(argument.getOpcode(Opcodes.ILOAD), idx));
+                    idx += argument.getSize();
                 }
+                method.instructions.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", mhName, mhDesc));
+                method.instructions.add(new InsnNode(returnType.getOpcode(Opcodes.IRETURN)));
+            });
+
+            int stackOffset = context.stackPointer;
+            for (Type argType : args) {
+                stackOffset -= argType.getSize();
+            }
+            StringBuilder argsBuilder = new StringBuilder(", cstack").append(stackOffset - 1).append(".l");
+            for (int i = 0, offset = stackOffset; i < args.length; offset += args[i].getSize(), i++) {
+                argsBuilder.append(", ").append(context.getSnippets().getSnippet("INVOKE_ARG_" + args[i].getSort(),
+                        Util.createMap("index", offset)));
             }
-            context.output.append(props.get("trycatchhandler"));
+
+            String loaderName = context.obfuscator.getNativeDir() + "/Loader";
+            CachedClassInfo classLoader = context.getCachedClasses().getClass(loaderName);
+            instructionName = "INVOKESTATIC_" + returnType.getSort();
+            props.put("class_ptr", "c_" + classLoader.getId() + "_");
+            props.put("methodid", "method_" + classLoader.getCachedMethodId(new CachedMethodInfo(loaderName, adapterName, methodDesc, true)));
+            props.put("returnstackindex", String.valueOf(stackOffset - 1));
+            props.put("args", argsBuilder.toString());
             return;
         }
 
-        props.put("class_ptr", "c_" + context.getCachedClasses().getId(node.owner) + "_");
-        CachedClassInfo classInfo = context.getCachedClasses().getClass(node.owner);
-        List<CachedFieldInfo> cachedFields = classInfo.getCachedFields();
-        for (int i = 0; i < cachedFields.size(); i++) {
-            CachedFieldInfo fieldNode = cachedFields.get(i);
-            if (fieldNode.getName().equals(node.name)) {
-                //System.out.println("field_id:" + "=====" +node.name+"," + "id_" + i +","+node.owner);
-                props.put("field_id", "id_" + i);
+        String intrinsic = node.getOpcode() == Opcodes.INVOKESTATIC ? INTRINSICS.get(node.owner + "." + node.name + node.desc) : null;
+        if (intrinsic != null) {
+            Type[] args = Type.getArgumentTypes(node.desc);
+            int offset = context.stackPointer;
+            for (Type argType : args) {
+                offset -= argType.getSize();
+            }
+            props.put("returnstackindex", String.valueOf(offset));
+            for (int i = 0; i < args.length; offset += args[i].getSize(), i++) {
+                props.put("arg" + i, context.getSnippets().getSnippet("INVOKE_ARG_" + args[i].getSort(),
+                        Util.createMap("index", offset)));
+            }
+            instructionName = intrinsic;
+            context.count(context.obfuscator.getIntrinsicCalls(), 1);
+            return;
+        }
+
+        boolean devirtualized = false;
+        if (context.obfuscator.getClassHierarchy() != null &&
+                (node.getOpcode() == Opcodes.INVOKEVIRTUAL || node.getOpcode() == Opcodes.INVOKEINTERFACE)) {
+            String target = context.getSingleTarget(node.owner, node.name, node.desc);
+            if (target != null) {
+                if (node.getOpcode() == Opcodes.INVOKEINTERFACE) {
+                    int receiver = context.stackPointer - Arrays.stream(Type.getArgumentTypes(node.desc)).mapToInt(Type::getSize).sum() - 1;
+                    context.output.append("if (cstack").append(receiver).append(".l == NULL) throw_exception(env, \"java/lang/NullPointerException\", \"INVOKEINTERFACE npe\", ")
+                            .append(context.line).append(");\nelse ");
+                }
+                node = new MethodInsnNode(Opcodes.INVOKESPECIAL, target, node.name, node.desc, false);
+                instructionName = "INVOKESPECIAL";
+                devirtualized = true;
+                context.count(context.obfuscator.getDevirtualizedSites(), 1);
             }
         }
 
+        props.put("class_ptr", "c_" + context.getCachedClasses().getId(node.owner) + "_");
+        CachedClassInfo classInfo = context.getCachedClasses().getClass(node.owner);
+
         Type returnType = Type.getReturnType(node.desc);
         Type[] args = Type.getArgumentTypes(node.desc);
         instructionName += "_" + returnType.getSort();
@@ -175,22 +370,134 @@ public class MethodHandler extends GenericInstructionHandler<MethodInsnNode> {
         props.put("objectstackindex", String.valueOf(stackOffset - objectOffset));
         props.put("returnstackindex", String.valueOf(stackOffset - objectOffset));
 
-        List<CachedMethodInfo> cachedMethods = classInfo.getCachedMethods();
-        for (int i = 0; i < cachedMethods.size(); i++) {
-            CachedMethodInfo cachedMethodInfo = cachedMethods.get(i);
-            if (cachedMethodInfo.getName().equals(node.name) && cachedMethodInfo.getDesc().equals(node.desc)) {
-                props.put("methodid", "method_" + i);
+        props.put("methodid", "method_" + classInfo.getCachedMethodIndex(new CachedMethodInfo(node.owner, node.name, node.desc, isStatic), false));
+
+        props.put("args", argsBuilder.toString());
+
+        if (context.newObjects != null && context.newObjects.isFused(node)) {
+            // The NEW copy sits right under the DUP one the constructor consumes
+            instructionName = "NEWOBJECT";
+            props.put("newstackindex", String.valueOf(stackOffset - objectOffset - 1));
+            return;
+        }
+
+        String guardedIntrinsic = getArrayIntrinsic(context, node);
+        if (guardedIntrinsic == null) {
+            guardedIntrinsic = getStringIntrinsic(context, node);
+        }
+        if (guardedIntrinsic != null) {
+            // The plain call stays as the slow path, so nulls and bad ranges throw exactly what Java throws
+            props.put("fallback", context.getSnippets().getSnippet(instructionName, props));
+            for (int i = 0; i < args.length; i++) {
+                props.put("arg" + i, context.getSnippets().getSnippet("INVOKE_ARG_" + args[i].getSort(),
+                        Util.createMap("index", argOffsets.get(i))));
+            }
+            instructionName = guardedIntrinsic;
+            context.count(context.obfuscator.getIntrinsicCalls(), 1);
+            return;
+        }
+
+        if (devirtualized || isDirectCandidate(context, node)) {
+            String virtual = null;
+            if (!devirtualized && (node.getOpcode() == Opcodes.INVOKEVIRTUAL || node.getOpcode() == Opcodes.INVOKEINTERFACE)) {
+                virtual = context.getCachedVirtualCalls().getPointer(getVirtualKey(context, node));
             }
+            processDirectCall(context, node, returnType, args, argsBuilder.toString(), stackOffset - objectOffset, isStatic, virtual);
         }
-        if (props.get("methodid") == null) {
-            CachedMethodInfo methodInfo = new CachedMethodInfo(node.owner, node.name, node.desc, isStatic);
-            methodInfo.setId(cachedMethods.size());
-            cachedMethods.add(methodInfo);
-            //System.out.println("add:=========" + node.owner + node.name + methodInfo);
-            props.put("methodid", "method_" + (cachedMethods.size() - 1));
+    }
+
+    private static boolean isDirectCandidate(MethodContext context, MethodInsnNode node) {
+        // A static target outside the caller's class may not be initialized yet, and INVOKESPECIAL outside it is a super call
+        switch (node.getOpcode()) {
+            case Opcodes.INVOKESTATIC:
+            case Opcodes.INVOKESPECIAL:
+                return node.owner.equals(context.clazz.name) && !node.name.equals("<init>");
+            case Opcodes.INVOKEVIRTUAL:
+            case Opcodes.INVOKEINTERFACE:
+                return true;
         }
+        return false;
+    }
 
-        props.put("args", argsBuilder.toString());
+    private static String getPackage(String name) {
+        return name.substring(0, Math.max(name.lastIndexOf('/'), 0));
+    }
+
+    // name, desc and the package overriders must come from: a package-private target is only overridden
+    // from its own package, and only a caller in that package can reach one
+    private static String getVirtualKey(MethodContext context, MethodInsnNode node) {
+        String ownerPackage = getPackage(node.owner);
+        return node.name + node.desc + " " + (ownerPackage.equals(getPackage(context.clazz.name)) ? ownerPackage : "*");
+    }
+
+    // direct_N is bound in genCode to the target's C function, or NULL when the target is not translated,
+    // synchronized or overridable; the JNI call stays as the fallback and past the depth limit.
+    // virtual_N, for the remaining virtual sites, finds the translated function a receiver class selects
+    // and the site keeps the last class it saw in an inline cache
+    private void processDirectCall(MethodContext context, MethodInsnNode node, Type returnType, Type[] argTypes, String args,
+                                   int objectIndex, boolean isStatic, String virtual) {
+        String direct = context.getCachedDirectCalls().getPointer(new CachedMethodInfo(node.owner, node.name, node.desc, isStatic));
+        String trycatchhandler = props.get("trycatchhandler");
+        props.put("trycatchhandler", "");
+        String jniCall = context.getSnippets().getSnippet(instructionName, props);
+        instructionName = null;
+
+        String receiver = isStatic ? props.get("class_ptr") + "(env)->clazz" : "cstack" + objectIndex + ".l";
+        String result = returnType.getSort() == Type.VOID ? null : context.getSnippets().getSnippet("INVOKE_ARG_" + returnType.getSort(),
+                Util.createMap("index", objectIndex));
+        StringBuilder output = context.output;
+        output.append("if (").append(direct).append(" && daedalus_depth < DAEDALUS_DIRECT_DEPTH) {\n    ");
+        if (!isStatic) {
+            output.append("if (").append(receiver).append(" == NULL) throw_exception(env, \"java/lang/NullPointerException\", \"")
+                    .append(Util.getOpcodeString(node.getOpcode())).append(" npe\", ").append(context.line).append(");\n    else ");
+        }
+        output.append("if ((*env)->PushLocalFrame(env, 16) == 0) {\n");
+        output.append("        daedalus_depth++;\n");
+        output.append("        ");
+        if (result != null) {
+            output.append(result).append(" = ");
+        }
+        output.append(direct).append("(env, ").append(receiver).append(args).append(");\n");
+        output.append("        daedalus_depth--;\n");
+        if (returnType.getSort() == Type.OBJECT || returnType.getSort() == Type.ARRAY) {
+            output.append("        ").append(result).append(" = (*env)->PopLocalFrame(env, ").append(result).append(");\n");
+        } else {
+            output.append("        (*env)->PopLocalFrame(env, NULL);\n");
+        }
+        output.append("    }\n");
+        output.append("} else {\n");
+        if (virtual == null) {
+            output.append("    ").append(jniCall).append("\n");
+            output.append("}").append(trycatchhandler);
+            return;
+        }
+        StringBuilder functionType = new StringBuilder(MethodProcessor.CPP_TYPES[returnType.getSort()])
+                .append(" (JNICALL *)(JNIEnv *, jobject");
+        for (Type argType : argTypes) {
+            functionType.append(", ").append(MethodProcessor.CPP_TYPES[argType.getSort()]);
+        }
+        functionType.append(")");
+        output.append("    static _Atomic(struct daedalus_ic *) ic;\n");
+        output.append("    static atomic_int ic_misses;\n");
+        output.append("    void *target = ").append(virtual).append(" && daedalus_depth < DAEDALUS_DIRECT_DEPTH && ").append(receiver).append(" != NULL\n");
+        output.append("            ? daedalus_ic_target(env, &ic, &ic_misses, ").append(receiver).append(", ").append(virtual).append(") : NULL;\n");
+        output.append("    if (!target) {\n");
+        output.append("        ").append(jniCall).append("\n");
+        output.append("    } else if ((*env)->PushLocalFrame(env, 16) == 0) {\n");
+        output.append("        daedalus_depth++;\n");
+        output.append("        ");
+        if (result != null) {
+            output.append(result).append(" = ");
+        }
+        output.append("((").append(functionType).append(") target)(env, ").append(receiver).append(args).append(");\n");
+        output.append("        daedalus_depth--;\n");
+        if (returnType.getSort() == Type.OBJECT || returnType.getSort() == Type.ARRAY) {
+            output.append("        ").append(result).append(" = (*env)->PopLocalFrame(env, ").append(result).append(");\n");
+        } else {
+            output.append("        (*env)->PopLocalFrame(env, NULL);\n");
+        }
+        output.append("    }\n");
+        output.append("}").append(trycatchhandler);
     }
 
     @Override
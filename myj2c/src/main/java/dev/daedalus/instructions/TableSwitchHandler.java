@@ -2,7 +2,6 @@ package dev.daedalus.instructions;
 
 import dev.daedalus.MethodContext;
 import dev.daedalus.Util;
-import org.objectweb.asm.Label;
 import org.objectweb.asm.tree.TableSwitchInsnNode;
 
 public class TableSwitchHandler extends GenericInstructionHandler<TableSwitchInsnNode> {
@@ -16,9 +15,9 @@ public class TableSwitchHandler extends GenericInstructionHandler<TableSwitchIns
         for (int i = 0; i < node.labels.size(); ++i) {
             output.append(String.format("\t%s\n\t", getPart(context,
                     node.min + i,
-                    node.labels.get(i).getLabel())));
+                    context.getJumpLabel(node, node.labels.get(i)))));
         }
-        output.append(String.format("\t%s\n\t", getDefault(context, node.dflt.getLabel())));
+        output.append(String.format("\t%s\n\t", getDefault(context, context.getJumpLabel(node, node.dflt))));
 
         instructionName = "TABLESWITCH_END";
     }
@@ -29,16 +28,16 @@ public class TableSwitchHandler extends GenericInstructionHandler<TableSwitchIns
         ));
     }
 
-    private static String getPart(MethodContext context, int index, Label label) {
+    private static String getPart(MethodContext context, int index, String label) {
         return context.getSnippets().getSnippet("TABLESWITCH_PART", Util.createMap(
                 "index", index,
-                "label", context.getLabelPool().getName(label)
+                "label", label
         ));
     }
 
-    private static String getDefault(MethodContext context, Label label) {
+    private static String getDefault(MethodContext context, String label) {
         return context.getSnippets().getSnippet("TABLESWITCH_DEFAULT", Util.createMap(
-                "label", context.getLabelPool().getName(label)
+                "label", label
         ));
     }
 
@@ -1,7 +1,6 @@
 package dev.daedalus.instructions;
 
 import dev.daedalus.MethodContext;
-import dev.daedalus.MethodProcessor;
 import dev.daedalus.Util;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.TypeInsnNode;
@@ -14,12 +13,16 @@ public class TypeHandler extends GenericInstructionHandler<TypeInsnNode> {
 
         props.put("class_ptr", "c_" + context.getCachedClasses().getId(node.desc) + "_");
 
-        String instructionName = MethodProcessor.INSTRUCTIONS.getOrDefault(node.getOpcode(), "NOTFOUND");
-        if ("CHECKCAST".equals(instructionName)) {
+        if (node.getOpcode() == Opcodes.CHECKCAST) {
             props.put("exception_ptr", "c_" + context.getCachedClasses().getId("java/lang/ClassCastException") + "_");
         }
 
         props.put("desc_ptr", node.desc);
+
+        if (context.newObjects != null && context.newObjects.isDeferred(node)) {
+            // the constructor call allocates
+            instructionName = "NEW_DEFERRED";
+        }
     }
 
     @Override
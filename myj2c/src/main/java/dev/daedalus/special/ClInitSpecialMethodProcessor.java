@@ -38,10 +38,10 @@ public class ClInitSpecialMethodProcessor implements SpecialMethodProcessor {
                 throw new RuntimeException("Native method not created?!");
             }
             instructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
-                    context.obfuscator.getStaticClassProvider().getCurrentClassName(),
+                    context.getStaticClassProvider().getCurrentClassName(),
                     context.nativeMethod.name, context.nativeMethod.desc, false));
         } else {
-            if (!context.obfuscator.getNoInitClassMap().containsKey(context.clazz.name)) {
+            if (!context.getNoInitClassMap().containsKey(context.clazz.name)) {
                 instructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC, context.clazz.name,
                         //String.format("%s_special_clinit%d", context.obfuscator.getNativeDir(), context.methodIndex), context.method.desc, false));
                         "$daedalusClinit", context.method.desc, false));
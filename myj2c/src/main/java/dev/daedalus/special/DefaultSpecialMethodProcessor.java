@@ -32,7 +32,7 @@ public class DefaultSpecialMethodProcessor implements SpecialMethodProcessor {
                 throw new RuntimeException("Native method not created?!");
             }
             list.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
-                    context.obfuscator.getStaticClassProvider().getCurrentClassName(),
+                    context.getStaticClassProvider().getCurrentClassName(),
                     context.nativeMethod.name, context.nativeMethod.desc, false));
             list.add(new InsnNode(Type.getReturnType(context.method.desc).getOpcode(Opcodes.IRETURN)));
             context.method.instructions = list;
@@ -0,0 +1,170 @@
+package dev.daedalus.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * State of an incremental build kept next to its objects: the native package, the ids the shared caches handed out,
+ * the content hash, shard and translation record of every translated class, and for every object the hash of all
+ * inputs its compilation read. An object is only reused while that hash is unchanged, so the link sees the same
+ * objects a clean build would produce.
+ */
+public class BuildManifest {
+
+    private final Path path;
+    private final Properties previous = new Properties();
+    private final Properties current = new Properties();
+
+    public BuildManifest(Path path) {
+        this.path = path;
+        if (Files.exists(path)) {
+            try (InputStream in = Files.newInputStream(path)) {
+                previous.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                // An unreadable manifest only costs a full rebuild
+                previous.clear();
+            }
+        }
+    }
+
+    public static String hash(byte[]... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (byte[] part : parts) {
+                digest.update(part);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String hash(String text) {
+        return hash(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String getNativeDir() {
+        return previous.getProperty("nativeDir");
+    }
+
+    public void setNativeDir(String nativeDir) {
+        current.setProperty("nativeDir", nativeDir);
+    }
+
+    /**
+     * Records the content hash of a translated class and returns whether it differs from the last build.
+     */
+    public boolean putClass(String name, String hash) {
+        current.setProperty("class." + name, hash);
+        return !hash.equals(previous.getProperty("class." + name));
+    }
+
+    /**
+     * Whether the class had this content hash in the last build.
+     */
+    public boolean isUnchanged(String name, String hash) {
+        return hash.equals(previous.getProperty("class." + name));
+    }
+
+    /**
+     * The hash of the translation record the class had in the last build, or null.
+     */
+    public String getRecord(String name) {
+        return previous.getProperty("record." + name);
+    }
+
+    public void setRecord(String name, String hash) {
+        current.setProperty("record." + name, hash);
+    }
+
+    /**
+     * The entries of the last build whose keys start with the prefix, by the rest of their keys.
+     */
+    public Map<String, String> getEntries(String prefix) {
+        Map<String, String> entries = new HashMap<>();
+        for (String key : previous.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                entries.put(key.substring(prefix.length()), previous.getProperty(key));
+            }
+        }
+        return entries;
+    }
+
+    public void setEntry(String key, String value) {
+        current.setProperty(key, value);
+    }
+
+    public Map<String, Integer> getClassIds() {
+        Map<String, Integer> ids = new HashMap<>();
+        for (String key : previous.stringPropertyNames()) {
+            if (key.startsWith("classId.")) {
+                ids.put(key.substring("classId.".length()), Integer.parseInt(previous.getProperty(key)));
+            }
+        }
+        return ids;
+    }
+
+    public void setClassId(String name, int id) {
+        current.setProperty("classId." + name, String.valueOf(id));
+    }
+
+    public int getShardCount() {
+        return Integer.parseInt(previous.getProperty("shards", "0"));
+    }
+
+    public void setShardCount(int count) {
+        current.setProperty("shards", String.valueOf(count));
+    }
+
+    /**
+     * The shard the class was written to last time, or -1.
+     */
+    public int getShard(String name) {
+        return Integer.parseInt(previous.getProperty("shard." + name, "-1"));
+    }
+
+    public void setShard(String name, int shard) {
+        current.setProperty("shard." + name, String.valueOf(shard));
+    }
+
+    /**
+     * Whether the object file exists and was compiled from inputs with this hash. The hash is recorded for the next build.
+     */
+    public boolean isCurrent(String object, Path file, String hash) {
+        current.setProperty("object." + object, hash);
+        return hash.equals(previous.getProperty("object." + object)) && Files.exists(file);
+    }
+
+    /**
+     * Writes the entries sorted and without the date comment, so the same build writes the same manifest.
+     */
+    public void save() throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        current.store(text, null);
+        List<String> lines = new ArrayList<>();
+        for (String line : new String(text.toByteArray(), StandardCharsets.ISO_8859_1).split("\r?\n")) {
+            if (!line.startsWith("#")) {
+                lines.add(line);
+            }
+        }
+        Collections.sort(lines);
+        Files.createDirectories(path.getParent());
+        Files.write(path, lines, StandardCharsets.ISO_8859_1);
+    }
+}
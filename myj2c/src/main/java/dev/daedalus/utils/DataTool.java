@@ -92,6 +92,7 @@ public class DataTool {
             private void addDirectory(File f) {
                 File[] list = f.listFiles();
                 if (list != null) {
+                    Arrays.sort(list);
                     // first all directories, then all files
                     for (File c : list) {
                         if (c.isDirectory()) {
@@ -149,7 +150,7 @@ public class DataTool {
                 out.writeInt(0);
                 out.write(isFile ? 1 : 0);
                 out.write(!f.canWrite() ? 1 : 0);
-                writeVarLong(out, f.lastModified());
+                writeVarLong(out, SeededRandom.getTime(f.lastModified()));
                 if (isFile) {
                     remaining = f.length();
                     writeVarLong(out, remaining);
@@ -0,0 +1,43 @@
+package dev.daedalus.utils;
+
+import java.util.Random;
+
+/**
+ * Randomness of a build: class ids, the native package name, string obfuscation keys, flow obfuscation and
+ * timestamps. Without a seed everything is random as before. With one, every value is derived from the seed and a
+ * key naming what it is for, so it does not depend on the order things are generated in and two builds of the same
+ * input come out byte for byte the same.
+ */
+public class SeededRandom {
+
+    // 1980-01-01 12:00 UTC, the earliest time a zip entry holds in every time zone
+    private static final long FIXED_TIME = 315576000000L;
+
+    private static String seed;
+
+    public static void setSeed(String seed) {
+        SeededRandom.seed = seed == null || seed.trim().isEmpty() ? null : seed.trim();
+    }
+
+    public static boolean isSeeded() {
+        return seed != null;
+    }
+
+    /**
+     * A generator for the values of one key, the same for every build with the same seed, or a random one.
+     */
+    public static Random forKey(String key) {
+        if (seed == null) {
+            return new Random();
+        }
+        String hash = BuildManifest.hash(seed + '\0' + key);
+        return new Random(Long.parseUnsignedLong(hash.substring(0, 16), 16));
+    }
+
+    /**
+     * The time to record for a written file: a fixed one when seeded, so timestamps do not leak into the output.
+     */
+    public static long getTime(long time) {
+        return seed == null ? time : FIXED_TIME;
+    }
+}
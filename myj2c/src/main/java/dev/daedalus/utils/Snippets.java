@@ -51,8 +51,7 @@ public class Snippets {
             sb.append("BIPUSH=cstack$stackindex0.i = (jint) $operand;\n");
             sb.append("SIPUSH=cstack$stackindex0.i = (jint) $operand;\n");
             //sb.append("#LDC_STRING=cstack$stackindex0.l = $cst_ptr;\n");
-            sb.append("LDC_STRING=cstack$stackindex0.l = (*env)->NewString(env, $cst_ptr, $cst_length);\n");
-            sb.append("LDC_STRING_NULL=cstack$stackindex0.l = (*env)->NewString(env, NULL, 0);\n");
+            sb.append("LDC_STRING=cstack$stackindex0.l = $cst_ptr;\\nif (!cstack$stackindex0.l) { cstack$stackindex0.l = daedalus_ldc_string(env, &$cst_ptr, $cst_chars, $cst_length, $class_ptr(env)->$methodid); $trycatchhandler }\n");
             sb.append("LDC_INT=cstack$stackindex0.i = $cst;\n");
             sb.append("LDC_FLOAT=cstack$stackindex0.f = $cst;\n");
             sb.append("LDC_LONG=cstack$stackindex0.j = $cst;\n");
@@ -264,6 +263,8 @@ public class Snippets {
             //sb.append("NEW_CATCH=if(!$class_ptr(env)->clazz){cstack$stackindex0.l=NULL; (*env)->ThrowNew(env, (*env)->FindClass(env,\"java/lang/RuntimeException\"), \"\");}else{cstack$stackindex0.l = (*env)->AllocObject(env, $class_ptr(env)->clazz);} $trycatchhandler\n");
             sb.append("NEW=if(!$class_ptr(env)->clazz){$retvalue}cstack$stackindex0.l = (*env)->AllocObject(env, $class_ptr(env)->clazz);if(!cstack$stackindex0.l){$retvalue} $trycatchhandler\n");
             sb.append("NEW_CATCH=if(!$class_ptr(env)->clazz){$retvalue}cstack$stackindex0.l = (*env)->AllocObject(env, $class_ptr(env)->clazz);if(!cstack$stackindex0.l){$retvalue} $trycatchhandler\n");
+            sb.append("NEW_DEFERRED=;\n");
+            sb.append("NEWOBJECT=if(!$class_ptr(env)->clazz){$retvalue}cstack$newstackindex.l = (*env)->NewObject(env, $class_ptr(env)->clazz, $class_ptr(env)->$methodid$args);$trycatchhandler\n");
             //sb.append("#NEW_CATCH=temp0.l = (*env)->FindClass(env, \"$desc_ptr\");$trycatchhandler cstack$stackindex0.l = (*env)->AllocObject(env, (*env)->NewGlobalRef(env, temp0.l)); $trycatchhandler\n");
             //sb.append("#ANEWARRAY=if (cstack$stackindexm1.i < 0) throw_exception(env, \"#NASE\", \"#ERROR_DESC\", $line); \\nelse { cstack$stackindexm1.l = env->NewObjectArray(cstack$stackindexm1.i, $desc_ptr, nullptr); refs.insert(cstack$stackindexm1.l); } $trycatchhandler\n");
             sb.append("ANEWARRAY=if (cstack$stackindexm1.i < 0) throw_exception(env, \"#NASE\", \"#ERROR_DESC\", $line); \\nelse { cstack$stackindexm1.l = (*env)->NewObjectArray(env, cstack$stackindexm1.i, $class_ptr(env)->clazz, NULL);}$trycatchhandler\n");
@@ -309,11 +310,14 @@ public class Snippets {
             sb.append("TRYCATCH_START=if ((*env)->ExceptionCheck(env)) { \n");
             //sb.append("#TRYCATCH_CHECK_STACK=if (env->IsInstanceOf(cstack0.l, $exception_class_ptr)) { goto $handler_block; }\n");
             sb.append("TRYCATCH_CHECK_STACK=if ((*env)->IsInstanceOf(env, cstack0.l, $class_ptr(env)->clazz)) { \\n(*env)->ExceptionClear(env);\\n goto $handler_block; \\n}\n");
+            sb.append("TRYCATCH_DISPATCH=cstack0.l = (*env)->ExceptionOccurred(env); (*env)->ExceptionClear(env);\n");
             sb.append("TRYCATCH_ANY_L=goto $handler_block;\n");
             sb.append("TRYCATCH_END_STACK=(*env)->Throw(env, (jthrowable) cstack0.l); return temp0.$rettype;\n");
             sb.append("TRYCATCH_END_STACK_VOID=(*env)->Throw(env, (jthrowable) cstack0.l);return;\n");
             sb.append("TRYCATCH_EMPTY=if ((*env)->ExceptionCheck(env)) { return temp0.$rettype; }\n");
             sb.append("TRYCATCH_VOID=if ((*env)->ExceptionCheck(env)) { return; }\n");
+            sb.append("TRYCATCH_EMPTY_FRAME=if ((*env)->ExceptionCheck(env)) { $frames return temp0.$rettype; }\n");
+            sb.append("TRYCATCH_VOID_FRAME=if ((*env)->ExceptionCheck(env)) { $frames return; }\n");
             //sb.append("#GETSTATIC_1=cstack$stackindex0.i = (jint) env->GetStaticBooleanField($class_ptr, $fieldid); $trycatchhandler\n");
             sb.append("GETSTATIC_1=cstack$stackindex0.i = (*env)->GetStaticBooleanField(env, $class_ptr(env)->clazz, $class_ptr(env)->$field_id); $trycatchhandler\n");
             //sb.append("#GETSTATIC_2=cstack$stackindex0.i = (jint) env->GetStaticCharField($class_ptr, $fieldid); $trycatchhandler\n");
@@ -519,6 +523,49 @@ public class Snippets {
             sb.append("INVOKE_ARG_9=cstack$index.l\n");
             sb.append("INVOKE_ARG_10=cstack$index.l\n");
             sb.append("INVOKE_ARG_11=cstack$index.l\n");
+            sb.append("INTRINSIC_ABS_I=cstack$returnstackindex.i = $arg0 < 0 ? (jint) (0u - (unsigned int) $arg0) : $arg0;\n");
+            sb.append("INTRINSIC_ABS_J=cstack$returnstackindex.j = $arg0 < 0 ? (jlong) (0ull - (unsigned long long) $arg0) : $arg0;\n");
+            sb.append("INTRINSIC_ABS_F=cstack$returnstackindex.f = fabsf($arg0);\n");
+            sb.append("INTRINSIC_ABS_D=cstack$returnstackindex.d = fabs($arg0);\n");
+            sb.append("INTRINSIC_MIN_I=cstack$returnstackindex.i = $arg0 <= $arg1 ? $arg0 : $arg1;\n");
+            sb.append("INTRINSIC_MIN_J=cstack$returnstackindex.j = $arg0 <= $arg1 ? $arg0 : $arg1;\n");
+            sb.append("INTRINSIC_MIN_F=cstack$returnstackindex.f = daedalus_min_f($arg0, $arg1);\n");
+            sb.append("INTRINSIC_MIN_D=cstack$returnstackindex.d = daedalus_min_d($arg0, $arg1);\n");
+            sb.append("INTRINSIC_MAX_I=cstack$returnstackindex.i = $arg0 >= $arg1 ? $arg0 : $arg1;\n");
+            sb.append("INTRINSIC_MAX_J=cstack$returnstackindex.j = $arg0 >= $arg1 ? $arg0 : $arg1;\n");
+            sb.append("INTRINSIC_MAX_F=cstack$returnstackindex.f = daedalus_max_f($arg0, $arg1);\n");
+            sb.append("INTRINSIC_MAX_D=cstack$returnstackindex.d = daedalus_max_d($arg0, $arg1);\n");
+            sb.append("INTRINSIC_SQRT_D=cstack$returnstackindex.d = sqrt($arg0);\n");
+            sb.append("INTRINSIC_FLOOR_D=cstack$returnstackindex.d = floor($arg0);\n");
+            sb.append("INTRINSIC_CEIL_D=cstack$returnstackindex.d = ceil($arg0);\n");
+            sb.append("INTRINSIC_RINT_D=cstack$returnstackindex.d = nearbyint($arg0);\n");
+            sb.append("INTRINSIC_FMA_F=cstack$returnstackindex.f = fmaf($arg0, $arg1, $arg2);\n");
+            sb.append("INTRINSIC_FMA_D=cstack$returnstackindex.d = fma($arg0, $arg1, $arg2);\n");
+            sb.append("INTRINSIC_COPYSIGN_F=cstack$returnstackindex.f = copysignf($arg0, $arg1);\n");
+            sb.append("INTRINSIC_COPYSIGN_D=cstack$returnstackindex.d = copysign($arg0, $arg1);\n");
+            sb.append("INTRINSIC_SIGNUM_F=cstack$returnstackindex.f = $arg0 != $arg0 || $arg0 == 0.0f ? $arg0 : copysignf(1.0f, $arg0);\n");
+            sb.append("INTRINSIC_SIGNUM_D=cstack$returnstackindex.d = $arg0 != $arg0 || $arg0 == 0.0 ? $arg0 : copysign(1.0, $arg0);\n");
+            sb.append("INTRINSIC_RAW_BITS_F=cstack$returnstackindex.i = daedalus_float_bits($arg0);\n");
+            sb.append("INTRINSIC_RAW_BITS_D=cstack$returnstackindex.j = daedalus_double_bits($arg0);\n");
+            sb.append("INTRINSIC_BITS_F=cstack$returnstackindex.i = $arg0 != $arg0 ? 0x7fc00000 : daedalus_float_bits($arg0);\n");
+            sb.append("INTRINSIC_BITS_D=cstack$returnstackindex.j = $arg0 != $arg0 ? 0x7ff8000000000000LL : daedalus_double_bits($arg0);\n");
+            sb.append("INTRINSIC_FROM_BITS_F=cstack$returnstackindex.f = daedalus_bits_float($arg0);\n");
+            sb.append("INTRINSIC_FROM_BITS_D=cstack$returnstackindex.d = daedalus_bits_double($arg0);\n");
+            sb.append("INTRINSIC_IS_NAN=cstack$returnstackindex.i = $arg0 != $arg0;\n");
+            sb.append("INTRINSIC_IS_INFINITE=cstack$returnstackindex.i = isinf($arg0) != 0;\n");
+            sb.append("INTRINSIC_IS_FINITE=cstack$returnstackindex.i = isfinite($arg0) != 0;\n");
+            sb.append("INTRINSIC_ARRAYCOPY=if (!daedalus_arraycopy(env, $arg0, $arg1, $arg2, $arg3, $arg4, sizeof($ctype))) { $fallback }\n");
+            sb.append("INTRINSIC_ARRAYS_FILL=if (!daedalus_fill_$suffix(env, $arg0, 0, 0, $arg1, JNI_TRUE)) { $fallback }\n");
+            sb.append("INTRINSIC_ARRAYS_FILL_RANGE=if (!daedalus_fill_$suffix(env, $arg0, $arg1, $arg2, $arg3, JNI_FALSE)) { $fallback }\n");
+            sb.append("INTRINSIC_ARRAYS_EQUALS={ jint r = daedalus_array_equals(env, $arg0, $arg1, sizeof($ctype)); if (r < 0) { $fallback } else cstack$returnstackindex.i = r; }\n");
+            sb.append("INTRINSIC_ARRAYS_COPYOF={ jarray r = !$arg0 || $arg1 < 0 ? NULL : daedalus_copyof_$suffix(env, $arg0, $arg1); if (!r) { $fallback } else cstack$returnstackindex.l = r; }\n");
+            sb.append("INTRINSIC_ARRAYS_HASHCODE={ jint h; if (!daedalus_hash_$suffix(env, $arg0, &h)) { $fallback } else cstack$returnstackindex.i = h; }\n");
+            sb.append("INTRINSIC_STRING_LENGTH=if (!cstack$objectstackindex.l) { $fallback } else cstack$returnstackindex.i = daedalus_str_len(env, $strcache, cstack$objectstackindex.l);\n");
+            sb.append("INTRINSIC_STRING_IS_EMPTY=if (!cstack$objectstackindex.l) { $fallback } else cstack$returnstackindex.i = daedalus_str_len(env, $strcache, cstack$objectstackindex.l) == 0;\n");
+            sb.append("INTRINSIC_STRING_CHAR_AT=if (!cstack$objectstackindex.l || (unsigned int) $arg0 >= (unsigned int) daedalus_str_len(env, $strcache, cstack$objectstackindex.l)) { $fallback } else cstack$returnstackindex.i = daedalus_str_char_at(env, $strcache, cstack$objectstackindex.l, $arg0);\n");
+            sb.append("INTRINSIC_STRING_INDEX_OF={ jint r = !cstack$objectstackindex.l || $arg0 >= 0x10000 ? -2 : daedalus_str_index_of(env, $strcache, cstack$objectstackindex.l, $arg0, 0); if (r == -2) { $fallback } else cstack$returnstackindex.i = r; }\n");
+            sb.append("INTRINSIC_STRING_INDEX_OF_FROM={ jint r = !cstack$objectstackindex.l || $arg0 >= 0x10000 ? -2 : daedalus_str_index_of(env, $strcache, cstack$objectstackindex.l, $arg0, $arg1); if (r == -2) { $fallback } else cstack$returnstackindex.i = r; }\n");
+            sb.append("INTRINSIC_STRING_EQUALS={ jint r = !cstack$objectstackindex.l ? -1 : daedalus_str_equals(env, cstack$objectstackindex.l, $arg0, $class_ptr(env)->clazz); if (r < 0) { $fallback } else cstack$returnstackindex.i = r; }\n");
             //sb.append("#INVOKESPECIAL_0=if (cstack$objectstackindex.l == nullptr) utils::throw_exception(env, \"#NPE\", \"#ERROR_DESC\", $line); \\nelse env->CallNonvirtualVoidMethod(cstack$objectstackindex.l, $class_ptr, $methodid$args); $trycatchhandler\n");
             sb.append("INVOKESPECIAL_0=(*env)->CallNonvirtualVoidMethod(env, cstack$objectstackindex.l, $class_ptr(env)->clazz, $class_ptr(env)->$methodid$args);$trycatchhandler\n");
             sb.append("INVOKESPECIAL_0_S_VARS=#NPE,#ERROR_DESC\n");
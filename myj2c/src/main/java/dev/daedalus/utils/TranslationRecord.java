@@ -0,0 +1,223 @@
+package dev.daedalus.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What the translation of a class made, kept in the build directory of an incremental build so a later build reuses
+ * it while the class is unchanged: the code of the class with its symbolic ids, the class as written to the jar, what
+ * it asked the shared caches for, what it added to the shared maps and pools, what it added to the statistics, and the single targets of
+ * the virtual calls it devirtualized or left virtual.
+ */
+public class TranslationRecord {
+
+    private static final int VERSION = 2;
+
+    // writeUTF takes at most 65535 bytes, which a chunk of three-byte chars stays below
+    private static final int CHUNK = 16384;
+
+    private final String hash;
+    private final String source;
+    private final byte[] classBytes;
+    private final List<List<String>> keys;
+    private final Map<String, String> methodNames;
+    private final Map<String, String> noInitClasses;
+    private final byte[] bootstrapClass;
+    private final int[] counts;
+    private final int methods;
+    private final Map<List<String>, String> singleTargets;
+
+    /**
+     * The bootstrap methods of the class are the methods of bootstrapClass.
+     */
+    public TranslationRecord(String hash, String source, byte[] classBytes, List<List<String>> keys,
+                             Map<String, String> methodNames, Map<String, String> noInitClasses, byte[] bootstrapClass,
+                             int[] counts, int methods, Map<List<String>, String> singleTargets) {
+        this.hash = hash;
+        this.source = source;
+        this.classBytes = classBytes;
+        this.keys = keys;
+        this.methodNames = methodNames;
+        this.noInitClasses = noInitClasses;
+        this.bootstrapClass = bootstrapClass;
+        this.counts = counts;
+        this.methods = methods;
+        this.singleTargets = singleTargets;
+    }
+
+    /**
+     * The hash of everything the translation of the class read, which the class must still have to be reused.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public byte[] getClassBytes() {
+        return classBytes;
+    }
+
+    public List<List<String>> getKeys() {
+        return keys;
+    }
+
+    public Map<String, String> getMethodNames() {
+        return methodNames;
+    }
+
+    public Map<String, String> getNoInitClasses() {
+        return noInitClasses;
+    }
+
+    public byte[] getBootstrapClass() {
+        return bootstrapClass;
+    }
+
+    public int[] getCounts() {
+        return counts;
+    }
+
+    public int getMethods() {
+        return methods;
+    }
+
+    public Map<List<String>, String> getSingleTargets() {
+        return singleTargets;
+    }
+
+    public byte[] toBytes() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(VERSION);
+            out.writeUTF(hash);
+            writeString(out, source);
+            writeBytes(out, classBytes);
+            out.writeInt(keys.size());
+            for (List<String> key : keys) {
+                writeStrings(out, key);
+            }
+            writeMap(out, methodNames);
+            writeMap(out, noInitClasses);
+            writeBytes(out, bootstrapClass);
+            out.writeInt(counts.length);
+            for (int count : counts) {
+                out.writeInt(count);
+            }
+            out.writeInt(methods);
+            out.writeInt(singleTargets.size());
+            for (Map.Entry<List<String>, String> singleTarget : singleTargets.entrySet()) {
+                writeStrings(out, singleTarget.getKey());
+                out.writeUTF(singleTarget.getValue());
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads a record, or returns null if it was written by another version.
+     */
+    public static TranslationRecord fromBytes(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != VERSION) {
+            return null;
+        }
+        String hash = in.readUTF();
+        String source = readString(in);
+        byte[] classBytes = readBytes(in);
+        int keyCount = in.readInt();
+        List<List<String>> keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(readStrings(in));
+        }
+        Map<String, String> methodNames = readMap(in);
+        Map<String, String> noInitClasses = readMap(in);
+        byte[] bootstrapClass = readBytes(in);
+        int[] counts = new int[in.readInt()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = in.readInt();
+        }
+        int methods = in.readInt();
+        int singleTargetCount = in.readInt();
+        Map<List<String>, String> singleTargets = new LinkedHashMap<>();
+        for (int i = 0; i < singleTargetCount; i++) {
+            singleTargets.put(readStrings(in), in.readUTF());
+        }
+        return new TranslationRecord(hash, source, classBytes, keys, methodNames, noInitClasses, bootstrapClass,
+                counts, methods, singleTargets);
+    }
+
+    // In chunks, as a string constant or the code of a class can be longer than writeUTF takes
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeInt((value.length() + CHUNK - 1) / CHUNK);
+        for (int i = 0; i < value.length(); i += CHUNK) {
+            out.writeUTF(value.substring(i, Math.min(value.length(), i + CHUNK)));
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int chunks = in.readInt();
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < chunks; i++) {
+            value.append(in.readUTF());
+        }
+        return value.toString();
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(readString(in), readString(in));
+        }
+        return map;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
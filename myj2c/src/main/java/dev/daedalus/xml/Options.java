@@ -17,6 +17,36 @@ public class Options {
     @Element(name = "expireDate", required = false)
     private String expireDate;
 
+    @Element(name = "typedLocals", required = false)
+    private String typedLocals;
+
+    @Element(name = "localFrames", required = false)
+    private String localFrames;
+
+    @Element(name = "eagerBinding", required = false)
+    private String eagerBinding;
+
+    @Element(name = "inline", required = false)
+    private String inline;
+
+    @Element(name = "devirtualize", required = false)
+    private String devirtualize;
+
+    @Element(name = "pinArrays", required = false)
+    private String pinArrays;
+
+    @Element(name = "incremental", required = false)
+    private String incremental;
+
+    @Element(name = "seed", required = false)
+    private String seed;
+
+    @Element(name = "compileCache", required = false)
+    private String compileCache;
+
+    @Element(name = "compileCacheSize", required = false)
+    private String compileCacheSize;
+
     public String getStringObf() {
         return stringObf;
     }
@@ -54,4 +84,84 @@ public class Options {
     public void setExpireDate(String expireDate) {
         this.expireDate = expireDate;
     }
+
+    public String getTypedLocals() {
+        return typedLocals;
+    }
+
+    public void setTypedLocals(String typedLocals) {
+        this.typedLocals = typedLocals;
+    }
+
+    public String getLocalFrames() {
+        return localFrames;
+    }
+
+    public void setLocalFrames(String localFrames) {
+        this.localFrames = localFrames;
+    }
+
+    public String getEagerBinding() {
+        return eagerBinding;
+    }
+
+    public void setEagerBinding(String eagerBinding) {
+        this.eagerBinding = eagerBinding;
+    }
+
+    public String getInline() {
+        return inline;
+    }
+
+    public void setInline(String inline) {
+        this.inline = inline;
+    }
+
+    public String getDevirtualize() {
+        return devirtualize;
+    }
+
+    public void setDevirtualize(String devirtualize) {
+        this.devirtualize = devirtualize;
+    }
+
+    public String getPinArrays() {
+        return pinArrays;
+    }
+
+    public void setPinArrays(String pinArrays) {
+        this.pinArrays = pinArrays;
+    }
+
+    public String getIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(String incremental) {
+        this.incremental = incremental;
+    }
+
+    public String getSeed() {
+        return seed;
+    }
+
+    public void setSeed(String seed) {
+        this.seed = seed;
+    }
+
+    public String getCompileCache() {
+        return compileCache;
+    }
+
+    public void setCompileCache(String compileCache) {
+        this.compileCache = compileCache;
+    }
+
+    public String getCompileCacheSize() {
+        return compileCacheSize;
+    }
+
+    public void setCompileCacheSize(String compileCacheSize) {
+        this.compileCacheSize = compileCacheSize;
+    }
 }
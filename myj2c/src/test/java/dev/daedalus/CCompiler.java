@@ -0,0 +1,85 @@
+package dev.daedalus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Builds and runs a C program from generated code with the system compiler, with the flags the native build uses.
+ * Tests using it are skipped where there is no cc or no JDK headers.
+ */
+final class CCompiler {
+
+    private CCompiler() {
+    }
+
+    private static Path getInclude() {
+        Path home = Paths.get(System.getProperty("java.home"));
+        return Files.isDirectory(home.resolve("include")) ? home.resolve("include") : home.resolveSibling("include");
+    }
+
+    static void assumeAvailable() {
+        boolean compiler;
+        try {
+            Process process = new ProcessBuilder("cc", "--version").redirectErrorStream(true).start();
+            read(process.getInputStream());
+            compiler = process.waitFor() == 0;
+        } catch (IOException | InterruptedException e) {
+            compiler = false;
+        }
+        assumeTrue(compiler && Files.exists(getInclude().resolve("jni.h")), "needs cc and the JDK headers");
+    }
+
+    /**
+     * Compiles the source and returns what the program prints.
+     */
+    static String compileAndRun(String source, String... flags) throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("daedalus-cc-");
+        try {
+            Files.write(dir.resolve("test.c"), source.getBytes(StandardCharsets.UTF_8));
+            List<String> command = new ArrayList<>(Arrays.asList("cc", "-O2", "-std=c11",
+                    "-I" + getInclude(), "-I" + getInclude().resolve("linux"), "-o", "test", "test.c"));
+            command.addAll(Arrays.asList(flags));
+            run(dir, command);
+            return run(dir, Arrays.asList(dir.resolve("test").toString()));
+        } finally {
+            for (File file : dir.toFile().listFiles()) {
+                file.delete();
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static String run(Path dir, List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true).start();
+        String output = read(process.getInputStream());
+        assertTrue(process.waitFor(120, TimeUnit.SECONDS), "timed out: " + command);
+        assertEquals(0, process.exitValue(), output);
+        return output;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream input = in) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        }
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
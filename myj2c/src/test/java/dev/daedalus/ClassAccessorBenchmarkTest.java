@@ -0,0 +1,193 @@
+package dev.daedalus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Multi-threaded cold start of the generated class accessors: 64 threads enter the same 32 cold classes at once,
+ * against a mock JNIEnv whose FindClass and GetMethodID block like class loading and static initializers do, and
+ * whose monitors park on a mutex. The spin-locked accessor the generator used to emit runs as the baseline. Only the
+ * results are checked; the wall and CPU times of both variants go to the test report. Needs a C compiler and the
+ * JDK headers.
+ */
+public class ClassAccessorBenchmarkTest {
+
+    private static final int THREADS = 64;
+    private static final int CLASSES = 32;
+
+    private static final Pattern RESULT = Pattern.compile("(\\w+) wall_us=(\\d+) cpu_us=(\\d+) live=(\\d+) resolved=(\\d+) consistent=(\\d)");
+
+    // The accessor as generated before, spinning on an atomic_flag while another thread resolves the class
+    private static String getSpinAccessor(int id, String resolve) {
+        return "static const struct cached_c_" + id + "* s_" + id + "_(JNIEnv *env) {\n" +
+                "    static struct cached_c_" + id + " cache;\n" +
+                "    static atomic_flag lock;\n" +
+                "    if (cache.initialize) return &cache;\n" +
+                "    cache.initialize = JNI_FALSE;\n" +
+                "    jclass clazz = (*env)->FindClass(env, \"bench/C" + id + "\");\n" +
+                "    while (atomic_flag_test_and_set(&lock)) {}\n" +
+                "    if (!cache.initialize) {\n" +
+                "        cache.clazz = (*env)->NewGlobalRef(env, clazz);\n" +
+                resolve.replace("    fresh->", "        cache.") +
+                "        cache.initialize = JNI_TRUE;\n" +
+                "    }\n" +
+                "    atomic_flag_clear(&lock);\n" +
+                "    return &cache;\n" +
+                "}\n\n";
+    }
+
+    private static String getSource() {
+        StringBuilder source = new StringBuilder()
+                .append("#define _GNU_SOURCE\n" +
+                        "#include <jni.h>\n" +
+                        "#include <stdatomic.h>\n" +
+                        "#include <stdlib.h>\n" +
+                        "#include <string.h>\n" +
+                        "#include <stdio.h>\n" +
+                        "#include <stdint.h>\n" +
+                        "#include <pthread.h>\n" +
+                        "#include <time.h>\n\n" +
+                        "#define THREADS " + THREADS + "\n" +
+                        "#define CLASSES " + CLASSES + "\n\n" +
+                        "static atomic_int live;\n" +
+                        "static atomic_int resolved;\n" +
+                        "static pthread_mutex_t monitor = PTHREAD_MUTEX_INITIALIZER;\n" +
+                        "static char lock_object;\n\n" +
+                        "static void block(long us) {\n" +
+                        "    struct timespec t = {0, us * 1000};\n" +
+                        "    nanosleep(&t, NULL);\n" +
+                        "}\n\n" +
+                        "static jclass JNICALL find_class(JNIEnv *env, const char *name) {\n" +
+                        "    block(20);\n" +
+                        "    return (jclass) name;\n" +
+                        "}\n\n" +
+                        "static jobject JNICALL alloc_object(JNIEnv *env, jclass clazz) {\n" +
+                        "    return (jobject) &lock_object;\n" +
+                        "}\n\n" +
+                        "static jint JNICALL monitor_enter(JNIEnv *env, jobject obj) {\n" +
+                        "    return pthread_mutex_lock(&monitor) == 0 ? JNI_OK : JNI_ERR;\n" +
+                        "}\n\n" +
+                        "static jint JNICALL monitor_exit(JNIEnv *env, jobject obj) {\n" +
+                        "    return pthread_mutex_unlock(&monitor) == 0 ? JNI_OK : JNI_ERR;\n" +
+                        "}\n\n" +
+                        "static jobject JNICALL new_global_ref(JNIEnv *env, jobject obj) {\n" +
+                        "    if (obj != (jobject) &lock_object) atomic_fetch_add(&live, 1);\n" +
+                        "    return obj;\n" +
+                        "}\n\n" +
+                        "static void JNICALL delete_global_ref(JNIEnv *env, jobject obj) {\n" +
+                        "    if (obj != (jobject) &lock_object) atomic_fetch_sub(&live, 1);\n" +
+                        "}\n\n" +
+                        "static void JNICALL delete_local_ref(JNIEnv *env, jobject obj) {\n" +
+                        "}\n\n" +
+                        "static void JNICALL exception_clear(JNIEnv *env) {\n" +
+                        "}\n\n" +
+                        "static jmethodID JNICALL get_method_id(JNIEnv *env, jclass clazz, const char *name, const char *sig) {\n" +
+                        "    atomic_fetch_add(&resolved, 1);\n" +
+                        "    block(100);\n" +
+                        "    return (jmethodID) (uintptr_t) (name[0] - 'a' + 1);\n" +
+                        "}\n\n");
+        String resolve = "    fresh->method_0 = (*env)->GetMethodID(env, clazz, \"a\", \"()V\");\n" +
+                "    fresh->method_1 = (*env)->GetMethodID(env, clazz, \"b\", \"()V\");\n";
+        source.append(MYObfuscator.getOnceLock());
+        for (int id = 0; id < CLASSES; id++) {
+            source.append("struct cached_c_").append(id).append(" {\n" +
+                            "    jclass clazz;\n" +
+                            "    jmethodID method_0;\n" +
+                            "    jmethodID method_1;\n" +
+                            "    jboolean initialize;\n" +
+                            "};\n\n")
+                    .append(MYObfuscator.getClassAccessor(id, "    jclass clazz = (*env)->FindClass(env, \"bench/C" + id + "\");\n", resolve))
+                    .append(getSpinAccessor(id, resolve));
+        }
+        source.append("typedef const struct cached_c_0 *(*accessor)(JNIEnv *);\n\n")
+                .append("static accessor generated[CLASSES] = {");
+        for (int id = 0; id < CLASSES; id++) {
+            source.append(id == 0 ? "" : ", ").append("(accessor) c_").append(id).append("_");
+        }
+        source.append("};\n")
+                .append("static accessor spinning[CLASSES] = {");
+        for (int id = 0; id < CLASSES; id++) {
+            source.append(id == 0 ? "" : ", ").append("(accessor) s_").append(id).append("_");
+        }
+        source.append("};\n\n")
+                .append("static struct JNINativeInterface_ functions;\n" +
+                        "static pthread_barrier_t barrier;\n" +
+                        "static accessor *accessors;\n" +
+                        "static const struct cached_c_0 *results[THREADS][CLASSES];\n\n" +
+                        "static void *run(void *arg) {\n" +
+                        "    JNIEnv env = &functions;\n" +
+                        "    long thread = (long) (intptr_t) arg;\n" +
+                        "    pthread_barrier_wait(&barrier);\n" +
+                        "    for (int i = 0; i < CLASSES; i++) {\n" +
+                        "        const struct cached_c_0 *cache = accessors[i](&env);\n" +
+                        "        results[thread][i] = cache->initialize && cache->clazz && (uintptr_t) cache->method_1 == 2 ? cache : NULL;\n" +
+                        "    }\n" +
+                        "    return NULL;\n" +
+                        "}\n\n" +
+                        "static long micros(clockid_t clock) {\n" +
+                        "    struct timespec t;\n" +
+                        "    clock_gettime(clock, &t);\n" +
+                        "    return t.tv_sec * 1000000L + t.tv_nsec / 1000;\n" +
+                        "}\n\n" +
+                        "static void measure(const char *name, accessor *tested) {\n" +
+                        "    pthread_t threads[THREADS];\n" +
+                        "    accessors = tested;\n" +
+                        "    atomic_store(&live, 0);\n" +
+                        "    atomic_store(&resolved, 0);\n" +
+                        "    pthread_barrier_init(&barrier, NULL, THREADS);\n" +
+                        "    long wall = micros(CLOCK_MONOTONIC), cpu = micros(CLOCK_PROCESS_CPUTIME_ID);\n" +
+                        "    for (long i = 0; i < THREADS; i++) pthread_create(&threads[i], NULL, run, (void *) (intptr_t) i);\n" +
+                        "    for (int i = 0; i < THREADS; i++) pthread_join(threads[i], NULL);\n" +
+                        "    wall = micros(CLOCK_MONOTONIC) - wall;\n" +
+                        "    cpu = micros(CLOCK_PROCESS_CPUTIME_ID) - cpu;\n" +
+                        "    pthread_barrier_destroy(&barrier);\n" +
+                        "    int consistent = 1;\n" +
+                        "    for (int t = 0; t < THREADS; t++)\n" +
+                        "        for (int i = 0; i < CLASSES; i++)\n" +
+                        "            if (!results[t][i] || results[t][i] != results[0][i]) consistent = 0;\n" +
+                        "    printf(\"%s wall_us=%ld cpu_us=%ld live=%d resolved=%d consistent=%d\\n\", name, wall, cpu,\n" +
+                        "            atomic_load(&live), atomic_load(&resolved), consistent);\n" +
+                        "}\n\n" +
+                        "int main(void) {\n" +
+                        "    functions.FindClass = find_class;\n" +
+                        "    functions.NewGlobalRef = new_global_ref;\n" +
+                        "    functions.DeleteGlobalRef = delete_global_ref;\n" +
+                        "    functions.AllocObject = alloc_object;\n" +
+                        "    functions.MonitorEnter = monitor_enter;\n" +
+                        "    functions.MonitorExit = monitor_exit;\n" +
+                        "    functions.DeleteLocalRef = delete_local_ref;\n" +
+                        "    functions.ExceptionDescribe = exception_clear;\n" +
+                        "    functions.ExceptionClear = exception_clear;\n" +
+                        "    functions.GetMethodID = get_method_id;\n" +
+                        "    measure(\"generated\", generated);\n" +
+                        "    measure(\"spinning\", spinning);\n" +
+                        "    return 0;\n" +
+                        "}\n");
+        return source.toString();
+    }
+
+    @Test
+    public void coldStart() throws Exception {
+        CCompiler.assumeAvailable();
+        String output = CCompiler.compileAndRun(getSource(), "-pthread");
+        System.out.print(output);
+
+        Matcher matcher = RESULT.matcher(output);
+        Set<String> variants = new HashSet<>();
+        while (matcher.find()) {
+            String name = matcher.group(1);
+            variants.add(name);
+            assertEquals("1", matcher.group(6), name + " accessors returned different caches");
+            // Both variants resolve every class once: the spinning one under its lock, the generated one under the monitor
+            assertEquals(CLASSES, Integer.parseInt(matcher.group(4)), name + " leaked global refs");
+            assertEquals(2 * CLASSES, Integer.parseInt(matcher.group(5)), name + " resolved a class more than once");
+        }
+        assertEquals(2, variants.size(), output);
+    }
+}
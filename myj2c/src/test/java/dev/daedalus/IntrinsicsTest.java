@@ -0,0 +1,277 @@
+package dev.daedalus;
+
+import dev.daedalus.instructions.MethodHandler;
+import dev.daedalus.utils.Snippets;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.Type;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs every Math/StrictMath/Float/Double intrinsic as the generated C and compares it with the JVM on the values
+ * where C and Java differ: NaNs with any payload and sign, signed zeros, subnormals, infinities and MIN_VALUE.
+ * A NaN result only has to be some NaN, anything else has to match bit for bit.
+ */
+public class IntrinsicsTest {
+
+    private static final int[] FLOATS = {
+            0x7fc00000, 0x7fc00001, 0xffc00000, 0x7f800001, // NaNs: canonical, payload, negative, signaling
+            0x00000000, 0x80000000, // +-0.0
+            0x00000001, 0x80000001, 0x007fffff, 0x00800000, // MIN_VALUE, -MIN_VALUE, largest subnormal, MIN_NORMAL
+            0x7f800000, 0xff800000, 0x7f7fffff, 0xff7fffff, // +-Infinity, +-MAX_VALUE
+            0x3f800000, 0xbf800000, 0x3f000000, 0xbf000000, 0x3fc00000, 0x40200000, 0xc0200000, 0x406ccccd // 1, -1, .5, -.5, 1.5, 2.5, -2.5, 3.7
+    };
+
+    private static final long[] DOUBLES = {
+            0x7ff8000000000000L, 0x7ff8000000000001L, 0xfff8000000000000L, 0x7ff0000000000001L,
+            0x0000000000000000L, 0x8000000000000000L,
+            0x0000000000000001L, 0x8000000000000001L, 0x000fffffffffffffL, 0x0010000000000000L,
+            0x7ff0000000000000L, 0xfff0000000000000L, 0x7fefffffffffffffL, 0xffefffffffffffffL,
+            0x3ff0000000000000L, 0xbff0000000000000L, 0x3fe0000000000000L, 0xbfe0000000000000L,
+            0x3ff8000000000000L, 0x4004000000000000L, 0xc004000000000000L, 0x400d99999999999aL,
+            0x4330000000000001L, 0xc330000000000001L // 2^52 + 1, past which every double is an integer
+    };
+
+    private static final long[] INTS = {Integer.MIN_VALUE, Integer.MAX_VALUE, 0, 1, -1, 42, -42, Integer.MIN_VALUE + 1};
+
+    private static final long[] LONGS = {Long.MIN_VALUE, Long.MAX_VALUE, 0, 1, -1, 42, -42, Long.MIN_VALUE + 1,
+            Integer.MIN_VALUE, 1L << 32};
+
+    // fma takes three arguments, so it gets a shorter list
+    private static final int[] FMA_FLOATS = {0x7fc00000, 0x00000000, 0x80000000, 0x00000001, 0x7f800000, 0xff800000,
+            0x7f7fffff, 0x3f800000, 0xbfc00000};
+
+    private static final long[] FMA_DOUBLES = {0x7ff8000000000000L, 0x0000000000000000L, 0x8000000000000000L,
+            0x0000000000000001L, 0x7ff0000000000000L, 0xfff0000000000000L, 0x7fefffffffffffffL, 0x3ff0000000000000L,
+            0xbff8000000000000L};
+
+    private static long[] getValues(Type type, boolean fma) {
+        switch (type.getSort()) {
+            case Type.INT:
+                return INTS;
+            case Type.LONG:
+                return LONGS;
+            case Type.FLOAT:
+                int[] floats = fma ? FMA_FLOATS : FLOATS;
+                long[] values = new long[floats.length];
+                for (int i = 0; i < floats.length; i++) {
+                    values[i] = floats[i] & 0xffffffffL;
+                }
+                return values;
+            case Type.DOUBLE:
+                return fma ? FMA_DOUBLES : DOUBLES;
+        }
+        throw new IllegalArgumentException(type.toString());
+    }
+
+    // Every combination of the argument values, as raw bits
+    private static List<long[]> getInputs(Type[] args, boolean fma) {
+        List<long[]> inputs = new ArrayList<>();
+        inputs.add(new long[0]);
+        for (Type arg : args) {
+            List<long[]> next = new ArrayList<>();
+            for (long[] input : inputs) {
+                for (long value : getValues(arg, fma)) {
+                    long[] extended = new long[input.length + 1];
+                    System.arraycopy(input, 0, extended, 0, input.length);
+                    extended[input.length] = value;
+                    next.add(extended);
+                }
+            }
+            inputs = next;
+        }
+        return inputs;
+    }
+
+    private static String fromBits(Type type, String bits) {
+        switch (type.getSort()) {
+            case Type.INT:
+                return "(jint) (uint32_t) " + bits;
+            case Type.LONG:
+                return "(jlong) " + bits;
+            case Type.FLOAT:
+                return "daedalus_bits_float((jint) (uint32_t) " + bits + ")";
+            case Type.DOUBLE:
+                return "daedalus_bits_double((jlong) " + bits + ")";
+        }
+        throw new IllegalArgumentException(type.toString());
+    }
+
+    private static String toBits(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.INT:
+                return "(uint32_t) cstack0.i";
+            case Type.LONG:
+                return "(uint64_t) cstack0.j";
+            case Type.FLOAT:
+                return "(uint32_t) daedalus_float_bits(cstack0.f)";
+            case Type.DOUBLE:
+                return "(uint64_t) daedalus_double_bits(cstack0.d)";
+        }
+        throw new IllegalArgumentException(type.toString());
+    }
+
+    private static Object toJava(Type type, long bits) {
+        switch (type.getSort()) {
+            case Type.INT:
+                return (int) bits;
+            case Type.LONG:
+                return bits;
+            case Type.FLOAT:
+                return Float.intBitsToFloat((int) bits);
+            case Type.DOUBLE:
+                return Double.longBitsToDouble(bits);
+        }
+        throw new IllegalArgumentException(type.toString());
+    }
+
+    private static Class<?> toClass(Type type) {
+        switch (type.getSort()) {
+            case Type.INT:
+                return int.class;
+            case Type.LONG:
+                return long.class;
+            case Type.FLOAT:
+                return float.class;
+            case Type.DOUBLE:
+                return double.class;
+        }
+        throw new IllegalArgumentException(type.toString());
+    }
+
+    // The raw bits of the JVM result, NaN standing for any NaN
+    private static String getExpected(Object result) {
+        if (result instanceof Boolean) {
+            return (Boolean) result ? "1" : "0";
+        } else if (result instanceof Integer) {
+            return Long.toHexString((Integer) result & 0xffffffffL);
+        } else if (result instanceof Long) {
+            return Long.toHexString((Long) result);
+        } else if (result instanceof Float) {
+            return Float.isNaN((Float) result) ? "NaN" : Long.toHexString(Float.floatToRawIntBits((Float) result) & 0xffffffffL);
+        }
+        return Double.isNaN((Double) result) ? "NaN" : Long.toHexString(Double.doubleToRawLongBits((Double) result));
+    }
+
+    private static boolean isNaN(Type type, long bits) {
+        return type.getSort() == Type.FLOAT ? Float.isNaN(Float.intBitsToFloat((int) bits)) :
+                type.getSort() == Type.DOUBLE && Double.isNaN(Double.longBitsToDouble(bits));
+    }
+
+    @Test
+    public void matchesJava() throws Exception {
+        CCompiler.assumeAvailable();
+        Snippets snippets = new Snippets();
+        Map<String, String> intrinsics = new TreeMap<>(MethodHandler.getIntrinsics());
+        assertFalse(intrinsics.isEmpty());
+
+        StringBuilder source = new StringBuilder("#include <jni.h>\n" +
+                "#include <stdint.h>\n" +
+                "#include <stdio.h>\n" +
+                "#include <string.h>\n" +
+                "#include <math.h>\n\n")
+                .append(MYObfuscator.getMathHelpers());
+        StringBuilder main = new StringBuilder("int main(void) {\n");
+        Map<String, String> expected = new HashMap<>();
+        List<String> skipped = new ArrayList<>();
+        int test = 0;
+        for (Map.Entry<String, String> intrinsic : intrinsics.entrySet()) {
+            String key = intrinsic.getKey();
+            String owner = key.substring(0, key.indexOf('.'));
+            String name = key.substring(key.indexOf('.') + 1, key.indexOf('('));
+            String desc = key.substring(key.indexOf('('));
+            Type[] args = Type.getArgumentTypes(desc);
+            Type returnType = Type.getReturnType(desc);
+
+            Map<String, String> tokens = new HashMap<>();
+            tokens.put("returnstackindex", "0");
+            int offset = 0;
+            for (int i = 0; i < args.length; offset += args[i].getSize(), i++) {
+                tokens.put("arg" + i, snippets.getSnippet("INVOKE_ARG_" + args[i].getSort(), Util.createMap("index", offset)));
+            }
+            String snippet = snippets.getSnippet(intrinsic.getValue(), tokens);
+            assertFalse(snippet.isEmpty(), "no snippet " + intrinsic.getValue() + " for " + key);
+
+            Method method;
+            try {
+                Class<?>[] params = new Class<?>[args.length];
+                for (int i = 0; i < args.length; i++) {
+                    params[i] = toClass(args[i]);
+                }
+                method = Class.forName(owner.replace('/', '.')).getMethod(name, params);
+            } catch (NoSuchMethodException e) {
+                // Math.fma came with Java 9
+                skipped.add(key);
+                continue;
+            }
+
+            List<long[]> inputs = getInputs(args, "fma".equals(name));
+            source.append("static void test_").append(test).append("(void) {\n")
+                    .append("    static const uint64_t inputs[][").append(Math.max(args.length, 1)).append("] = {\n");
+            for (int k = 0; k < inputs.size(); k++) {
+                long[] input = inputs.get(k);
+                source.append("        {");
+                Object[] values = new Object[args.length];
+                for (int i = 0; i < args.length; i++) {
+                    source.append(i == 0 ? "" : ", ").append("0x").append(Long.toHexString(input[i])).append("ULL");
+                    values[i] = toJava(args[i], input[i]);
+                }
+                source.append("},\n");
+                expected.put(test + " " + k, getExpected(method.invoke(null, values)));
+            }
+            source.append("    };\n")
+                    .append("    for (size_t k = 0; k < sizeof(inputs) / sizeof(inputs[0]); k++) {\n")
+                    .append("        jvalue cstack0, cstack1, cstack2, cstack3, cstack4, cstack5;\n")
+                    .append("        memset(&cstack0, 0, sizeof(jvalue));\n");
+            offset = 0;
+            for (int i = 0; i < args.length; offset += args[i].getSize(), i++) {
+                source.append("        ").append(snippets.getSnippet("INVOKE_ARG_" + args[i].getSort(), Util.createMap("index", offset)))
+                        .append(" = ").append(fromBits(args[i], "inputs[k][" + i + "]")).append(";\n");
+            }
+            source.append("        ").append(snippet.trim()).append("\n")
+                    .append("        printf(\"").append(test).append(" %zu %llx\\n\", k, (unsigned long long) ").append(toBits(returnType)).append(");\n")
+                    .append("        (void) cstack1; (void) cstack2; (void) cstack3; (void) cstack4; (void) cstack5;\n")
+                    .append("    }\n")
+                    .append("}\n\n");
+            main.append("    test_").append(test).append("();\n");
+            test++;
+        }
+        source.append(main).append("    return 0;\n}\n");
+
+        String output = CCompiler.compileAndRun(source.toString(), "-lm");
+        List<String> keys = new ArrayList<>(intrinsics.keySet());
+        keys.removeAll(skipped);
+        List<String> mismatches = new ArrayList<>();
+        int checked = 0;
+        for (String line : output.split("\n")) {
+            String[] parts = line.trim().split(" ");
+            if (parts.length != 3) {
+                continue;
+            }
+            checked++;
+            String want = expected.get(parts[0] + " " + parts[1]);
+            String key = keys.get(Integer.parseInt(parts[0]));
+            Type returnType = Type.getReturnType(key.substring(key.indexOf('(')));
+            long bits = Long.parseUnsignedLong(parts[2], 16);
+            boolean matches = "NaN".equals(want) ? isNaN(returnType, bits) : want.equals(parts[2]);
+            if (!matches && mismatches.size() < 20) {
+                mismatches.add(key + " input " + parts[1] + ": expected " + want + ", got " + parts[2]);
+            }
+        }
+        assertEquals(expected.size(), checked, "missing results");
+        assertTrue(mismatches.isEmpty(), String.join("\n", mismatches));
+        if (!skipped.isEmpty()) {
+            System.out.println("Not on this JVM: " + skipped);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package dev.daedalus;
+
+import dev.daedalus.cache.IdRequests;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Translates a single method the way a class on the pool is translated, for tests that look at or run its code.
+ */
+final class MethodTranslator {
+
+    private static final Pattern CLASS = Pattern.compile("\\bc_(\\d+)_\\(env\\)");
+    private static final Pattern FUNCTION = Pattern.compile("JNICALL (\\w+)\\(JNIEnv \\*env");
+
+    private MethodTranslator() {
+    }
+
+    /**
+     * The C function of the method, with the symbolic ids of its class.
+     */
+    static String translate(ClassNode clazz, MethodNode method) {
+        MYObfuscator obfuscator = new MYObfuscator();
+        ClassTranslation translation = new ClassTranslation(obfuscator, new IdRequests(),
+                new InterfaceStaticClassProvider("daedalus/test"));
+        MethodContext context = new MethodContext(obfuscator, method, 0, clazz, 0, translation);
+        context.analyses = new MethodAnalyses(clazz, method);
+        new MethodProcessor(obfuscator).processMethod(context);
+        return context.output.toString();
+    }
+
+    static String getFunctionName(String code) {
+        Matcher matcher = FUNCTION.matcher(code);
+        if (!matcher.find()) {
+            throw new IllegalArgumentException("no function in " + code);
+        }
+        return matcher.group(1);
+    }
+
+    /**
+     * Accessors for the cached classes the code uses. The class of c_N_ is the string "c_N" and its method_K is K + 1.
+     */
+    static String getMockClasses(String code) {
+        Set<Integer> ids = new TreeSet<>();
+        Matcher matcher = CLASS.matcher(code);
+        while (matcher.find()) {
+            ids.add(Integer.parseInt(matcher.group(1)));
+        }
+        StringBuilder mock = new StringBuilder("struct mock_class {\n" +
+                "    jclass clazz;\n");
+        for (int i = 0; i < 16; i++) {
+            mock.append("    jmethodID method_").append(i).append(";\n");
+        }
+        mock.append("};\n\n");
+        for (int id : ids) {
+            mock.append("static const struct mock_class *c_").append(id).append("_(JNIEnv *env) {\n")
+                    .append("    static const struct mock_class mock = {(jclass) \"c_").append(id).append("\"");
+            for (int i = 0; i < 16; i++) {
+                mock.append(", (jmethodID) ").append(i + 1);
+            }
+            mock.append("};\n")
+                    .append("    (void) env;\n")
+                    .append("    return &mock;\n")
+                    .append("}\n\n");
+        }
+        return mock.toString();
+    }
+}
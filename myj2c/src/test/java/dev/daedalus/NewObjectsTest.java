@@ -0,0 +1,176 @@
+package dev.daedalus;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Which {@code NEW; DUP; <args>; INVOKESPECIAL <init>} sites become one NewObject call, and that the generated code
+ * of a fused site leaves the object where the NEW put its reference, run against a mock JNIEnv. Running the code
+ * needs a C compiler and the JDK headers.
+ */
+public class NewObjectsTest {
+
+    private static final String OWNER = "t/T";
+
+    private static ClassNode getClassNode() {
+        ClassNode classNode = new ClassNode();
+        classNode.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, OWNER, null, "java/lang/Object", null);
+        return classNode;
+    }
+
+    private static MethodNode getMethod(ClassNode classNode, String name, AbstractInsnNode... insns) {
+        MethodNode method = new MethodNode(Opcodes.ACC_STATIC, name, "()Ljava/lang/Object;", null, null);
+        for (AbstractInsnNode insn : insns) {
+            method.instructions.add(insn);
+        }
+        method.instructions.add(new InsnNode(Opcodes.ARETURN));
+        method.maxStack = 8;
+        classNode.methods.add(method);
+        return method;
+    }
+
+    private static MethodInsnNode init(String owner, String desc) {
+        return new MethodInsnNode(Opcodes.INVOKESPECIAL, owner, "<init>", desc, false);
+    }
+
+    private static MethodInsnNode call(String name, String desc) {
+        return new MethodInsnNode(Opcodes.INVOKESTATIC, OWNER, name, desc, false);
+    }
+
+    private static void assertFused(ClassNode classNode, MethodNode method, TypeInsnNode allocation, MethodInsnNode init,
+                                    boolean expected) throws Exception {
+        NewObjects newObjects = new NewObjects(classNode, method);
+        assertEquals(expected, newObjects.isDeferred(allocation), method.name);
+        assertEquals(expected, newObjects.isFused(init), method.name);
+    }
+
+    @Test
+    public void fusesQuietOrInitializedSites() throws Exception {
+        ClassNode classNode = getClassNode();
+
+        // Only constants between the NEW and the constructor
+        TypeInsnNode allocation = new TypeInsnNode(Opcodes.NEW, "java/lang/StringBuilder");
+        MethodInsnNode init = init("java/lang/StringBuilder", "(Ljava/lang/String;)V");
+        assertFused(classNode, getMethod(classNode, "quiet", allocation, new InsnNode(Opcodes.DUP), new LdcInsnNode("x"), init),
+                allocation, init, true);
+
+        // A call in between could see StringBuilder initialized before it
+        allocation = new TypeInsnNode(Opcodes.NEW, "java/lang/StringBuilder");
+        init = init("java/lang/StringBuilder", "(Ljava/lang/String;)V");
+        assertFused(classNode, getMethod(classNode, "loud", allocation, new InsnNode(Opcodes.DUP),
+                call("text", "()Ljava/lang/String;"), init), allocation, init, false);
+
+        // unless the class is the own one, initialized before any of its code runs
+        allocation = new TypeInsnNode(Opcodes.NEW, OWNER);
+        init = init(OWNER, "(Ljava/lang/Object;)V");
+        assertFused(classNode, getMethod(classNode, "own", allocation, new InsnNode(Opcodes.DUP),
+                call("text", "()Ljava/lang/String;"), init), allocation, init, true);
+
+        // or one the VM initializes at startup
+        allocation = new TypeInsnNode(Opcodes.NEW, "java/lang/String");
+        init = init("java/lang/String", "(Ljava/lang/String;)V");
+        assertFused(classNode, getMethod(classNode, "platform", allocation, new InsnNode(Opcodes.DUP),
+                call("text", "()Ljava/lang/String;"), init), allocation, init, true);
+
+        // The NEW has to be right before the DUP
+        allocation = new TypeInsnNode(Opcodes.NEW, "java/lang/StringBuilder");
+        init = init("java/lang/StringBuilder", "(Ljava/lang/String;)V");
+        assertFused(classNode, getMethod(classNode, "apart", allocation, new InsnNode(Opcodes.NOP), new InsnNode(Opcodes.DUP),
+                new LdcInsnNode("x"), init), allocation, init, false);
+    }
+
+    @Test
+    public void objectLandsInTheNewSlot() throws Exception {
+        CCompiler.assumeAvailable();
+        ClassNode classNode = getClassNode();
+        MethodNode quiet = getMethod(classNode, "quiet",
+                new TypeInsnNode(Opcodes.NEW, "java/lang/StringBuilder"), new InsnNode(Opcodes.DUP), new LdcInsnNode("x"),
+                init("java/lang/StringBuilder", "(Ljava/lang/String;)V"));
+        // Both sites fuse; the inner object is the argument of the outer constructor
+        MethodNode nested = getMethod(classNode, "nested",
+                new TypeInsnNode(Opcodes.NEW, OWNER), new InsnNode(Opcodes.DUP),
+                new TypeInsnNode(Opcodes.NEW, "java/lang/StringBuilder"), new InsnNode(Opcodes.DUP), new LdcInsnNode("x"),
+                init("java/lang/StringBuilder", "(Ljava/lang/String;)V"),
+                init(OWNER, "(Ljava/lang/Object;)V"));
+        assertEquals(1, new NewObjects(classNode, quiet).getCount());
+        assertEquals(2, new NewObjects(classNode, nested).getCount());
+
+        String quietCode = MethodTranslator.translate(classNode, quiet);
+        String nestedCode = MethodTranslator.translate(classNode, nested);
+        for (String code : new String[]{quietCode, nestedCode}) {
+            assertFalse(code.contains("AllocObject"), code);
+            assertTrue(code.contains("cstack0.l = (*env)->NewObject("), code);
+        }
+
+        String source = "#include <jni.h>\n" +
+                "#include <stdarg.h>\n" +
+                "#include <stdatomic.h>\n" +
+                "#include <stdio.h>\n" +
+                "#include <stdlib.h>\n" +
+                "#include <string.h>\n\n" +
+                "struct mock_object {\n" +
+                "    jclass clazz;\n" +
+                "    jmethodID init;\n" +
+                "    jobject arg;\n" +
+                "};\n\n" +
+                "static struct mock_object objects[8];\n" +
+                "static int allocated;\n" +
+                "static struct mock_object text;\n" +
+                "static _Atomic(jstring) cstrings[64];\n\n" +
+                "static jstring daedalus_ldc_string(JNIEnv *env, _Atomic(jstring) *slot, const jchar *chars, jsize len, jmethodID intern) {\n" +
+                "    (void) env; (void) chars; (void) len; (void) intern;\n" +
+                "    atomic_store(slot, (jstring) &text);\n" +
+                "    return (jstring) &text;\n" +
+                "}\n\n" +
+                MethodTranslator.getMockClasses(quietCode + nestedCode) +
+                quietCode.replace("jobject JNICALL", "static jobject JNICALL") + "\n" +
+                nestedCode.replace("jobject JNICALL", "static jobject JNICALL") + "\n" +
+                // Every constructor of the test takes one object
+                "static jobject JNICALL mock_new_object(JNIEnv *env, jclass clazz, jmethodID init, ...) {\n" +
+                "    va_list args;\n" +
+                "    va_start(args, init);\n" +
+                "    struct mock_object *object = &objects[allocated++];\n" +
+                "    object->clazz = clazz;\n" +
+                "    object->init = init;\n" +
+                "    object->arg = va_arg(args, jobject);\n" +
+                "    va_end(args);\n" +
+                "    (void) env;\n" +
+                "    return (jobject) object;\n" +
+                "}\n\n" +
+                "static jobject JNICALL mock_alloc_object(JNIEnv *env, jclass clazz) {\n" +
+                "    (void) env; (void) clazz;\n" +
+                "    abort();\n" +
+                "}\n\n" +
+                "static jboolean JNICALL mock_exception_check(JNIEnv *env) {\n" +
+                "    (void) env;\n" +
+                "    return JNI_FALSE;\n" +
+                "}\n\n" +
+                "int main(void) {\n" +
+                "    struct JNINativeInterface_ functions;\n" +
+                "    memset(&functions, 0, sizeof(functions));\n" +
+                "    functions.NewObject = mock_new_object;\n" +
+                "    functions.AllocObject = mock_alloc_object;\n" +
+                "    functions.ExceptionCheck = mock_exception_check;\n" +
+                "    JNIEnv env = &functions;\n" +
+                "    struct mock_object *result = (struct mock_object *) " + MethodTranslator.getFunctionName(quietCode) + "(&env, NULL);\n" +
+                "    printf(\"quiet %d %d\\n\", result == &objects[0], result->arg == (jobject) &text);\n" +
+                "    allocated = 0;\n" +
+                "    result = (struct mock_object *) " + MethodTranslator.getFunctionName(nestedCode) + "(&env, NULL);\n" +
+                "    printf(\"nested %d %d %d\\n\", allocated, result == &objects[1], result->arg == (jobject) &objects[0] && objects[0].arg == (jobject) &text);\n" +
+                "    return 0;\n" +
+                "}\n";
+        String output = CCompiler.compileAndRun(source);
+        assertEquals("quiet 1 1\nnested 2 1 1\n", output, source);
+    }
+}
@@ -0,0 +1,205 @@
+package dev.daedalus;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs a lowered StringConcatFactory site against a mock JNIEnv, whose String.valueOf returns what toString() of the
+ * mock object returns, and compares it with Java concatenating the same values. Needs a C compiler and the JDK
+ * headers.
+ */
+public class StringConcatTest {
+
+    private static final String DESC = "(Ljava/lang/Object;Ljava/lang/String;ICZJ)Ljava/lang/String;";
+    private static final String RECIPE = "a\u0001|\u0001|\u0001|\u0001|\u0001|\u0001";
+
+    // A toString() result for the object argument, null for an object whose toString() returns null
+    private static final class Value {
+        private final String string;
+
+        Value(String string) {
+            this.string = string;
+        }
+
+        @Override
+        public String toString() {
+            return string;
+        }
+    }
+
+    private static final Object[][] CASES = {
+            {new Value(null), "s", 1, 'c', true, 2L},
+            {new Value("obj"), null, -42, 'x', false, Long.MIN_VALUE},
+            {null, "", Integer.MIN_VALUE, '\u00e9', true, Long.MAX_VALUE},
+    };
+
+    private static String getConcat(Object o, String s, int i, char c, boolean z, long j) {
+        return "a" + o + "|" + s + "|" + i + "|" + c + "|" + z + "|" + j;
+    }
+
+    private static MethodNode getMethod() {
+        MethodNode method = new MethodNode(Opcodes.ACC_STATIC, "concat", DESC, null, null);
+        method.instructions.add(new VarInsnNode(Opcodes.ALOAD, 0));
+        method.instructions.add(new VarInsnNode(Opcodes.ALOAD, 1));
+        method.instructions.add(new VarInsnNode(Opcodes.ILOAD, 2));
+        method.instructions.add(new VarInsnNode(Opcodes.ILOAD, 3));
+        method.instructions.add(new VarInsnNode(Opcodes.ILOAD, 4));
+        method.instructions.add(new VarInsnNode(Opcodes.LLOAD, 5));
+        method.instructions.add(new InvokeDynamicInsnNode("makeConcatWithConstants", DESC,
+                new Handle(Opcodes.H_INVOKESTATIC, "java/lang/invoke/StringConcatFactory", "makeConcatWithConstants",
+                        "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;",
+                        false), RECIPE));
+        method.instructions.add(new InsnNode(Opcodes.ARETURN));
+        method.maxStack = 7;
+        method.maxLocals = 7;
+        return method;
+    }
+
+    // The argument as the C code passes it
+    private static String toC(Object value) {
+        if (value == null) {
+            return "NULL";
+        } else if (value instanceof Value) {
+            String string = ((Value) value).string;
+            return "object(" + (string == null ? "NULL" : "string(\"" + string + "\")") + ")";
+        } else if (value instanceof String) {
+            return "string(\"" + value + "\")";
+        } else if (value instanceof Character) {
+            return "(jchar) " + (int) (Character) value;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? "JNI_TRUE" : "JNI_FALSE";
+        } else if (value instanceof Long) {
+            return (Long) value == Long.MIN_VALUE ? "(jlong) (-9223372036854775807LL - 1)" : value + "LL";
+        }
+        return (Integer) value == Integer.MIN_VALUE ? "(jint) (-2147483647 - 1)" : value.toString();
+    }
+
+    @Test
+    public void matchesJava() throws Exception {
+        CCompiler.assumeAvailable();
+        ClassNode classNode = new ClassNode();
+        classNode.visit(Opcodes.V11, Opcodes.ACC_PUBLIC, "t/T", null, "java/lang/Object", null);
+        MethodNode method = getMethod();
+        classNode.methods.add(method);
+        String code = MethodTranslator.translate(classNode, method);
+
+        StringBuilder main = new StringBuilder("int main(void) {\n" +
+                "    struct JNINativeInterface_ functions;\n" +
+                "    memset(&functions, 0, sizeof(functions));\n" +
+                "    functions.CallStaticObjectMethod = mock_value_of;\n" +
+                "    functions.GetStringLength = mock_string_length;\n" +
+                "    functions.GetStringRegion = mock_string_region;\n" +
+                "    functions.NewString = mock_new_string;\n" +
+                "    functions.DeleteLocalRef = mock_delete_local_ref;\n" +
+                "    functions.ExceptionCheck = mock_exception_check;\n" +
+                "    JNIEnv env = &functions;\n");
+        StringBuilder expected = new StringBuilder();
+        for (Object[] values : CASES) {
+            main.append("    print(").append(MethodTranslator.getFunctionName(code)).append("(&env, NULL");
+            for (Object value : values) {
+                main.append(", ").append(toC(value));
+            }
+            main.append("));\n");
+            String result = getConcat(values[0], (String) values[1], (Integer) values[2], (Character) values[3],
+                    (Boolean) values[4], (Long) values[5]);
+            for (char c : result.toCharArray()) {
+                expected.append(Integer.toHexString(c)).append(' ');
+            }
+            expected.append('\n');
+        }
+        main.append("    return 0;\n" +
+                "}\n");
+
+        String source = "#include <jni.h>\n" +
+                "#include <stdarg.h>\n" +
+                "#include <stdatomic.h>\n" +
+                "#include <stdio.h>\n" +
+                "#include <stdlib.h>\n" +
+                "#include <string.h>\n\n" +
+                "struct mock_string {\n" +
+                "    jsize len;\n" +
+                "    jchar chars[256];\n" +
+                "};\n\n" +
+                "struct mock_object {\n" +
+                "    jstring string;\n" +
+                "};\n\n" +
+                "static struct mock_string strings[64];\n" +
+                "static int string_count;\n" +
+                "static struct mock_object objects[8];\n" +
+                "static int object_count;\n" +
+                "static _Atomic(jstring) cstrings[64];\n\n" +
+                "static jstring new_string(const jchar *chars, jsize len) {\n" +
+                "    struct mock_string *string = &strings[string_count++];\n" +
+                "    string->len = len;\n" +
+                "    memcpy(string->chars, chars, len * sizeof(jchar));\n" +
+                "    return (jstring) string;\n" +
+                "}\n\n" +
+                "static jstring string(const char *text) {\n" +
+                "    jchar chars[256];\n" +
+                "    jsize len = 0;\n" +
+                "    for (; text[len]; len++) chars[len] = (unsigned char) text[len];\n" +
+                "    return new_string(chars, len);\n" +
+                "}\n\n" +
+                "static jobject object(jstring string) {\n" +
+                "    objects[object_count].string = string;\n" +
+                "    return (jobject) &objects[object_count++];\n" +
+                "}\n\n" +
+                "static void throw_exception(JNIEnv *env, const char *exception, const char *error, int line) {\n" +
+                "    (void) env; (void) exception; (void) error; (void) line;\n" +
+                "    abort();\n" +
+                "}\n\n" +
+                "static jstring daedalus_ldc_string(JNIEnv *env, _Atomic(jstring) *slot, const jchar *chars, jsize len, jmethodID intern) {\n" +
+                "    (void) env; (void) intern;\n" +
+                "    jstring string = new_string(chars, len);\n" +
+                "    atomic_store(slot, string);\n" +
+                "    return string;\n" +
+                "}\n\n" +
+                MYObfuscator.getConcatHeader() +
+                MYObfuscator.getConcat() +
+                MethodTranslator.getMockClasses(code) +
+                code.replace("jobject JNICALL", "static jobject JNICALL") + "\n" +
+                // String.valueOf(Object): "null" for null, else whatever toString() returns, null included
+                "static jobject JNICALL mock_value_of(JNIEnv *env, jclass clazz, jmethodID method, ...) {\n" +
+                "    va_list args;\n" +
+                "    va_start(args, method);\n" +
+                "    struct mock_object *value = (struct mock_object *) va_arg(args, jobject);\n" +
+                "    va_end(args);\n" +
+                "    (void) env; (void) clazz;\n" +
+                "    return value ? value->string : string(\"null\");\n" +
+                "}\n\n" +
+                "static jsize JNICALL mock_string_length(JNIEnv *env, jstring str) {\n" +
+                "    (void) env;\n" +
+                "    return ((struct mock_string *) str)->len;\n" +
+                "}\n\n" +
+                "static void JNICALL mock_string_region(JNIEnv *env, jstring str, jsize start, jsize len, jchar *buf) {\n" +
+                "    (void) env;\n" +
+                "    memcpy(buf, ((struct mock_string *) str)->chars + start, len * sizeof(jchar));\n" +
+                "}\n\n" +
+                "static jstring JNICALL mock_new_string(JNIEnv *env, const jchar *chars, jsize len) {\n" +
+                "    (void) env;\n" +
+                "    return new_string(chars, len);\n" +
+                "}\n\n" +
+                "static void JNICALL mock_delete_local_ref(JNIEnv *env, jobject obj) {\n" +
+                "    (void) env; (void) obj;\n" +
+                "}\n\n" +
+                "static jboolean JNICALL mock_exception_check(JNIEnv *env) {\n" +
+                "    (void) env;\n" +
+                "    return JNI_FALSE;\n" +
+                "}\n\n" +
+                "static void print(jobject result) {\n" +
+                "    struct mock_string *string = (struct mock_string *) result;\n" +
+                "    for (jsize i = 0; i < string->len; i++) printf(\"%x \", string->chars[i]);\n" +
+                "    printf(\"\\n\");\n" +
+                "}\n\n" +
+                main;
+        assertEquals(expected.toString(), CCompiler.compileAndRun(source), source);
+    }
+}